@@ -0,0 +1,86 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Benchmarks full connect-and-authenticate round trips against a
+ * FakeMailServer, including TCP connect, TLS handshake and the XOAUTH2
+ * exchange. The {@code metrics} parameter shows the cost of per-phase timing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ConnectBenchmark {
+  private static final String HOST = "localhost";
+  private static final String USER = "oauth@gmail.com";
+  private static final String TOKEN = "benchmark-token";
+
+  @Param({"false", "true"})
+  public boolean metrics;
+
+  private FakeMailServer server;
+  private JmxConnectMetrics connectMetrics;
+
+  @Setup
+  public void setUp() throws IOException {
+    OAuth2Authenticator.initialize();
+    server = new FakeMailServer();
+    if (metrics) {
+      connectMetrics = new JmxConnectMetrics();
+      OAuth2Authenticator.setConnectMetrics(connectMetrics);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (connectMetrics != null) {
+      OAuth2Authenticator.setConnectMetrics(null);
+      connectMetrics.unregister();
+    }
+    server.close();
+  }
+
+  @Benchmark
+  public void connectToImap() throws Exception {
+    IMAPStore store = OAuth2Authenticator.connectToImap(
+        HOST, server.getImapPort(), USER, TOKEN, false);
+    store.close();
+  }
+
+  @Benchmark
+  public void connectToSmtp() throws Exception {
+    SMTPTransport transport = OAuth2Authenticator.connectToSmtp(
+        HOST, server.getSmtpPort(), USER, TOKEN, false);
+    transport.close();
+  }
+}
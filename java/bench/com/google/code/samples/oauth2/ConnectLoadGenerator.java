@@ -0,0 +1,239 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Service;
+
+
+/**
+ * Opens many XOAUTH2 connections to an IMAP or SMTP server at once and
+ * measures how long each takes to connect and authenticate.
+ *
+ * <p>It is meant to be pointed at a FakeMailServer, whose latency, drops
+ * and throttling can be varied to see how the client side behaves under
+ * load. Connections can be held open until the run ends, to load the server
+ * with many concurrent connections rather than just a high connect rate.
+ */
+public class ConnectLoadGenerator {
+  private static final Logger logger =
+      Logger.getLogger(ConnectLoadGenerator.class.getName());
+
+  private final String host;
+  private final int port;
+  private final boolean smtp;
+  private final TokenProvider tokenProvider;
+
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final AtomicLongArray counts =
+      new AtomicLongArray(FailureClass.values().length);
+
+  /**
+   * @param smtp Whether to connect to SMTP, with STARTTLS, rather than to
+   *     IMAP over TLS.
+   * @param tokenProvider Supplies the token for each user.
+   */
+  public ConnectLoadGenerator(String host,
+                              int port,
+                              boolean smtp,
+                              TokenProvider tokenProvider) {
+    this.host = host;
+    this.port = port;
+    this.smtp = smtp;
+    this.tokenProvider = tokenProvider;
+  }
+
+  /**
+   * Makes {@code connections} connects, {@code concurrency} at a time, as
+   * users user0@example.com to user<i>n</i>@example.com in turn, and returns
+   * when all have completed.
+   *
+   * @param users Number of distinct users.
+   * @param hold Whether to keep connections open until all connects have
+   *     completed, instead of closing each straight away.
+   */
+  public void run(final int connections,
+                  int concurrency,
+                  final int users,
+                  final boolean hold) throws InterruptedException {
+    final AtomicInteger next = new AtomicInteger();
+    final Queue<Service> open = new ConcurrentLinkedQueue<Service>();
+    Thread[] threads = new Thread[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          int n;
+          while ((n = next.getAndIncrement()) < connections) {
+            Service service = connect("user" + (n % users) + "@example.com");
+            if (service == null) {
+              continue;
+            }
+            if (hold) {
+              open.add(service);
+            } else {
+              closeQuietly(service);
+            }
+          }
+        }
+      }, "connect-load-" + i);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Service service;
+    while ((service = open.poll()) != null) {
+      closeQuietly(service);
+    }
+  }
+
+  private Service connect(String userEmail) {
+    long start = System.nanoTime();
+    try {
+      String token = tokenProvider.getToken(userEmail);
+      Service service = smtp
+          ? OAuth2Authenticator.connectToSmtp(host, port, userEmail, token,
+                                              false)
+          : OAuth2Authenticator.connectToImap(host, port, userEmail, token,
+                                              false);
+      latencies.record(System.nanoTime() - start);
+      counts.incrementAndGet(FailureClass.NONE.ordinal());
+      return service;
+    } catch (MessagingException e) {
+      counts.incrementAndGet(FailureClass.classify(e).ordinal());
+      logger.log(Level.FINE, "Connect failed for " + userEmail, e);
+    } catch (IOException e) {
+      counts.incrementAndGet(FailureClass.classify(e).ordinal());
+      logger.log(Level.FINE, "No token for " + userEmail, e);
+    }
+    return null;
+  }
+
+  /** Returns the number of connects that succeeded. */
+  public long getSuccessCount() {
+    return counts.get(FailureClass.NONE.ordinal());
+  }
+
+  /** Returns the number of connects that failed with {@code failureClass}. */
+  public long getFailureCount(FailureClass failureClass) {
+    return counts.get(failureClass.ordinal());
+  }
+
+  /**
+   * Returns the given percentile, for example 0.99, of the time successful
+   * connects took.
+   */
+  public double getPercentileMillis(double fraction) {
+    return latencies.getPercentileMillis(fraction);
+  }
+
+  /** Returns the mean time successful connects took. */
+  public double getMeanMillis() {
+    return latencies.getMeanMillis();
+  }
+
+  private static void closeQuietly(Service service) {
+    try {
+      service.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close connection", e);
+    }
+  }
+
+  /**
+   * Runs a load test against a server, or against a FakeMailServer started
+   * in this JVM when the target is "local", and prints the latency
+   * percentiles and failure counts. A local server needs the JVM's key and
+   * trust stores to hold a certificate for localhost.
+   */
+  public static void main(String args[]) throws Exception {
+    if (args.length < 4 || args.length > 7) {
+      System.err.println(
+          "Usage: ConnectLoadGenerator <imap|smtp> <connections>"
+          + " <concurrency> <host:port|local> [latencyMillis] [dropRate]"
+          + " [throttleRate]");
+      return;
+    }
+    boolean smtp = args[0].equalsIgnoreCase("smtp");
+    int connections = Integer.parseInt(args[1]);
+    int concurrency = Integer.parseInt(args[2]);
+
+    OAuth2Authenticator.initialize();
+
+    FakeMailServer server = null;
+    String host;
+    int port;
+    if (args[3].equals("local")) {
+      server = new FakeMailServer();
+      if (args.length > 4) {
+        long latencyMillis = Long.parseLong(args[4]);
+        server.setLatency(latencyMillis / 2, latencyMillis * 3 / 2);
+      }
+      if (args.length > 5) {
+        server.setDropRate(Double.parseDouble(args[5]));
+      }
+      if (args.length > 6) {
+        server.setThrottleRate(Double.parseDouble(args[6]));
+      }
+      host = "localhost";
+      port = smtp ? server.getSmtpPort() : server.getImapPort();
+    } else {
+      int colon = args[3].lastIndexOf(':');
+      host = args[3].substring(0, colon);
+      port = Integer.parseInt(args[3].substring(colon + 1));
+    }
+
+    ConnectLoadGenerator generator = new ConnectLoadGenerator(
+        host, port, smtp, new TokenProvider() {
+          public String getToken(String userEmail) {
+            return "token-" + userEmail;
+          }
+
+          public void invalidate(String userEmail) {
+          }
+        });
+    long start = System.nanoTime();
+    try {
+      generator.run(connections, concurrency, connections, true);
+    } finally {
+      if (server != null) {
+        server.close();
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("%d connects in %.1fs (%.0f/s)%n", connections, seconds,
+                      connections / seconds);
+    System.out.printf("p50 %.1fms  p99 %.1fms  mean %.1fms%n",
+                      generator.getPercentileMillis(0.5),
+                      generator.getPercentileMillis(0.99),
+                      generator.getMeanMillis());
+    for (FailureClass failureClass : FailureClass.values()) {
+      long count = generator.counts.get(failureClass.ordinal());
+      if (count > 0) {
+        System.out.println(failureClass + "\t" + count);
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+
+/**
+ * Measures acquiring and releasing ConnectionLimiter permits from many
+ * threads across many accounts, with a single lock stripe compared with the
+ * default striping.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+public class ConnectionLimiterBenchmark {
+  private static final int ACCOUNTS = 50000;
+
+  @Param({"1", "64"})
+  public int stripes;
+
+  private ConnectionLimiter limiter;
+  private String[] accounts;
+
+  @Setup
+  public void setUp() {
+    limiter = new ConnectionLimiter(15, Integer.MAX_VALUE, stripes);
+    accounts = new String[ACCOUNTS];
+    for (int i = 0; i < ACCOUNTS; i++) {
+      accounts[i] = "user" + i + "@gmail.com";
+    }
+  }
+
+  @Benchmark
+  public void acquireRelease() throws InterruptedException, TimeoutException {
+    String account =
+        accounts[ThreadLocalRandom.current().nextInt(ACCOUNTS)];
+    limiter.acquire("imap.gmail.com", account, 1, TimeUnit.SECONDS).close();
+  }
+}
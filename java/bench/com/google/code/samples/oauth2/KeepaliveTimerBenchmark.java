@@ -0,0 +1,118 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Compares moving one connection's keepalive timer, as KeepaliveScheduler
+ * does after every check, in a HashedTimingWheel and in a
+ * ScheduledThreadPoolExecutor, with a timer pending for every connection.
+ * The {@code advance} benchmark is the scheduler thread's cost per tick.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class KeepaliveTimerBenchmark {
+  private static final long INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+  private static final Runnable NOTHING = new Runnable() {
+    public void run() {
+    }
+  };
+
+  @Param({"100000"})
+  public int connections;
+
+  private HashedTimingWheel wheel;
+  private HashedTimingWheel.Entry[] entries;
+  private ScheduledThreadPoolExecutor executor;
+  private ScheduledFuture<?>[] futures;
+  private List<HashedTimingWheel.Entry> expired =
+      new ArrayList<HashedTimingWheel.Entry>();
+  private long now;
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    now = System.nanoTime();
+    wheel = new HashedTimingWheel(TimeUnit.MILLISECONDS.toNanos(100), 1024,
+                                  now);
+    executor = new ScheduledThreadPoolExecutor(1);
+    executor.setRemoveOnCancelPolicy(true);
+    entries = new HashedTimingWheel.Entry[connections];
+    futures = new ScheduledFuture<?>[connections];
+    for (int i = 0; i < connections; i++) {
+      long delay = (long) (random.nextDouble() * INTERVAL_NANOS);
+      entries[i] = new HashedTimingWheel.Entry();
+      wheel.schedule(entries[i], now + delay);
+      futures[i] = executor.schedule(NOTHING, delay, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private int nextIndex() {
+    next = (next + 7919) % connections;
+    return next;
+  }
+
+  @Benchmark
+  public void wheelReschedule() {
+    wheel.schedule(entries[nextIndex()], now + INTERVAL_NANOS);
+  }
+
+  @Benchmark
+  public void executorReschedule() {
+    int i = nextIndex();
+    futures[i].cancel(false);
+    futures[i] = executor.schedule(NOTHING, INTERVAL_NANOS,
+                                   TimeUnit.NANOSECONDS);
+  }
+
+  @Benchmark
+  public int wheelAdvance() {
+    // Expires one tick, and puts what expired back one interval later, as
+    // the checks would.
+    now += TimeUnit.MILLISECONDS.toNanos(100);
+    wheel.advance(now, expired);
+    int count = expired.size();
+    for (HashedTimingWheel.Entry entry : expired) {
+      wheel.schedule(entry, now + INTERVAL_NANOS);
+    }
+    expired.clear();
+    return count;
+  }
+}
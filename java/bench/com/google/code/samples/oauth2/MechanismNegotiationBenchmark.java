@@ -0,0 +1,84 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Benchmarks IMAP connects to a FakeMailServer that, like Gmail, leaves its
+ * capabilities out of the greeting, with and without ImapCapabilityCache,
+ * for each SASL mechanism. The server delays every reply by {@code
+ * latencyMillis} to stand in for the network round trip the cache saves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MechanismNegotiationBenchmark {
+  private static final String HOST = "localhost";
+  private static final String USER = "oauth@gmail.com";
+  private static final String TOKEN = "benchmark-token";
+
+  @Param({"XOAUTH2", "OAUTHBEARER"})
+  public String mechanism;
+
+  @Param({"false", "true"})
+  public boolean cacheCapabilities;
+
+  @Param({"5"})
+  public long latencyMillis;
+
+  private FakeMailServer server;
+
+  @Setup
+  public void setUp() throws IOException {
+    OAuth2Authenticator.initialize();
+    ImapCapabilityCache.clear();
+    server = new FakeMailServer();
+    server.setMechanisms(mechanism);
+    server.setCapabilitiesInGreeting(false);
+    server.setLatency(latencyMillis, latencyMillis);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.close();
+    ImapCapabilityCache.clear();
+  }
+
+  @Benchmark
+  public void connectToImap() throws Exception {
+    if (!cacheCapabilities) {
+      ImapCapabilityCache.clear();
+    }
+    IMAPStore store = OAuth2Authenticator.connectToImap(
+        HOST, server.getImapPort(), USER, TOKEN, false);
+    store.close();
+  }
+}
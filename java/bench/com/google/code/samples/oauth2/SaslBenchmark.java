@@ -0,0 +1,146 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Benchmarks for the SASL hot paths: mechanism matching in the factory,
+ * building the XOAUTH2 response, and looking the factory up through the
+ * installed security providers compared with calling it directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SaslBenchmark {
+  private static final String USER = "oauth@gmail.com";
+  private static final String TOKEN =
+      "ya29.a0AfH6SMBx3kYVfZ9xN0qP4rT7uWcL2mEo8gHjKdSbVn1Q5zXyA6iR3tUeO9pL"
+      + "wMbC4vGhJkNf7sDaQ2eRtYuIoP0lZxCvBnM1qWeRtY";
+
+  private OAuth2SaslClientFactory factory;
+  private Provider.Service service;
+  private Provider.Service legacyService;
+  private String[] mechanisms;
+  private String[] xoauth2Mechanism;
+  private Map<String, Object> props;
+  private CallbackHandler callbackHandler;
+
+  @Setup
+  public void setUp() {
+    OAuth2Authenticator.initialize();
+    factory = OAuth2SaslClientFactory.getInstance();
+    service = Security.getProvider("Google OAuth2 Provider")
+        .getService("SaslClientFactory", "XOAUTH2");
+    // How the provider was registered before it handed out a singleton.
+    Provider legacyProvider = new Provider("Legacy", 1.0, "") {
+      private static final long serialVersionUID = 1L;
+    };
+    legacyProvider.put("SaslClientFactory.XOAUTH2",
+                       OAuth2SaslClientFactory.class.getName());
+    legacyService = legacyProvider.getService("SaslClientFactory", "XOAUTH2");
+    mechanisms = new String[] {"PLAIN", "LOGIN", "XOAUTH2"};
+    // What JavaMail passes when mail.imaps.sasl.mechanisms is XOAUTH2.
+    xoauth2Mechanism = new String[] {"XOAUTH2"};
+    props = new HashMap<String, Object>();
+    props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROP, TOKEN);
+    callbackHandler = new CallbackHandler() {
+      public void handle(Callback[] callbacks)
+          throws IOException, UnsupportedCallbackException {
+        for (Callback callback : callbacks) {
+          if (callback instanceof NameCallback) {
+            ((NameCallback) callback).setName(USER);
+          }
+        }
+      }
+    };
+  }
+
+  @Benchmark
+  public SaslClient factoryCreateSaslClient() {
+    return factory.createSaslClient(mechanisms, null, "imap", "localhost",
+                                    props, callbackHandler);
+  }
+
+  @Benchmark
+  public SaslClient providerLookup() throws SaslException {
+    return Sasl.createSaslClient(xoauth2Mechanism, null, "imap", "localhost",
+                                 props, callbackHandler);
+  }
+
+  @Benchmark
+  public SaslClient directFactory() {
+    // What the provider scan in providerLookup eventually calls.
+    return factory.createSaslClient(xoauth2Mechanism, null, "imap",
+                                    "localhost", props, callbackHandler);
+  }
+
+  @Benchmark
+  public Object serviceNewInstance() throws NoSuchAlgorithmException {
+    return service.newInstance(null);
+  }
+
+  @Benchmark
+  public Object legacyServiceNewInstance() throws NoSuchAlgorithmException {
+    return legacyService.newInstance(null);
+  }
+
+  @Benchmark
+  public byte[] evaluateChallenge() throws SaslException {
+    SaslClient client = new OAuth2SaslClient(TOKEN, callbackHandler);
+    return client.evaluateChallenge(new byte[0]);
+  }
+
+  @Benchmark
+  public byte[] responseStringFormat() {
+    // The encoding OAuth2SaslClient used before XOAuth2ResponseEncoder.
+    return String.format("user=%s\1auth=Bearer %s\1\1", USER, TOKEN)
+        .getBytes();
+  }
+
+  @Benchmark
+  public byte[] responseEncoder() {
+    return XOAuth2ResponseEncoder.encode(USER, TOKEN);
+  }
+
+  @Benchmark
+  public byte[] responseEncoderBase64() {
+    return XOAuth2ResponseEncoder.encodeBase64(USER, TOKEN);
+  }
+}
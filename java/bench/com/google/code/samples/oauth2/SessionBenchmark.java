@@ -0,0 +1,58 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Compares building a Session per connection, as connectToImap used to, with
+ * fetching the shared one from OAuth2SessionCache. Run with {@code -prof gc}
+ * to see the allocation difference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+  private static final String HOST = "imap.gmail.com";
+  private static final int PORT = 993;
+
+  @Benchmark
+  public Session newSessionPerConnection() {
+    Properties props = new Properties();
+    props.put("mail.imaps.sasl.enable", "true");
+    props.put("mail.imaps.sasl.mechanisms", "XOAUTH2");
+    props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROP, "token");
+    Session session = Session.getInstance(props);
+    session.setDebug(false);
+    return session;
+  }
+
+  @Benchmark
+  public Session cachedSession() {
+    return OAuth2SessionCache.getImapSession(HOST, PORT, false);
+  }
+}
@@ -0,0 +1,102 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+
+/**
+ * Measures messages sent per second to a FakeMailServer, each over a new
+ * authenticated transport or through an OAuth2SmtpTransportPool. The {@code
+ * latencyMillis} parameter adds server latency to every command, as a
+ * distant server would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class SmtpSendBenchmark {
+  private static final String HOST = "localhost";
+  private static final String USER = "oauth@gmail.com";
+  private static final String TOKEN = "benchmark-token";
+
+  @Param({"0", "5"})
+  public long latencyMillis;
+
+  private FakeMailServer server;
+  private OAuth2SmtpTransportPool pool;
+  private Message message;
+  private Address[] recipients;
+
+  @Setup
+  public void setUp() throws IOException, MessagingException {
+    OAuth2Authenticator.initialize();
+    server = new FakeMailServer();
+    server.setLatency(latencyMillis, latencyMillis);
+    pool = new OAuth2SmtpTransportPool(4, 60000, 10000);
+    message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress(USER));
+    message.setSubject("Benchmark");
+    message.setText("Hello");
+    message.saveChanges();
+    recipients = new Address[] {new InternetAddress("to@example.com")};
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    pool.close();
+    server.close();
+  }
+
+  @Benchmark
+  public void unpooled() throws Exception {
+    SMTPTransport transport = OAuth2Authenticator.connectToSmtp(
+        HOST, server.getSmtpPort(), USER, TOKEN, false);
+    try {
+      transport.sendMessage(message, recipients);
+    } finally {
+      transport.close();
+    }
+  }
+
+  @Benchmark
+  public void pooled() throws Exception {
+    pool.sendMessage(HOST, server.getSmtpPort(), USER, TOKEN, message,
+                     recipients);
+  }
+}
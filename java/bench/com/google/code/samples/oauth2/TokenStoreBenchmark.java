@@ -0,0 +1,104 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Compares looking up a token in MappedTokenStore with a HashMap holding
+ * the same tokens on the heap. The store pays for decrypting a record on
+ * every lookup in exchange for keeping no per-account objects; run with
+ * {@code -prof gc} to see the allocation per lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TokenStoreBenchmark {
+  @Param({"100000"})
+  public int accounts;
+
+  private String[] emails;
+  private Map<String, AccessToken> map;
+  private Path directory;
+  private MappedTokenStore store;
+  private int next = 0;
+
+  @Setup
+  public void setUp() throws IOException, GeneralSecurityException {
+    long expiresAtMillis = System.currentTimeMillis() + 24 * 3600 * 1000L;
+    StringBuilder padding = new StringBuilder();
+    while (padding.length() < 150) {
+      padding.append("0123456789");
+    }
+    directory = Files.createTempDirectory("token-store-bench");
+    KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+    keyGenerator.init(256);
+    store = new MappedTokenStore(directory.resolve("tokens"),
+                                 keyGenerator.generateKey(), accounts, null);
+    emails = new String[accounts];
+    map = new HashMap<String, AccessToken>();
+    for (int i = 0; i < accounts; i++) {
+      emails[i] = "user" + i + "@example.com";
+      AccessToken token =
+          new AccessToken("ya29." + i + "." + padding, expiresAtMillis);
+      map.put(emails[i], token);
+      store.putAccessToken(emails[i], token);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    Files.delete(directory.resolve("tokens"));
+    Files.delete(directory);
+  }
+
+  private String nextEmail() {
+    // Strides through the accounts so that successive lookups miss the
+    // CPU caches, as they would with real traffic.
+    next = (next + 7919) % accounts;
+    return emails[next];
+  }
+
+  @Benchmark
+  public String hashMapGet() {
+    return map.get(nextEmail()).getToken();
+  }
+
+  @Benchmark
+  public String mappedStoreGetToken() throws IOException {
+    return store.getToken(nextEmail());
+  }
+}
@@ -0,0 +1,67 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.xoauth;
+
+import net.oauth.OAuthConsumer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Benchmarks the HMAC-SHA1 signing done by the legacy XOAUTH response
+ * builder, through net.oauth and through XoauthResponseSigner's cached
+ * Macs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class XoauthResponseBenchmark {
+  private static final String USER = "xoauth@gmail.com";
+  private static final String TOKEN =
+      "1/MI6B2DqJP4FEkDRLUKrD5l46sQ0758-2ucEKBY-DeB0";
+  private static final String TOKEN_SECRET = "NysqNqVTulFsdHpSRrPP56sF";
+
+  private XoauthSaslResponseBuilder builder;
+  private XoauthResponseSigner signer;
+  private OAuthConsumer consumer;
+
+  @Setup
+  public void setUp() {
+    builder = new XoauthSaslResponseBuilder();
+    signer = new XoauthResponseSigner();
+    consumer = new OAuthConsumer(null, "anonymous", "anonymous", null);
+  }
+
+  @Benchmark
+  public byte[] buildResponse() throws Exception {
+    return builder.buildResponse(USER, XoauthProtocol.IMAP, TOKEN,
+                                 TOKEN_SECRET, consumer);
+  }
+
+  @Benchmark
+  public byte[] signerBuildResponse() throws Exception {
+    return signer.buildResponse(USER, XoauthProtocol.IMAP, TOKEN,
+                                TOKEN_SECRET, consumer);
+  }
+}
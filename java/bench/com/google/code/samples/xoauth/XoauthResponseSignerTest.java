@@ -0,0 +1,75 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.xoauth;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import net.oauth.OAuthConsumer;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks that XoauthResponseSigner builds byte for byte the response that
+ * net.oauth builds through XoauthSaslResponseBuilder. Built with the bench
+ * profile, which is the only one that has net.oauth and the legacy sources.
+ */
+class XoauthResponseSignerTest {
+  private static final String NONCE = "8047183394862251234";
+  private static final String TIMESTAMP = "1349999999";
+
+  private final XoauthSaslResponseBuilder builder =
+      new XoauthSaslResponseBuilder();
+  private final XoauthResponseSigner signer = new XoauthResponseSigner();
+
+  @Test
+  void matchesNetOauthForPlainArguments() throws Exception {
+    assertSameResponse("xoauth@gmail.com", XoauthProtocol.IMAP,
+                       "1/MI6B2DqJP4FEkDRLUKrD5l46sQ0758-2ucEKBY-DeB0",
+                       "NysqNqVTulFsdHpSRrPP56sF",
+                       new OAuthConsumer(null, "anonymous", "anonymous",
+                                         null));
+  }
+
+  @Test
+  void matchesNetOauthForReservedAndNonAsciiCharacters() throws Exception {
+    assertSameResponse("o'brien+mail~box@bücher.example",
+                       XoauthProtocol.SMTP,
+                       "1/töken+with/reserved=chars&more",
+                       "sécret&with=reserved/+chars %",
+                       new OAuthConsumer(null, "kéy+with/reserved:chars",
+                                         "consumer&sécret=!", null));
+  }
+
+  private void assertSameResponse(String userEmail,
+                                  XoauthProtocol protocol,
+                                  String oauthToken,
+                                  String oauthTokenSecret,
+                                  OAuthConsumer consumer)
+      throws Exception {
+    byte[] expected = builder.buildResponse(userEmail, protocol, oauthToken,
+                                            oauthTokenSecret, consumer,
+                                            NONCE, TIMESTAMP);
+    byte[] actual = signer.buildResponse(userEmail, protocol, oauthToken,
+                                         oauthTokenSecret, consumer,
+                                         NONCE, TIMESTAMP);
+    assertArrayEquals(expected, actual,
+                      () -> new String(expected, StandardCharsets.UTF_8)
+                          + "\n" + new String(actual, StandardCharsets.UTF_8));
+  }
+}
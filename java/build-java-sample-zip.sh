@@ -28,7 +28,7 @@
 # being zipped up.
 
 
-top_level_files="README-java-sample.txt build.xml build.properties ../python/oauth2.py"
+top_level_files="README-java-sample.txt build.xml build.properties pom.xml ../python/oauth2.py"
 relative_files="com/google/code/samples/oauth2/*.java"
 all_files="$top_level_files $relative_files"
 
@@ -0,0 +1,53 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+
+/**
+ * An OAuth2 access token together with the time at which it expires.
+ */
+public final class AccessToken {
+  private final String token;
+  private final long expiresAtMillis;
+
+  /**
+   * @param token The access token.
+   * @param expiresAtMillis Expiry time, in milliseconds since the epoch.
+   */
+  public AccessToken(String token, long expiresAtMillis) {
+    if (token == null) {
+      throw new NullPointerException("token");
+    }
+    this.token = token;
+    this.expiresAtMillis = expiresAtMillis;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public long getExpiresAtMillis() {
+    return expiresAtMillis;
+  }
+
+  /**
+   * Returns whether the token expires within {@code marginMillis} of {@code
+   * nowMillis}.
+   */
+  public boolean expiresWithin(long marginMillis, long nowMillis) {
+    return expiresAtMillis - marginMillis <= nowMillis;
+  }
+}
@@ -0,0 +1,149 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Service;
+
+
+/**
+ * Runs blocking JavaMail connects on an executor and exposes them as
+ * CompletableFutures.
+ *
+ * <p>If the future times out or is cancelled before the connect finishes, the
+ * connect's socket is closed so that the worker thread is released promptly,
+ * and a store or transport that connects anyway is closed rather than
+ * leaked.
+ */
+final class AsyncConnector {
+  private static final Logger logger =
+      Logger.getLogger(AsyncConnector.class.getName());
+
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(
+          daemonThreadFactory("oauth2-connect-timeout"));
+
+  private static class DefaultExecutorHolder {
+    static final ExecutorService executor = newDefaultExecutor();
+  }
+
+  private AsyncConnector() {
+  }
+
+  /**
+   * Returns the executor used when callers do not supply one: a virtual
+   * thread per task on JDKs that have them, otherwise a cached pool of
+   * daemon threads.
+   */
+  static ExecutorService defaultExecutor() {
+    return DefaultExecutorHolder.executor;
+  }
+
+  /**
+   * Runs {@code connect} on {@code executor}.
+   *
+   * @param timeoutMillis If positive, the future fails with a
+   *     TimeoutException and the connect is aborted after this long.
+   */
+  static <T extends Service> CompletableFuture<T> connect(
+      final Callable<T> connect, Executor executor, long timeoutMillis) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    final ConnectContext context = new ConnectContext();
+
+    future.whenComplete((result, failure) -> {
+      if (failure != null) {
+        // Timed out, cancelled or failed: release any half-open socket.
+        context.abort();
+      }
+    });
+
+    if (timeoutMillis > 0) {
+      final ScheduledFuture<?> timeout = timer.schedule(() -> {
+        future.completeExceptionally(new TimeoutException(
+            "Connect timed out after " + timeoutMillis + " ms"));
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+      future.whenComplete((result, failure) -> timeout.cancel(false));
+    }
+
+    try {
+      executor.execute(() -> {
+        if (future.isDone()) {
+          return;
+        }
+        context.attach();
+        try {
+          T service = connect.call();
+          if (!future.complete(service)) {
+            closeQuietly(service);
+          }
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
+        } finally {
+          context.detach();
+        }
+      });
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  private static void closeQuietly(Service service) {
+    try {
+      service.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close abandoned connection", e);
+    }
+  }
+
+  private static ExecutorService newDefaultExecutor() {
+    try {
+      Method method =
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (Exception e) {
+      // Older JDK, or virtual threads are a disabled preview feature.
+      logger.log(Level.FINE, "Virtual threads unavailable", e);
+    }
+    return Executors.newCachedThreadPool(
+        daemonThreadFactory("oauth2-connect"));
+  }
+
+  static ThreadFactory daemonThreadFactory(final String namePrefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread =
+          new Thread(runnable, namePrefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
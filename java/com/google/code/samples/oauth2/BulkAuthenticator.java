@@ -0,0 +1,315 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+
+/**
+ * Authenticates a large batch of mailboxes to IMAP with OAuth2.
+ *
+ * <p>Credentials are pulled from an iterator, such as a CredentialReader, only
+ * as fast as connects can be started, and each result is handed to a
+ * ResultSink as soon as it is known, so memory use does not depend on the
+ * size of the batch. At most {@code maxConcurrency} connects are in flight at
+ * once, and connects to each host are started at no more than {@code
+ * connectsPerSecondPerHost}. A host that is at its rate limit holds up the
+ * credentials behind it; sort the input by host if that matters.
+ *
+ * <p>Every store is closed as soon as it has authenticated. You must have
+ * called {@code OAuth2Authenticator.initialize}.
+ */
+public class BulkAuthenticator {
+  private static final Logger logger =
+      Logger.getLogger(BulkAuthenticator.class.getName());
+
+  /**
+   * A mailbox to authenticate.
+   */
+  public static final class Credential {
+    private final String userEmail;
+    private final String oauthToken;
+    private final String host;
+    private final int port;
+
+    public Credential(String userEmail,
+                      String oauthToken,
+                      String host,
+                      int port) {
+      this.userEmail = userEmail;
+      this.oauthToken = oauthToken;
+      this.host = host;
+      this.port = port;
+    }
+
+    public String getUserEmail() {
+      return userEmail;
+    }
+
+    public String getOAuthToken() {
+      return oauthToken;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public int getPort() {
+      return port;
+    }
+  }
+
+  /**
+   * The outcome of authenticating one mailbox.
+   */
+  public static final class Result {
+    private final String userEmail;
+    private final String host;
+    private final long latencyMillis;
+    private final FailureClass failureClass;
+    private final Throwable failure;
+
+    Result(String userEmail,
+           String host,
+           long latencyMillis,
+           Throwable failure) {
+      this.userEmail = userEmail;
+      this.host = host;
+      this.latencyMillis = latencyMillis;
+      this.failureClass = FailureClass.classify(failure);
+      this.failure = failure;
+    }
+
+    public String getUserEmail() {
+      return userEmail;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public boolean isSuccess() {
+      return failure == null;
+    }
+
+    /** Returns the time from starting the connect to its completion. */
+    public long getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    public FailureClass getFailureClass() {
+      return failureClass;
+    }
+
+    /** Returns the exception the connect failed with, or null. */
+    public Throwable getFailure() {
+      return failure;
+    }
+  }
+
+  /**
+   * Receives results. Calls are made from connect threads, but never
+   * concurrently.
+   */
+  public interface ResultSink {
+    void accept(Result result);
+  }
+
+  private final int maxConcurrency;
+  private final double connectsPerSecondPerHost;
+  private final long timeoutMillis;
+  private final Executor executor;
+
+  private final ConcurrentMap<String, TokenBucket> hostLimits =
+      new ConcurrentHashMap<String, TokenBucket>();
+  private final AtomicLongArray counts =
+      new AtomicLongArray(FailureClass.values().length);
+
+  /**
+   * Creates a driver that runs connects on the default async executor.
+   *
+   * @param maxConcurrency Maximum number of connects in flight.
+   * @param connectsPerSecondPerHost Maximum rate at which connects to any one
+   *     host are started.
+   * @param timeoutMillis Time limit for each connect, or 0 for none.
+   */
+  public BulkAuthenticator(int maxConcurrency,
+                           double connectsPerSecondPerHost,
+                           long timeoutMillis) {
+    this(maxConcurrency, connectsPerSecondPerHost, timeoutMillis,
+         AsyncConnector.defaultExecutor());
+  }
+
+  /**
+   * Creates a driver that runs connects on {@code executor}.
+   */
+  public BulkAuthenticator(int maxConcurrency,
+                           double connectsPerSecondPerHost,
+                           long timeoutMillis,
+                           Executor executor) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("maxConcurrency must be positive");
+    }
+    this.maxConcurrency = maxConcurrency;
+    this.connectsPerSecondPerHost = connectsPerSecondPerHost;
+    this.timeoutMillis = timeoutMillis;
+    this.executor = executor;
+  }
+
+  /**
+   * Authenticates every credential from {@code credentials}, passing each
+   * result to {@code sink}, and returns when all of them have completed.
+   */
+  public void run(Iterator<Credential> credentials, final ResultSink sink)
+      throws InterruptedException {
+    final Semaphore inFlight = new Semaphore(maxConcurrency);
+    while (credentials.hasNext()) {
+      final Credential credential = credentials.next();
+      inFlight.acquire();
+      try {
+        getHostLimit(credential.getHost()).acquire();
+      } catch (InterruptedException e) {
+        inFlight.release();
+        throw e;
+      }
+      final long start = System.nanoTime();
+      CompletableFuture<IMAPStore> future;
+      try {
+        future = OAuth2Authenticator.connectToImapAsync(
+            credential.getHost(), credential.getPort(),
+            credential.getUserEmail(), credential.getOAuthToken(), false,
+            executor, timeoutMillis);
+      } catch (RuntimeException e) {
+        inFlight.release();
+        throw e;
+      }
+      future.whenComplete((store, failure) -> {
+        try {
+          if (store != null) {
+            closeQuietly(store);
+          }
+          long latencyMillis = TimeUnit.NANOSECONDS.toMillis(
+              System.nanoTime() - start);
+          record(new Result(credential.getUserEmail(), credential.getHost(),
+                            latencyMillis, failure), sink);
+        } finally {
+          inFlight.release();
+        }
+      });
+    }
+    // Wait for the connects still in flight.
+    inFlight.acquire(maxConcurrency);
+    inFlight.release(maxConcurrency);
+  }
+
+  /** Returns the number of mailboxes that authenticated successfully. */
+  public long getSuccessCount() {
+    return counts.get(FailureClass.NONE.ordinal());
+  }
+
+  /** Returns the number of mailboxes that failed with {@code failureClass}. */
+  public long getFailureCount(FailureClass failureClass) {
+    return counts.get(failureClass.ordinal());
+  }
+
+  private TokenBucket getHostLimit(String host) {
+    String key = host.toLowerCase(Locale.ROOT);
+    TokenBucket limit = hostLimits.get(key);
+    if (limit == null) {
+      TokenBucket newLimit = new TokenBucket(
+          connectsPerSecondPerHost, Math.max(1, connectsPerSecondPerHost));
+      limit = hostLimits.putIfAbsent(key, newLimit);
+      if (limit == null) {
+        limit = newLimit;
+      }
+    }
+    return limit;
+  }
+
+  private void record(Result result, ResultSink sink) {
+    counts.incrementAndGet(result.getFailureClass().ordinal());
+    synchronized (sink) {
+      try {
+        sink.accept(result);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING,
+                   "Result sink failed for " + result.getUserEmail(), e);
+      }
+    }
+  }
+
+  private static void closeQuietly(IMAPStore store) {
+    try {
+      store.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close store", e);
+    }
+  }
+
+  /**
+   * Authenticates the mailboxes listed in a file (see CredentialReader) to
+   * Gmail and writes one tab-separated result line per mailbox to standard
+   * output.
+   */
+  public static void main(String args[]) throws Exception {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println(
+          "Usage: BulkAuthenticator <credentialFile> [maxConcurrency]"
+          + " [connectsPerSecondPerHost]");
+      return;
+    }
+    int maxConcurrency = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    double rate = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+    OAuth2Authenticator.initialize();
+
+    final PrintWriter out = new PrintWriter(System.out);
+    CredentialReader credentials = new CredentialReader(
+        new InputStreamReader(new FileInputStream(args[0]), "UTF-8"),
+        "imap.gmail.com", 993);
+    BulkAuthenticator authenticator =
+        new BulkAuthenticator(maxConcurrency, rate, 30000);
+    try {
+      authenticator.run(credentials, result -> {
+        out.println(result.getUserEmail() + "\t" + result.getHost() + "\t"
+                    + result.getFailureClass() + "\t"
+                    + result.getLatencyMillis());
+      });
+    } finally {
+      credentials.close();
+      out.flush();
+    }
+    System.err.println("Authenticated " + authenticator.getSuccessCount()
+                       + " mailboxes.");
+  }
+}
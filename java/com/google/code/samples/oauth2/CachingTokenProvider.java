@@ -0,0 +1,251 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A TokenProvider that caches access tokens and refreshes them in the
+ * background before they expire.
+ *
+ * <p>Concurrent requests for the same user while a refresh is in progress all
+ * wait for that single refresh instead of each calling the token endpoint.
+ * Background refreshes are scheduled {@code refreshMarginMillis} before
+ * expiry, minus a random jitter of up to {@code jitterMillis}, so that tokens
+ * fetched at the same moment do not all come due at the same moment. A
+ * token is not handed out once it is within the refresh margin of expiry,
+ * so that it cannot expire on its way to the server; the caller waits for a
+ * new one instead. Tokens for users that have not been asked for since
+ * their last background refresh are left to lapse rather than refreshed
+ * forever.
+ */
+public class CachingTokenProvider implements TokenProvider {
+  private static final Logger logger =
+      Logger.getLogger(CachingTokenProvider.class.getName());
+
+  private final TokenRefresher refresher;
+  private final long refreshMarginMillis;
+  private final long jitterMillis;
+  private final ScheduledExecutorService scheduler;
+  private final Random random = new Random();
+
+  private final ConcurrentMap<String, CachedToken> tokens =
+      new ConcurrentHashMap<String, CachedToken>();
+  private final ConcurrentMap<String, FutureTask<AccessToken>> refreshes =
+      new ConcurrentHashMap<String, FutureTask<AccessToken>>();
+
+  /**
+   * Creates a provider that runs background refreshes on its own daemon
+   * thread.
+   */
+  public CachingTokenProvider(TokenRefresher refresher,
+                              long refreshMarginMillis,
+                              long jitterMillis) {
+    this(refresher, refreshMarginMillis, jitterMillis,
+         newDaemonScheduler());
+  }
+
+  /**
+   * Creates a provider that runs background refreshes on {@code scheduler}.
+   *
+   * @param refresher Source of new tokens.
+   * @param refreshMarginMillis How long before expiry a token is refreshed,
+   *     and after which it is no longer handed out.
+   * @param jitterMillis Maximum random amount by which background refreshes
+   *     are brought forward.
+   * @param scheduler Executor for background refreshes.
+   */
+  public CachingTokenProvider(TokenRefresher refresher,
+                              long refreshMarginMillis,
+                              long jitterMillis,
+                              ScheduledExecutorService scheduler) {
+    this.refresher = refresher;
+    this.refreshMarginMillis = refreshMarginMillis;
+    this.jitterMillis = jitterMillis;
+    this.scheduler = scheduler;
+  }
+
+  public String getToken(String userEmail) throws IOException {
+    CachedToken cached = tokens.get(userEmail);
+    long now = System.currentTimeMillis();
+    if (cached != null
+        && !cached.accessToken.expiresWithin(refreshMarginMillis, now)) {
+      cached.used = true;
+      return cached.accessToken.getToken();
+    }
+    AccessToken accessToken = refresh(userEmail);
+    // Whether this caller started the refresh or joined a background one,
+    // the new token is in use.
+    cached = tokens.get(userEmail);
+    if (cached != null && cached.accessToken == accessToken) {
+      cached.used = true;
+    }
+    return accessToken.getToken();
+  }
+
+  public void invalidate(String userEmail) {
+    tokens.remove(userEmail);
+  }
+
+  /**
+   * Returns the cached token for the user, or null if there is none. Does not
+   * trigger a refresh.
+   */
+  public AccessToken getCachedToken(String userEmail) {
+    CachedToken cached = tokens.get(userEmail);
+    return cached == null ? null : cached.accessToken;
+  }
+
+  /**
+   * Stops background refreshes. Cached tokens remain usable until they
+   * expire.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Fetches a new token for the user, joining a refresh that is already in
+   * flight if there is one.
+   */
+  AccessToken refresh(final String userEmail) throws IOException {
+    FutureTask<AccessToken> task = refreshes.get(userEmail);
+    if (task == null) {
+      FutureTask<AccessToken> newTask = new FutureTask<AccessToken>(
+          new Callable<AccessToken>() {
+            public AccessToken call() throws IOException {
+              return doRefresh(userEmail);
+            }
+          });
+      task = refreshes.putIfAbsent(userEmail, newTask);
+      if (task == null) {
+        task = newTask;
+        try {
+          newTask.run();
+        } finally {
+          refreshes.remove(userEmail, newTask);
+        }
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while refreshing token for "
+                            + userEmail);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to refresh token for " + userEmail
+                            + ": " + cause);
+    }
+  }
+
+  private AccessToken doRefresh(String userEmail) throws IOException {
+    AccessToken accessToken = refresher.refreshToken(userEmail);
+    long now = System.currentTimeMillis();
+    CachedToken cached = new CachedToken(accessToken);
+    tokens.put(userEmail, cached);
+    scheduleRefresh(userEmail, cached, now);
+    return accessToken;
+  }
+
+  private void scheduleRefresh(final String userEmail,
+                               final CachedToken cached,
+                               long now) {
+    long jitter;
+    synchronized (random) {
+      jitter = jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis)
+                                : 0;
+    }
+    long delay = cached.accessToken.getExpiresAtMillis()
+        - refreshMarginMillis - jitter - now;
+    if (delay < 0) {
+      delay = 0;
+    }
+    try {
+      scheduler.schedule(new Runnable() {
+        public void run() {
+          backgroundRefresh(userEmail, cached);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      // Scheduler has been shut down; tokens will be refreshed on demand.
+      logger.log(Level.FINE, "Not scheduling background refresh", e);
+    }
+  }
+
+  private void backgroundRefresh(String userEmail, CachedToken cached) {
+    if (tokens.get(userEmail) != cached) {
+      // Invalidated or already replaced by a newer token.
+      return;
+    }
+    if (!cached.used) {
+      // Nobody has used this token; let it lapse.
+      return;
+    }
+    try {
+      refresh(userEmail);
+    } catch (IOException e) {
+      logger.log(Level.WARNING,
+                 "Background token refresh failed for " + userEmail, e);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING,
+                 "Background token refresh failed for " + userEmail, e);
+    }
+  }
+
+  private static ScheduledExecutorService newDaemonScheduler() {
+    ScheduledThreadPoolExecutor scheduler =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "oauth2-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    return scheduler;
+  }
+
+  private static final class CachedToken {
+    final AccessToken accessToken;
+    // Set once getToken has returned the token.
+    volatile boolean used = false;
+
+    CachedToken(AccessToken accessToken) {
+      this.accessToken = accessToken;
+    }
+  }
+}
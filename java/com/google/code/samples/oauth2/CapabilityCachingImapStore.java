@@ -0,0 +1,135 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPSSLStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.util.MailLogger;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+
+/**
+ * An IMAPSSLStore whose connections take the server's pre-login
+ * capabilities from ImapCapabilityCache rather than asking for them, and
+ * that only logs in to servers offering an OAuth2 mechanism.
+ */
+class CapabilityCachingImapStore extends IMAPSSLStore {
+  private static final Logger logger =
+      Logger.getLogger(CapabilityCachingImapStore.class.getName());
+
+  CapabilityCachingImapStore(Session session) {
+    super(session, (URLName) null);
+  }
+
+  @Override
+  protected IMAPProtocol newIMAPProtocol(String host, int port)
+      throws IOException, ProtocolException {
+    return new CachingProtocol(name, host, port, session.getProperties(),
+                               isSSL, super.logger);
+  }
+
+  /**
+   * Fails the connect unless the server offers a mechanism the token can be
+   * used with. Otherwise IMAPStore falls back to a plain LOGIN, which with
+   * JavaMail's own XOAUTH2 would send the token as the password in the
+   * clear.
+   */
+  @Override
+  protected void preLogin(IMAPProtocol protocol) throws ProtocolException {
+    if (protocol.hasCapability("AUTH=XOAUTH2")) {
+      return;
+    }
+    // Only OAuth2SaslClientFactory speaks OAUTHBEARER.
+    if (OAuth2SessionCache.usesSasl(session, name)
+        && protocol.hasCapability("AUTH=OAUTHBEARER")) {
+      return;
+    }
+    throw new ProtocolException(
+        "Server offers neither XOAUTH2 nor OAUTHBEARER");
+  }
+
+  @Override
+  protected boolean protocolConnect(String host,
+                                    int port,
+                                    String user,
+                                    String password)
+      throws MessagingException {
+    try {
+      return super.protocolConnect(host, port, user, password);
+    } catch (MessagingException e) {
+      // Cached capabilities may be why the connect failed, unless the
+      // server got as far as rejecting the token.
+      ConnectContext context = ConnectContext.current();
+      if (context == null || context.getAuthError() == null) {
+        ImapCapabilityCache.invalidate(host, port);
+      }
+      throw e;
+    }
+  }
+
+  private static final class CachingProtocol extends IMAPProtocol {
+    CachingProtocol(String name,
+                    String host,
+                    int port,
+                    Properties props,
+                    boolean isSSL,
+                    MailLogger logger) throws IOException, ProtocolException {
+      super(name, host, port, props, isSSL, logger);
+    }
+
+    /**
+     * Answers from the cache before login. The IMAPProtocol constructor
+     * calls this when the greeting had no capabilities, before any field of
+     * this class could be set, so the port comes from the session
+     * properties.
+     */
+    @Override
+    public void capability() throws ProtocolException {
+      if (isAuthenticated()) {
+        super.capability();
+        return;
+      }
+      String portProperty = props.getProperty(prefix + ".port");
+      int port = portProperty == null ? -1 : Integer.parseInt(portProperty);
+      String cached = ImapCapabilityCache.get(host, port);
+      if (cached != null) {
+        CapabilityCachingImapStore.logger.fine(
+            "Using cached capabilities for " + host + ":" + port);
+        setCapabilities(
+            new Response("* OK [CAPABILITY " + cached + "] cached"));
+        return;
+      }
+      super.capability();
+      StringBuilder capabilities = new StringBuilder();
+      for (String capability : getCapabilities().values()) {
+        if (capabilities.length() > 0) {
+          capabilities.append(' ');
+        }
+        capabilities.append(capability);
+      }
+      ImapCapabilityCache.put(host, port, capabilities.toString());
+    }
+  }
+}
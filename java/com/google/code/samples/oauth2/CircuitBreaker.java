@@ -0,0 +1,94 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A circuit breaker for one host.
+ *
+ * <p>After {@code failureThreshold} consecutive failures the breaker opens
+ * and rejects attempts for {@code openMillis}. It is then half-open and
+ * lets a single trial attempt through: success closes it, failure opens it
+ * again, and a neutral result leaves it half-open for the next trial.
+ */
+final class CircuitBreaker {
+  private final int failureThreshold;
+  private final long openNanos;
+
+  private int consecutiveFailures = 0;
+  private boolean open = false;
+  private boolean trialInFlight = false;
+  private long openedAtNanos;
+
+  CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  /**
+   * Returns whether an attempt may go ahead now. Every permitted attempt
+   * must be followed by {@code recordSuccess}, {@code recordFailure} or
+   * {@code recordNeutral}.
+   */
+  synchronized boolean allow() {
+    if (!open) {
+      return true;
+    }
+    if (trialInFlight || System.nanoTime() - openedAtNanos < openNanos) {
+      return false;
+    }
+    trialInFlight = true;
+    return true;
+  }
+
+  synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    open = false;
+    trialInFlight = false;
+  }
+
+  synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (trialInFlight || consecutiveFailures >= failureThreshold) {
+      open = true;
+      openedAtNanos = System.nanoTime();
+    }
+    trialInFlight = false;
+  }
+
+  /**
+   * Records an attempt that failed for reasons that say nothing about the
+   * host, such as a bad token. A trial attempt proves nothing either way, so
+   * the breaker stays half-open and lets the next attempt through as a new
+   * trial.
+   */
+  synchronized void recordNeutral() {
+    trialInFlight = false;
+  }
+
+  /** Returns whether the breaker is open or half-open. */
+  synchronized boolean isOpen() {
+    return open;
+  }
+
+  /** Returns whether {@code allow} would refuse an attempt now. */
+  synchronized boolean isRejecting() {
+    return open
+        && (trialInFlight || System.nanoTime() - openedAtNanos < openNanos);
+  }
+}
@@ -0,0 +1,165 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Per-connect state shared between the thread running a connect and the code
+ * that started it.
+ *
+ * <p>A context is attached to the connecting thread for the duration of the
+ * connect. OAuth2SocketFactory registers the sockets it creates with the
+ * attached context, which lets another thread abort a connect that is stuck
+ * in the TCP connect, the TLS handshake or the SASL exchange by closing the
+ * half-open socket underneath JavaMail. The context also carries the user's
+ * token to OAuth2SaslClientFactory, so that it never has to travel as the
+ * connect's password, the connect's ConnectTimer when metrics are enabled,
+ * and the XOAUTH2 error the server reported, if any.
+ */
+final class ConnectContext {
+  private static final Logger logger =
+      Logger.getLogger(ConnectContext.class.getName());
+
+  private static final ThreadLocal<ConnectContext> current =
+      new ThreadLocal<ConnectContext>();
+
+  private Socket socket;
+  private boolean aborted = false;
+  // Only touched by the connecting thread.
+  private ConnectTimer timer;
+  private String oauthToken;
+  private XOAuth2Error authError;
+  private OAuth2SaslClient saslClient;
+
+  /**
+   * Returns the context attached to the calling thread, or null.
+   */
+  static ConnectContext current() {
+    return current.get();
+  }
+
+  void attach() {
+    current.set(this);
+  }
+
+  void detach() {
+    current.remove();
+  }
+
+  /**
+   * Returns the timer for the connect in progress, or null if metrics are
+   * disabled.
+   */
+  ConnectTimer getTimer() {
+    return timer;
+  }
+
+  void setTimer(ConnectTimer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Returns the token the connect in progress authenticates with, or null.
+   */
+  String getOAuthToken() {
+    return oauthToken;
+  }
+
+  void setOAuthToken(String oauthToken) {
+    this.oauthToken = oauthToken;
+  }
+
+  /**
+   * Returns the error from the server's XOAUTH2 challenge, or null if there
+   * was none.
+   */
+  XOAuth2Error getAuthError() {
+    return authError;
+  }
+
+  void setAuthError(XOAuth2Error authError) {
+    this.authError = authError;
+  }
+
+  /**
+   * Returns the SASL client of the connect in progress, or null.
+   */
+  OAuth2SaslClient getSaslClient() {
+    return saslClient;
+  }
+
+  void setSaslClient(OAuth2SaslClient saslClient) {
+    this.saslClient = saslClient;
+  }
+
+  /**
+   * Disposes the SASL client of the connect, so that its credentials do not
+   * outlive it.
+   */
+  void releaseSaslClient() {
+    if (saslClient != null) {
+      saslClient.dispose();
+      saslClient = null;
+    }
+  }
+
+  /**
+   * Records the socket being connected. Fails if the connect has already been
+   * aborted.
+   */
+  synchronized void registerSocket(Socket socket) throws IOException {
+    if (aborted) {
+      socket.close();
+      throw new IOException("Connect aborted");
+    }
+    this.socket = socket;
+  }
+
+  /**
+   * Returns the remote port of the socket being connected, or -1 if there
+   * is none yet.
+   */
+  synchronized int getPort() {
+    return socket == null ? -1 : socket.getPort();
+  }
+
+  /**
+   * Aborts the connect by closing its socket, if one has been created.
+   */
+  void abort() {
+    Socket toClose;
+    synchronized (this) {
+      aborted = true;
+      toClose = socket;
+    }
+    if (toClose != null) {
+      try {
+        toClose.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Failed to close aborted socket", e);
+      }
+    }
+  }
+
+  synchronized boolean isAborted() {
+    return aborted;
+  }
+}
@@ -0,0 +1,38 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+
+/**
+ * Receives the outcome and per-phase timing of every OAuth2 connect.
+ *
+ * <p>Install an implementation with {@link
+ * OAuth2Authenticator#setConnectMetrics}. JmxConnectMetrics is the standard
+ * one. Implementations are called on the connecting thread, so they should
+ * be quick and must be thread-safe.
+ */
+public interface ConnectMetrics {
+  /**
+   * Called when a connect has finished.
+   *
+   * @param protocol {@code "imap"} or {@code "smtp"}.
+   * @param timings How long each phase took.
+   * @param failureClass Why the connect failed, or {@code NONE}.
+   */
+  void connectFinished(String protocol,
+                       ConnectTimings timings,
+                       FailureClass failureClass);
+}
@@ -0,0 +1,283 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+
+/**
+ * Connects with retries that depend on why the previous attempt failed.
+ *
+ * <p>Each failure is classified with {@link FailureClass#classify} and
+ * retried according to the RetryPolicy for its class. By default:
+ * <ul>
+ * <li>AUTHENTICATION is retried once, immediately, after invalidating the
+ *     user's token so that the retry gets a fresh one.
+ * <li>THROTTLED, UNAVAILABLE, TIMEOUT and CONNECTION are retried a few
+ *     times with decorrelated jitter, throttling with the longest delays.
+ * <li>Everything else, including TLS failures, is not retried.
+ * </ul>
+ * Attempts are counted per class, so a token refresh does not use up the
+ * retries allowed for throttling.
+ *
+ * <p>Each host has a CircuitBreaker. Once enough consecutive attempts to a
+ * host fail for host-level reasons, further connects to it fail fast with a
+ * CircuitOpenException instead of adding load to a struggling server, until
+ * a trial connect succeeds. Throttling does not count: its limits are per
+ * account, and one busy account must not lock the others out.
+ */
+public class ConnectRetrier {
+  private static final Logger logger =
+      Logger.getLogger(ConnectRetrier.class.getName());
+
+  /**
+   * One connect attempt with the given token.
+   */
+  public interface Attempt<T> {
+    T connect(String oauthToken) throws MessagingException;
+  }
+
+  /**
+   * Thrown instead of attempting a connect while the host's circuit breaker
+   * is open.
+   */
+  public static class CircuitOpenException extends MessagingException {
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException(String host) {
+      super("Circuit breaker open for " + host);
+    }
+  }
+
+  private final TokenProvider tokenProvider;
+  private final int breakerFailureThreshold;
+  private final long breakerOpenMillis;
+
+  private final AtomicReferenceArray<RetryPolicy> policies =
+      new AtomicReferenceArray<RetryPolicy>(FailureClass.values().length);
+  private final ConcurrentMap<String, CircuitBreaker> breakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * Creates a retrier whose circuit breakers open after 5 consecutive
+   * failures for 30 seconds.
+   */
+  public ConnectRetrier(TokenProvider tokenProvider) {
+    this(tokenProvider, 5, 30000);
+  }
+
+  /**
+   * @param tokenProvider Supplies tokens for each attempt.
+   * @param breakerFailureThreshold Consecutive host-level failures after
+   *     which a host's circuit breaker opens.
+   * @param breakerOpenMillis How long an open breaker rejects connects
+   *     before letting a trial connect through.
+   */
+  public ConnectRetrier(TokenProvider tokenProvider,
+                        int breakerFailureThreshold,
+                        long breakerOpenMillis) {
+    this.tokenProvider = tokenProvider;
+    this.breakerFailureThreshold = breakerFailureThreshold;
+    this.breakerOpenMillis = breakerOpenMillis;
+    for (FailureClass failureClass : FailureClass.values()) {
+      policies.set(failureClass.ordinal(), RetryPolicy.NONE);
+    }
+    setPolicy(FailureClass.AUTHENTICATION, new RetryPolicy(2, 0, 0));
+    setPolicy(FailureClass.THROTTLED, new RetryPolicy(5, 1000, 60000));
+    setPolicy(FailureClass.UNAVAILABLE, new RetryPolicy(4, 500, 30000));
+    setPolicy(FailureClass.TIMEOUT, new RetryPolicy(3, 200, 10000));
+    setPolicy(FailureClass.CONNECTION, new RetryPolicy(3, 200, 10000));
+  }
+
+  /**
+   * Sets how failures of {@code failureClass} are retried.
+   */
+  public void setPolicy(FailureClass failureClass, RetryPolicy policy) {
+    if (failureClass == FailureClass.NONE) {
+      throw new IllegalArgumentException("NONE is not a failure");
+    }
+    policies.set(failureClass.ordinal(), policy);
+  }
+
+  public RetryPolicy getPolicy(FailureClass failureClass) {
+    return policies.get(failureClass.ordinal());
+  }
+
+  /**
+   * Connects to IMAP as in {@code OAuth2Authenticator.connectToImap}, with
+   * retries.
+   */
+  public IMAPStore connectToImap(final String host,
+                                 final int port,
+                                 final String userEmail,
+                                 final boolean debug)
+      throws MessagingException, IOException, InterruptedException {
+    return execute(host, userEmail, new Attempt<IMAPStore>() {
+      public IMAPStore connect(String oauthToken) throws MessagingException {
+        return OAuth2Authenticator.connectToImap(
+            host, port, userEmail, oauthToken, debug);
+      }
+    });
+  }
+
+  /**
+   * Connects to SMTP as in {@code OAuth2Authenticator.connectToSmtp}, with
+   * retries.
+   */
+  public SMTPTransport connectToSmtp(final String host,
+                                     final int port,
+                                     final String userEmail,
+                                     final boolean debug)
+      throws MessagingException, IOException, InterruptedException {
+    return execute(host, userEmail, new Attempt<SMTPTransport>() {
+      public SMTPTransport connect(String oauthToken)
+          throws MessagingException {
+        return OAuth2Authenticator.connectToSmtp(
+            host, port, userEmail, oauthToken, debug);
+      }
+    });
+  }
+
+  /**
+   * Runs {@code attempt} with a token for {@code userEmail} until it
+   * succeeds or its failure is not to be retried, and returns its result.
+   * The last failure is thrown, including when the host's circuit breaker
+   * opens while retrying.
+   *
+   * @throws CircuitOpenException if the host's circuit breaker is open.
+   * @throws IOException if a token could not be obtained.
+   */
+  public <T> T execute(String host, String userEmail, Attempt<T> attempt)
+      throws MessagingException, IOException, InterruptedException {
+    CircuitBreaker breaker = getBreaker(host);
+    int[] attempts = new int[FailureClass.values().length];
+    long delayMillis = 0;
+    while (true) {
+      if (!breaker.allow()) {
+        rejectedCount.incrementAndGet();
+        throw new CircuitOpenException(host);
+      }
+      String token;
+      try {
+        token = tokenProvider.getToken(userEmail);
+      } catch (IOException e) {
+        breaker.recordNeutral();
+        throw e;
+      } catch (RuntimeException e) {
+        breaker.recordNeutral();
+        throw e;
+      }
+      MessagingException failure;
+      try {
+        T result = attempt.connect(token);
+        breaker.recordSuccess();
+        return result;
+      } catch (MessagingException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        breaker.recordNeutral();
+        throw e;
+      }
+
+      FailureClass failureClass = FailureClass.classify(failure);
+      if (isHostFailure(failureClass)) {
+        breaker.recordFailure();
+      } else {
+        breaker.recordNeutral();
+      }
+      if (failureClass == FailureClass.AUTHENTICATION) {
+        tokenProvider.invalidate(userEmail);
+      }
+      RetryPolicy policy = getPolicy(failureClass);
+      if (++attempts[failureClass.ordinal()] >= policy.getMaxAttempts()
+          || breaker.isRejecting()) {
+        throw failure;
+      }
+      delayMillis = policy.nextDelayMillis(
+          delayMillis, ThreadLocalRandom.current());
+      retryCount.incrementAndGet();
+      logger.log(Level.FINE, "Retrying connect to " + host + " for "
+                 + userEmail + " after " + failureClass + " in "
+                 + delayMillis + "ms", failure);
+      if (delayMillis > 0) {
+        Thread.sleep(delayMillis);
+      }
+    }
+  }
+
+  /** Returns the number of retries made. */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /** Returns the number of connects rejected by an open circuit breaker. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /** Returns whether the circuit breaker for {@code host} is open. */
+  public boolean isCircuitOpen(String host) {
+    CircuitBreaker breaker = breakers.get(host.toLowerCase(Locale.ROOT));
+    return breaker != null && breaker.isOpen();
+  }
+
+  /**
+   * Returns whether failures of this class suggest the host itself is in
+   * trouble, as opposed to the user's credentials or a bug. Throttling is
+   * per account, so it is left to the THROTTLED retry policy rather than
+   * allowed to shut every account out of the host.
+   */
+  private static boolean isHostFailure(FailureClass failureClass) {
+    switch (failureClass) {
+      case UNAVAILABLE:
+      case TIMEOUT:
+      case CONNECTION:
+      case TLS:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private CircuitBreaker getBreaker(String host) {
+    String key = host.toLowerCase(Locale.ROOT);
+    CircuitBreaker breaker = breakers.get(key);
+    if (breaker == null) {
+      CircuitBreaker newBreaker =
+          new CircuitBreaker(breakerFailureThreshold, breakerOpenMillis);
+      breaker = breakers.putIfAbsent(key, newBreaker);
+      if (breaker == null) {
+        breaker = newBreaker;
+      }
+    }
+    return breaker;
+  }
+}
@@ -0,0 +1,43 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.Map;
+
+
+/**
+ * Connect statistics for one protocol, as exposed over JMX by
+ * JmxConnectMetrics.
+ *
+ * <p>Latencies are keyed by ConnectTimings.Phase name and failures by
+ * FailureClass name.
+ */
+public interface ConnectStatsMXBean {
+  long getSuccessCount();
+
+  long getFailureCount();
+
+  Map<String, Long> getFailureCountsByClass();
+
+  Map<String, Double> getMeanMillisByPhase();
+
+  Map<String, Double> getMedianMillisByPhase();
+
+  Map<String, Double> getP99MillisByPhase();
+
+  /** Clears all counters and histograms. */
+  void reset();
+}
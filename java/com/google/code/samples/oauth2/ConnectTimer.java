@@ -0,0 +1,138 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Times the phases of one connect and reports them to ConnectMetrics.
+ *
+ * <p>The timer is reachable through the connecting thread's ConnectContext.
+ * The socket factories and OAuth2SaslClientFactory mark the phase
+ * boundaries they see; all marks are made on the connecting thread. For
+ * implicit TLS JavaMail connects the TCP socket itself, so the TCP phase is
+ * taken to run from the start of the connect until TLS is layered on top.
+ */
+final class ConnectTimer {
+  private static final Logger logger =
+      Logger.getLogger(ConnectTimer.class.getName());
+
+  private final String protocol;
+  private final ConnectMetrics metrics;
+  private final ConnectContext context;
+  private final long startNanos = System.nanoTime();
+
+  private long tcpStartNanos = -1;
+  private long tcpEndNanos = -1;
+  private long tlsStartNanos = -1;
+  private long tlsEndNanos = -1;
+  private long saslStartNanos = -1;
+
+  private ConnectTimer(String protocol,
+                       ConnectMetrics metrics,
+                       ConnectContext context) {
+    this.protocol = protocol;
+    this.metrics = metrics;
+    this.context = context;
+  }
+
+  /**
+   * Starts timing a connect on the calling thread, which must have a
+   * ConnectContext attached, or returns null if {@code metrics} is null.
+   */
+  static ConnectTimer start(String protocol, ConnectMetrics metrics) {
+    if (metrics == null) {
+      return null;
+    }
+    ConnectContext context = ConnectContext.current();
+    ConnectTimer timer = new ConnectTimer(protocol, metrics, context);
+    context.setTimer(timer);
+    return timer;
+  }
+
+  /**
+   * Returns the timer for the calling thread's connect, or null.
+   */
+  static ConnectTimer current() {
+    ConnectContext context = ConnectContext.current();
+    return context == null ? null : context.getTimer();
+  }
+
+  void tcpConnectStarted() {
+    tcpStartNanos = System.nanoTime();
+  }
+
+  void tcpConnectFinished() {
+    tcpEndNanos = System.nanoTime();
+  }
+
+  void tlsHandshakeStarted() {
+    long now = System.nanoTime();
+    if (tcpEndNanos < 0) {
+      tcpStartNanos = startNanos;
+      tcpEndNanos = now;
+    }
+    tlsStartNanos = now;
+  }
+
+  void tlsHandshakeFinished() {
+    if (tlsEndNanos < 0) {
+      tlsEndNanos = System.nanoTime();
+    }
+  }
+
+  void saslStarted() {
+    if (saslStartNanos < 0) {
+      saslStartNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Ends the connect and reports it.
+   *
+   * @param failure What the connect failed with, or null.
+   */
+  void finish(Throwable failure) {
+    long endNanos = System.nanoTime();
+    context.setTimer(null);
+
+    long[] nanos = new long[ConnectTimings.Phase.values().length];
+    long tcp = span(tcpStartNanos, tcpEndNanos);
+    long tls = span(tlsStartNanos, tlsEndNanos);
+    nanos[ConnectTimings.Phase.TCP_CONNECT.ordinal()] = tcp;
+    nanos[ConnectTimings.Phase.TLS_HANDSHAKE.ordinal()] = tls;
+    nanos[ConnectTimings.Phase.CAPABILITY.ordinal()] = saslStartNanos < 0
+        ? -1
+        : saslStartNanos - startNanos - Math.max(tcp, 0) - Math.max(tls, 0);
+    nanos[ConnectTimings.Phase.SASL.ordinal()] =
+        saslStartNanos < 0 || failure != null
+        ? -1 : endNanos - saslStartNanos;
+    nanos[ConnectTimings.Phase.TOTAL.ordinal()] = endNanos - startNanos;
+
+    try {
+      metrics.connectFinished(protocol, new ConnectTimings(nanos),
+                              FailureClass.classify(failure));
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "ConnectMetrics failed", e);
+    }
+  }
+
+  private static long span(long startNanos, long endNanos) {
+    return startNanos < 0 || endNanos < 0 ? -1 : endNanos - startNanos;
+  }
+}
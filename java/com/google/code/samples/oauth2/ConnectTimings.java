@@ -0,0 +1,67 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+
+/**
+ * How long each phase of one connect took.
+ */
+public final class ConnectTimings {
+  /**
+   * The phases of a connect, in the order they happen.
+   */
+  public enum Phase {
+    /** Establishing the TCP connection. */
+    TCP_CONNECT,
+    /** The TLS handshake, for implicit TLS or STARTTLS. */
+    TLS_HANDSHAKE,
+    /**
+     * Everything between connecting and starting SASL that is not the TLS
+     * handshake: the greeting, CAPABILITY or EHLO, and STARTTLS.
+     */
+    CAPABILITY,
+    /** The SASL exchange, up to the end of the connect. */
+    SASL,
+    /** The whole connect. */
+    TOTAL
+  }
+
+  private final long[] nanos;
+
+  ConnectTimings(long[] nanos) {
+    this.nanos = nanos;
+  }
+
+  /**
+   * Returns how long {@code phase} took in nanoseconds, or -1 if the connect
+   * ended before the phase completed or the phase was not observed.
+   */
+  public long getNanos(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("ConnectTimings[");
+    for (Phase phase : Phase.values()) {
+      if (phase.ordinal() > 0) {
+        sb.append(", ");
+      }
+      sb.append(phase).append('=').append(nanos[phase.ordinal()]);
+    }
+    return sb.append(']').toString();
+  }
+}
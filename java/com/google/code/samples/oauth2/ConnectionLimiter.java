@@ -0,0 +1,375 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+import javax.mail.Service;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+
+/**
+ * Limits how many connections are open at once for each account and for
+ * each host.
+ *
+ * <p>Gmail caps the number of simultaneous IMAP connections per account and
+ * throttles clients that go over it. A connection takes a permit from its
+ * account and then from its host, and gives both back as soon as it is
+ * closed, whether by the caller or because the server dropped it.
+ * Callers waiting for a host are served in FIFO order, so one tenant with
+ * many queued connects cannot starve the others. Waiters for the same
+ * account are woken in roughly FIFO order.
+ *
+ * <p>Account counts are kept in lock stripes chosen by hashing the account,
+ * and only accounts with open connections take up memory, so the limiter
+ * scales to tens of thousands of accounts without a global lock.
+ */
+public class ConnectionLimiter {
+  private static final int DEFAULT_STRIPES = 64;
+
+  /**
+   * A connection slot for one account on one host. Closing it gives the
+   * slot back; closing it again does nothing.
+   */
+  public final class Permit implements Closeable {
+    private final String host;
+    private final String account;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Permit(String host, String account) {
+      this.host = host;
+      this.account = account;
+    }
+
+    public void close() {
+      if (released.compareAndSet(false, true)) {
+        active.decrementAndGet();
+        getHostSemaphore(host).release();
+        releaseAccount(account);
+      }
+    }
+  }
+
+  /**
+   * An IMAP store that gives its permit back as it closes, rather than from
+   * the store's event thread some time after.
+   */
+  private static final class LimitedImapStore
+      extends CapabilityCachingImapStore {
+    private final Permit permit;
+
+    LimitedImapStore(Session session, Permit permit) {
+      super(session);
+      this.permit = permit;
+    }
+
+    @Override
+    protected synchronized void setConnected(boolean connected) {
+      super.setConnected(connected);
+      if (!connected) {
+        permit.close();
+      }
+    }
+  }
+
+  /** An SMTP transport that gives its permit back as it closes. */
+  private static final class LimitedSmtpTransport extends SMTPTransport {
+    private final Permit permit;
+
+    LimitedSmtpTransport(Session session, Permit permit) {
+      super(session, (URLName) null);
+      this.permit = permit;
+    }
+
+    @Override
+    protected synchronized void setConnected(boolean connected) {
+      super.setConnected(connected);
+      if (!connected) {
+        permit.close();
+      }
+    }
+  }
+
+  /**
+   * The open connection counts for the accounts hashed to one stripe.
+   */
+  private static final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition released = lock.newCondition();
+    final Map<String, int[]> open = new HashMap<String, int[]>();
+  }
+
+  private final int perAccountLimit;
+  private final int perHostLimit;
+  private final Stripe[] stripes;
+
+  private final ConcurrentMap<String, Semaphore> hosts =
+      new ConcurrentHashMap<String, Semaphore>();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+  /**
+   * @param perAccountLimit Maximum open connections per account; Gmail
+   *     allows 15 IMAP connections.
+   * @param perHostLimit Maximum open connections per host.
+   */
+  public ConnectionLimiter(int perAccountLimit, int perHostLimit) {
+    this(perAccountLimit, perHostLimit, DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param stripes Number of lock stripes for account counts.
+   */
+  public ConnectionLimiter(int perAccountLimit,
+                           int perHostLimit,
+                           int stripes) {
+    if (perAccountLimit < 1 || perHostLimit < 1 || stripes < 1) {
+      throw new IllegalArgumentException("Limits must be positive");
+    }
+    this.perAccountLimit = perAccountLimit;
+    this.perHostLimit = perHostLimit;
+    this.stripes = new Stripe[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Waits up to {@code timeout} for a connection slot for {@code
+   * userEmail} on {@code host}.
+   *
+   * @throws TimeoutException if no slot became free in time.
+   */
+  public Permit acquire(String host,
+                        String userEmail,
+                        long timeout,
+                        TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    String hostKey = host.toLowerCase(Locale.ROOT);
+    String account = userEmail.toLowerCase(Locale.ROOT);
+    long start = System.nanoTime();
+    long deadline = start + unit.toNanos(timeout);
+    if (!acquireAccount(account, deadline)) {
+      timeoutCount.incrementAndGet();
+      throw new TimeoutException("Too many connections for " + userEmail);
+    }
+    boolean acquired = false;
+    try {
+      Semaphore semaphore = getHostSemaphore(hostKey);
+      acquired = semaphore.tryAcquire();
+      if (!acquired) {
+        waiting.incrementAndGet();
+        try {
+          acquired = semaphore.tryAcquire(deadline - System.nanoTime(),
+                                          TimeUnit.NANOSECONDS);
+        } finally {
+          waiting.decrementAndGet();
+        }
+      }
+    } finally {
+      if (!acquired) {
+        releaseAccount(account);
+      }
+    }
+    if (!acquired) {
+      timeoutCount.incrementAndGet();
+      throw new TimeoutException("Too many connections to " + host);
+    }
+    waitTimes.record(System.nanoTime() - start);
+    active.incrementAndGet();
+    return new Permit(hostKey, account);
+  }
+
+  /**
+   * Connects to IMAP as in {@code OAuth2Authenticator.connectToImap} once a
+   * slot is free. The slot is given back when the store closes.
+   */
+  public IMAPStore connectToImap(String host,
+                                 int port,
+                                 String userEmail,
+                                 String oauthToken,
+                                 boolean debug,
+                                 long timeoutMillis)
+      throws MessagingException, InterruptedException, TimeoutException {
+    Permit permit =
+        acquire(host, userEmail, timeoutMillis, TimeUnit.MILLISECONDS);
+    Session session = OAuth2Authenticator.getImapSession(host, port, debug);
+    IMAPStore store = new LimitedImapStore(session, permit);
+    connect(store, permit, "imap", host, port, userEmail, oauthToken,
+            !OAuth2SessionCache.usesSasl(session, "imaps"));
+    return store;
+  }
+
+  /**
+   * Connects to SMTP as in {@code OAuth2Authenticator.connectToSmtp} once a
+   * slot is free. The slot is given back when the transport closes.
+   */
+  public SMTPTransport connectToSmtp(String host,
+                                     int port,
+                                     String userEmail,
+                                     String oauthToken,
+                                     boolean debug,
+                                     long timeoutMillis)
+      throws MessagingException, InterruptedException, TimeoutException {
+    Permit permit =
+        acquire(host, userEmail, timeoutMillis, TimeUnit.MILLISECONDS);
+    Session session = OAuth2Authenticator.getSmtpSession(host, port, debug);
+    SMTPTransport transport = new LimitedSmtpTransport(session, permit);
+    connect(transport, permit, "smtp", host, port, userEmail, oauthToken,
+            !OAuth2SessionCache.usesSasl(session, "smtp"));
+    return transport;
+  }
+
+  /** Returns the number of permits held. */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  /** Returns the number of callers waiting for a permit. */
+  public int getWaitingCount() {
+    return waiting.get();
+  }
+
+  /** Returns the number of callers waiting for a slot on {@code host}. */
+  public int getHostQueueLength(String host) {
+    Semaphore semaphore = hosts.get(host.toLowerCase(Locale.ROOT));
+    return semaphore == null ? 0 : semaphore.getQueueLength();
+  }
+
+  /** Returns the number of acquires that timed out. */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /** Returns the mean time successful acquires waited. */
+  public double getMeanWaitMillis() {
+    return waitTimes.getMeanMillis();
+  }
+
+  /**
+   * Returns the given percentile, for example 0.99, of the time successful
+   * acquires waited.
+   */
+  public double getWaitPercentileMillis(double fraction) {
+    return waitTimes.getPercentileMillis(fraction);
+  }
+
+  private static void connect(Service service,
+                              Permit permit,
+                              String protocol,
+                              String host,
+                              int port,
+                              String userEmail,
+                              String oauthToken,
+                              boolean tokenAsPassword)
+      throws MessagingException {
+    try {
+      OAuth2Authenticator.connect(service, protocol, host, port, userEmail,
+                                  oauthToken, tokenAsPassword);
+    } catch (MessagingException e) {
+      permit.close();
+      throw e;
+    } catch (RuntimeException e) {
+      permit.close();
+      throw e;
+    }
+  }
+
+  private Semaphore getHostSemaphore(String hostKey) {
+    Semaphore semaphore = hosts.get(hostKey);
+    if (semaphore == null) {
+      Semaphore newSemaphore = new Semaphore(perHostLimit, true);
+      semaphore = hosts.putIfAbsent(hostKey, newSemaphore);
+      if (semaphore == null) {
+        semaphore = newSemaphore;
+      }
+    }
+    return semaphore;
+  }
+
+  private Stripe stripeFor(String account) {
+    int hash = account.hashCode();
+    // Spread the hash bits, as HashMap does.
+    hash ^= hash >>> 16;
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+
+  private boolean acquireAccount(String account, long deadline)
+      throws InterruptedException {
+    Stripe stripe = stripeFor(account);
+    stripe.lock.lockInterruptibly();
+    try {
+      int[] open = stripe.open.get(account);
+      if (open != null && open[0] >= perAccountLimit) {
+        waiting.incrementAndGet();
+        try {
+          while (open != null && open[0] >= perAccountLimit) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              return false;
+            }
+            stripe.released.awaitNanos(remaining);
+            open = stripe.open.get(account);
+          }
+        } finally {
+          waiting.decrementAndGet();
+        }
+      }
+      if (open == null) {
+        open = new int[1];
+        stripe.open.put(account, open);
+      }
+      open[0]++;
+      return true;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  private void releaseAccount(String account) {
+    Stripe stripe = stripeFor(account);
+    stripe.lock.lock();
+    try {
+      int[] open = stripe.open.get(account);
+      if (--open[0] == 0) {
+        stripe.open.remove(account);
+      }
+      stripe.released.signalAll();
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Reads credentials for BulkAuthenticator one line at a time.
+ *
+ * <p>Each line holds an email address and an OAuth token separated by
+ * whitespace, optionally followed by {@code host} or {@code host:port} to
+ * override the defaults. Blank lines and lines starting with {@code #} are
+ * skipped. Only the next credential is held in memory, so arbitrarily large
+ * files can be streamed.
+ */
+public class CredentialReader
+    implements Iterator<BulkAuthenticator.Credential>, Closeable {
+  private final BufferedReader reader;
+  private final String defaultHost;
+  private final int defaultPort;
+
+  private BulkAuthenticator.Credential next;
+  private int lineNumber = 0;
+
+  /**
+   * @param reader Source of credential lines; closed by {@code close}.
+   * @param defaultHost Host used when a line does not name one.
+   * @param defaultPort Port used when a line does not name one.
+   */
+  public CredentialReader(Reader reader, String defaultHost, int defaultPort) {
+    this.reader = reader instanceof BufferedReader
+        ? (BufferedReader) reader : new BufferedReader(reader);
+    this.defaultHost = defaultHost;
+    this.defaultPort = defaultPort;
+  }
+
+  /**
+   * @throws UncheckedIOException If reading fails.
+   * @throws IllegalArgumentException If a line is malformed.
+   */
+  public boolean hasNext() {
+    if (next != null) {
+      return true;
+    }
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        next = parse(line);
+        return true;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return false;
+  }
+
+  public BulkAuthenticator.Credential next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    BulkAuthenticator.Credential credential = next;
+    next = null;
+    return credential;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private BulkAuthenticator.Credential parse(String line) {
+    String[] fields = line.split("\\s+");
+    if (fields.length < 2 || fields.length > 3) {
+      throw new IllegalArgumentException(
+          "Line " + lineNumber + ": expected <email> <token> [host[:port]]");
+    }
+    String host = defaultHost;
+    int port = defaultPort;
+    if (fields.length == 3) {
+      String address = fields[2];
+      int colon = address.lastIndexOf(':');
+      if (colon < 0) {
+        host = address;
+      } else {
+        host = address.substring(0, colon);
+        try {
+          port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+              "Line " + lineNumber + ": bad port in " + address);
+        }
+      }
+    }
+    return new BulkAuthenticator.Credential(fields[0], fields[1], host, port);
+  }
+}
@@ -0,0 +1,193 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLException;
+
+
+/**
+ * Coarse classification of why a connect failed.
+ */
+public enum FailureClass {
+  /** The connect succeeded. */
+  NONE,
+  /** The server rejected the credentials. */
+  AUTHENTICATION,
+  /** The server refused the connect because of rate or connection limits. */
+  THROTTLED,
+  /** The connect did not finish in time. */
+  TIMEOUT,
+  /** The host could not be resolved or reached, or dropped the connection. */
+  CONNECTION,
+  /** The TLS handshake failed. */
+  TLS,
+  /** The server is temporarily unable to serve the request. */
+  UNAVAILABLE,
+  /** The server responded in some other unexpected way. */
+  PROTOCOL,
+  /** Anything else, including failures to obtain a token. */
+  UNKNOWN;
+
+  /**
+   * Classifies {@code failure} by walking its cause chain, which for
+   * JavaMail exceptions includes the nested exception.
+   *
+   * <p>The XOAUTH2 error status is used when the server sent one. Otherwise
+   * IMAP response codes such as [UNAVAILABLE] and SMTP reply codes such as
+   * 421 in the server's response are, followed by the wording Gmail uses
+   * when throttling.
+   */
+  public static FailureClass classify(Throwable failure) {
+    if (failure == null) {
+      return NONE;
+    }
+    boolean messaging = false;
+    for (Throwable t = failure; t != null; t = t.getCause()) {
+      if (t instanceof ExecutionException
+          || t instanceof CompletionException) {
+        continue;
+      }
+      if (t instanceof ConnectRetrier.CircuitOpenException) {
+        return UNAVAILABLE;
+      }
+      if (t instanceof OAuth2AuthenticationFailedException) {
+        return classifyStatus(
+            ((OAuth2AuthenticationFailedException) t).getError()
+            .getStatusCode());
+      }
+      if (t instanceof MessagingException) {
+        FailureClass fromCode = classifyResponse(t.getMessage());
+        if (fromCode != null) {
+          return fromCode;
+        }
+        if (isThrottled(t.getMessage())) {
+          return THROTTLED;
+        }
+      }
+      if (t instanceof AuthenticationFailedException) {
+        return AUTHENTICATION;
+      }
+      if (t instanceof TimeoutException
+          || t instanceof SocketTimeoutException) {
+        return TIMEOUT;
+      }
+      if (t instanceof SSLException) {
+        return TLS;
+      }
+      if (t instanceof UnknownHostException
+          || t instanceof SocketException) {
+        return CONNECTION;
+      }
+      if (t instanceof MessagingException) {
+        messaging = true;
+      } else if (t instanceof IOException && messaging) {
+        // An I/O failure underneath JavaMail, e.g. EOF from the server.
+        return CONNECTION;
+      }
+    }
+    return messaging ? PROTOCOL : UNKNOWN;
+  }
+
+  static FailureClass classifyStatus(int status) {
+    if (status == 429) {
+      return THROTTLED;
+    }
+    if (status >= 500) {
+      return UNAVAILABLE;
+    }
+    return AUTHENTICATION;
+  }
+
+  // IMAP response codes (RFC 5530) and SMTP reply codes, optionally with an
+  // enhanced status code, at the start of the server's response.
+  private static final Pattern IMAP_CODE = Pattern.compile("\\[([A-Z-]+)");
+  private static final Pattern SMTP_CODE =
+      Pattern.compile("^([245]\\d\\d)[ -](?:(\\d\\.\\d{1,3}\\.\\d{1,3}) )?");
+
+  /**
+   * Classifies a server response by its IMAP response code or SMTP reply
+   * code, or returns null if it has no code that says anything useful.
+   */
+  static FailureClass classifyResponse(String message) {
+    if (message == null) {
+      return null;
+    }
+    Matcher smtp = SMTP_CODE.matcher(message);
+    if (smtp.find()) {
+      String reply = smtp.group(1);
+      String enhanced = smtp.group(2);
+      if (reply.equals("421")) {
+        return UNAVAILABLE;
+      }
+      if (reply.equals("454") && "4.7.0".equals(enhanced)) {
+        // "Too many login attempts" and friends.
+        return THROTTLED;
+      }
+      if (reply.equals("535") || reply.equals("534")) {
+        return AUTHENTICATION;
+      }
+      return null;
+    }
+    Matcher imap = IMAP_CODE.matcher(message);
+    if (imap.find()) {
+      String code = imap.group(1);
+      if (code.equals("AUTHENTICATIONFAILED") || code.equals("EXPIRED")
+          || code.equals("AUTHORIZATIONFAILED")) {
+        return AUTHENTICATION;
+      }
+      if (code.equals("UNAVAILABLE")) {
+        return UNAVAILABLE;
+      }
+      if (code.equals("LIMIT") || code.equals("INUSE")) {
+        return THROTTLED;
+      }
+    }
+    return null;
+  }
+
+  // Phrases Gmail uses when rejecting logins for going over its limits,
+  // e.g. "Too many simultaneous connections" or "454 4.7.0 Too many login
+  // attempts, please try again later".
+  private static final String[] THROTTLE_HINTS = {
+    "[throttled]", "too many", "try again later", "exceeded"
+  };
+
+  static boolean isThrottled(String message) {
+    if (message == null) {
+      return false;
+    }
+    String lower = message.toLowerCase(Locale.ROOT);
+    for (String hint : THROTTLE_HINTS) {
+      if (lower.contains(hint)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,164 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.List;
+
+
+/**
+ * A hashed timing wheel (Varghese and Lauck), for keeping very many timers
+ * whose deadlines need only be accurate to a tick.
+ *
+ * <p>Time is divided into ticks, and the wheel has a bucket for each of
+ * {@code wheelSize} consecutive ticks; a deadline further away than one
+ * turn of the wheel is kept with the number of turns remaining. Timers are
+ * entries linked into their bucket, so scheduling, rescheduling and
+ * cancelling are constant-time and allocate nothing, and each tick only
+ * looks at one bucket.
+ *
+ * <p>Not thread-safe: the wheel and its entries must only be touched by the
+ * thread that owns it.
+ */
+final class HashedTimingWheel {
+  /** A timer, scheduled in at most one wheel at a time. */
+  static class Entry {
+    private Entry previous;
+    private Entry next;
+    private int bucket = -1;
+    private long rounds;
+
+    /** Returns whether the entry is scheduled. */
+    final boolean isScheduled() {
+      return bucket >= 0;
+    }
+  }
+
+  private final long startNanos;
+  private final long tickNanos;
+  private final Entry[] buckets;
+  private final int mask;
+  // The next tick to expire.
+  private long tick = 0;
+  private int size = 0;
+
+  /**
+   * @param tickNanos Length of a tick; deadlines are rounded up to a tick.
+   * @param wheelSize Number of buckets, rounded up to a power of two.
+   * @param startNanos The {@code System.nanoTime} at which tick 0 ends.
+   */
+  HashedTimingWheel(long tickNanos, int wheelSize, long startNanos) {
+    if (tickNanos <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException(
+          "tickNanos and wheelSize must be positive");
+    }
+    int buckets = Integer.highestOneBit(wheelSize);
+    if (buckets < wheelSize) {
+      buckets <<= 1;
+    }
+    this.tickNanos = tickNanos;
+    this.buckets = new Entry[buckets];
+    this.mask = buckets - 1;
+    this.startNanos = startNanos;
+  }
+
+  /** Returns the number of entries scheduled. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the {@code System.nanoTime} at which the next tick is due.
+   */
+  long nextTickNanos() {
+    return startNanos + tick * tickNanos;
+  }
+
+  /**
+   * Schedules {@code entry} to expire at the first tick at or after {@code
+   * deadlineNanos}, or at the next tick if that has passed. An entry that
+   * is already scheduled is moved.
+   */
+  void schedule(Entry entry, long deadlineNanos) {
+    if (entry.isScheduled()) {
+      cancel(entry);
+    }
+    long elapsed = deadlineNanos - startNanos;
+    long ticks = elapsed <= 0 ? 0 : (elapsed + tickNanos - 1) / tickNanos;
+    if (ticks < tick) {
+      ticks = tick;
+    }
+    entry.rounds = (ticks - tick) / buckets.length;
+    link(entry, (int) (ticks & mask));
+    size++;
+  }
+
+  /** Unschedules {@code entry}, if it is scheduled. */
+  void cancel(Entry entry) {
+    if (!entry.isScheduled()) {
+      return;
+    }
+    if (entry.previous == null) {
+      buckets[entry.bucket] = entry.next;
+    } else {
+      entry.previous.next = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.previous = entry.previous;
+    }
+    entry.previous = null;
+    entry.next = null;
+    entry.bucket = -1;
+    size--;
+  }
+
+  /**
+   * Expires the ticks due by {@code nowNanos}, adding the entries whose
+   * deadlines have come to {@code expired}. They are no longer scheduled.
+   */
+  void advance(long nowNanos, List<Entry> expired) {
+    while (nowNanos - nextTickNanos() >= 0) {
+      int index = (int) (tick & mask);
+      Entry entry = buckets[index];
+      buckets[index] = null;
+      // Entries scheduled from here on go in later ticks.
+      tick++;
+      while (entry != null) {
+        Entry next = entry.next;
+        entry.previous = null;
+        entry.next = null;
+        if (entry.rounds > 0) {
+          entry.rounds--;
+          link(entry, index);
+        } else {
+          entry.bucket = -1;
+          size--;
+          expired.add(entry);
+        }
+        entry = next;
+      }
+    }
+  }
+
+  private void link(Entry entry, int index) {
+    Entry head = buckets[index];
+    entry.next = head;
+    if (head != null) {
+      head.previous = entry;
+    }
+    buckets[index] = entry;
+    entry.bucket = index;
+  }
+}
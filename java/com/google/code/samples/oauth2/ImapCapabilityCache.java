@@ -0,0 +1,106 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Caches the capabilities, including the SASL mechanisms, that each IMAP
+ * server advertises before login.
+ *
+ * <p>Servers like Gmail's leave their capabilities out of the greeting, so
+ * JavaMail asks for them with a CAPABILITY command before it can pick a
+ * SASL mechanism. Connects made through OAuth2Authenticator use the answer
+ * the same server gave an earlier connect instead, which saves a round trip
+ * per connect. An entry is dropped when it is older than the maximum age,
+ * or when a connect that used it fails other than by the server rejecting
+ * the token.
+ */
+public final class ImapCapabilityCache {
+  private static final ConcurrentMap<String, Entry> entries =
+      new ConcurrentHashMap<String, Entry>();
+
+  private static volatile long maxAgeNanos = TimeUnit.HOURS.toNanos(1);
+
+  private static final class Entry {
+    final String capabilities;
+    final long createdNanos;
+
+    Entry(String capabilities, long createdNanos) {
+      this.capabilities = capabilities;
+      this.createdNanos = createdNanos;
+    }
+  }
+
+  private ImapCapabilityCache() {
+  }
+
+  /**
+   * Returns the capabilities {@code host:port} advertised before login, as
+   * the space separated list of a CAPABILITY response, or null if they are
+   * not known.
+   */
+  public static String get(String host, int port) {
+    String key = key(host, port);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.createdNanos > maxAgeNanos) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry.capabilities;
+  }
+
+  static void put(String host, int port, String capabilities) {
+    entries.put(key(host, port), new Entry(capabilities, System.nanoTime()));
+  }
+
+  /**
+   * Forgets the capabilities of {@code host:port}, so that the next connect
+   * asks the server.
+   */
+  public static void invalidate(String host, int port) {
+    entries.remove(key(host, port));
+  }
+
+  /**
+   * Sets how long capabilities are used before the server is asked again.
+   * The default is an hour.
+   */
+  public static void setMaxAge(long maxAge, TimeUnit unit) {
+    maxAgeNanos = unit.toNanos(maxAge);
+  }
+
+  /** Returns the number of servers whose capabilities are cached. */
+  public static int size() {
+    return entries.size();
+  }
+
+  /** Forgets all cached capabilities. */
+  public static void clear() {
+    entries.clear();
+  }
+
+  private static String key(String host, int port) {
+    return host.toLowerCase(Locale.ROOT) + ":" + port;
+  }
+}
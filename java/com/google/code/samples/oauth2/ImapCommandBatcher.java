@@ -0,0 +1,499 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UID;
+import com.sun.mail.imap.protocol.UIDSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+
+
+/**
+ * Batches per-message UID STORE, COPY and FETCH operations on an open IMAP
+ * folder into commands on UID sets, to cut the number of round trips a
+ * mailbox sync makes.
+ *
+ * <p>Operations are queued and return a CompletableFuture. A background
+ * thread sends them once {@code batchSize} operations are waiting or the
+ * oldest has waited {@code flushIntervalMillis}, whichever comes first.
+ * Operations of one kind with the same arguments, for example adding \Seen,
+ * become a single command on the set of their UIDs. Commands that do not
+ * depend on each other are pipelined: all of them are written before any
+ * response is read, so a batch costs one round trip per dependent step
+ * rather than one per message.
+ *
+ * <p>Operations on the same message take effect in the order they were
+ * queued. Operations on different messages may be reordered to coalesce
+ * them. Fetches all use the item list given to the constructor.
+ *
+ * <p>The folder must stay open while the batcher is in use. Other use of the
+ * folder waits while a batch is being sent.
+ *
+ * <p>Futures are completed on the batcher's sending thread, so callbacks
+ * attached to them must not block. They may queue more operations but not
+ * call {@code flush} or {@code close}, which would wait for the thread they
+ * run on.
+ */
+public class ImapCommandBatcher implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(ImapCommandBatcher.class.getName());
+
+  private enum Kind { STORE, COPY, FETCH, FLUSH }
+
+  private static final class Op {
+    final Kind kind;
+    // The command with the UID set left out, e.g. "+FLAGS.SILENT (\Seen)".
+    final String key;
+    final long uid;
+    final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+    Op(Kind kind, String key, long uid) {
+      this.kind = kind;
+      this.key = key;
+      this.uid = uid;
+    }
+  }
+
+  /**
+   * Operations of one kind and key, sent as one command.
+   */
+  private static final class Group {
+    final String key;
+    final List<Op> ops = new ArrayList<Op>();
+    final Set<Long> uids = new HashSet<Long>();
+
+    Group(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Groups of one kind that can be pipelined because no message is in more
+   * than one of them.
+   */
+  private static final class Phase {
+    final Kind kind;
+    final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+    final Set<Long> uids = new HashSet<Long>();
+
+    Phase(Kind kind) {
+      this.kind = kind;
+    }
+
+    boolean canAdd(Op op) {
+      if (op.kind != kind) {
+        return false;
+      }
+      Group group = groups.get(op.key);
+      return !uids.contains(op.uid)
+          || (group != null && group.uids.contains(op.uid));
+    }
+
+    void add(Op op) {
+      Group group = groups.get(op.key);
+      if (group == null) {
+        group = new Group(op.key);
+        groups.put(op.key, group);
+      }
+      group.ops.add(op);
+      group.uids.add(op.uid);
+      uids.add(op.uid);
+    }
+  }
+
+  private final IMAPFolder folder;
+  private final String fetchItems;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+
+  private final BlockingQueue<Op> queue = new LinkedBlockingQueue<Op>();
+  private final Thread sender;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a batcher and starts its sending thread.
+   *
+   * @param folder An open folder, for example the INBOX of a store returned
+   *     by {@code OAuth2Authenticator.connectToImap}.
+   * @param fetchItems The items {@code fetch} asks for, for example {@code
+   *     "FLAGS INTERNALDATE RFC822.SIZE"}. UID is always added. Must not be
+   *     null.
+   * @param batchSize Maximum number of operations sent together.
+   * @param flushIntervalMillis Maximum time an operation waits for others to
+   *     join its batch.
+   */
+  public ImapCommandBatcher(IMAPFolder folder,
+                            String fetchItems,
+                            int batchSize,
+                            long flushIntervalMillis) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    if (fetchItems == null) {
+      throw new NullPointerException("fetchItems");
+    }
+    this.folder = folder;
+    this.fetchItems = fetchItems;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    sender = AsyncConnector.daemonThreadFactory("imap-batcher")
+        .newThread(new Runnable() {
+          public void run() {
+            sendLoop();
+          }
+        });
+    sender.start();
+  }
+
+  /**
+   * Queues setting {@code flags} on message {@code uid}.
+   */
+  public CompletableFuture<Void> addFlags(long uid, Flags flags) {
+    return store(uid, "+", flags);
+  }
+
+  /**
+   * Queues clearing {@code flags} on message {@code uid}.
+   */
+  public CompletableFuture<Void> removeFlags(long uid, Flags flags) {
+    return store(uid, "-", flags);
+  }
+
+  /**
+   * Queues copying message {@code uid} to the folder named {@code
+   * mailbox}.
+   */
+  public CompletableFuture<Void> copy(long uid, String mailbox) {
+    return voidFuture(enqueue(new Op(Kind.COPY, mailbox, uid)));
+  }
+
+  /**
+   * Queues fetching the constructor's items for message {@code uid}. The
+   * future yields null if the folder has no such message.
+   */
+  public CompletableFuture<FetchResponse> fetch(long uid) {
+    return enqueue(new Op(Kind.FETCH, fetchItems, uid))
+        .thenApply(result -> (FetchResponse) result);
+  }
+
+  /**
+   * Sends everything queued so far without waiting for the flush interval,
+   * and waits until it has completed.
+   *
+   * @throws IllegalStateException If called from a future's callback on the
+   *     sending thread.
+   */
+  public void flush() throws InterruptedException {
+    checkNotSender("flush");
+    CompletableFuture<Object> done = enqueue(new Op(Kind.FLUSH, null, 0));
+    try {
+      done.get();
+    } catch (ExecutionException e) {
+      // Flush markers always complete normally.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Sends everything queued so far and stops the sending thread. The folder
+   * is left open.
+   *
+   * @throws IllegalStateException If called from a future's callback on the
+   *     sending thread.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    checkNotSender("close");
+    try {
+      flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closed = true;
+      sender.interrupt();
+    }
+  }
+
+  /**
+   * Fails fast where waiting for the sending thread would deadlock.
+   */
+  private void checkNotSender(String method) {
+    if (Thread.currentThread() == sender) {
+      throw new IllegalStateException(
+          method + " called from the batcher's own thread");
+    }
+  }
+
+  private CompletableFuture<Void> store(long uid, String sign, Flags flags) {
+    String key = sign + "FLAGS.SILENT " + toFlagList(flags);
+    return voidFuture(enqueue(new Op(Kind.STORE, key, uid)));
+  }
+
+  private CompletableFuture<Object> enqueue(Op op) {
+    if (closed) {
+      throw new IllegalStateException("Batcher is closed");
+    }
+    queue.add(op);
+    return op.future;
+  }
+
+  private static CompletableFuture<Void> voidFuture(
+      CompletableFuture<Object> future) {
+    return future.thenApply(result -> null);
+  }
+
+  private void sendLoop() {
+    List<Op> batch = new ArrayList<Op>();
+    try {
+      while (!closed) {
+        Op first = queue.take();
+        batch.add(first);
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        Op op = first;
+        while (op.kind != Kind.FLUSH && batch.size() < batchSize) {
+          op = queue.poll(deadline - System.nanoTime(),
+                          TimeUnit.NANOSECONDS);
+          if (op == null) {
+            break;
+          }
+          batch.add(op);
+        }
+        send(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // Closed.
+    }
+    queue.drainTo(batch);
+    fail(batch, new MessagingException("Batcher is closed"));
+  }
+
+  private void send(List<Op> batch) {
+    final List<Phase> phases = plan(batch);
+    try {
+      folder.doCommand(new IMAPFolder.ProtocolCommand() {
+        public Object doCommand(IMAPProtocol protocol)
+            throws ProtocolException {
+          synchronized (protocol) {
+            for (Phase phase : phases) {
+              sendPhase(protocol, phase);
+            }
+          }
+          return null;
+        }
+      });
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Batch failed", e);
+      fail(batch, e);
+    } catch (RuntimeException e) {
+      fail(batch, e);
+    }
+    // Flush markers.
+    for (Op op : batch) {
+      op.future.complete(null);
+    }
+  }
+
+  /**
+   * Fails every operation in {@code ops} that has not completed yet, except
+   * flush markers, which complete normally.
+   */
+  private static void fail(List<Op> ops, Exception failure) {
+    for (Op op : ops) {
+      if (op.kind == Kind.FLUSH) {
+        op.future.complete(null);
+      } else {
+        op.future.completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * Splits a batch into phases, each of which is sent as pipelined commands
+   * after the previous phase has completed.
+   */
+  private static List<Phase> plan(List<Op> batch) {
+    List<Phase> phases = new ArrayList<Phase>();
+    for (Op op : batch) {
+      if (op.kind == Kind.FLUSH) {
+        continue;
+      }
+      // Join the earliest phase of the same kind that is not before an
+      // operation on the same message.
+      Phase target = null;
+      for (int i = phases.size() - 1; i >= 0; i--) {
+        Phase phase = phases.get(i);
+        if (phase.canAdd(op)) {
+          target = phase;
+        }
+        if (phase.uids.contains(op.uid)) {
+          break;
+        }
+      }
+      if (target == null) {
+        target = new Phase(op.kind);
+        phases.add(target);
+      }
+      target.add(op);
+    }
+    return phases;
+  }
+
+  private void sendPhase(IMAPProtocol protocol, Phase phase)
+      throws ProtocolException {
+    Map<String, Group> tags = new HashMap<String, Group>();
+    List<Response> untagged = new ArrayList<Response>();
+    Map<Long, FetchResponse> fetched = new HashMap<Long, FetchResponse>();
+    try {
+      for (Group group : phase.groups.values()) {
+        String uidSet = toUIDSet(group.uids);
+        String tag;
+        if (phase.kind == Kind.COPY) {
+          Argument mailbox = new Argument();
+          mailbox.writeString(BASE64MailboxEncoder.encode(group.key));
+          tag = protocol.writeCommand("UID COPY " + uidSet, mailbox);
+        } else if (phase.kind == Kind.FETCH) {
+          tag = protocol.writeCommand(
+              "UID FETCH " + uidSet + " (UID " + group.key + ")", null);
+        } else {
+          tag = protocol.writeCommand(
+              "UID STORE " + uidSet + " " + group.key, null);
+        }
+        tags.put(tag, group);
+      }
+      while (!tags.isEmpty()) {
+        Response response = protocol.readResponse();
+        if (response.isTagged()) {
+          Group group = tags.remove(response.getTag());
+          if (group != null) {
+            complete(protocol, phase.kind, group, response, fetched);
+          }
+          continue;
+        }
+        untagged.add(response);
+        if (response.isBYE()) {
+          throw new ConnectionException(protocol, response);
+        }
+        if (response instanceof FetchResponse) {
+          UID uid = ((FetchResponse) response).getItem(UID.class);
+          if (uid != null) {
+            fetched.put(uid.uid, (FetchResponse) response);
+          }
+        }
+      }
+    } catch (IOException e) {
+      Response bye = Response.byeResponse(e);
+      untagged.add(bye);
+      throw new ConnectionException(protocol, bye);
+    } finally {
+      // Let the folder see EXISTS, EXPUNGE, flag changes and BYE, as it
+      // would for its own commands.
+      protocol.notifyResponseHandlers(
+          untagged.toArray(new Response[untagged.size()]));
+    }
+  }
+
+  private static void complete(IMAPProtocol protocol,
+                               Kind kind,
+                               Group group,
+                               Response response,
+                               Map<Long, FetchResponse> fetched) {
+    try {
+      protocol.handleResult(response);
+    } catch (ProtocolException e) {
+      MessagingException failure = new MessagingException(e.getMessage(), e);
+      for (Op op : group.ops) {
+        op.future.completeExceptionally(failure);
+      }
+      return;
+    }
+    for (Op op : group.ops) {
+      op.future.complete(kind == Kind.FETCH ? fetched.get(op.uid) : null);
+    }
+  }
+
+  private static String toUIDSet(Set<Long> uids) {
+    long[] sorted = new long[uids.size()];
+    int i = 0;
+    for (Long uid : uids) {
+      sorted[i++] = uid;
+    }
+    Arrays.sort(sorted);
+    return UIDSet.toString(UIDSet.createUIDSets(sorted));
+  }
+
+  private static String toFlagList(Flags flags) {
+    StringBuilder list = new StringBuilder("(");
+    for (Flags.Flag flag : flags.getSystemFlags()) {
+      String name;
+      if (flag == Flags.Flag.ANSWERED) {
+        name = "\\Answered";
+      } else if (flag == Flags.Flag.DELETED) {
+        name = "\\Deleted";
+      } else if (flag == Flags.Flag.DRAFT) {
+        name = "\\Draft";
+      } else if (flag == Flags.Flag.FLAGGED) {
+        name = "\\Flagged";
+      } else if (flag == Flags.Flag.SEEN) {
+        name = "\\Seen";
+      } else {
+        // \Recent and USER can't be stored.
+        continue;
+      }
+      if (list.length() > 1) {
+        list.append(' ');
+      }
+      list.append(name);
+    }
+    for (String flag : flags.getUserFlags()) {
+      if (list.length() > 1) {
+        list.append(' ');
+      }
+      list.append(flag);
+    }
+    return list.append(')').toString();
+  }
+}
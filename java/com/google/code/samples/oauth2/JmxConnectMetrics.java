@@ -0,0 +1,203 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * ConnectMetrics that keeps counters and latency histograms per protocol and
+ * publishes them as ConnectStatsMXBeans named
+ * {@code com.google.code.samples.oauth2:type=ConnectStats,protocol=<protocol>}.
+ *
+ * <p>To enable it:
+ * <pre>
+ *   OAuth2Authenticator.setConnectMetrics(new JmxConnectMetrics());
+ * </pre>
+ */
+public class JmxConnectMetrics implements ConnectMetrics {
+  private static final Logger logger =
+      Logger.getLogger(JmxConnectMetrics.class.getName());
+
+  public static final String DOMAIN = "com.google.code.samples.oauth2";
+
+  private final MBeanServer server;
+  private final ConcurrentMap<String, ConnectStats> stats =
+      new ConcurrentHashMap<String, ConnectStats>();
+
+  /**
+   * Creates metrics that register with the platform MBean server.
+   */
+  public JmxConnectMetrics() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  public JmxConnectMetrics(MBeanServer server) {
+    this.server = server;
+  }
+
+  public void connectFinished(String protocol,
+                              ConnectTimings timings,
+                              FailureClass failureClass) {
+    statsFor(protocol).record(timings, failureClass);
+  }
+
+  /**
+   * Returns the statistics for {@code protocol}, registering them with JMX
+   * on first use.
+   */
+  public ConnectStatsMXBean getStats(String protocol) {
+    return statsFor(protocol);
+  }
+
+  private ConnectStats statsFor(String protocol) {
+    ConnectStats protocolStats = stats.get(protocol);
+    if (protocolStats == null) {
+      ConnectStats newStats = new ConnectStats();
+      protocolStats = stats.putIfAbsent(protocol, newStats);
+      if (protocolStats == null) {
+        protocolStats = newStats;
+        register(protocol, newStats);
+      }
+    }
+    return protocolStats;
+  }
+
+  /**
+   * Removes this object's beans from the MBean server.
+   */
+  public void unregister() {
+    for (String protocol : stats.keySet()) {
+      try {
+        server.unregisterMBean(objectName(protocol));
+      } catch (JMException e) {
+        logger.log(Level.FINE, "Failed to unregister stats for " + protocol,
+                   e);
+      }
+    }
+  }
+
+  private void register(String protocol, ConnectStats protocolStats) {
+    try {
+      server.registerMBean(protocolStats, objectName(protocol));
+    } catch (JMException e) {
+      // Most likely another JmxConnectMetrics got there first; the stats are
+      // still collected, just not visible.
+      logger.log(Level.WARNING, "Failed to register stats for " + protocol,
+                 e);
+    }
+  }
+
+  private static ObjectName objectName(String protocol) throws JMException {
+    return new ObjectName(DOMAIN + ":type=ConnectStats,protocol="
+                          + protocol);
+  }
+
+  private static final class ConnectStats implements ConnectStatsMXBean {
+    private static final ConnectTimings.Phase[] PHASES =
+        ConnectTimings.Phase.values();
+    private static final FailureClass[] FAILURE_CLASSES =
+        FailureClass.values();
+
+    private final AtomicLongArray outcomes =
+        new AtomicLongArray(FAILURE_CLASSES.length);
+    private final LatencyHistogram[] latencies =
+        new LatencyHistogram[PHASES.length];
+
+    ConnectStats() {
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    void record(ConnectTimings timings, FailureClass failureClass) {
+      outcomes.incrementAndGet(failureClass.ordinal());
+      for (ConnectTimings.Phase phase : PHASES) {
+        latencies[phase.ordinal()].record(timings.getNanos(phase));
+      }
+    }
+
+    public long getSuccessCount() {
+      return outcomes.get(FailureClass.NONE.ordinal());
+    }
+
+    public long getFailureCount() {
+      long failures = 0;
+      for (FailureClass failureClass : FAILURE_CLASSES) {
+        if (failureClass != FailureClass.NONE) {
+          failures += outcomes.get(failureClass.ordinal());
+        }
+      }
+      return failures;
+    }
+
+    public Map<String, Long> getFailureCountsByClass() {
+      Map<String, Long> counts = new LinkedHashMap<String, Long>();
+      for (FailureClass failureClass : FAILURE_CLASSES) {
+        if (failureClass != FailureClass.NONE) {
+          counts.put(failureClass.name(),
+                     outcomes.get(failureClass.ordinal()));
+        }
+      }
+      return counts;
+    }
+
+    public Map<String, Double> getMeanMillisByPhase() {
+      Map<String, Double> means = new LinkedHashMap<String, Double>();
+      for (ConnectTimings.Phase phase : PHASES) {
+        means.put(phase.name(), latencies[phase.ordinal()].getMeanMillis());
+      }
+      return means;
+    }
+
+    public Map<String, Double> getMedianMillisByPhase() {
+      return percentiles(0.5);
+    }
+
+    public Map<String, Double> getP99MillisByPhase() {
+      return percentiles(0.99);
+    }
+
+    public void reset() {
+      for (int i = 0; i < outcomes.length(); i++) {
+        outcomes.set(i, 0);
+      }
+      for (LatencyHistogram histogram : latencies) {
+        histogram.reset();
+      }
+    }
+
+    private Map<String, Double> percentiles(double fraction) {
+      Map<String, Double> values = new LinkedHashMap<String, Double>();
+      for (ConnectTimings.Phase phase : PHASES) {
+        values.put(phase.name(),
+                   latencies[phase.ordinal()].getPercentileMillis(fraction));
+      }
+      return values;
+    }
+  }
+}
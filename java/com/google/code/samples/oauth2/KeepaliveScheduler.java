@@ -0,0 +1,492 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.Service;
+import javax.mail.Session;
+
+
+/**
+ * Keeps long-lived IMAP stores and SMTP transports usable: sends a NOOP on
+ * each connection that has been idle for {@code noopIntervalMillis}, so
+ * that NATs and load balancers do not forget it and a dead connection is
+ * found before the application's next operation hangs on it, and
+ * re-authenticates connections before their tokens expire.
+ *
+ * <p>Connections are opened with {@code connectToImap} or {@code
+ * connectToSmtp} here, which connect through OAuth2Authenticator and then
+ * register the connection. A NOOP or connect that takes longer than {@code
+ * timeoutMillis} is aborted by closing its socket. A connection whose NOOP
+ * fails is reconnected in place, taking a new token from its TokenProvider,
+ * and retried with exponential backoff while the server cannot be reached;
+ * a token the server rejects is invalidated first. Reconnecting closes the
+ * store's open folders and fires its ConnectionEvents, so applications that
+ * keep folders open should listen for them.
+ *
+ * <p>All timers live in one HashedTimingWheel on a single scheduler thread,
+ * so registering, rescheduling and unregistering are constant-time however
+ * many connections there are. The NOOPs and reconnects themselves block, so
+ * they run on a pool of at most {@code maxConcurrentChecks} threads.
+ *
+ * <p>Call {@code touch} when the application uses a connection, so that busy
+ * connections are not sent NOOPs, and {@code unregister} before closing one.
+ * You must have called {@code OAuth2Authenticator.initialize}.
+ */
+public class KeepaliveScheduler implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(KeepaliveScheduler.class.getName());
+
+  private static final long TICK_MILLIS = 100;
+  private static final int WHEEL_SIZE = 1024;
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+  private final long noopIntervalNanos;
+  private final long timeoutNanos;
+  private final long reauthenticateNanos;
+  private final ThreadPoolExecutor checkExecutor;
+  private final Thread thread;
+  private final Random random = new Random();
+
+  private final ConcurrentMap<Service, Connection> connections =
+      new ConcurrentHashMap<Service, Connection>();
+  // Connections whose timer must be set or cleared by the scheduler thread.
+  private final Queue<Connection> changed =
+      new ConcurrentLinkedQueue<Connection>();
+  private final AtomicLong noopCount = new AtomicLong();
+  private final AtomicLong deadCount = new AtomicLong();
+  private final AtomicLong reconnectCount = new AtomicLong();
+  private final AtomicLong reconnectFailureCount = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param noopIntervalMillis How long a connection may stay idle before it
+   *     is sent a NOOP. Gmail drops IMAP connections idle for 30 minutes,
+   *     and many NATs forget TCP connections after a few minutes.
+   * @param timeoutMillis How long a NOOP or reconnect may take before the
+   *     connection is given up as dead.
+   * @param reauthenticateMillis How long after authenticating a connection
+   *     is re-authenticated, which should be less than the lifetime of the
+   *     tokens, or 0 to never re-authenticate.
+   * @param maxConcurrentChecks Maximum number of NOOPs and reconnects in
+   *     progress at once.
+   */
+  public KeepaliveScheduler(long noopIntervalMillis,
+                            long timeoutMillis,
+                            long reauthenticateMillis,
+                            int maxConcurrentChecks) {
+    if (noopIntervalMillis <= 0 || timeoutMillis <= 0) {
+      throw new IllegalArgumentException(
+          "noopIntervalMillis and timeoutMillis must be positive");
+    }
+    if (maxConcurrentChecks < 1) {
+      throw new IllegalArgumentException(
+          "maxConcurrentChecks must be positive");
+    }
+    this.noopIntervalNanos = TimeUnit.MILLISECONDS.toNanos(noopIntervalMillis);
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.reauthenticateNanos =
+        TimeUnit.MILLISECONDS.toNanos(reauthenticateMillis);
+    checkExecutor = new ThreadPoolExecutor(
+        maxConcurrentChecks, maxConcurrentChecks, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "oauth2-keepalive-check");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    checkExecutor.allowCoreThreadTimeOut(true);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "oauth2-keepalive");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Connects to an IMAP server like {@link
+   * OAuth2Authenticator#connectToImap(String, int, String, TokenProvider,
+   * boolean)} and keeps the store alive until it is unregistered.
+   */
+  public IMAPStore connectToImap(String host,
+                                 int port,
+                                 String userEmail,
+                                 TokenProvider tokenProvider,
+                                 boolean debug)
+      throws MessagingException, IOException {
+    Session session = OAuth2Authenticator.getImapSession(host, port, debug);
+    ConnectContext context = new ConnectContext();
+    context.attach();
+    IMAPStore store;
+    try {
+      store = OAuth2Authenticator.connectToImap(
+          session, host, port, userEmail, tokenProvider.getToken(userEmail));
+    } finally {
+      context.detach();
+    }
+    register(new Connection(store, "imap", host, port, userEmail,
+                            tokenProvider,
+                            !OAuth2SessionCache.usesSasl(session, "imaps"),
+                            context));
+    return store;
+  }
+
+  /**
+   * Connects to an SMTP server like {@link
+   * OAuth2Authenticator#connectToSmtp(String, int, String, TokenProvider,
+   * boolean)} and keeps the transport alive until it is unregistered.
+   */
+  public SMTPTransport connectToSmtp(String host,
+                                     int port,
+                                     String userEmail,
+                                     TokenProvider tokenProvider,
+                                     boolean debug)
+      throws MessagingException, IOException {
+    Session session = OAuth2Authenticator.getSmtpSession(host, port, debug);
+    ConnectContext context = new ConnectContext();
+    context.attach();
+    SMTPTransport transport;
+    try {
+      transport = OAuth2Authenticator.connectToSmtp(
+          session, host, port, userEmail, tokenProvider.getToken(userEmail));
+    } finally {
+      context.detach();
+    }
+    register(new Connection(transport, "smtp", host, port, userEmail,
+                            tokenProvider,
+                            !OAuth2SessionCache.usesSasl(session, "smtp"),
+                            context));
+    return transport;
+  }
+
+  /**
+   * Records that the application has just used {@code service}, putting off
+   * its next NOOP. Cheap enough to call on every operation.
+   */
+  public void touch(Service service) {
+    Connection connection = connections.get(service);
+    if (connection != null) {
+      connection.lastUsedNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Stops keeping {@code service} alive. Does not close it.
+   */
+  public void unregister(Service service) {
+    Connection connection = connections.remove(service);
+    if (connection != null) {
+      connection.cancelled = true;
+      changed.add(connection);
+    }
+  }
+
+  /** Returns the number of connections being kept alive. */
+  public int getConnectionCount() {
+    return connections.size();
+  }
+
+  /** Returns the number of NOOPs sent. */
+  public long getNoopCount() {
+    return noopCount.get();
+  }
+
+  /** Returns the number of NOOPs that failed or timed out. */
+  public long getDeadCount() {
+    return deadCount.get();
+  }
+
+  /**
+   * Returns the number of successful reconnects, whether to re-authenticate
+   * or to replace a dead connection.
+   */
+  public long getReconnectCount() {
+    return reconnectCount.get();
+  }
+
+  /** Returns the number of reconnects that failed and were retried. */
+  public long getReconnectFailureCount() {
+    return reconnectFailureCount.get();
+  }
+
+  /**
+   * Stops the scheduler. Registered connections are left open, and checks
+   * in progress are interrupted.
+   */
+  public void close() {
+    closed = true;
+    thread.interrupt();
+    checkExecutor.shutdownNow();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void register(Connection connection) {
+    if (closed) {
+      throw new IllegalStateException("KeepaliveScheduler is closed");
+    }
+    connections.put(connection.service, connection);
+    // Spreads the first NOOPs of connections opened together.
+    long jitter;
+    synchronized (random) {
+      jitter = (long) (random.nextDouble() * noopIntervalNanos / 10);
+    }
+    connection.schedule(connection.nextDueNanos() - jitter);
+  }
+
+  private void loop() {
+    HashedTimingWheel wheel = new HashedTimingWheel(
+        TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), WHEEL_SIZE,
+        System.nanoTime());
+    List<HashedTimingWheel.Entry> expired =
+        new ArrayList<HashedTimingWheel.Entry>();
+    while (!closed) {
+      long waitNanos = wheel.nextTickNanos() - System.nanoTime();
+      if (waitNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      Connection connection;
+      while ((connection = changed.poll()) != null) {
+        if (connection.cancelled) {
+          wheel.cancel(connection);
+        } else {
+          wheel.schedule(connection, connection.deadlineNanos);
+        }
+      }
+      wheel.advance(System.nanoTime(), expired);
+      for (HashedTimingWheel.Entry entry : expired) {
+        try {
+          expire((Connection) entry, wheel);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Keepalive timer failed", e);
+        }
+      }
+      expired.clear();
+    }
+  }
+
+  /**
+   * Handles a connection's timer on the scheduler thread: aborts a check
+   * that has overrun, or starts a check if one is due.
+   */
+  private void expire(Connection connection, HashedTimingWheel wheel) {
+    if (connection.cancelled) {
+      return;
+    }
+    if (connection.checking) {
+      // The check reschedules the connection when it ends.
+      logger.fine("Aborting keepalive check for " + connection.userEmail);
+      connection.context.abort();
+      return;
+    }
+    long now = System.nanoTime();
+    long dueNanos = connection.nextDueNanos();
+    if (dueNanos - now > 0) {
+      // Used since the timer was set.
+      wheel.schedule(connection, dueNanos);
+      return;
+    }
+    connection.checking = true;
+    try {
+      checkExecutor.execute(connection);
+    } catch (RejectedExecutionException e) {
+      // Closed.
+      connection.checking = false;
+    }
+  }
+
+  /**
+   * A registered connection, and its timer. The timer is due when the next
+   * NOOP or re-authentication is, and while a check is running, when the
+   * check times out.
+   */
+  private final class Connection extends HashedTimingWheel.Entry
+      implements Runnable {
+    final Service service;
+    final String protocol;
+    final String host;
+    final int port;
+    final String userEmail;
+    final TokenProvider tokenProvider;
+    final boolean tokenAsPassword;
+
+    volatile ConnectContext context;
+    volatile long lastUsedNanos;
+    volatile long authenticatedNanos;
+    volatile long deadlineNanos;
+    volatile boolean checking = false;
+    volatile boolean cancelled = false;
+    // Set by the check; read by the scheduler thread through nextDueNanos.
+    volatile boolean needsReconnect = false;
+    volatile long retryNanos;
+    long backoffMillis = 0;
+
+    Connection(Service service,
+               String protocol,
+               String host,
+               int port,
+               String userEmail,
+               TokenProvider tokenProvider,
+               boolean tokenAsPassword,
+               ConnectContext context) {
+      this.service = service;
+      this.protocol = protocol;
+      this.host = host;
+      this.port = port;
+      this.userEmail = userEmail;
+      this.tokenProvider = tokenProvider;
+      this.tokenAsPassword = tokenAsPassword;
+      this.context = context;
+      this.lastUsedNanos = System.nanoTime();
+      this.authenticatedNanos = lastUsedNanos;
+    }
+
+    /**
+     * Returns when the next NOOP, re-authentication or reconnect attempt is
+     * due.
+     */
+    long nextDueNanos() {
+      if (needsReconnect) {
+        return retryNanos;
+      }
+      long due = lastUsedNanos + noopIntervalNanos;
+      if (reauthenticateNanos > 0
+          && authenticatedNanos + reauthenticateNanos - due < 0) {
+        due = authenticatedNanos + reauthenticateNanos;
+      }
+      return due;
+    }
+
+    /** Asks the scheduler thread to set the timer. */
+    void schedule(long deadlineNanos) {
+      this.deadlineNanos = deadlineNanos;
+      changed.add(this);
+    }
+
+    /** Sends a NOOP or reconnects, whichever is due. */
+    public void run() {
+      schedule(System.nanoTime() + timeoutNanos);
+      try {
+        boolean reauthenticate = reauthenticateNanos > 0
+            && System.nanoTime() - authenticatedNanos - reauthenticateNanos
+               >= 0;
+        if (!needsReconnect && !reauthenticate) {
+          noopCount.incrementAndGet();
+          // Both stores and transports send a NOOP to answer this.
+          if (service.isConnected()) {
+            lastUsedNanos = System.nanoTime();
+            return;
+          }
+          deadCount.incrementAndGet();
+          logger.fine("Connection for " + userEmail + " is dead");
+        }
+        reconnect();
+      } finally {
+        checking = false;
+        if (!cancelled) {
+          schedule(nextDueNanos());
+        }
+      }
+    }
+
+    /** Reconnects the service with a new token. */
+    private void reconnect() {
+      try {
+        // Still covered by the check's timeout, which closes the old socket
+        // if the server does not answer the logout.
+        service.close();
+      } catch (MessagingException e) {
+        logger.log(Level.FINE, "Failed to close " + protocol
+                   + " connection for " + userEmail, e);
+      }
+      ConnectContext newContext = new ConnectContext();
+      context = newContext;
+      schedule(System.nanoTime() + timeoutNanos);
+      newContext.attach();
+      try {
+        OAuth2Authenticator.connect(service, protocol, host, port, userEmail,
+                                    tokenProvider.getToken(userEmail),
+                                    tokenAsPassword);
+        backoffMillis = 0;
+        authenticatedNanos = System.nanoTime();
+        lastUsedNanos = authenticatedNanos;
+        needsReconnect = false;
+        reconnectCount.incrementAndGet();
+      } catch (AuthenticationFailedException e) {
+        tokenProvider.invalidate(userEmail);
+        retry(e);
+      } catch (MessagingException e) {
+        retry(e);
+      } catch (IOException e) {
+        retry(e);
+      } catch (RuntimeException e) {
+        retry(e);
+      } finally {
+        newContext.detach();
+      }
+    }
+
+    private void retry(Exception e) {
+      reconnectFailureCount.incrementAndGet();
+      logger.log(Level.FINE, "Reconnect failed for " + userEmail, e);
+      backoffMillis = backoffMillis == 0
+          ? MIN_BACKOFF_MILLIS
+          : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+      // Spreads retries so that a server outage is not followed by every
+      // connection reconnecting at the same instant.
+      long delay;
+      synchronized (random) {
+        delay = backoffMillis / 2
+            + (long) (random.nextDouble() * backoffMillis / 2);
+      }
+      retryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+      needsReconnect = true;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of latencies with microsecond resolution.
+ *
+ * <p>Each power of two is split into eight buckets, so percentiles are
+ * accurate to within about 6%. Recording is three atomic updates.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKETS = 8;
+  // Enough buckets for about two weeks.
+  private static final int BUCKETS = 41 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray totals = new AtomicLongArray(2);
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      return;
+    }
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    counts.incrementAndGet(Math.min(index(micros), BUCKETS - 1));
+    totals.incrementAndGet(0);
+    totals.addAndGet(1, micros);
+  }
+
+  long getCount() {
+    return totals.get(0);
+  }
+
+  double getMeanMillis() {
+    long count = totals.get(0);
+    return count == 0 ? 0 : totals.get(1) / 1000.0 / count;
+  }
+
+  /**
+   * Returns the latency below which {@code fraction} of the recorded values
+   * fall, in milliseconds, or 0 if nothing has been recorded.
+   */
+  double getPercentileMillis(double fraction) {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank && snapshot[i] > 0) {
+        return (lowerBound(i) + lowerBound(i + 1)) / 2000.0;
+      }
+    }
+    return lowerBound(BUCKETS) / 1000.0;
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    totals.set(0, 0);
+    totals.set(1, 0);
+  }
+
+  static int index(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    // The position of the highest bit picks the power of two, and the three
+    // bits below it pick the bucket within it.
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+    return (exponent - 2) * SUB_BUCKETS + subBucket;
+  }
+
+  static long lowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + 2;
+    int subBucket = index % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket) << (exponent - 3);
+  }
+}
@@ -0,0 +1,190 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+
+/**
+ * A handle on one account's IMAP store that connects on first use.
+ *
+ * <p>Creating a handle does no I/O, so a service can create handles for all
+ * its accounts at startup however many there are. The TCP connect, TLS
+ * handshake and XOAUTH2 exchange happen the first time {@code getStore} or
+ * {@code getFolder} is called, or earlier if a WarmUpScheduler connects the
+ * handle in the background.
+ *
+ * <p>Handing out the store does no I/O either: the handle does not ask the
+ * server whether the connection is still alive. A connection the server
+ * dropped is found out when an operation on it fails; the caller then
+ * passes the store to {@code invalidate}, unless JavaMail has already
+ * closed it, and the next call connects a new one.
+ *
+ * <p>Handles are thread-safe. Callers that ask for the store while it is
+ * being connected wait for that connect rather than starting another.
+ */
+public class LazyImapStore {
+  private static final Logger logger =
+      Logger.getLogger(LazyImapStore.class.getName());
+
+  private final String host;
+  private final int port;
+  private final String userEmail;
+  private final TokenProvider tokenProvider;
+  private final UsageStats usageStats;
+  private final boolean debug;
+
+  /**
+   * An IMAP store that keeps track of whether it is connected, so that the
+   * handle can tell without the NOOP that {@code isConnected} sends. Unlike
+   * a ConnectionListener, which hears of the close later if at all, the
+   * flag is cleared as the store closes.
+   */
+  private static final class TrackedStore extends CapabilityCachingImapStore {
+    private volatile boolean open;
+
+    TrackedStore(Session session) {
+      super(session);
+    }
+
+    @Override
+    protected synchronized void setConnected(boolean connected) {
+      super.setConnected(connected);
+      open = connected;
+    }
+  }
+
+  // Guarded by this.
+  private TrackedStore store;
+
+  /**
+   * @param tokenProvider Supplies the user's token when connecting.
+   * @param usageStats Records each use of the store, or null.
+   * @param debug Whether to enable debug logging on the IMAP connection.
+   */
+  public LazyImapStore(String host,
+                       int port,
+                       String userEmail,
+                       TokenProvider tokenProvider,
+                       UsageStats usageStats,
+                       boolean debug) {
+    this.host = host;
+    this.port = port;
+    this.userEmail = userEmail;
+    this.tokenProvider = tokenProvider;
+    this.usageStats = usageStats;
+    this.debug = debug;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public String getUserEmail() {
+    return userEmail;
+  }
+
+  /**
+   * Returns the connected store, connecting it first if necessary.
+   */
+  public IMAPStore getStore() throws MessagingException, IOException {
+    if (usageStats != null) {
+      usageStats.recordUse(userEmail);
+    }
+    return connect();
+  }
+
+  /**
+   * Returns the named folder of the connected store, connecting it first if
+   * necessary.
+   */
+  public IMAPFolder getFolder(String name)
+      throws MessagingException, IOException {
+    IMAPStore current = getStore();
+    try {
+      return (IMAPFolder) current.getFolder(name);
+    } catch (IllegalStateException e) {
+      // The store closed since getStore returned it.
+      return (IMAPFolder) connect().getFolder(name);
+    }
+  }
+
+  /**
+   * Connects the store if it is not connected, without counting as a use.
+   */
+  public synchronized IMAPStore connect()
+      throws MessagingException, IOException {
+    if (store != null && store.open) {
+      return store;
+    }
+    store = null;
+    String oauthToken = tokenProvider.getToken(userEmail);
+    Session session = OAuth2Authenticator.getImapSession(host, port, debug);
+    TrackedStore newStore = new TrackedStore(session);
+    OAuth2Authenticator.connect(
+        newStore, "imap", host, port, userEmail, oauthToken,
+        !OAuth2SessionCache.usesSasl(session, "imaps"));
+    store = newStore;
+    return store;
+  }
+
+  /**
+   * Returns whether the store is connected. Never connects it and does no
+   * I/O, so a connection the server has dropped counts as connected until
+   * an operation on it fails.
+   */
+  public synchronized boolean isConnected() {
+    return store != null && store.open;
+  }
+
+  /**
+   * Closes {@code failed} after an operation on it failed, if it is still
+   * this handle's store, so that the next call connects a new one.
+   */
+  public synchronized void invalidate(IMAPStore failed) {
+    if (failed == store) {
+      close();
+    }
+  }
+
+  /**
+   * Closes the store if it was connected. A later {@code getStore}
+   * connects it again.
+   */
+  public synchronized void close() {
+    if (store == null) {
+      return;
+    }
+    try {
+      store.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close store for " + userEmail, e);
+    }
+    store = null;
+  }
+}
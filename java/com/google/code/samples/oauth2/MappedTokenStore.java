@@ -0,0 +1,989 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+
+/**
+ * A TokenProvider that keeps access and refresh tokens for very many
+ * accounts in an encrypted, memory-mapped file instead of on the heap.
+ *
+ * <p>The file starts with a fixed-size header and an open-addressed index of
+ * 16-byte slots, each holding a keyed hash of an email address and the
+ * position of that account's record. Records follow, appended one after
+ * another; each is encrypted with AES-GCM under the caller's key, with the
+ * email address inside so that hash collisions are detected. A lookup reads
+ * one or two slots and decrypts one record, so it takes the same time for a
+ * thousand accounts as for ten million, and no per-account objects are kept
+ * in memory.
+ *
+ * <p>Updates append a new record and repoint the slot. Reads do not lock
+ * and never wait for each other; writes are serialized. When superseded
+ * records take up half the file, or the index fills up, the live records are
+ * copied to a new file that replaces the old one. Once the index is at its
+ * largest and full, new accounts are refused. Writes reach the disk when
+ * the operating system writes the mapped pages back, or at {@code flush} or
+ * {@code close}; after a crash, an account whose record had not reached the
+ * disk is missing.
+ *
+ * <p>Expired or invalidated access tokens are replaced using the
+ * TokenRefresher, if one was given; {@link
+ * OAuth2TokenEndpoint#setRefreshTokenStore} lets an endpoint read the
+ * refresh tokens from this store.
+ */
+public class MappedTokenStore implements TokenProvider, Closeable {
+  private static final Logger logger =
+      Logger.getLogger(MappedTokenStore.class.getName());
+
+  private static final long MAGIC = 0x4f41555448325453L;  // "OAUTH2TS"
+  private static final int VERSION = 1;
+
+  // Header fields.
+  private static final int HEADER_SIZE = 64;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 8;
+  private static final int SLOT_BITS_OFFSET = 12;
+  private static final int DATA_END_OFFSET = 16;
+  private static final int LIVE_OFFSET = 24;
+  private static final int TOMBSTONES_OFFSET = 32;
+  private static final int GARBAGE_OFFSET = 40;
+  private static final int KEY_CHECK_OFFSET = 48;
+
+  // An index slot is the hash followed by the record position, which is
+  // EMPTY for a slot never used and TOMBSTONE for a removed account.
+  private static final int SLOT_SIZE = 16;
+  private static final long EMPTY = 0;
+  private static final long TOMBSTONE = -1;
+  private static final int MIN_SLOT_BITS = 10;
+  private static final int MAX_SLOT_BITS = 26;
+
+  // Records are a length, a GCM nonce and the ciphertext with its tag.
+  private static final int NONCE_SIZE = 12;
+  private static final int TAG_BITS = 128;
+  private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+  // Data is mapped in segments that double in size up to a maximum, so a
+  // small store stays small and a large one needs few mappings. A record
+  // never spans two segments.
+  private static final int FIRST_SEGMENT_SIZE = 1 << 20;
+  private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+  // Superseded records below this much are not worth compacting away.
+  private static final long MIN_COMPACT_GARBAGE = 8 << 20;
+
+  private final Path file;
+  private final SecretKey key;
+  private final TokenRefresher refresher;
+  private final long hashKey0;
+  private final long hashKey1;
+  private final long keyCheck;
+  private final int maxSlotBits;
+  private final SecureRandom random = new SecureRandom();
+  private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+  private final ConcurrentMap<String, FutureTask<AccessToken>> refreshes =
+      new ConcurrentHashMap<String, FutureTask<AccessToken>>();
+
+  // Readers validate against this; writers take it only while changing
+  // slots or swapping the mapping.
+  private final StampedLock lock = new StampedLock();
+  private final Object writeLock = new Object();
+  private volatile Mapping mapping;
+  private volatile boolean closed = false;
+
+  // Mirrors of the header fields; written only while holding writeLock.
+  private long dataEnd;
+  private volatile long liveCount;
+  private long tombstones;
+  private long garbageBytes;
+
+  /**
+   * Opens the store in {@code file}, creating it if it does not exist.
+   *
+   * @param key AES key the records are encrypted with. The same key must be
+   *     given every time the file is opened.
+   * @param expectedAccounts Number of accounts to size a new file for. The
+   *     index grows as needed, but each growth copies the whole store.
+   * @param refresher Source of new access tokens, or null if tokens are only
+   *     ever put into the store.
+   * @throws IOException If the file cannot be read, is not a token store or
+   *     was written with a different key.
+   */
+  public MappedTokenStore(Path file,
+                          SecretKey key,
+                          int expectedAccounts,
+                          TokenRefresher refresher) throws IOException {
+    this(file, key, expectedAccounts, refresher, MAX_SLOT_BITS);
+  }
+
+  /**
+   * Opens the store with an index that never grows past {@code 1 <<
+   * maxSlotBits} slots.
+   */
+  MappedTokenStore(Path file,
+                   SecretKey key,
+                   int expectedAccounts,
+                   TokenRefresher refresher,
+                   int maxSlotBits) throws IOException {
+    this.file = file;
+    this.key = key;
+    this.refresher = refresher;
+    this.maxSlotBits = maxSlotBits;
+    // Single AES blocks of fixed text give a key for the index hash and a
+    // value for recognizing the key, without exposing the key itself.
+    try {
+      Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+      ecb.init(Cipher.ENCRYPT_MODE, key);
+      ByteBuffer derived = ByteBuffer.wrap(ecb.doFinal(
+          "oauth2 index key".getBytes(StandardCharsets.US_ASCII)));
+      hashKey0 = derived.getLong();
+      hashKey1 = derived.getLong();
+      keyCheck = ByteBuffer.wrap(ecb.doFinal(
+          "oauth2 key check".getBytes(StandardCharsets.US_ASCII))).getLong();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException("Key is not a usable AES key", e);
+    }
+    Files.deleteIfExists(compactFile());
+    if (Files.exists(file)) {
+      mapping = open(file);
+    } else {
+      mapping = create(file, slotBitsFor(expectedAccounts));
+      dataEnd = mapping.dataStart;
+      writeHeader(mapping);
+      writeCounts(mapping);
+      mapping.channel.force(true);
+    }
+  }
+
+  /**
+   * Returns the user's access token if it has not expired, and otherwise
+   * fetches, stores and returns a new one.
+   *
+   * @throws IOException If there is no valid token and no refresher, or the
+   *     refresh fails.
+   */
+  public String getToken(String userEmail) throws IOException {
+    Record record = lookup(userEmail);
+    if (record != null && record.accessToken != null
+        && !record.accessToken.expiresWithin(0, System.currentTimeMillis())) {
+      return record.accessToken.getToken();
+    }
+    if (refresher == null) {
+      throw new IOException("No valid access token stored for " + userEmail);
+    }
+    return refresh(userEmail).getToken();
+  }
+
+  /**
+   * Discards the user's access token, keeping the refresh token. An account
+   * with no refresh token is removed.
+   */
+  public void invalidate(String userEmail) {
+    try {
+      synchronized (writeLock) {
+        Record record = find(mapping, normalize(userEmail));
+        if (record != null && record.refreshToken == null) {
+          remove(userEmail);
+        } else if (record != null && record.accessToken != null) {
+          write(record.email, null, record.refreshToken);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to invalidate token for " + userEmail,
+                 e);
+    }
+  }
+
+  /**
+   * Returns the user's stored access token, expired or not, or null if
+   * there is none.
+   */
+  public AccessToken getAccessToken(String userEmail) throws IOException {
+    Record record = lookup(userEmail);
+    return record == null ? null : record.accessToken;
+  }
+
+  /** Returns the user's refresh token, or null if there is none. */
+  public String getRefreshToken(String userEmail) throws IOException {
+    Record record = lookup(userEmail);
+    return record == null ? null : record.refreshToken;
+  }
+
+  /** Stores an access token for the user, keeping any refresh token. */
+  public void putAccessToken(String userEmail, AccessToken accessToken)
+      throws IOException {
+    synchronized (writeLock) {
+      String email = normalize(userEmail);
+      Record record = find(mapping, email);
+      write(email, accessToken, record == null ? null : record.refreshToken);
+    }
+  }
+
+  /** Stores a refresh token for the user, keeping any access token. */
+  public void setRefreshToken(String userEmail, String refreshToken)
+      throws IOException {
+    synchronized (writeLock) {
+      String email = normalize(userEmail);
+      Record record = find(mapping, email);
+      write(email, record == null ? null : record.accessToken, refreshToken);
+    }
+  }
+
+  /**
+   * Removes everything stored for the user.
+   *
+   * @return Whether there was anything to remove.
+   */
+  public boolean remove(String userEmail) throws IOException {
+    synchronized (writeLock) {
+      checkOpen();
+      Mapping m = mapping;
+      Record record = find(m, normalize(userEmail));
+      if (record == null) {
+        return false;
+      }
+      long stamp = lock.writeLock();
+      try {
+        m.meta.putLong(record.slotPosition + 8, TOMBSTONE);
+        liveCount--;
+        tombstones++;
+        garbageBytes += 4 + record.length;
+        writeCounts(m);
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+      return true;
+    }
+  }
+
+  /** Returns the number of accounts stored. */
+  public long size() {
+    return liveCount;
+  }
+
+  /**
+   * Copies the live records to a new file that replaces the current one,
+   * reclaiming the space of superseded and removed records. Lookups
+   * continue while this runs; updates wait.
+   */
+  public void compact() throws IOException {
+    synchronized (writeLock) {
+      checkOpen();
+      compact(slotBitsFor(liveCount * 2));
+    }
+  }
+
+  /** Writes all changes to the disk. */
+  public void flush() throws IOException {
+    synchronized (writeLock) {
+      checkOpen();
+      Mapping m = mapping;
+      m.meta.force();
+      for (Segment segment : m.segments) {
+        segment.buffer.force();
+      }
+    }
+  }
+
+  /**
+   * Writes all changes to the disk and closes the file. Lookups still in
+   * progress complete normally.
+   */
+  public void close() throws IOException {
+    synchronized (writeLock) {
+      if (closed) {
+        return;
+      }
+      flush();
+      closed = true;
+      mapping.channel.close();
+    }
+  }
+
+  /**
+   * Fetches a new token for the user, joining a refresh that is already in
+   * flight if there is one.
+   */
+  private AccessToken refresh(final String userEmail) throws IOException {
+    final String email = normalize(userEmail);
+    FutureTask<AccessToken> task = refreshes.get(email);
+    if (task == null) {
+      FutureTask<AccessToken> newTask = new FutureTask<AccessToken>(
+          new Callable<AccessToken>() {
+            public AccessToken call() throws IOException {
+              AccessToken accessToken = refresher.refreshToken(userEmail);
+              putAccessToken(email, accessToken);
+              return accessToken;
+            }
+          });
+      task = refreshes.putIfAbsent(email, newTask);
+      if (task == null) {
+        task = newTask;
+        try {
+          newTask.run();
+        } finally {
+          refreshes.remove(email, newTask);
+        }
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while refreshing token for "
+                            + userEmail);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to refresh token for " + userEmail
+                            + ": " + cause);
+    }
+  }
+
+  /**
+   * Finds the user's record without locking, falling back to a read lock
+   * if a write got in the way.
+   */
+  private Record lookup(String userEmail) throws IOException {
+    String email = normalize(userEmail);
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      // A torn read can fail in any way; only a validated one counts.
+      try {
+        Record record = find(mapping, email);
+        if (lock.validate(stamp)) {
+          return record;
+        }
+      } catch (RuntimeException e) {
+        if (lock.validate(stamp)) {
+          throw e;
+        }
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return find(mapping, email);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Returns the record for {@code email}, already normalized, or null.
+   */
+  private Record find(Mapping m, String email) {
+    byte[] emailBytes = email.getBytes(StandardCharsets.UTF_8);
+    long hash = hash(emailBytes);
+    int mask = m.slots - 1;
+    int slot = (int) hash & mask;
+    for (int probes = 0; probes < m.slots; probes++) {
+      int position = HEADER_SIZE + slot * SLOT_SIZE;
+      long offset = m.meta.getLong(position + 8);
+      if (offset == EMPTY) {
+        return null;
+      }
+      if (offset != TOMBSTONE && m.meta.getLong(position) == hash) {
+        Record record = decryptIfReadable(m, offset, hash);
+        if (record != null && record.email.equals(email)) {
+          record.slotPosition = position;
+          return record;
+        }
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Appends a record for {@code email} and points its slot at it. The
+   * caller holds writeLock.
+   */
+  private void write(String email,
+                     AccessToken accessToken,
+                     String refreshToken) throws IOException {
+    checkOpen();
+    Mapping m = mapping;
+    Record existing = find(m, email);
+    if (existing == null && liveCount + tombstones + 1 > m.slots / 2) {
+      // Once the index is as large as it gets, only clearing tombstones
+      // makes room.
+      int slotBits = slotBitsFor((liveCount + 1) * 2);
+      if (tombstones > 0 || 1 << slotBits > m.slots) {
+        compact(slotBits);
+        m = mapping;
+      }
+    }
+    byte[] emailBytes = email.getBytes(StandardCharsets.UTF_8);
+    long hash = hash(emailBytes);
+    int position = existing != null
+        ? existing.slotPosition : freeSlot(m, hash);
+    if (position < 0) {
+      throw new IOException("Token store " + file + " is full");
+    }
+    byte[] record = encrypt(emailBytes, hash, accessToken, refreshToken);
+    long offset = place(m, dataEnd, record.length);
+    ByteBuffer target = m.segmentAt(offset).buffer.duplicate();
+    target.position((int) (offset - m.segmentAt(offset).start));
+    target.put(record);
+
+    long stamp = lock.writeLock();
+    try {
+      if (existing != null) {
+        garbageBytes += 4 + existing.length;
+      } else {
+        long previous = m.meta.getLong(position + 8);
+        if (previous == TOMBSTONE) {
+          tombstones--;
+          liveCount++;
+        } else if (previous == EMPTY) {
+          liveCount++;
+        }
+        // Otherwise the slot's record was lost and it is already counted.
+        m.meta.putLong(position, hash);
+      }
+      m.meta.putLong(position + 8, offset);
+      dataEnd = offset + record.length;
+      writeCounts(m);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+
+    if (garbageBytes > MIN_COMPACT_GARBAGE
+        && garbageBytes > (dataEnd - m.dataStart) / 2) {
+      compact(slotBitsFor(liveCount * 2));
+    }
+  }
+
+  /**
+   * Returns the position of the first free slot for {@code hash}, or of a
+   * slot for the same hash whose record was lost, or -1 if the index is
+   * full.
+   */
+  private int freeSlot(Mapping m, long hash) {
+    int mask = m.slots - 1;
+    int slot = (int) hash & mask;
+    for (int probes = 0; probes < m.slots; probes++) {
+      int position = HEADER_SIZE + slot * SLOT_SIZE;
+      long offset = m.meta.getLong(position + 8);
+      if (offset == EMPTY || offset == TOMBSTONE
+          || (m.meta.getLong(position) == hash
+              && decryptIfReadable(m, offset, hash) == null)) {
+        return position;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Rewrites the live records into a new file with {@code 1 << slotBits}
+   * slots and switches to it. The caller holds writeLock.
+   */
+  private void compact(int slotBits) throws IOException {
+    Mapping old = mapping;
+    Path temp = compactFile();
+    Mapping fresh = create(temp, slotBits);
+    boolean done = false;
+    try {
+      long end = fresh.dataStart;
+      long live = 0;
+      int mask = fresh.slots - 1;
+      for (int slot = 0; slot < old.slots; slot++) {
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        long offset = old.meta.getLong(position + 8);
+        if (offset == EMPTY || offset == TOMBSTONE) {
+          continue;
+        }
+        long hash = old.meta.getLong(position);
+        byte[] record;
+        try {
+          record = readRecord(old, offset);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Dropping unreadable record at " + offset
+                     + " in " + file, e);
+          continue;
+        }
+        long newOffset = place(fresh, end, record.length);
+        ByteBuffer target = fresh.segmentAt(newOffset).buffer.duplicate();
+        target.position((int) (newOffset - fresh.segmentAt(newOffset).start));
+        target.put(record);
+        end = newOffset + record.length;
+
+        int newSlot = (int) hash & mask;
+        while (fresh.meta.getLong(HEADER_SIZE + newSlot * SLOT_SIZE + 8)
+               != EMPTY) {
+          newSlot = (newSlot + 1) & mask;
+        }
+        fresh.meta.putLong(HEADER_SIZE + newSlot * SLOT_SIZE, hash);
+        fresh.meta.putLong(HEADER_SIZE + newSlot * SLOT_SIZE + 8, newOffset);
+        live++;
+      }
+
+      writeHeader(fresh);
+      writeCounts(fresh, end, live, 0, 0);
+      fresh.meta.force();
+      for (Segment segment : fresh.segments) {
+        segment.buffer.force();
+      }
+
+      long stamp = lock.writeLock();
+      try {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        mapping = fresh;
+        dataEnd = end;
+        liveCount = live;
+        tombstones = 0;
+        garbageBytes = 0;
+        done = true;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+      logger.fine("Compacted " + file + " to " + live + " accounts");
+    } finally {
+      if (done) {
+        // Lookups already reading the old mapping can still finish; the
+        // mapping itself outlives the channel.
+        old.channel.close();
+      } else {
+        fresh.channel.close();
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * Returns where a record of {@code length} bytes goes, at {@code end} or
+   * at the start of the next segment if it does not fit in the current
+   * one, mapping the segment if needed.
+   */
+  private static long place(Mapping m, long end, int length)
+      throws IOException {
+    long start = m.dataStart;
+    int index = 0;
+    while (true) {
+      long size = segmentSize(index);
+      if (end < start + size) {
+        if (end + length > start + size) {
+          end = start + size;
+          start += size;
+          index++;
+          continue;
+        }
+        m.mapSegment(index);
+        return end;
+      }
+      start += size;
+      index++;
+    }
+  }
+
+  private static long segmentSize(int index) {
+    return index >= 10 ? MAX_SEGMENT_SIZE : (long) FIRST_SEGMENT_SIZE << index;
+  }
+
+  private static byte[] readRecord(Mapping m, long offset)
+      throws IOException {
+    Segment segment = m.segmentAt(offset);
+    if (segment == null) {
+      throw new IOException("Record position " + offset + " out of range");
+    }
+    int position = (int) (offset - segment.start);
+    if (position + 4 > segment.buffer.capacity()) {
+      throw new IOException("Bad record position " + offset);
+    }
+    int length = segment.buffer.getInt(position);
+    if (length <= NONCE_SIZE || length > MAX_RECORD_SIZE
+        || position + 4 + length > segment.buffer.capacity()) {
+      throw new IOException("Bad record length " + length + " at " + offset);
+    }
+    byte[] record = new byte[4 + length];
+    ByteBuffer source = segment.buffer.duplicate();
+    source.position(position);
+    source.get(record);
+    return record;
+  }
+
+  /**
+   * Encodes and encrypts a record. The plaintext is the expiry time, the
+   * email address and access token each preceded by their length, and the
+   * refresh token. The hash is authenticated with it, so a record cannot be
+   * moved to another account's slot.
+   */
+  private byte[] encrypt(byte[] emailBytes,
+                         long hash,
+                         AccessToken accessToken,
+                         String refreshToken) throws IOException {
+    byte[] access = accessToken == null
+        ? new byte[0] : accessToken.getToken().getBytes(StandardCharsets.UTF_8);
+    byte[] refresh = refreshToken == null
+        ? new byte[0] : refreshToken.getBytes(StandardCharsets.UTF_8);
+    int plainLength = 8 + 2 + emailBytes.length + 2 + access.length
+        + refresh.length;
+    int length = NONCE_SIZE + plainLength + TAG_BITS / 8;
+    if (emailBytes.length > 0xffff || access.length > 0xffff
+        || length > MAX_RECORD_SIZE) {
+      throw new IOException("Tokens too large to store");
+    }
+    ByteBuffer plain = ByteBuffer.allocate(plainLength);
+    plain.putLong(accessToken == null ? 0 : accessToken.getExpiresAtMillis());
+    plain.putShort((short) emailBytes.length).put(emailBytes);
+    plain.putShort((short) access.length).put(access);
+    plain.put(refresh);
+
+    byte[] nonce = new byte[NONCE_SIZE];
+    random.nextBytes(nonce);
+    byte[] record = new byte[4 + length];
+    ByteBuffer.wrap(record).putInt(length);
+    System.arraycopy(nonce, 0, record, 4, NONCE_SIZE);
+    try {
+      Cipher cipher = cipher();
+      cipher.init(Cipher.ENCRYPT_MODE, key,
+                  new GCMParameterSpec(TAG_BITS, record, 4, NONCE_SIZE));
+      cipher.updateAAD(longBytes(hash));
+      cipher.doFinal(plain.array(), 0, plainLength, record, 4 + NONCE_SIZE);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to encrypt record", e);
+    }
+    return record;
+  }
+
+  /**
+   * Decrypts the record at {@code offset}, or returns null if it cannot be
+   * read, as when a crash left its slot written but not the record.
+   */
+  private Record decryptIfReadable(Mapping m, long offset, long hash) {
+    try {
+      return decrypt(m, offset, hash);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unreadable record", e);
+      return null;
+    }
+  }
+
+  private Record decrypt(Mapping m, long offset, long hash)
+      throws IOException {
+    byte[] record = readRecord(m, offset);
+    byte[] plain;
+    try {
+      Cipher cipher = cipher();
+      cipher.init(Cipher.DECRYPT_MODE, key,
+                  new GCMParameterSpec(TAG_BITS, record, 4, NONCE_SIZE));
+      cipher.updateAAD(longBytes(hash));
+      plain = cipher.doFinal(record, 4 + NONCE_SIZE,
+                             record.length - 4 - NONCE_SIZE);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Corrupt record at " + offset + " in " + file, e);
+    }
+    ByteBuffer in = ByteBuffer.wrap(plain);
+    long expiresAtMillis = in.getLong();
+    String email = readString(in, in.getShort() & 0xffff);
+    String access = readString(in, in.getShort() & 0xffff);
+    String refresh = readString(in, in.remaining());
+    return new Record(
+        email,
+        access.isEmpty() ? null : new AccessToken(access, expiresAtMillis),
+        refresh.isEmpty() ? null : refresh,
+        record.length - 4);
+  }
+
+  private static String readString(ByteBuffer in, int length) {
+    String s = new String(in.array(), in.position(), length,
+                          StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return s;
+  }
+
+  private static byte[] longBytes(long value) {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+
+  private Cipher cipher() throws GeneralSecurityException {
+    Cipher cipher = ciphers.get();
+    if (cipher == null) {
+      cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      ciphers.set(cipher);
+    }
+    return cipher;
+  }
+
+  /**
+   * Returns the SipHash-2-4 of {@code data}, keyed from the store's key, so
+   * that the index does not reveal which addresses the store holds.
+   */
+  private long hash(byte[] data) {
+    return sipHash(hashKey0, hashKey1, data);
+  }
+
+  private static long sipHash(long k0, long k1, byte[] data) {
+    long[] v = {
+        0x736f6d6570736575L ^ k0,
+        0x646f72616e646f6dL ^ k1,
+        0x6c7967656e657261L ^ k0,
+        0x7465646279746573L ^ k1,
+    };
+    int end = data.length & ~7;
+    for (int i = 0; i < end; i += 8) {
+      long m = 0;
+      for (int j = 7; j >= 0; j--) {
+        m = (m << 8) | (data[i + j] & 0xffL);
+      }
+      v[3] ^= m;
+      sipRounds(v, 2);
+      v[0] ^= m;
+    }
+    long last = ((long) data.length) << 56;
+    for (int i = end; i < data.length; i++) {
+      last |= (data[i] & 0xffL) << (8 * (i - end));
+    }
+    v[3] ^= last;
+    sipRounds(v, 2);
+    v[0] ^= last;
+    v[2] ^= 0xff;
+    sipRounds(v, 4);
+    return v[0] ^ v[1] ^ v[2] ^ v[3];
+  }
+
+  private static void sipRounds(long[] v, int rounds) {
+    for (int i = 0; i < rounds; i++) {
+      v[0] += v[1];
+      v[1] = Long.rotateLeft(v[1], 13) ^ v[0];
+      v[0] = Long.rotateLeft(v[0], 32);
+      v[2] += v[3];
+      v[3] = Long.rotateLeft(v[3], 16) ^ v[2];
+      v[0] += v[3];
+      v[3] = Long.rotateLeft(v[3], 21) ^ v[0];
+      v[2] += v[1];
+      v[1] = Long.rotateLeft(v[1], 17) ^ v[2];
+      v[2] = Long.rotateLeft(v[2], 32);
+    }
+  }
+
+  private static String normalize(String userEmail) {
+    return userEmail.toLowerCase(Locale.ROOT);
+  }
+
+  private int slotBitsFor(long accounts) {
+    int bits = MIN_SLOT_BITS;
+    // Keeps the index at most half full.
+    while (bits < maxSlotBits && (1L << bits) < accounts * 2) {
+      bits++;
+    }
+    return bits;
+  }
+
+  private Path compactFile() {
+    return file.resolveSibling(file.getFileName() + ".compact");
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Token store " + file + " is closed");
+    }
+  }
+
+  /** Writes the header fields other than the counts. */
+  private void writeHeader(Mapping m) {
+    m.meta.putLong(MAGIC_OFFSET, MAGIC);
+    m.meta.putInt(VERSION_OFFSET, VERSION);
+    m.meta.putInt(SLOT_BITS_OFFSET, Integer.numberOfTrailingZeros(m.slots));
+    m.meta.putLong(KEY_CHECK_OFFSET, keyCheck);
+  }
+
+  private void writeCounts(Mapping m) {
+    writeCounts(m, dataEnd, liveCount, tombstones, garbageBytes);
+  }
+
+  private static void writeCounts(Mapping m,
+                                  long dataEnd,
+                                  long liveCount,
+                                  long tombstones,
+                                  long garbageBytes) {
+    m.meta.putLong(DATA_END_OFFSET, dataEnd);
+    m.meta.putLong(LIVE_OFFSET, liveCount);
+    m.meta.putLong(TOMBSTONES_OFFSET, tombstones);
+    m.meta.putLong(GARBAGE_OFFSET, garbageBytes);
+  }
+
+  /** Creates an empty store file and maps its header and index. */
+  private Mapping create(Path path, int slotBits) throws IOException {
+    FileChannel channel = FileChannel.open(
+        path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    return new Mapping(channel, 1 << slotBits);
+  }
+
+  /** Maps an existing store file, checking its header. */
+  private Mapping open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(
+        path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean opened = false;
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+      }
+      if (header.hasRemaining() || header.getLong(MAGIC_OFFSET) != MAGIC) {
+        throw new IOException(path + " is not a token store");
+      }
+      if (header.getInt(VERSION_OFFSET) != VERSION) {
+        throw new IOException("Unsupported token store version "
+                              + header.getInt(VERSION_OFFSET));
+      }
+      if (header.getLong(KEY_CHECK_OFFSET) != keyCheck) {
+        throw new IOException(path + " was written with a different key");
+      }
+      int slotBits = header.getInt(SLOT_BITS_OFFSET);
+      if (slotBits < MIN_SLOT_BITS || slotBits > MAX_SLOT_BITS) {
+        throw new IOException("Bad index size in " + path);
+      }
+      Mapping m = new Mapping(channel, 1 << slotBits);
+      dataEnd = header.getLong(DATA_END_OFFSET);
+      liveCount = header.getLong(LIVE_OFFSET);
+      tombstones = header.getLong(TOMBSTONES_OFFSET);
+      garbageBytes = header.getLong(GARBAGE_OFFSET);
+      if (dataEnd < m.dataStart || dataEnd > channel.size()) {
+        throw new IOException("Bad data size in " + path);
+      }
+      if (dataEnd > m.dataStart) {
+        place(m, dataEnd - 1, 1);
+      }
+      opened = true;
+      return m;
+    } finally {
+      if (!opened) {
+        channel.close();
+      }
+    }
+  }
+
+  /** A decrypted record, and where it was found. */
+  private static final class Record {
+    final String email;
+    final AccessToken accessToken;
+    final String refreshToken;
+    final int length;
+    int slotPosition;
+
+    Record(String email,
+           AccessToken accessToken,
+           String refreshToken,
+           int length) {
+      this.email = email;
+      this.accessToken = accessToken;
+      this.refreshToken = refreshToken;
+      this.length = length;
+    }
+  }
+
+  private static final class Segment {
+    final long start;
+    final MappedByteBuffer buffer;
+
+    Segment(long start, MappedByteBuffer buffer) {
+      this.start = start;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * The mappings of one store file: the header and index in one buffer, and
+   * the data segments mapped so far.
+   */
+  private static final class Mapping {
+    final FileChannel channel;
+    final int slots;
+    final long dataStart;
+    final MappedByteBuffer meta;
+    volatile Segment[] segments = new Segment[0];
+
+    Mapping(FileChannel channel, int slots) throws IOException {
+      this.channel = channel;
+      this.slots = slots;
+      this.dataStart = HEADER_SIZE + (long) slots * SLOT_SIZE;
+      this.meta = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart);
+    }
+
+    /** Maps segments up to and including {@code index}. */
+    void mapSegment(int index) throws IOException {
+      Segment[] current = segments;
+      if (index < current.length) {
+        return;
+      }
+      Segment[] larger = new Segment[index + 1];
+      System.arraycopy(current, 0, larger, 0, current.length);
+      long segmentStart = current.length == 0
+          ? dataStart
+          : current[current.length - 1].start
+            + current[current.length - 1].buffer.capacity();
+      for (int i = current.length; i <= index; i++) {
+        long size = segmentSize(i);
+        larger[i] = new Segment(segmentStart, channel.map(
+            FileChannel.MapMode.READ_WRITE, segmentStart, size));
+        segmentStart += size;
+      }
+      segments = larger;
+    }
+
+    /** Returns the segment holding {@code offset}, or null. */
+    Segment segmentAt(long offset) {
+      Segment[] current = segments;
+      int low = 0;
+      int high = current.length - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        Segment segment = current[middle];
+        if (offset < segment.start) {
+          high = middle - 1;
+        } else if (offset >= segment.start + segment.buffer.capacity()) {
+          low = middle + 1;
+        } else {
+          return segment;
+        }
+      }
+      return null;
+    }
+  }
+}
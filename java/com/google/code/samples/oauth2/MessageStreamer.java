@@ -0,0 +1,301 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.RFC822SIZE;
+import com.sun.mail.imap.protocol.UID;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+
+/**
+ * Streams raw RFC 822 messages from an open IMAP folder into NIO channels
+ * without building JavaMail Message objects.
+ *
+ * <p>Each message is fetched by UID with partial {@code UID FETCH uid
+ * BODY.PEEK[]<start.size>} requests of {@code chunkSize} bytes, so a
+ * message expunged by another client mid-stream cannot be swapped for the
+ * one after it. Requests continue until one comes back short, since
+ * RFC822.SIZE may understate the message. Each chunk is written to the channel as soon as it has been
+ * read, so heap use is bounded by the chunk size however large the messages
+ * are, and fetching does not set the \Seen flag.
+ *
+ * <p>A MessageStreamer is thread-safe, but commands on one folder run one at
+ * a time. The folder must be open, for example on a store returned by {@code
+ * OAuth2Authenticator.connectToImap}.
+ */
+public class MessageStreamer {
+  /** The default size of each partial fetch. */
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  /**
+   * Supplies a channel for each message of a range.
+   */
+  public interface MessageSink {
+    /**
+     * Returns the channel to write message {@code uid} to, or null to skip
+     * it. The streamer closes the channel once the message is written.
+     *
+     * @param size The message size reported by the server, which may be
+     *     wrong.
+     */
+    WritableByteChannel open(long uid, long size) throws IOException;
+  }
+
+  private final int chunkSize;
+
+  public MessageStreamer() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param chunkSize Maximum number of bytes requested per partial fetch.
+   */
+  public MessageStreamer(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Writes message {@code uid} to {@code out}, and returns the number of
+   * bytes written, or -1 if the folder has no such message. {@code out} is
+   * left open.
+   */
+  public long stream(IMAPFolder folder, final long uid,
+                     final WritableByteChannel out)
+      throws MessagingException, IOException {
+    Object result = folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol protocol)
+          throws ProtocolException {
+        List<long[]> messages = fetchSizes(protocol, uid + ":" + uid);
+        if (messages.isEmpty()) {
+          return -1L;
+        }
+        long[] message = messages.get(0);
+        return streamBody(protocol, message[0], out);
+      }
+    });
+    return unwrap(result);
+  }
+
+  /**
+   * Writes message {@code uid} to {@code file}, replacing any existing
+   * contents, and returns the number of bytes written, or -1 if the folder
+   * has no such message.
+   */
+  public long streamToFile(IMAPFolder folder, long uid, Path file)
+      throws MessagingException, IOException {
+    FileChannel channel = FileChannel.open(
+        file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      return stream(folder, uid, channel);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes every message with a UID from {@code startUid} to {@code endUid}
+   * inclusive to the channels {@code sink} supplies, and returns the number
+   * of messages written. Pass -1 as {@code endUid} for all messages from
+   * {@code startUid} on.
+   *
+   * <p>The UIDs and sizes of the range are listed with a single UID FETCH,
+   * then each message is streamed in turn.
+   */
+  public int streamRange(IMAPFolder folder, final long startUid,
+                         final long endUid, final MessageSink sink)
+      throws MessagingException, IOException {
+    Object result = folder.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol protocol)
+          throws ProtocolException {
+        List<long[]> messages = fetchSizes(
+            protocol, startUid + ":" + (endUid < 0 ? "*" : endUid));
+        int count = 0;
+        for (long[] message : messages) {
+          // "n:*" always matches the last message, even below startUid.
+          if (message[0] < startUid) {
+            continue;
+          }
+          WritableByteChannel out;
+          try {
+            out = sink.open(message[0], message[1]);
+          } catch (IOException e) {
+            return e;
+          }
+          if (out == null) {
+            continue;
+          }
+          Object written;
+          try {
+            written = streamBody(protocol, message[0], out);
+          } catch (ProtocolException e) {
+            closeAfterFailure(out, e);
+            throw e;
+          } catch (RuntimeException e) {
+            closeAfterFailure(out, e);
+            throw e;
+          }
+          try {
+            out.close();
+          } catch (IOException e) {
+            if (!(written instanceof IOException)) {
+              return e;
+            }
+            ((IOException) written).addSuppressed(e);
+          }
+          if (written instanceof IOException) {
+            return written;
+          }
+          count++;
+        }
+        return count;
+      }
+    });
+    return (int) unwrap(result);
+  }
+
+  /**
+   * Lists the messages in {@code uidSet} as {uid, size} pairs in mailbox
+   * order.
+   */
+  private static List<long[]> fetchSizes(IMAPProtocol protocol, String uidSet)
+      throws ProtocolException {
+    Response[] responses =
+        protocol.command("UID FETCH " + uidSet + " (UID RFC822.SIZE)", null);
+    Response response = responses[responses.length - 1];
+    List<long[]> messages = new ArrayList<long[]>();
+    if (response.isOK()) {
+      for (Response r : responses) {
+        if (!(r instanceof FetchResponse)) {
+          continue;
+        }
+        FetchResponse fetch = (FetchResponse) r;
+        UID uid = fetch.getItem(UID.class);
+        RFC822SIZE size = fetch.getItem(RFC822SIZE.class);
+        if (uid != null && size != null) {
+          messages.add(new long[] {uid.uid, size.size});
+        }
+      }
+    }
+    protocol.notifyResponseHandlers(responses);
+    protocol.handleResult(response);
+    return messages;
+  }
+
+  /**
+   * Closes {@code out} after streaming to it failed with {@code failure},
+   * which a failure to close must not hide.
+   */
+  private static void closeAfterFailure(WritableByteChannel out,
+                                        Exception failure) {
+    try {
+      out.close();
+    } catch (IOException e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Streams the body of message {@code uid} to {@code out}, whatever size
+   * the server reported for it. Returns the number of bytes written, or the
+   * IOException writing failed with, which cannot be thrown through a
+   * ProtocolCommand.
+   */
+  private Object streamBody(IMAPProtocol protocol, long uid,
+                            WritableByteChannel out)
+      throws ProtocolException {
+    long offset = 0;
+    while (true) {
+      ByteArray data = fetchChunk(protocol, uid, offset, chunkSize);
+      if (data == null || data.getCount() == 0) {
+        // The message ended on a chunk boundary, or has been expunged.
+        break;
+      }
+      try {
+        ByteBuffer chunk = ByteBuffer.wrap(
+            data.getBytes(), data.getStart(), data.getCount());
+        while (chunk.hasRemaining()) {
+          out.write(chunk);
+        }
+      } catch (IOException e) {
+        return e;
+      }
+      offset += data.getCount();
+      if (data.getCount() < chunkSize) {
+        break;
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Fetches {@code length} bytes of message {@code uid} from {@code offset},
+   * or returns null if the server sent none.
+   */
+  private static ByteArray fetchChunk(IMAPProtocol protocol, long uid,
+                                      long offset, long length)
+      throws ProtocolException {
+    Response[] responses = protocol.command(
+        "UID FETCH " + uid + " (BODY.PEEK[]<" + offset + "." + length + ">)",
+        null);
+    Response response = responses[responses.length - 1];
+    ByteArray data = null;
+    if (response.isOK()) {
+      for (Response r : responses) {
+        if (!(r instanceof FetchResponse)) {
+          continue;
+        }
+        // Flag changes for other messages may come back too.
+        FetchResponse fetch = (FetchResponse) r;
+        UID fetchedUid = fetch.getItem(UID.class);
+        BODY body = fetch.getItem(BODY.class);
+        if (fetchedUid != null && fetchedUid.uid == uid && body != null) {
+          data = body.getByteArray();
+        }
+      }
+    }
+    protocol.notifyResponseHandlers(responses);
+    protocol.handleResult(response);
+    return data;
+  }
+
+  private static long unwrap(Object result) throws IOException {
+    if (result instanceof IOException) {
+      throw (IOException) result;
+    }
+    return ((Number) result).longValue();
+  }
+}
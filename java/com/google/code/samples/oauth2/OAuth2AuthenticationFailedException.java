@@ -0,0 +1,43 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import javax.mail.AuthenticationFailedException;
+
+
+/**
+ * Thrown by {@code OAuth2Authenticator} when the server rejected the XOAUTH2
+ * exchange and said why in its error challenge.
+ */
+public class OAuth2AuthenticationFailedException
+    extends AuthenticationFailedException {
+  private static final long serialVersionUID = 1L;
+
+  private final XOAuth2Error error;
+
+  OAuth2AuthenticationFailedException(AuthenticationFailedException cause,
+                                      XOAuth2Error error) {
+    super(cause.getMessage() + " [" + error + "]", cause);
+    this.error = error;
+  }
+
+  /**
+   * Returns the error from the server's challenge.
+   */
+  public XOAuth2Error getError() {
+    return error;
+  }
+}
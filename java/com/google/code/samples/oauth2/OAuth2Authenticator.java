@@ -19,13 +19,24 @@ import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.imap.IMAPSSLStore;
 import com.sun.mail.smtp.SMTPTransport;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.Provider;
 import java.security.Security;
-import java.util.Properties;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.Service;
 import javax.mail.Session;
 import javax.mail.URLName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
 
 
 /**
@@ -41,20 +52,163 @@ public class OAuth2Authenticator {
   public static final class OAuth2Provider extends Provider {
     private static final long serialVersionUID = 1L;
 
+    static final String NAME = "Google OAuth2 Provider";
+
     public OAuth2Provider() {
-      super("Google OAuth2 Provider", 1.0,
-            "Provides the XOAUTH2 SASL Mechanism");
-      put("SaslClientFactory.XOAUTH2",
-          "com.google.code.samples.oauth2.OAuth2SaslClientFactory");
+      super(NAME, 1.0,
+            "Provides the XOAUTH2 and OAUTHBEARER SASL Mechanisms");
+      putService(new FactoryService(this, "XOAUTH2"));
+      putService(new FactoryService(this, "OAUTHBEARER"));
     }
   }
 
   /**
-   * Installs the OAuth2 SASL provider. This must be called exactly once before
-   * calling other methods on this class.
+   * Hands out the shared OAuth2SaslClientFactory rather than having the
+   * security framework instantiate a new factory reflectively for every
+   * SASL negotiation.
+   */
+  private static final class FactoryService extends Provider.Service {
+    FactoryService(Provider provider, String mechanism) {
+      super(provider, "SaslClientFactory", mechanism,
+            OAuth2SaslClientFactory.class.getName(), null, null);
+    }
+
+    @Override
+    public Object newInstance(Object constructorParameter) {
+      return OAuth2SaslClientFactory.getInstance();
+    }
+  }
+
+  private static final Map<String, Object> BUILT_IN_IMAP_PROPS =
+      Collections.<String, Object>singletonMap("mail.imaps.sasl.enable",
+                                               "false");
+  private static final Map<String, Object> BUILT_IN_SMTP_PROPS =
+      Collections.<String, Object>singletonMap("mail.smtp.sasl.enable",
+                                               "false");
+
+  private static volatile boolean initialized = false;
+  private static volatile boolean useSaslProvider = true;
+  private static volatile ConnectMetrics connectMetrics;
+
+  /**
+   * Installs the OAuth2 SASL provider at the end of the provider list. This
+   * must be called before calling other methods on this class. It may be
+   * called any number of times, from any thread.
    */
   public static void initialize() {
-    Security.addProvider(new OAuth2Provider());
+    initialize(false);
+  }
+
+  /**
+   * Installs the OAuth2 SASL provider. It may be called any number of times,
+   * from any thread; only the first call that finds the provider missing, or
+   * in the wrong place, changes anything.
+   *
+   * @param preferred Whether to put the provider ahead of all others, so that
+   *     it wins over any other XOAUTH2 implementation.
+   */
+  public static void initialize(boolean preferred) {
+    if (initialized && !preferred) {
+      return;
+    }
+    synchronized (OAuth2Authenticator.class) {
+      Provider[] providers = Security.getProviders();
+      int position = -1;
+      for (int i = 0; i < providers.length; i++) {
+        if (OAuth2Provider.NAME.equals(providers[i].getName())) {
+          position = i + 1;
+          break;
+        }
+      }
+      if (preferred && position > 1) {
+        Security.removeProvider(OAuth2Provider.NAME);
+        position = -1;
+      }
+      if (position < 0) {
+        if (preferred) {
+          Security.insertProviderAt(new OAuth2Provider(), 1);
+        } else {
+          Security.addProvider(new OAuth2Provider());
+        }
+      }
+      initialized = true;
+    }
+  }
+
+  /**
+   * Chooses how connects authenticate. By default they negotiate XOAUTH2
+   * through the Java SASL framework, which finds OAuth2SaslClientFactory by
+   * scanning every installed security provider on each connect. Passing
+   * false makes new connects use JavaMail's own XOAUTH2 support instead,
+   * which needs no provider and skips the scan, but bypasses
+   * OAuth2SaslClient, so the SASL phase of the connect is not timed.
+   */
+  public static void setUseSaslProvider(boolean useSasl) {
+    useSaslProvider = useSasl;
+  }
+
+  /**
+   * Installs {@code metrics} to receive the timing and outcome of every
+   * connect, or disables metrics if it is null. Metrics are disabled by
+   * default, and then cost nothing beyond a null check per connect.
+   */
+  public static void setConnectMetrics(ConnectMetrics metrics) {
+    connectMetrics = metrics;
+  }
+
+  public static ConnectMetrics getConnectMetrics() {
+    return connectMetrics;
+  }
+
+  /**
+   * Makes all OAuth2 connections use {@code context} for TLS, including
+   * connections made with already cached sessions. Sharing one context lets
+   * repeated connects to the same host resume TLS sessions from its client
+   * session cache instead of doing a full handshake. Passing null restores
+   * the JVM's default SSLSocketFactory.
+   */
+  public static void setSSLContext(SSLContext context) {
+    OAuth2SSLSocketFactory.getInstance().setDelegate(
+        context == null
+        ? (SSLSocketFactory) SSLSocketFactory.getDefault()
+        : context.getSocketFactory());
+  }
+
+  /**
+   * Creates a TLS context with the JVM's default trust store and a client
+   * session cache of the given size and timeout, for use with {@code
+   * setSSLContext}. The cache needs roughly one entry per host and port
+   * connected to.
+   *
+   * @param sessionCacheSize Maximum number of cached sessions, or 0 for no
+   *     limit.
+   * @param sessionTimeoutSeconds How long a cached session may be resumed,
+   *     or 0 for no limit. The server may expire it sooner.
+   */
+  public static SSLContext createSSLContext(int sessionCacheSize,
+                                            int sessionTimeoutSeconds)
+      throws GeneralSecurityException {
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, null, null);
+    SSLSessionContext sessions = context.getClientSessionContext();
+    sessions.setSessionCacheSize(sessionCacheSize);
+    sessions.setSessionTimeout(sessionTimeoutSeconds);
+    return context;
+  }
+
+  /**
+   * Returns the number of TLS handshakes completed by OAuth2 connections.
+   */
+  public static long getTlsHandshakeCount() {
+    return OAuth2SSLSocketFactory.getInstance().getHandshakeCount();
+  }
+
+  /**
+   * Returns how many of the TLS handshakes counted by {@code
+   * getTlsHandshakeCount} resumed a cached session.
+   */
+  public static long getTlsResumedHandshakeCount() {
+    return OAuth2SSLSocketFactory.getInstance().getResumedHandshakeCount();
   }
 
   /**
@@ -75,21 +229,74 @@ public class OAuth2Authenticator {
                                         int port,
                                         String userEmail,
                                         String oauthToken,
-                                        boolean debug) throws Exception {
-    Properties props = new Properties();
-    props.put("mail.imaps.sasl.enable", "true");
-    props.put("mail.imaps.sasl.mechanisms", "XOAUTH2");
-    props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROP, oauthToken);
-    Session session = Session.getInstance(props);
-    session.setDebug(debug);
+                                        boolean debug)
+      throws MessagingException {
+    return connectToImap(getImapSession(host, port, debug), host, port,
+                         userEmail, oauthToken);
+  }
 
-    final URLName unusedUrlName = null;
-    IMAPSSLStore store = new IMAPSSLStore(session, unusedUrlName);
-    final String emptyPassword = "";
-    store.connect(host, port, userEmail, emptyPassword);
+  /**
+   * Returns the cached session that IMAP connects to {@code host:port} use,
+   * which depends on {@code setUseSaslProvider}.
+   */
+  static Session getImapSession(String host, int port, boolean debug) {
+    return useSaslProvider
+        ? OAuth2SessionCache.getImapSession(host, port, debug)
+        : OAuth2SessionCache.getSession("imaps", host, port, debug,
+                                        BUILT_IN_IMAP_PROPS);
+  }
+
+  /**
+   * Returns the cached session that SMTP connects to {@code host:port} use,
+   * which depends on {@code setUseSaslProvider}.
+   */
+  static Session getSmtpSession(String host, int port, boolean debug) {
+    return useSaslProvider
+        ? OAuth2SessionCache.getSmtpSession(host, port, debug)
+        : OAuth2SessionCache.getSession("smtp", host, port, debug,
+                                        BUILT_IN_SMTP_PROPS);
+  }
+
+  /**
+   * Connects and authenticates to an IMAP server with OAuth2 using {@code
+   * session}, which must have been obtained from OAuth2SessionCache.
+   */
+  static IMAPStore connectToImap(Session session,
+                                 String host,
+                                 int port,
+                                 String userEmail,
+                                 String oauthToken) throws MessagingException {
+    IMAPSSLStore store = new CapabilityCachingImapStore(session);
+    connect(store, "imap", host, port, userEmail, oauthToken,
+            !OAuth2SessionCache.usesSasl(session, "imaps"));
     return store;
   }
 
+  /**
+   * Connects and authenticates to an IMAP server with OAuth2, obtaining the
+   * token from {@code tokenProvider}. You must have called {@code
+   * initialize}.
+   *
+   * @param host Hostname of the imap server, for example {@code
+   *     imap.googlemail.com}.
+   * @param port Port of the imap server, for example 993.
+   * @param userEmail Email address of the user to authenticate, for example
+   *     {@code oauth@gmail.com}.
+   * @param tokenProvider Supplies the user's OAuth token.
+   * @param debug Whether to enable debug logging on the IMAP connection.
+   *
+   * @return An authenticated IMAPStore that can be used for IMAP operations.
+   */
+  public static IMAPStore connectToImap(String host,
+                                        int port,
+                                        String userEmail,
+                                        TokenProvider tokenProvider,
+                                        boolean debug)
+      throws MessagingException, IOException {
+    return connectToImap(host, port, userEmail,
+                         tokenProvider.getToken(userEmail), debug);
+  }
+
   /**
    * Connects and authenticates to an SMTP server with OAuth2. You must have
    * called {@code initialize}.
@@ -109,25 +316,221 @@ public class OAuth2Authenticator {
                                             int port,
                                             String userEmail,
                                             String oauthToken,
-                                            boolean debug) throws Exception {
-    Properties props = new Properties();
-    props.put("mail.smtp.starttls.enable", "true");
-    props.put("mail.smtp.starttls.required", "true");
-    props.put("mail.smtp.sasl.enable", "true");
-    props.put("mail.smtp.sasl.mechanisms", "XOAUTH2");
-    props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROP, oauthToken);
-    Session session = Session.getInstance(props);
-    session.setDebug(debug);
+                                            boolean debug)
+      throws MessagingException {
+    return connectToSmtp(getSmtpSession(host, port, debug), host, port,
+                         userEmail, oauthToken);
+  }
 
+  /**
+   * Connects and authenticates to an SMTP server with OAuth2 using {@code
+   * session}, which must have been obtained from OAuth2SessionCache.
+   */
+  static SMTPTransport connectToSmtp(Session session,
+                                     String host,
+                                     int port,
+                                     String userEmail,
+                                     String oauthToken)
+      throws MessagingException {
     final URLName unusedUrlName = null;
     SMTPTransport transport = new SMTPTransport(session, unusedUrlName);
-    // If the password is non-null, SMTP tries to do AUTH LOGIN.
-    final String emptyPassword = "";
-    transport.connect(host, port, userEmail, emptyPassword);
+    connect(transport, "smtp", host, port, userEmail, oauthToken,
+            !OAuth2SessionCache.usesSasl(session, "smtp"));
 
     return transport;
   }
 
+  /**
+   * Connects and authenticates to an SMTP server with OAuth2, obtaining the
+   * token from {@code tokenProvider}. You must have called {@code
+   * initialize}.
+   *
+   * @param host Hostname of the smtp server, for example {@code
+   *     smtp.googlemail.com}.
+   * @param port Port of the smtp server, for example 587.
+   * @param userEmail Email address of the user to authenticate, for example
+   *     {@code oauth@gmail.com}.
+   * @param tokenProvider Supplies the user's OAuth token.
+   * @param debug Whether to enable debug logging on the connection.
+   *
+   * @return An authenticated SMTPTransport that can be used for SMTP
+   *     operations.
+   */
+  public static SMTPTransport connectToSmtp(String host,
+                                            int port,
+                                            String userEmail,
+                                            TokenProvider tokenProvider,
+                                            boolean debug)
+      throws MessagingException, IOException {
+    return connectToSmtp(host, port, userEmail,
+                         tokenProvider.getToken(userEmail), debug);
+  }
+
+  /**
+   * Connects and authenticates to an IMAP server with OAuth2 without blocking
+   * the caller. The connect runs on a virtual thread where the JDK supports
+   * them, and on a shared daemon thread pool otherwise. You must have called
+   * {@code initialize}.
+   *
+   * @see #connectToImap(String, int, String, String, boolean)
+   */
+  public static CompletableFuture<IMAPStore> connectToImapAsync(
+      String host,
+      int port,
+      String userEmail,
+      String oauthToken,
+      boolean debug) {
+    return connectToImapAsync(host, port, userEmail, oauthToken, debug,
+                              AsyncConnector.defaultExecutor(), 0);
+  }
+
+  /**
+   * Connects and authenticates to an IMAP server with OAuth2 on {@code
+   * executor}. You must have called {@code initialize}.
+   *
+   * <p>If the returned future is cancelled, or {@code timeoutMillis} passes
+   * first, the connection's socket is closed and any store that still manages
+   * to connect is closed.
+   *
+   * @param executor Runs the blocking connect.
+   * @param timeoutMillis Time limit for the whole connect, or 0 for none.
+   *
+   * @see #connectToImap(String, int, String, String, boolean)
+   */
+  public static CompletableFuture<IMAPStore> connectToImapAsync(
+      final String host,
+      final int port,
+      final String userEmail,
+      final String oauthToken,
+      final boolean debug,
+      Executor executor,
+      long timeoutMillis) {
+    return AsyncConnector.connect(
+        () -> connectToImap(host, port, userEmail, oauthToken, debug),
+        executor, timeoutMillis);
+  }
+
+  /**
+   * Connects and authenticates to an SMTP server with OAuth2 without
+   * blocking the caller. The connect runs on a virtual thread where the JDK
+   * supports them, and on a shared daemon thread pool otherwise. You must
+   * have called {@code initialize}.
+   *
+   * @see #connectToSmtp(String, int, String, String, boolean)
+   */
+  public static CompletableFuture<SMTPTransport> connectToSmtpAsync(
+      String host,
+      int port,
+      String userEmail,
+      String oauthToken,
+      boolean debug) {
+    return connectToSmtpAsync(host, port, userEmail, oauthToken, debug,
+                              AsyncConnector.defaultExecutor(), 0);
+  }
+
+  /**
+   * Connects and authenticates to an SMTP server with OAuth2 on {@code
+   * executor}. You must have called {@code initialize}.
+   *
+   * <p>If the returned future is cancelled, or {@code timeoutMillis} passes
+   * first, the connection's socket is closed and any transport that still
+   * manages to connect is closed.
+   *
+   * @param executor Runs the blocking connect.
+   * @param timeoutMillis Time limit for the whole connect, or 0 for none.
+   *
+   * @see #connectToSmtp(String, int, String, String, boolean)
+   */
+  public static CompletableFuture<SMTPTransport> connectToSmtpAsync(
+      final String host,
+      final int port,
+      final String userEmail,
+      final String oauthToken,
+      final boolean debug,
+      Executor executor,
+      long timeoutMillis) {
+    return AsyncConnector.connect(
+        () -> connectToSmtp(host, port, userEmail, oauthToken, debug),
+        executor, timeoutMillis);
+  }
+
+  /**
+   * Connects {@code service}, timing the connect if metrics are enabled. If
+   * the server rejects the token with an XOAUTH2 error challenge, the
+   * failure is an OAuth2AuthenticationFailedException carrying the error.
+   *
+   * <p>The token reaches OAuth2SaslClientFactory through the connect's
+   * ConnectContext, and the password is left empty, since JavaMail sends
+   * the password with LOGIN when the server offers none of the SASL
+   * mechanisms. Only JavaMail's own XOAUTH2, used when the session has SASL
+   * disabled, takes the token as the password; {@code tokenAsPassword} must
+   * then be true.
+   */
+  static void connect(Service service,
+                      String protocol,
+                      String host,
+                      int port,
+                      String userEmail,
+                      String oauthToken,
+                      boolean tokenAsPassword) throws MessagingException {
+    ConnectContext context = ConnectContext.current();
+    boolean ownsContext = context == null;
+    if (ownsContext) {
+      context = new ConnectContext();
+      context.attach();
+    }
+    // Only the outermost connect on a thread releases the SASL client.
+    boolean ownsSaslClient = context.getSaslClient() == null;
+    String outerToken = context.getOAuthToken();
+    context.setOAuthToken(oauthToken);
+    ConnectTimer timer = ConnectTimer.start(protocol, connectMetrics);
+    Throwable failure = null;
+    try {
+      final String emptyPassword = "";
+      service.connect(host, port, userEmail,
+                      tokenAsPassword ? oauthToken : emptyPassword);
+    } catch (AuthenticationFailedException e) {
+      XOAuth2Error error = context.getAuthError();
+      failure = error == null
+          ? withServerResponse(service, e)
+          : new OAuth2AuthenticationFailedException(e, error);
+      throw (AuthenticationFailedException) failure;
+    } catch (Throwable t) {
+      failure = t;
+      throw t;
+    } finally {
+      if (timer != null) {
+        timer.finish(failure);
+      }
+      context.setAuthError(null);
+      context.setOAuthToken(outerToken);
+      if (ownsSaslClient) {
+        context.releaseSaslClient();
+      }
+      if (ownsContext) {
+        context.detach();
+      }
+    }
+  }
+
+  /**
+   * Returns {@code e} with the SMTP server's last reply as its message.
+   * JavaMail reports a failed SMTP SASL exchange only as "failed to
+   * connect", which hides replies such as "454 4.7.0 Too many login
+   * attempts" from FailureClass.
+   */
+  private static AuthenticationFailedException withServerResponse(
+      Service service, AuthenticationFailedException e) {
+    if (!(service instanceof SMTPTransport)) {
+      return e;
+    }
+    String response = ((SMTPTransport) service).getLastServerResponse();
+    if (response == null || response.trim().isEmpty()) {
+      return e;
+    }
+    return new AuthenticationFailedException(response.trim(), e);
+  }
+
   /**
    * Authenticates to IMAP with parameters passed in on the commandline.
    */
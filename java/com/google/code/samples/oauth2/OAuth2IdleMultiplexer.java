@@ -0,0 +1,503 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.IdleManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.event.ConnectionAdapter;
+import javax.mail.event.ConnectionEvent;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+
+
+/**
+ * Watches the INBOXes of many accounts for new mail with IMAP IDLE, using a
+ * handful of threads.
+ *
+ * <p>Each watched account holds one authenticated IMAPS connection sitting in
+ * IDLE. All of them are multiplexed onto a single selector thread by
+ * JavaMail's IdleManager, so the number of threads does not grow with the
+ * number of accounts. IDLE is reissued every {@code refreshMillis}, which
+ * should be comfortably under the 29 minutes after which servers may drop an
+ * idle connection. Dropped connections are reconnected with exponential
+ * backoff, taking a new token from the TokenProvider; a token the server
+ * rejects is invalidated first.
+ *
+ * <p>New mail is reported through {@link #take} and {@link #poll}. Events for
+ * an account that has not been consumed yet are merged, so a slow consumer
+ * makes the queue hold at most one event per account rather than growing
+ * without bound or stalling the IDLE connections.
+ *
+ * <p>You must have called {@code OAuth2Authenticator.initialize}.
+ */
+public class OAuth2IdleMultiplexer implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(OAuth2IdleMultiplexer.class.getName());
+
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+  /**
+   * New mail for one account.
+   */
+  public static final class NewMailEvent {
+    private final String userEmail;
+    private final int messageCount;
+
+    NewMailEvent(String userEmail, int messageCount) {
+      this.userEmail = userEmail;
+      this.messageCount = messageCount;
+    }
+
+    public String getUserEmail() {
+      return userEmail;
+    }
+
+    /**
+     * Returns the number of messages that arrived since the last event for
+     * this account was taken.
+     */
+    public int getMessageCount() {
+      return messageCount;
+    }
+  }
+
+  private final String host;
+  private final int port;
+  private final TokenProvider tokenProvider;
+  private final long refreshMillis;
+  private final Session session;
+
+  private final ExecutorService idleExecutor;
+  private final ExecutorService connectExecutor;
+  private final ScheduledExecutorService scheduler;
+  private final Random random = new Random();
+  private IdleManager idleManager;
+
+  private final ConcurrentMap<String, Watch> watches =
+      new ConcurrentHashMap<String, Watch>();
+  private final BlockingQueue<Watch> pending = new LinkedBlockingQueue<Watch>();
+  private final AtomicInteger connectedCount = new AtomicInteger();
+  private final AtomicLong reconnectCount = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a multiplexer.
+   *
+   * @param host Hostname of the imap server, for example {@code
+   *     imap.gmail.com}.
+   * @param port Port of the imap server, for example 993.
+   * @param tokenProvider Supplies tokens for connects and reconnects.
+   * @param refreshMillis How often IDLE is reissued on each connection.
+   * @param maxConcurrentConnects Maximum number of connects in progress at
+   *     once, which bounds the load of (re)connecting many accounts.
+   */
+  public OAuth2IdleMultiplexer(String host,
+                               int port,
+                               TokenProvider tokenProvider,
+                               long refreshMillis,
+                               int maxConcurrentConnects) throws IOException {
+    this.host = host;
+    this.port = port;
+    this.tokenProvider = tokenProvider;
+    this.refreshMillis = refreshMillis;
+
+    idleExecutor = Executors.newCachedThreadPool(
+        AsyncConnector.daemonThreadFactory("oauth2-idle"));
+    connectExecutor = Executors.newFixedThreadPool(
+        maxConcurrentConnects,
+        AsyncConnector.daemonThreadFactory("oauth2-idle-connect"));
+    scheduler = new ScheduledThreadPoolExecutor(
+        1, AsyncConnector.daemonThreadFactory("oauth2-idle-timer"));
+
+    Map<String, Object> props = new HashMap<String, Object>();
+    // IdleManager selects on the connections' SocketChannels.
+    props.put("mail.imaps.usesocketchannels", "true");
+    // One event thread for all accounts rather than one per folder.
+    props.put("mail.event.scope", "session");
+    // Don't let a dead connection block a refresh forever.
+    props.put("mail.imaps.connectiontimeout", "30000");
+    props.put("mail.imaps.timeout", "60000");
+    session = OAuth2SessionCache.getSession("imaps", host, port, false, props);
+    idleManager = new IdleManager(session, idleExecutor);
+  }
+
+  /**
+   * Starts watching the account's INBOX. Connecting happens in the
+   * background; failures are retried until {@code unwatch} or {@code close}.
+   */
+  public void watch(String userEmail) {
+    if (closed) {
+      throw new IllegalStateException("Multiplexer is closed");
+    }
+    Watch watch = new Watch(userEmail);
+    if (watches.putIfAbsent(userEmail, watch) == null) {
+      submit(watch, new ConnectTask(watch));
+    }
+  }
+
+  /**
+   * Stops watching the account and closes its connection.
+   */
+  public void unwatch(String userEmail) {
+    final Watch watch = watches.remove(userEmail);
+    if (watch != null) {
+      watch.cancel();
+      try {
+        connectExecutor.execute(new Runnable() {
+          public void run() {
+            watch.disconnect();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        watch.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Waits for and returns the next new-mail event.
+   */
+  public NewMailEvent take() throws InterruptedException {
+    NewMailEvent event;
+    do {
+      event = toEvent(pending.take());
+    } while (event == null);
+    return event;
+  }
+
+  /**
+   * Returns the next new-mail event, waiting up to {@code timeout}, or null
+   * if none arrived.
+   */
+  public NewMailEvent poll(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (true) {
+      Watch watch = pending.poll(deadline - System.nanoTime(),
+                                 TimeUnit.NANOSECONDS);
+      if (watch == null) {
+        return null;
+      }
+      NewMailEvent event = toEvent(watch);
+      if (event != null) {
+        return event;
+      }
+    }
+  }
+
+  /** Returns the number of accounts being watched. */
+  public int getWatchedCount() {
+    return watches.size();
+  }
+
+  /** Returns the number of watched accounts that are connected. */
+  public int getConnectedCount() {
+    return connectedCount.get();
+  }
+
+  /** Returns the number of reconnects after a connection was lost. */
+  public long getReconnectCount() {
+    return reconnectCount.get();
+  }
+
+  /**
+   * Stops watching all accounts and closes their connections.
+   */
+  public void close() {
+    closed = true;
+    for (Watch watch : watches.values()) {
+      watch.cancel();
+    }
+    scheduler.shutdownNow();
+    connectExecutor.shutdownNow();
+    synchronized (this) {
+      idleManager.stop();
+    }
+    for (Watch watch : watches.values()) {
+      watch.disconnect();
+    }
+    watches.clear();
+    idleExecutor.shutdownNow();
+  }
+
+  private static NewMailEvent toEvent(Watch watch) {
+    int count = watch.newMessages.getAndSet(0);
+    return count == 0 ? null : new NewMailEvent(watch.userEmail, count);
+  }
+
+  private void submit(Watch watch, Runnable task) {
+    if (watch.cancelled) {
+      return;
+    }
+    try {
+      connectExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Closed.
+    }
+  }
+
+  private void schedule(final Watch watch,
+                        final Runnable task,
+                        long delayMillis) {
+    if (watch.cancelled) {
+      return;
+    }
+    try {
+      ScheduledFuture<?> future = scheduler.schedule(new Runnable() {
+        public void run() {
+          submit(watch, task);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+      watch.setTimer(future);
+    } catch (RejectedExecutionException e) {
+      // Closed.
+    }
+  }
+
+  private void startIdle(IMAPFolder folder)
+      throws MessagingException, IOException {
+    IdleManager manager;
+    synchronized (this) {
+      if (!idleManager.isRunning()) {
+        // The selector thread died; replace it. Folders it was watching
+        // reconnect when their connections are found to be dead.
+        logger.warning("IdleManager stopped; restarting it");
+        idleManager = new IdleManager(session, idleExecutor);
+      }
+      manager = idleManager;
+    }
+    manager.watch(folder);
+  }
+
+  private void scheduleReconnect(Watch watch) {
+    if (watch.cancelled) {
+      return;
+    }
+    long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                            MIN_BACKOFF_MILLIS << Math.min(watch.failures, 20));
+    watch.failures++;
+    long delay;
+    synchronized (random) {
+      // Spread reconnects so that a server restart is not followed by every
+      // account reconnecting at the same instant.
+      delay = backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+    }
+    schedule(watch, new ConnectTask(watch), delay);
+  }
+
+  /**
+   * Closes {@code store} and schedules a reconnect if it is the account's
+   * current connection, and returns whether it was.
+   */
+  private boolean connectionLost(Watch watch, IMAPStore store) {
+    if (!watch.clearConnection(store)) {
+      return false;
+    }
+    connectedCount.decrementAndGet();
+    closeQuietly(store);
+    if (!watch.cancelled) {
+      reconnectCount.incrementAndGet();
+      scheduleReconnect(watch);
+    }
+    return true;
+  }
+
+  private static void closeQuietly(IMAPStore store) {
+    try {
+      store.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close store", e);
+    }
+  }
+
+  private final class ConnectTask implements Runnable {
+    private final Watch watch;
+
+    ConnectTask(Watch watch) {
+      this.watch = watch;
+    }
+
+    public void run() {
+      if (watch.cancelled) {
+        return;
+      }
+      IMAPStore store = null;
+      try {
+        store = OAuth2Authenticator.connectToImap(
+            session, host, port, watch.userEmail,
+            tokenProvider.getToken(watch.userEmail));
+        final IMAPStore connectedStore = store;
+        IMAPFolder folder = (IMAPFolder) store.getFolder("INBOX");
+        folder.addMessageCountListener(new MessageCountAdapter() {
+          @Override
+          public void messagesAdded(MessageCountEvent e) {
+            watch.messagesAdded(e.getMessages().length);
+          }
+        });
+        folder.addConnectionListener(new ConnectionAdapter() {
+          @Override
+          public void closed(ConnectionEvent e) {
+            connectionLost(watch, connectedStore);
+          }
+        });
+        folder.open(Folder.READ_ONLY);
+        if (!watch.setConnection(store, folder)) {
+          // Unwatched while connecting.
+          closeQuietly(store);
+          return;
+        }
+        connectedCount.incrementAndGet();
+        startIdle(folder);
+        watch.failures = 0;
+        schedule(watch, new RefreshTask(watch, folder), refreshMillis);
+      } catch (Exception e) {
+        if (e instanceof AuthenticationFailedException) {
+          tokenProvider.invalidate(watch.userEmail);
+        }
+        logger.log(Level.FINE, "IDLE connect failed for " + watch.userEmail,
+                   e);
+        if (store == null || !connectionLost(watch, store)) {
+          // Never registered as connected, so connectionLost ignored it.
+          if (store != null) {
+            closeQuietly(store);
+          }
+          scheduleReconnect(watch);
+        }
+      }
+    }
+  }
+
+  private final class RefreshTask implements Runnable {
+    private final Watch watch;
+    private final IMAPFolder folder;
+
+    RefreshTask(Watch watch, IMAPFolder folder) {
+      this.watch = watch;
+      this.folder = folder;
+    }
+
+    public void run() {
+      if (watch.cancelled || watch.folder != folder) {
+        return;
+      }
+      try {
+        // Touching the folder ends the current IDLE and checks that the
+        // connection is still alive; then IDLE starts afresh.
+        folder.getMessageCount();
+        startIdle(folder);
+        schedule(watch, this, refreshMillis);
+      } catch (Exception e) {
+        logger.log(Level.FINE, "IDLE refresh failed for " + watch.userEmail,
+                   e);
+        connectionLost(watch, (IMAPStore) folder.getStore());
+      }
+    }
+  }
+
+  private final class Watch {
+    final String userEmail;
+    final AtomicInteger newMessages = new AtomicInteger();
+    // Only used by the connect task, which runs one at a time per account.
+    int failures = 0;
+
+    volatile boolean cancelled = false;
+    volatile IMAPStore store;
+    volatile IMAPFolder folder;
+    private ScheduledFuture<?> timer;
+
+    Watch(String userEmail) {
+      this.userEmail = userEmail;
+    }
+
+    void messagesAdded(int count) {
+      if (newMessages.getAndAdd(count) == 0) {
+        pending.add(this);
+      }
+    }
+
+    synchronized boolean setConnection(IMAPStore store, IMAPFolder folder) {
+      if (cancelled) {
+        return false;
+      }
+      this.store = store;
+      this.folder = folder;
+      return true;
+    }
+
+    /**
+     * Forgets {@code store} if it is the current connection, and returns
+     * whether it was.
+     */
+    synchronized boolean clearConnection(IMAPStore store) {
+      if (this.store != store) {
+        return false;
+      }
+      this.store = null;
+      this.folder = null;
+      return true;
+    }
+
+    synchronized void setTimer(ScheduledFuture<?> timer) {
+      this.timer = timer;
+      if (cancelled) {
+        timer.cancel(false);
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (timer != null) {
+        timer.cancel(false);
+      }
+    }
+
+    void disconnect() {
+      IMAPStore current = store;
+      if (current != null && clearConnection(current)) {
+        connectedCount.decrementAndGet();
+        closeQuietly(current);
+      }
+    }
+  }
+}
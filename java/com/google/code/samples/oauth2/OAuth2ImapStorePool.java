@@ -0,0 +1,496 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+
+/**
+ * A pool of IMAP stores that have already been authenticated with OAuth2.
+ *
+ * <p>Stores are keyed by (host, port, userEmail). A leased store is checked
+ * with a NOOP before it is handed out, and stores that have been idle for too
+ * long or that have outlived their maximum lifetime are closed instead of
+ * being reused. New stores are opened with
+ * {@link OAuth2Authenticator#connectToImap}, so you must have called
+ * {@code OAuth2Authenticator.initialize} before using the pool.
+ *
+ * <p>Every store obtained from {@code borrowStore} must be handed back with
+ * either {@code returnStore} or {@code invalidateStore}.
+ */
+public class OAuth2ImapStorePool {
+  private static final Logger logger =
+      Logger.getLogger(OAuth2ImapStorePool.class.getName());
+
+  private final int maxStoresPerUser;
+  private final int maxStoresTotal;
+  private final long idleTimeoutMillis;
+  private final long maxLifetimeMillis;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition storeAvailable = lock.newCondition();
+
+  // All of the following are guarded by lock.
+  private final Map<PoolKey, LinkedList<PooledStore>> idleStores =
+      new HashMap<PoolKey, LinkedList<PooledStore>>();
+  private final Map<PoolKey, Integer> openStoresPerUser =
+      new HashMap<PoolKey, Integer>();
+  private final Map<IMAPStore, PooledStore> leasedStores =
+      new IdentityHashMap<IMAPStore, PooledStore>();
+  private int openStores = 0;
+  private boolean closed = false;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Creates a new pool.
+   *
+   * @param maxStoresPerUser Maximum number of open stores for a single
+   *     (host, port, userEmail) key. Gmail limits the number of simultaneous
+   *     IMAP connections per account, so keep this small.
+   * @param maxStoresTotal Maximum number of open stores across all users.
+   * @param idleTimeoutMillis Stores idle for longer than this are closed
+   *     rather than reused.
+   * @param maxLifetimeMillis Stores older than this are closed rather than
+   *     reused, for example so that they never outlive their OAuth token.
+   */
+  public OAuth2ImapStorePool(int maxStoresPerUser,
+                             int maxStoresTotal,
+                             long idleTimeoutMillis,
+                             long maxLifetimeMillis) {
+    if (maxStoresPerUser < 1 || maxStoresTotal < 1) {
+      throw new IllegalArgumentException("Pool limits must be positive");
+    }
+    this.maxStoresPerUser = maxStoresPerUser;
+    this.maxStoresTotal = maxStoresTotal;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.maxLifetimeMillis = maxLifetimeMillis;
+  }
+
+  /**
+   * Leases an authenticated store, reusing an idle one when possible and
+   * otherwise connecting a new one.
+   *
+   * @param host Hostname of the imap server, for example {@code
+   *     imap.googlemail.com}.
+   * @param port Port of the imap server, for example 993.
+   * @param userEmail Email address of the user to authenticate.
+   * @param oauthToken The user's OAuth token, used only if a new store has to
+   *     be opened.
+   * @param timeoutMillis How long to wait for a free slot when the per-user or
+   *     global limit has been reached.
+   *
+   * @return An authenticated IMAPStore. It must be handed back to the pool.
+   * @throws TimeoutException If no slot became free within the timeout.
+   */
+  public IMAPStore borrowStore(String host,
+                               int port,
+                               String userEmail,
+                               String oauthToken,
+                               long timeoutMillis) throws Exception {
+    PoolKey key = new PoolKey(host, port, userEmail);
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    boolean waited = false;
+
+    while (true) {
+      PooledStore candidate = null;
+      PooledStore evicted = null;
+      boolean reserved = false;
+
+      lock.lock();
+      try {
+        while (true) {
+          if (closed) {
+            throw new IllegalStateException("Pool is closed");
+          }
+          candidate = pollIdleStore(key);
+          if (candidate != null) {
+            leasedStores.put(candidate.store, candidate);
+            break;
+          }
+          if (openStores >= maxStoresTotal
+              && getOpenCount(key) < maxStoresPerUser) {
+            // Make room by closing somebody else's idle store.
+            evicted = removeOldestIdleStore();
+          }
+          if (getOpenCount(key) < maxStoresPerUser
+              && openStores < maxStoresTotal) {
+            incrementOpenCount(key);
+            reserved = true;
+            break;
+          }
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new TimeoutException(
+                "Timed out waiting for an IMAP store for " + userEmail);
+          }
+          if (!waited) {
+            waited = true;
+            waitCount.incrementAndGet();
+          }
+          long waitStart = System.nanoTime();
+          storeAvailable.awaitNanos(remaining);
+          waitNanos.addAndGet(System.nanoTime() - waitStart);
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      if (evicted != null) {
+        closeQuietly(evicted.store);
+      }
+
+      if (candidate != null) {
+        if (isReusable(candidate) && candidate.store.isConnected()) {
+          hitCount.incrementAndGet();
+          return candidate.store;
+        }
+        // Stale or dead; drop it and try again.
+        invalidateStore(candidate.store);
+        continue;
+      }
+
+      if (reserved) {
+        missCount.incrementAndGet();
+        IMAPStore store;
+        try {
+          store = OAuth2Authenticator.connectToImap(host,
+                                                    port,
+                                                    userEmail,
+                                                    oauthToken,
+                                                    false);
+        } catch (Exception e) {
+          lock.lock();
+          try {
+            decrementOpenCount(key);
+            storeAvailable.signalAll();
+          } finally {
+            lock.unlock();
+          }
+          throw e;
+        }
+        lock.lock();
+        try {
+          leasedStores.put(store, new PooledStore(key, store));
+        } finally {
+          lock.unlock();
+        }
+        return store;
+      }
+    }
+  }
+
+  /**
+   * Hands a healthy store back to the pool so that it can be reused.
+   */
+  public void returnStore(IMAPStore store) {
+    boolean closeNow = false;
+    lock.lock();
+    try {
+      PooledStore pooled = leasedStores.remove(store);
+      if (pooled == null) {
+        throw new IllegalArgumentException("Store was not leased from pool");
+      }
+      if (closed || !isReusable(pooled)) {
+        decrementOpenCount(pooled.key);
+        closeNow = true;
+      } else {
+        pooled.lastUsedMillis = System.currentTimeMillis();
+        LinkedList<PooledStore> idle = idleStores.get(pooled.key);
+        if (idle == null) {
+          idle = new LinkedList<PooledStore>();
+          idleStores.put(pooled.key, idle);
+        }
+        idle.addFirst(pooled);
+      }
+      storeAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (closeNow) {
+      evictionCount.incrementAndGet();
+      closeQuietly(store);
+    }
+  }
+
+  /**
+   * Hands a broken store back to the pool. The store is closed and its slot
+   * is freed.
+   */
+  public void invalidateStore(IMAPStore store) {
+    lock.lock();
+    try {
+      PooledStore pooled = leasedStores.remove(store);
+      if (pooled == null) {
+        throw new IllegalArgumentException("Store was not leased from pool");
+      }
+      decrementOpenCount(pooled.key);
+      storeAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    evictionCount.incrementAndGet();
+    closeQuietly(store);
+  }
+
+  /**
+   * Closes idle stores that have exceeded the idle timeout or the maximum
+   * lifetime. Callers should invoke this periodically.
+   *
+   * @return The number of stores that were closed.
+   */
+  public int evictIdleStores() {
+    List<PooledStore> evicted = new ArrayList<PooledStore>();
+    lock.lock();
+    try {
+      Iterator<LinkedList<PooledStore>> lists =
+          idleStores.values().iterator();
+      while (lists.hasNext()) {
+        Iterator<PooledStore> it = lists.next().iterator();
+        while (it.hasNext()) {
+          PooledStore pooled = it.next();
+          if (!isReusable(pooled)) {
+            it.remove();
+            decrementOpenCount(pooled.key);
+            evicted.add(pooled);
+          }
+        }
+      }
+      removeEmptyIdleLists();
+      if (!evicted.isEmpty()) {
+        storeAvailable.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (PooledStore pooled : evicted) {
+      closeQuietly(pooled.store);
+    }
+    evictionCount.addAndGet(evicted.size());
+    return evicted.size();
+  }
+
+  /**
+   * Closes all idle stores and prevents further leases. Stores that are
+   * currently leased are closed when they are handed back.
+   */
+  public void close() {
+    List<PooledStore> idle = new ArrayList<PooledStore>();
+    lock.lock();
+    try {
+      closed = true;
+      for (LinkedList<PooledStore> list : idleStores.values()) {
+        for (PooledStore pooled : list) {
+          decrementOpenCount(pooled.key);
+          idle.add(pooled);
+        }
+      }
+      idleStores.clear();
+      storeAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (PooledStore pooled : idle) {
+      closeQuietly(pooled.store);
+    }
+  }
+
+  /** Returns the number of leases satisfied by an idle store. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of leases that had to open a new store. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of leases that had to wait for a free slot. */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /** Returns the total time leases have spent waiting for a free slot. */
+  public long getTotalWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+  }
+
+  /** Returns the number of stores closed by the pool. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Returns the number of open stores, leased or idle. */
+  public int getOpenStoreCount() {
+    lock.lock();
+    try {
+      return openStores;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of idle stores. */
+  public int getIdleStoreCount() {
+    lock.lock();
+    try {
+      return openStores - leasedStores.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isReusable(PooledStore pooled) {
+    long now = System.currentTimeMillis();
+    return now - pooled.lastUsedMillis < idleTimeoutMillis
+        && now - pooled.createdMillis < maxLifetimeMillis;
+  }
+
+  private PooledStore pollIdleStore(PoolKey key) {
+    LinkedList<PooledStore> idle = idleStores.get(key);
+    if (idle == null) {
+      return null;
+    }
+    // Most recently used first, so that rarely needed stores age out.
+    PooledStore pooled = idle.removeFirst();
+    if (idle.isEmpty()) {
+      idleStores.remove(key);
+    }
+    return pooled;
+  }
+
+  private PooledStore removeOldestIdleStore() {
+    PooledStore oldest = null;
+    for (LinkedList<PooledStore> idle : idleStores.values()) {
+      PooledStore last = idle.getLast();
+      if (oldest == null || last.lastUsedMillis < oldest.lastUsedMillis) {
+        oldest = last;
+      }
+    }
+    if (oldest == null) {
+      return null;
+    }
+    idleStores.get(oldest.key).removeLast();
+    removeEmptyIdleLists();
+    decrementOpenCount(oldest.key);
+    evictionCount.incrementAndGet();
+    return oldest;
+  }
+
+  private void removeEmptyIdleLists() {
+    Iterator<LinkedList<PooledStore>> it = idleStores.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private int getOpenCount(PoolKey key) {
+    Integer count = openStoresPerUser.get(key);
+    return count == null ? 0 : count;
+  }
+
+  private void incrementOpenCount(PoolKey key) {
+    openStoresPerUser.put(key, getOpenCount(key) + 1);
+    openStores++;
+  }
+
+  private void decrementOpenCount(PoolKey key) {
+    int count = getOpenCount(key) - 1;
+    if (count <= 0) {
+      openStoresPerUser.remove(key);
+    } else {
+      openStoresPerUser.put(key, count);
+    }
+    openStores--;
+  }
+
+  private static void closeQuietly(IMAPStore store) {
+    try {
+      store.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close pooled IMAP store", e);
+    }
+  }
+
+  private static final class PoolKey {
+    final String host;
+    final int port;
+    final String userEmail;
+
+    PoolKey(String host, int port, String userEmail) {
+      this.host = host.toLowerCase(Locale.ROOT);
+      this.port = port;
+      this.userEmail = userEmail;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PoolKey)) {
+        return false;
+      }
+      PoolKey other = (PoolKey) o;
+      return port == other.port
+          && host.equals(other.host)
+          && userEmail.equals(other.userEmail);
+    }
+
+    @Override
+    public int hashCode() {
+      return (host.hashCode() * 31 + port) * 31
+          + userEmail.hashCode();
+    }
+  }
+
+  private static final class PooledStore {
+    final PoolKey key;
+    final IMAPStore store;
+    final long createdMillis;
+    long lastUsedMillis;
+
+    PooledStore(PoolKey key, IMAPStore store) {
+      this.key = key;
+      this.store = store;
+      this.createdMillis = System.currentTimeMillis();
+      this.lastUsedMillis = createdMillis;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * The SSL socket factory used for OAuth2 connections, both for implicit TLS
+ * (IMAPS) and for STARTTLS (SMTP).
+ *
+ * <p>Asked for an unconnected socket, it returns a plain one from
+ * OAuth2SocketFactory. Sockets passed to
+ * {@link #createSocket(Socket, String, int, boolean)} for layering are
+ * registered with the current ConnectContext, so that a stuck TLS handshake
+ * can be aborted, and the layered socket counts its handshake and whether it
+ * resumed a cached session. Layering and all other operations are delegated
+ * to an underlying SSLSocketFactory, which can be replaced at any time; the
+ * JavaMail sessions cached by OAuth2SessionCache always hold this factory,
+ * so they pick up the new delegate for their next connect.
+ */
+class OAuth2SSLSocketFactory extends SSLSocketFactory {
+  private static class DefaultHolder {
+    static final OAuth2SSLSocketFactory instance = new OAuth2SSLSocketFactory(
+        (SSLSocketFactory) SSLSocketFactory.getDefault());
+  }
+
+  private volatile SSLSocketFactory delegate;
+
+  private final AtomicLong handshakeCount = new AtomicLong();
+  private final AtomicLong resumedHandshakeCount = new AtomicLong();
+
+  OAuth2SSLSocketFactory(SSLSocketFactory delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Returns the factory used by all OAuth2 connections. It initially wraps
+   * the JVM's default SSLSocketFactory.
+   */
+  static OAuth2SSLSocketFactory getInstance() {
+    return DefaultHolder.instance;
+  }
+
+  void setDelegate(SSLSocketFactory delegate) {
+    this.delegate = delegate;
+  }
+
+  long getHandshakeCount() {
+    return handshakeCount.get();
+  }
+
+  long getResumedHandshakeCount() {
+    return resumedHandshakeCount.get();
+  }
+
+  /**
+   * Records a completed handshake. A resumed session keeps the creation
+   * time of the handshake that established it, so it predates this one.
+   * That holds for TLS 1.3 PSK resumption too.
+   */
+  void handshakeFinished(SSLSession session, long handshakeStartMillis) {
+    handshakeCount.incrementAndGet();
+    if (session.getCreationTime() < handshakeStartMillis) {
+      resumedHandshakeCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return OAuth2SocketFactory.getInstance().createSocket();
+  }
+
+  @Override
+  public Socket createSocket(Socket socket,
+                             String host,
+                             int port,
+                             boolean autoClose) throws IOException {
+    ConnectTimer timer = null;
+    ConnectContext context = ConnectContext.current();
+    if (context != null) {
+      // For implicit TLS JavaMail creates the plain socket itself, so this
+      // is the first we see of it. Closing it aborts the handshake.
+      context.registerSocket(socket);
+      timer = context.getTimer();
+      if (timer != null) {
+        timer.tlsHandshakeStarted();
+      }
+    }
+    return new TimedSSLSocket(
+        (SSLSocket) delegate.createSocket(socket, host, port, autoClose),
+        this, timer);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return delegate.createSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(String host,
+                             int port,
+                             InetAddress localHost,
+                             int localPort) throws IOException {
+    return delegate.createSocket(host, port, localHost, localPort);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return delegate.createSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address,
+                             int port,
+                             InetAddress localAddress,
+                             int localPort) throws IOException {
+    return delegate.createSocket(address, port, localAddress, localPort);
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return delegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return delegate.getSupportedCipherSuites();
+  }
+}
@@ -22,23 +22,34 @@ import java.util.logging.Logger;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
-import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslClient;
 import javax.security.sasl.SaslException;
 
 
 /**
  * An OAuth2 implementation of SaslClient.
+ *
+ * <p>The exchange is complete once the initial response has been sent. A
+ * server that rejects the token may still send an error challenge, which
+ * the client answers with the response the mechanism expects.
+ *
+ * <p>{@link #dispose} drops the token, the token provider and the callback
+ * handler, after which the client refuses challenges.
  */
 class OAuth2SaslClient implements SaslClient {
   private static final Logger logger =
       Logger.getLogger(OAuth2SaslClient.class.getName());
 
-  private final String oauthToken;
-  private final CallbackHandler callbackHandler;
+  private String oauthToken;
+  private TokenProvider tokenProvider;
+  private CallbackHandler callbackHandler;
 
   private boolean isComplete = false;
+  private boolean awaitingErrorChallenge = false;
+  private boolean holdCompletion = false;
+  private boolean disposed = false;
 
   /**
    * Creates a new instance of the OAuth2SaslClient. This will ordinarily only
@@ -47,6 +58,18 @@ class OAuth2SaslClient implements SaslClient {
   public OAuth2SaslClient(String oauthToken,
                           CallbackHandler callbackHandler) {
     this.oauthToken = oauthToken;
+    this.tokenProvider = null;
+    this.callbackHandler = callbackHandler;
+  }
+
+  /**
+   * Creates a new instance of the OAuth2SaslClient that asks {@code
+   * tokenProvider} for the user's token when the challenge is evaluated.
+   */
+  public OAuth2SaslClient(TokenProvider tokenProvider,
+                          CallbackHandler callbackHandler) {
+    this.oauthToken = null;
+    this.tokenProvider = tokenProvider;
     this.callbackHandler = callbackHandler;
   }
 
@@ -59,11 +82,31 @@ class OAuth2SaslClient implements SaslClient {
   }
 
   public byte[] evaluateChallenge(byte[] challenge) throws SaslException {
+    if (disposed) {
+      throw new SaslException("OAuth2SaslClient has been disposed");
+    }
+    if (awaitingErrorChallenge) {
+      // The server rejected the token. Its challenge says why; keep that
+      // for the failure that follows, and answer with the response the
+      // server expects.
+      awaitingErrorChallenge = false;
+      if (challenge != null && challenge.length > 0) {
+        XOAuth2Error error = XOAuth2Error.parse(challenge);
+        ConnectContext context = ConnectContext.current();
+        if (error != null && context != null) {
+          context.setAuthError(error);
+        }
+        logger.fine(getMechanismName() + " error challenge: " + error);
+      }
+      return errorResponse();
+    }
     if (isComplete) {
-      // Empty final response from server, just ignore it.
-      return new byte[] { };
+      throw new SaslException(getMechanismName() + " exchange is complete");
     }
 
+    if (oauthToken == null && tokenProvider == null) {
+      throw new SaslException("No OAuth token supplied");
+    }
     NameCallback nameCallback = new NameCallback("Enter name");
     Callback[] callbacks = new Callback[] { nameCallback };
     try {
@@ -74,15 +117,66 @@ class OAuth2SaslClient implements SaslClient {
       throw new SaslException("Failed to execute callback: " + e);
     }
     String email = nameCallback.getName();
+    if (email == null) {
+      throw new SaslException("No user name supplied");
+    }
+
+    String token = oauthToken;
+    if (token == null) {
+      try {
+        token = tokenProvider.getToken(email);
+      } catch (IOException e) {
+        throw new SaslException("Failed to obtain OAuth token: " + e);
+      }
+      if (token == null) {
+        throw new SaslException("No OAuth token for " + email);
+      }
+    }
 
-    byte[] response = String.format("user=%s\1auth=Bearer %s\1\1", email,
-                                    oauthToken).getBytes();
+    byte[] response;
+    try {
+      response = encodeResponse(email, token);
+    } catch (IllegalArgumentException e) {
+      throw new SaslException("Cannot encode response: " + e.getMessage());
+    }
     isComplete = true;
+    awaitingErrorChallenge = true;
     return response;
   }
 
+  /**
+   * Returns the initial response that authenticates {@code email} with
+   * {@code token}.
+   */
+  byte[] encodeResponse(String email, String token) {
+    return XOAuth2ResponseEncoder.encode(email, token);
+  }
+
+  /**
+   * Returns the response to the server's error challenge, which the server
+   * answers with its failure reply.
+   */
+  byte[] errorResponse() {
+    return new byte[] { };
+  }
+
+  /**
+   * Makes the client report itself incomplete from sending its response
+   * until it answers an error challenge. JavaMail does not pass challenges
+   * to a client that reports itself complete, so OAuth2SaslClientFactory
+   * calls this for connects made through OAuth2Authenticator, which need
+   * the error; a successful exchange then simply ends with the server's OK.
+   */
+  void holdCompletion() {
+    holdCompletion = true;
+  }
+
+  /**
+   * Returns true once the initial response has been sent, unless {@link
+   * #holdCompletion} applies.
+   */
   public boolean isComplete() {
-    return isComplete;
+    return isComplete && !(holdCompletion && awaitingErrorChallenge);
   }
 
   public byte[] unwrap(byte[] incoming, int offset, int len)
@@ -95,13 +189,26 @@ class OAuth2SaslClient implements SaslClient {
     throw new IllegalStateException();
   }
 
+  /**
+   * XOAUTH2 negotiates no security layer, so the only property is a quality
+   * of protection of "auth".
+   */
   public Object getNegotiatedProperty(String propName) {
-    if (!isComplete()) {
+    if (!isComplete() || disposed) {
       throw new IllegalStateException();
     }
-    return null;
+    return Sasl.QOP.equals(propName) ? "auth" : null;
   }
 
-  public void dispose() throws SaslException {
+  /**
+   * Drops the client's credentials. The client cannot be used again.
+   * JavaMail never calls this, so OAuth2Authenticator disposes the client
+   * when the connect ends (see OAuth2SaslClientFactory).
+   */
+  public void dispose() {
+    oauthToken = null;
+    tokenProvider = null;
+    callbackHandler = null;
+    disposed = true;
   }
 }
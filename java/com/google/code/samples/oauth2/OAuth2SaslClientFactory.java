@@ -16,7 +16,6 @@
 package com.google.code.samples.oauth2;
 
 import java.util.Map;
-
 import java.util.logging.Logger;
 
 import javax.security.auth.callback.CallbackHandler;
@@ -26,8 +25,20 @@ import javax.security.sasl.SaslClientFactory;
 /**
  * A SaslClientFactory that returns instances of OAuth2SaslClient.
  *
- * <p>Only the "XOAUTH2" mechanism is supported. The {@code callbackHandler} is
- * passed to the OAuth2SaslClient. Other parameters are ignored.
+ * <p>The "XOAUTH2" and "OAUTHBEARER" mechanisms are supported; of those
+ * offered, the first in {@code mechanisms} is used. The {@code
+ * callbackHandler} is passed to the client. The token is taken from {@link
+ * #OAUTH_TOKEN_PROP} if set, and otherwise obtained from the TokenProvider in
+ * {@link #OAUTH_TOKEN_PROVIDER_PROP}; connects made through
+ * OAuth2Authenticator set neither and hand over the token with their
+ * ConnectContext. OAUTHBEARER sends {@code serverName} and the connect's
+ * port to the server. Other parameters are ignored.
+ *
+ * <p>Each call returns a new client. Clients created for a connect made
+ * through OAuth2Authenticator report themselves incomplete while an error
+ * challenge may follow, so that JavaMail passes it to them (see {@link
+ * OAuth2SaslClient#holdCompletion}). The first such client is disposed when
+ * the connect ends, so that its token does not outlive the exchange.
  */
 public class OAuth2SaslClientFactory implements SaslClientFactory {
   private static final Logger logger =
@@ -36,28 +47,108 @@ public class OAuth2SaslClientFactory implements SaslClientFactory {
   public static final String OAUTH_TOKEN_PROP =
       "mail.imaps.sasl.mechanisms.oauth2.oauthToken";
 
+  public static final String OAUTH_TOKEN_PROVIDER_PROP =
+      "mail.imaps.sasl.mechanisms.oauth2.tokenProvider";
+
+  private static final String XOAUTH2 = "XOAUTH2";
+  private static final String OAUTHBEARER = "OAUTHBEARER";
+
+  private static final OAuth2SaslClientFactory instance =
+      new OAuth2SaslClientFactory();
+
+  /**
+   * Returns the shared factory. The factory is stateless, so one instance
+   * serves all connections.
+   */
+  public static OAuth2SaslClientFactory getInstance() {
+    return instance;
+  }
+
   public SaslClient createSaslClient(String[] mechanisms,
                                      String authorizationId,
                                      String protocol,
                                      String serverName,
                                      Map<String, ?> props,
                                      CallbackHandler callbackHandler) {
-    boolean matchedMechanism = false;
+    String mechanism = matchMechanism(mechanisms);
+    if (mechanism == null) {
+      logger.info("Failed to match any mechanisms");
+      return null;
+    }
+    ConnectContext context = ConnectContext.current();
+    ConnectTimer timer = context == null ? null : context.getTimer();
+    if (timer != null) {
+      timer.saslStarted();
+    }
+    String oauthToken = getProperty(props, OAUTH_TOKEN_PROP, String.class);
+    TokenProvider tokenProvider = oauthToken != null ? null
+        : getProperty(props, OAUTH_TOKEN_PROVIDER_PROP, TokenProvider.class);
+    if (oauthToken == null && tokenProvider == null && context != null) {
+      oauthToken = context.getOAuthToken();
+    }
+
+    OAuth2SaslClient client;
+    if (mechanism.equals(OAUTHBEARER)) {
+      int port = context == null ? -1 : context.getPort();
+      client = tokenProvider != null
+          ? new OAuthBearerSaslClient(tokenProvider, callbackHandler,
+                                      serverName, port)
+          : new OAuthBearerSaslClient(oauthToken, callbackHandler,
+                                      serverName, port);
+    } else {
+      client = tokenProvider != null
+          ? new OAuth2SaslClient(tokenProvider, callbackHandler)
+          : new OAuth2SaslClient(oauthToken, callbackHandler);
+    }
+    if (context != null) {
+      client.holdCompletion();
+      if (context.getSaslClient() == null) {
+        context.setSaslClient(client);
+      }
+    }
+    return client;
+  }
+
+  /**
+   * Returns the first supported mechanism in {@code mechanisms}, as one of
+   * the constants, or null.
+   */
+  private static String matchMechanism(String[] mechanisms) {
     for (int i = 0; i < mechanisms.length; ++i) {
-      if ("XOAUTH2".equalsIgnoreCase(mechanisms[i])) {
-        matchedMechanism = true;
-        break;
+      String mechanism = mechanisms[i];
+      if (XOAUTH2.equalsIgnoreCase(mechanism)) {
+        return XOAUTH2;
+      }
+      if (OAUTHBEARER.equalsIgnoreCase(mechanism)) {
+        return OAUTHBEARER;
       }
     }
-    if (!matchedMechanism) {
-      logger.info("Failed to match any mechanisms");
+    return null;
+  }
+
+  /**
+   * Returns the property {@code name}, or null if it is unset or not a
+   * {@code type}.
+   */
+  private static <T> T getProperty(Map<String, ?> props,
+                                   String name,
+                                   Class<T> type) {
+    if (props == null) {
+      return null;
+    }
+    Object value = props.get(name);
+    if (value == null) {
+      return null;
+    }
+    if (!type.isInstance(value)) {
+      logger.warning("Ignoring " + name + ": expected a " + type.getName()
+                     + ", not a " + value.getClass().getName());
       return null;
     }
-    return new OAuth2SaslClient((String) props.get(OAUTH_TOKEN_PROP),
-                                callbackHandler);
+    return type.cast(value);
   }
 
   public String[] getMechanismNames(Map<String, ?> props) {
-    return new String[] {"XOAUTH2"};
+    return new String[] {XOAUTH2, OAUTHBEARER};
   }
 }
@@ -0,0 +1,189 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.Session;
+
+
+/**
+ * Caches the JavaMail Sessions used for OAuth2 connections.
+ *
+ * <p>Creating a Session loads and parses the JavaMail provider
+ * configuration, so doing it for every connection is wasteful. The sessions
+ * handed out here hold no per-user state: OAuth2Authenticator hands the
+ * user's token to OAuth2SaslClientFactory with the connect's ConnectContext.
+ * Any number of users can therefore share one session, and there is one
+ * session per (protocol, host, port, debug) combination.
+ *
+ * <p>Callers must not modify the properties of a cached session.
+ */
+public final class OAuth2SessionCache {
+  private static final ConcurrentMap<Key, Session> sessions =
+      new ConcurrentHashMap<Key, Session>();
+
+  private OAuth2SessionCache() {
+  }
+
+  /**
+   * Returns the shared session for IMAP over SSL to {@code host:port}.
+   */
+  public static Session getImapSession(String host, int port, boolean debug) {
+    return getSession("imaps", host, port, debug,
+                      Collections.<String, Object>emptyMap());
+  }
+
+  /**
+   * Returns the shared session for SMTP with STARTTLS to {@code host:port}.
+   */
+  public static Session getSmtpSession(String host, int port, boolean debug) {
+    return getSession("smtp", host, port, debug,
+                      Collections.<String, Object>emptyMap());
+  }
+
+  /**
+   * Returns the shared session for the given protocol, with {@code
+   * extraProps} added to the standard OAuth2 properties. Sessions with
+   * different extra properties are cached separately. {@code extraProps}
+   * becomes part of the cache key and must not be modified afterwards.
+   */
+  static Session getSession(String protocol,
+                            String host,
+                            int port,
+                            boolean debug,
+                            Map<String, Object> extraProps) {
+    Key key = new Key(protocol, host, port, debug, extraProps);
+    Session session = sessions.get(key);
+    if (session == null) {
+      Session newSession = Session.getInstance(
+          createProperties(protocol, host, port, extraProps));
+      newSession.setDebug(debug);
+      session = sessions.putIfAbsent(key, newSession);
+      if (session == null) {
+        session = newSession;
+      }
+    }
+    return session;
+  }
+
+  /**
+   * Returns whether {@code session} authenticates {@code protocol}
+   * connections through the SASL framework, and so through
+   * OAuth2SaslClientFactory, rather than with JavaMail's own mechanisms.
+   */
+  static boolean usesSasl(Session session, String protocol) {
+    return Boolean.parseBoolean(
+        session.getProperty("mail." + protocol + ".sasl.enable"));
+  }
+
+  /**
+   * Returns the number of cached sessions.
+   */
+  public static int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Discards all cached sessions. Connections already made with them are not
+   * affected.
+   */
+  public static void clear() {
+    sessions.clear();
+  }
+
+  private static Properties createProperties(String protocol,
+                                             String host,
+                                             int port,
+                                             Map<String, Object> extraProps) {
+    String prefix = "mail." + protocol + ".";
+    Properties props = new Properties();
+    props.put(prefix + "host", host);
+    props.put(prefix + "port", Integer.toString(port));
+    if (protocol.startsWith("smtp")) {
+      props.put(prefix + "starttls.enable", "true");
+      props.put(prefix + "starttls.required", "true");
+    }
+    props.put(prefix + "sasl.enable", "true");
+    // JavaMail drops those the server does not advertise, and the first
+    // left is used.
+    props.put(prefix + "sasl.mechanisms", "XOAUTH2 OAUTHBEARER");
+    // Limits JavaMail's own mechanisms, tried when SASL fails or is
+    // disabled, to XOAUTH2. SMTP tries nothing else, but IMAP still sends
+    // LOGIN when the server has none of these; CapabilityCachingImapStore
+    // refuses to connect to such a server.
+    props.put(prefix + "auth.mechanisms", "XOAUTH2");
+    // Route socket creation through our factories so that connects can be
+    // aborted (see ConnectContext). Implicit TLS protocols only use the SSL
+    // factory; the others use it for STARTTLS.
+    props.put(prefix + "ssl.socketFactory",
+              OAuth2SSLSocketFactory.getInstance());
+    if (!protocol.endsWith("s")) {
+      props.put(prefix + "socketFactory", OAuth2SocketFactory.getInstance());
+    }
+    // Otherwise JavaMail retries an aborted connect without our factories.
+    props.put(prefix + "socketFactory.fallback", "false");
+    props.putAll(extraProps);
+    return props;
+  }
+
+  private static final class Key {
+    final String protocol;
+    final String host;
+    final int port;
+    final boolean debug;
+    final Map<String, Object> extraProps;
+
+    Key(String protocol,
+        String host,
+        int port,
+        boolean debug,
+        Map<String, Object> extraProps) {
+      this.protocol = protocol;
+      this.host = host.toLowerCase(Locale.ROOT);
+      this.port = port;
+      this.debug = debug;
+      this.extraProps = extraProps;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return port == other.port
+          && debug == other.debug
+          && protocol.equals(other.protocol)
+          && host.equals(other.host)
+          && extraProps.equals(other.extraProps);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = protocol.hashCode();
+      hash = hash * 31 + host.hashCode();
+      hash = hash * 31 + port;
+      hash = hash * 31 + (debug ? 1 : 0);
+      return hash * 31 + extraProps.hashCode();
+    }
+  }
+}
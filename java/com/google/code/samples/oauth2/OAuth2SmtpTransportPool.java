@@ -0,0 +1,415 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+
+/**
+ * Sends mail over SMTP transports that stay authenticated between messages.
+ *
+ * <p>Transports are kept per (host, port, userEmail) and reused for later
+ * sends, with an RSET issued before each reuse to clear any leftover
+ * transaction state. If the server has dropped an idle connection, the pool
+ * reconnects and retries the send once. At most {@code
+ * maxTransportsPerAccount} transports are in use for an account at any time,
+ * which keeps bulk senders under Gmail's per-account connection limits.
+ *
+ * <p>Transports left idle for longer than the idle timeout are closed by
+ * {@code evictIdleTransports}, which sends also run every so often, so
+ * accounts that stop sending do not keep their connections open. An account
+ * with no transports left is forgotten.
+ *
+ * <p>New transports are opened with {@link OAuth2Authenticator#connectToSmtp},
+ * so you must have called {@code OAuth2Authenticator.initialize}.
+ */
+public class OAuth2SmtpTransportPool {
+  private static final Logger logger =
+      Logger.getLogger(OAuth2SmtpTransportPool.class.getName());
+
+  private final int maxTransportsPerAccount;
+  private final long idleTimeoutMillis;
+  private final long acquireTimeoutMillis;
+
+  private final ConcurrentMap<String, Account> accounts =
+      new ConcurrentHashMap<String, Account>();
+  private volatile boolean closed = false;
+  private final AtomicLong lastSweepMillis =
+      new AtomicLong(System.currentTimeMillis());
+
+  private final AtomicLong connectCount = new AtomicLong();
+  private final AtomicLong reuseCount = new AtomicLong();
+  private final AtomicLong reconnectCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Creates a new pool.
+   *
+   * @param maxTransportsPerAccount Maximum number of transports used
+   *     concurrently for one account.
+   * @param idleTimeoutMillis Transports idle for longer than this are closed
+   *     rather than reused, and are reaped by the sweep that sends run every
+   *     half of this.
+   * @param acquireTimeoutMillis How long a send waits for one of the
+   *     account's transports to become free.
+   */
+  public OAuth2SmtpTransportPool(int maxTransportsPerAccount,
+                                 long idleTimeoutMillis,
+                                 long acquireTimeoutMillis) {
+    if (maxTransportsPerAccount < 1) {
+      throw new IllegalArgumentException(
+          "maxTransportsPerAccount must be positive");
+    }
+    this.maxTransportsPerAccount = maxTransportsPerAccount;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+  }
+
+  /**
+   * Sends a message, reusing an authenticated transport if one is idle.
+   *
+   * @param host Hostname of the smtp server, for example {@code
+   *     smtp.googlemail.com}.
+   * @param port Port of the smtp server, for example 587.
+   * @param userEmail Email address of the user to authenticate.
+   * @param oauthToken The user's OAuth token, used whenever a transport has
+   *     to be (re)connected.
+   * @param message The message to send.
+   * @param recipients The envelope recipients.
+   *
+   * @throws TimeoutException If all of the account's transports stayed busy
+   *     for longer than the acquire timeout.
+   */
+  public void sendMessage(String host,
+                          int port,
+                          String userEmail,
+                          String oauthToken,
+                          Message message,
+                          Address[] recipients) throws Exception {
+    if (closed) {
+      throw new IllegalStateException("Pool is closed");
+    }
+    maybeEvictIdleTransports();
+    Account account = acquireAccount(host, port, userEmail);
+    try {
+      if (!account.permits.tryAcquire(acquireTimeoutMillis,
+                                      TimeUnit.MILLISECONDS)) {
+        throw new TimeoutException(
+            "Timed out waiting for an SMTP transport for " + userEmail);
+      }
+      try {
+        send(account, host, port, userEmail, oauthToken, message,
+             recipients);
+      } finally {
+        account.permits.release();
+      }
+    } finally {
+      releaseAccount(account);
+    }
+  }
+
+  /**
+   * Closes idle transports that have exceeded the idle timeout, across all
+   * accounts, and forgets accounts left with no transports. Sends call this
+   * every half idle timeout; callers that stop sending may call it
+   * themselves.
+   *
+   * @return The number of transports that were closed.
+   */
+  public int evictIdleTransports() {
+    lastSweepMillis.set(System.currentTimeMillis());
+    List<PooledTransport> evicted = new ArrayList<PooledTransport>();
+    for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+      Account account = entry.getValue();
+      synchronized (account) {
+        Iterator<PooledTransport> it = account.idle.iterator();
+        while (it.hasNext()) {
+          PooledTransport pooled = it.next();
+          if (isExpired(pooled)) {
+            it.remove();
+            evicted.add(pooled);
+          }
+        }
+        if (account.idle.isEmpty() && account.users == 0) {
+          account.retired = true;
+          accounts.remove(entry.getKey(), account);
+        }
+      }
+    }
+    for (PooledTransport pooled : evicted) {
+      closeQuietly(pooled.transport);
+    }
+    evictionCount.addAndGet(evicted.size());
+    return evicted.size();
+  }
+
+  /**
+   * Closes all idle transports and rejects further sends. Transports in use
+   * are closed when their send completes.
+   */
+  public void close() {
+    closed = true;
+    for (Account account : accounts.values()) {
+      List<PooledTransport> idle;
+      synchronized (account) {
+        idle = new ArrayList<PooledTransport>(account.idle);
+        account.idle.clear();
+      }
+      for (PooledTransport pooled : idle) {
+        closeQuietly(pooled.transport);
+      }
+    }
+  }
+
+  /** Returns the number of transports that were newly connected. */
+  public long getConnectCount() {
+    return connectCount.get();
+  }
+
+  /** Returns the number of sends that reused an idle transport. */
+  public long getReuseCount() {
+    return reuseCount.get();
+  }
+
+  /** Returns the number of sends that had to reconnect a dropped transport. */
+  public long getReconnectCount() {
+    return reconnectCount.get();
+  }
+
+  /** Returns the number of idle transports closed for being idle too long. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Returns the number of accounts the pool is keeping transports for. */
+  public int getAccountCount() {
+    return accounts.size();
+  }
+
+  private void send(Account account,
+                    String host,
+                    int port,
+                    String userEmail,
+                    String oauthToken,
+                    Message message,
+                    Address[] recipients) throws Exception {
+    PooledTransport pooled = takeIdleTransport(account);
+    if (pooled == null) {
+      pooled = connect(host, port, userEmail, oauthToken);
+    }
+    try {
+      pooled.transport.sendMessage(message, recipients);
+    } catch (SendFailedException e) {
+      // Bad recipients; the connection itself is still fine.
+      release(account, pooled);
+      throw e;
+    } catch (MessagingException e) {
+      if (pooled.isFresh || pooled.transport.isConnected()) {
+        closeQuietly(pooled.transport);
+        throw e;
+      }
+      // The server dropped the connection while it sat in the pool.
+      pooled = reconnectAndSend(account, pooled, host, port, userEmail,
+                                oauthToken, message, recipients, e);
+    } catch (IllegalStateException e) {
+      // sendMessage refuses a transport that is already closed, as it is
+      // when the RSET before reuse found the connection gone.
+      if (pooled.isFresh) {
+        closeQuietly(pooled.transport);
+        throw e;
+      }
+      pooled = reconnectAndSend(account, pooled, host, port, userEmail,
+                                oauthToken, message, recipients, e);
+    }
+    release(account, pooled);
+  }
+
+  private PooledTransport reconnectAndSend(Account account,
+                                           PooledTransport dropped,
+                                           String host,
+                                           int port,
+                                           String userEmail,
+                                           String oauthToken,
+                                           Message message,
+                                           Address[] recipients,
+                                           Exception cause)
+      throws Exception {
+    logger.log(Level.FINE, "Reconnecting dropped SMTP transport", cause);
+    closeQuietly(dropped.transport);
+    reconnectCount.incrementAndGet();
+    PooledTransport pooled = connect(host, port, userEmail, oauthToken);
+    try {
+      pooled.transport.sendMessage(message, recipients);
+    } catch (SendFailedException e) {
+      release(account, pooled);
+      throw e;
+    } catch (MessagingException e) {
+      closeQuietly(pooled.transport);
+      throw e;
+    }
+    return pooled;
+  }
+
+  private void maybeEvictIdleTransports() {
+    long last = lastSweepMillis.get();
+    long now = System.currentTimeMillis();
+    if (now - last >= idleTimeoutMillis / 2
+        && lastSweepMillis.compareAndSet(last, now)) {
+      evictIdleTransports();
+    }
+  }
+
+  /**
+   * Returns the account's entry, counting this send as one of its users so
+   * that a concurrent sweep does not forget it.
+   */
+  private Account acquireAccount(String host, int port, String userEmail) {
+    String key = host.toLowerCase(Locale.ROOT) + ":" + port + ":" + userEmail;
+    while (true) {
+      Account account = accounts.get(key);
+      if (account == null) {
+        Account newAccount = new Account(maxTransportsPerAccount);
+        account = accounts.putIfAbsent(key, newAccount);
+        if (account == null) {
+          account = newAccount;
+        }
+      }
+      synchronized (account) {
+        if (!account.retired) {
+          account.users++;
+          return account;
+        }
+      }
+      // Swept just now; the sweep has removed it, so make a new one.
+    }
+  }
+
+  private void releaseAccount(Account account) {
+    synchronized (account) {
+      account.users--;
+    }
+  }
+
+  private PooledTransport takeIdleTransport(Account account) {
+    while (true) {
+      PooledTransport pooled;
+      synchronized (account) {
+        pooled = account.idle.pollFirst();
+      }
+      if (pooled == null) {
+        return null;
+      }
+      if (isExpired(pooled)) {
+        closeQuietly(pooled.transport);
+        evictionCount.incrementAndGet();
+        continue;
+      }
+      try {
+        // Clear any state left over from the previous transaction.
+        pooled.transport.issueCommand("RSET", 250);
+      } catch (MessagingException e) {
+        // Most likely dropped by the server; sendMessage will reconnect.
+        logger.log(Level.FINE, "RSET failed on pooled SMTP transport", e);
+      }
+      pooled.isFresh = false;
+      reuseCount.incrementAndGet();
+      return pooled;
+    }
+  }
+
+  private boolean isExpired(PooledTransport pooled) {
+    return System.currentTimeMillis() - pooled.lastUsedMillis
+        >= idleTimeoutMillis;
+  }
+
+  private PooledTransport connect(String host,
+                                  int port,
+                                  String userEmail,
+                                  String oauthToken) throws Exception {
+    SMTPTransport transport = OAuth2Authenticator.connectToSmtp(host,
+                                                                port,
+                                                                userEmail,
+                                                                oauthToken,
+                                                                false);
+    connectCount.incrementAndGet();
+    return new PooledTransport(transport);
+  }
+
+  private void release(Account account, PooledTransport pooled) {
+    synchronized (account) {
+      if (!closed) {
+        pooled.lastUsedMillis = System.currentTimeMillis();
+        account.idle.addFirst(pooled);
+        return;
+      }
+    }
+    closeQuietly(pooled.transport);
+  }
+
+  private static void closeQuietly(SMTPTransport transport) {
+    try {
+      transport.close();
+    } catch (MessagingException e) {
+      logger.log(Level.FINE, "Failed to close pooled SMTP transport", e);
+    }
+  }
+
+  private static final class Account {
+    final Semaphore permits;
+    // The following are guarded by the account itself.
+    // Most recently used first. Sends take from the front, so when fewer
+    // transports are needed than are open, the surplus stays at the back
+    // until it times out, rather than being kept alive by rotation.
+    final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+    // Sends holding this entry; it is only removed while there are none.
+    int users = 0;
+    boolean retired = false;
+
+    Account(int maxTransports) {
+      this.permits = new Semaphore(maxTransports, true);
+    }
+  }
+
+  private static final class PooledTransport {
+    final SMTPTransport transport;
+    long lastUsedMillis = System.currentTimeMillis();
+    boolean isFresh = true;
+
+    PooledTransport(SMTPTransport transport) {
+      this.transport = transport;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+
+/**
+ * Creates the plain sockets used for OAuth2 connections.
+ *
+ * <p>JavaMail asks the factory for an unconnected socket and connects it
+ * itself. Sockets are registered with the calling thread's ConnectContext,
+ * if any, so that an asynchronous connect can be aborted, and time their TCP
+ * connect if the connect is being timed.
+ */
+class OAuth2SocketFactory extends SocketFactory {
+  private static final OAuth2SocketFactory instance =
+      new OAuth2SocketFactory();
+
+  static OAuth2SocketFactory getInstance() {
+    return instance;
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    ConnectContext context = ConnectContext.current();
+    if (context == null) {
+      return new Socket();
+    }
+    ConnectTimer timer = context.getTimer();
+    Socket socket = timer == null ? new Socket() : new TimedSocket(timer);
+    context.registerSocket(socket);
+    return socket;
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    Socket socket = createSocket();
+    socket.connect(new InetSocketAddress(host, port));
+    return socket;
+  }
+
+  @Override
+  public Socket createSocket(String host,
+                             int port,
+                             InetAddress localHost,
+                             int localPort) throws IOException {
+    Socket socket = createSocket();
+    socket.bind(new InetSocketAddress(localHost, localPort));
+    socket.connect(new InetSocketAddress(host, port));
+    return socket;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    Socket socket = createSocket();
+    socket.connect(new InetSocketAddress(host, port));
+    return socket;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address,
+                             int port,
+                             InetAddress localAddress,
+                             int localPort) throws IOException {
+    Socket socket = createSocket();
+    socket.bind(new InetSocketAddress(localAddress, localPort));
+    socket.connect(new InetSocketAddress(address, port));
+    return socket;
+  }
+}
@@ -0,0 +1,162 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A TokenRefresher that exchanges refresh tokens for access tokens at an
+ * OAuth2 token endpoint.
+ *
+ * <p>See https://developers.google.com/accounts/docs/OAuth2InstalledApp#refresh
+ */
+public class OAuth2TokenEndpoint implements TokenRefresher {
+  public static final String GOOGLE_TOKEN_ENDPOINT =
+      "https://accounts.google.com/o/oauth2/token";
+
+  private static final Pattern ACCESS_TOKEN_PATTERN =
+      Pattern.compile("\"access_token\"\\s*:\\s*\"([^\"]*)\"");
+  private static final Pattern EXPIRES_IN_PATTERN =
+      Pattern.compile("\"expires_in\"\\s*:\\s*\"?(\\d+)");
+  private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+  private final String tokenEndpointUrl;
+  private final String clientId;
+  private final String clientSecret;
+  private final ConcurrentMap<String, String> refreshTokens =
+      new ConcurrentHashMap<String, String>();
+
+  private volatile MappedTokenStore refreshTokenStore;
+
+  private int connectTimeoutMillis = 10000;
+  private int readTimeoutMillis = 10000;
+
+  /**
+   * @param tokenEndpointUrl URL of the token endpoint, for example {@link
+   *     #GOOGLE_TOKEN_ENDPOINT}.
+   * @param clientId Client ID obtained by registering your app.
+   * @param clientSecret Client secret obtained by registering your app.
+   */
+  public OAuth2TokenEndpoint(String tokenEndpointUrl,
+                             String clientId,
+                             String clientSecret) {
+    this.tokenEndpointUrl = tokenEndpointUrl;
+    this.clientId = clientId;
+    this.clientSecret = clientSecret;
+  }
+
+  /**
+   * Registers the refresh token to use for a user.
+   */
+  public void setRefreshToken(String userEmail, String refreshToken) {
+    refreshTokens.put(userEmail, refreshToken);
+  }
+
+  /**
+   * Looks up refresh tokens not registered with {@code setRefreshToken} in
+   * {@code store}, so that they need not be held in memory.
+   */
+  public void setRefreshTokenStore(MappedTokenStore store) {
+    this.refreshTokenStore = store;
+  }
+
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public AccessToken refreshToken(String userEmail) throws IOException {
+    String refreshToken = refreshTokens.get(userEmail);
+    MappedTokenStore store = refreshTokenStore;
+    if (refreshToken == null && store != null) {
+      refreshToken = store.getRefreshToken(userEmail);
+    }
+    if (refreshToken == null) {
+      throw new IOException("No refresh token registered for " + userEmail);
+    }
+    byte[] body = ("client_id=" + URLEncoder.encode(clientId, "UTF-8")
+        + "&client_secret=" + URLEncoder.encode(clientSecret, "UTF-8")
+        + "&refresh_token=" + URLEncoder.encode(refreshToken, "UTF-8")
+        + "&grant_type=refresh_token").getBytes("UTF-8");
+
+    long requestTime = System.currentTimeMillis();
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(tokenEndpointUrl).openConnection();
+    try {
+      connection.setConnectTimeout(connectTimeoutMillis);
+      connection.setReadTimeout(readTimeoutMillis);
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type",
+                                    "application/x-www-form-urlencoded");
+      connection.setFixedLengthStreamingMode(body.length);
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+
+      int status = connection.getResponseCode();
+      InputStream in = status < 400
+          ? connection.getInputStream() : connection.getErrorStream();
+      String response = in == null ? "" : readFully(in);
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Token endpoint returned " + status
+                              + " for " + userEmail + ": " + response);
+      }
+
+      Matcher tokenMatcher = ACCESS_TOKEN_PATTERN.matcher(response);
+      if (!tokenMatcher.find()) {
+        throw new IOException("No access_token in token endpoint response");
+      }
+      long expiresInSeconds = DEFAULT_EXPIRES_IN_SECONDS;
+      Matcher expiresMatcher = EXPIRES_IN_PATTERN.matcher(response);
+      if (expiresMatcher.find()) {
+        expiresInSeconds = Long.parseLong(expiresMatcher.group(1));
+      }
+      return new AccessToken(tokenMatcher.group(1),
+                             requestTime + expiresInSeconds * 1000);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] chunk = new byte[1024];
+      int n;
+      while ((n = in.read(chunk)) != -1) {
+        buffer.write(chunk, 0, n);
+      }
+      return buffer.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.security.auth.callback.CallbackHandler;
+
+
+/**
+ * An OAUTHBEARER (RFC 7628) implementation of SaslClient.
+ *
+ * <p>The exchange is the same as XOAUTH2's apart from the framing: the
+ * initial response is {@code n,a=<user>,^Ahost=<host>^Aport=<port>^Aauth=Bearer
+ * <token>^A^A}, and an error challenge is answered with a single ^A.
+ */
+class OAuthBearerSaslClient extends OAuth2SaslClient {
+  private static final byte[] ERROR_RESPONSE = { 1 };
+
+  private final String host;
+  private final int port;
+
+  /**
+   * @param host The server's host name, or null to leave it out.
+   * @param port The server's port, or -1 to leave it out.
+   */
+  OAuthBearerSaslClient(String oauthToken,
+                        CallbackHandler callbackHandler,
+                        String host,
+                        int port) {
+    super(oauthToken, callbackHandler);
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * @param host The server's host name, or null to leave it out.
+   * @param port The server's port, or -1 to leave it out.
+   */
+  OAuthBearerSaslClient(TokenProvider tokenProvider,
+                        CallbackHandler callbackHandler,
+                        String host,
+                        int port) {
+    super(tokenProvider, callbackHandler);
+    this.host = host;
+    this.port = port;
+  }
+
+  @Override
+  public String getMechanismName() {
+    return "OAUTHBEARER";
+  }
+
+  @Override
+  byte[] encodeResponse(String email, String token) {
+    StringBuilder response =
+        new StringBuilder(40 + email.length() + token.length());
+    response.append("n,a=");
+    // A saslname escapes the characters that delimit the GS2 header.
+    for (int i = 0; i < email.length(); i++) {
+      char c = email.charAt(i);
+      if (c == ',') {
+        response.append("=2C");
+      } else if (c == '=') {
+        response.append("=3D");
+      } else {
+        response.append(c);
+      }
+    }
+    response.append(",\1");
+    if (host != null) {
+      response.append("host=").append(host).append('\1');
+    }
+    if (port >= 0) {
+      response.append("port=").append(port).append('\1');
+    }
+    response.append("auth=Bearer ").append(token).append("\1\1");
+    return response.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  byte[] errorResponse() {
+    return ERROR_RESPONSE.clone();
+  }
+}
@@ -0,0 +1,83 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.Random;
+
+
+/**
+ * How often, and how far apart, a ConnectRetrier retries one class of
+ * failure.
+ *
+ * <p>Delays use decorrelated jitter: each delay is drawn uniformly between
+ * the base delay and three times the previous delay, capped at the maximum.
+ * This spreads out the retries of many clients that failed together while
+ * still backing off roughly exponentially.
+ */
+public final class RetryPolicy {
+  /** Never retries. */
+  public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  /**
+   * @param maxAttempts Total number of attempts, including the first.
+   * @param baseDelayMillis The shortest delay between attempts.
+   * @param maxDelayMillis The longest delay between attempts.
+   */
+  public RetryPolicy(int maxAttempts,
+                     long baseDelayMillis,
+                     long maxDelayMillis) {
+    if (maxAttempts < 1 || baseDelayMillis < 0
+        || maxDelayMillis < baseDelayMillis) {
+      throw new IllegalArgumentException(
+          "Need maxAttempts >= 1 and 0 <= baseDelayMillis <= maxDelayMillis");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getBaseDelayMillis() {
+    return baseDelayMillis;
+  }
+
+  public long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  /**
+   * Returns the delay before the next attempt, given the previous delay (0
+   * before the first retry). The first retry is treated as following a delay
+   * of the base, so it is jittered too.
+   */
+  long nextDelayMillis(long previousDelayMillis, Random random) {
+    long previous = Math.max(baseDelayMillis, previousDelayMillis);
+    long upper = previous > maxDelayMillis / 3
+        ? maxDelayMillis : Math.max(baseDelayMillis, previous * 3);
+    if (upper <= baseDelayMillis) {
+      return baseDelayMillis;
+    }
+    return baseDelayMillis
+        + (long) (random.nextDouble() * (upper - baseDelayMillis));
+  }
+}
@@ -0,0 +1,41 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+
+/**
+ * A plain socket that reports how long its TCP connect takes to a
+ * ConnectTimer.
+ */
+final class TimedSocket extends Socket {
+  private final ConnectTimer timer;
+
+  TimedSocket(ConnectTimer timer) {
+    this.timer = timer;
+  }
+
+  @Override
+  public void connect(SocketAddress endpoint, int timeout)
+      throws IOException {
+    timer.tcpConnectStarted();
+    super.connect(endpoint, timeout);
+    timer.tcpConnectFinished();
+  }
+}
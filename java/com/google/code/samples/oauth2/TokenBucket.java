@@ -0,0 +1,68 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A token bucket rate limiter.
+ *
+ * <p>Permits accrue at {@code permitsPerSecond} up to {@code burst}. A caller
+ * that finds the bucket empty reserves the next permit and sleeps until it
+ * is due, so waiting callers are served in the order they arrived.
+ */
+final class TokenBucket {
+  private final double permitsPerNano;
+  private final double burst;
+
+  private double available;
+  private long lastRefillNanos;
+
+  TokenBucket(double permitsPerSecond, double burst) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException(
+          "permitsPerSecond must be positive and burst at least 1");
+    }
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = burst;
+    this.available = burst;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Takes one permit, sleeping until it is available.
+   */
+  void acquire() throws InterruptedException {
+    long waitNanos = reserve();
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Takes one permit and returns how long the caller must wait before using
+   * it. The balance goes negative while permits are reserved ahead.
+   */
+  synchronized long reserve() {
+    long now = System.nanoTime();
+    available = Math.min(burst,
+                         available + (now - lastRefillNanos) * permitsPerNano);
+    lastRefillNanos = now;
+    available -= 1;
+    return available >= 0 ? 0 : (long) (-available / permitsPerNano);
+  }
+}
@@ -0,0 +1,742 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+
+/**
+ * Checks whether OAuth tokens still work for IMAP, without setting up a
+ * JavaMail store for each.
+ *
+ * <p>A probe connects over TLS, waits for the greeting, authenticates with
+ * the same XOAUTH2 initial response OAuth2SaslClient sends, and logs out.
+ * All probes run on one selector thread using SSLEngine, so a single
+ * TokenProbe can check thousands of tokens at once. Probes beyond {@code
+ * maxConcurrent} wait for a free slot.
+ *
+ * <p>Futures are completed on the probe thread, so dependent actions that
+ * run there must not block.
+ */
+public class TokenProbe implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(TokenProbe.class.getName());
+
+  private static final Charset ASCII = StandardCharsets.US_ASCII;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+  // A server line longer than this fails the probe.
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+  // How often timeouts are checked.
+  private static final long SWEEP_MILLIS = 50;
+
+  /** The outcome of one probe. */
+  public static final class Result {
+    private final String userEmail;
+    private final FailureClass failureClass;
+    private final XOAuth2Error error;
+    private final String message;
+    private final long latencyNanos;
+
+    Result(String userEmail,
+           FailureClass failureClass,
+           XOAuth2Error error,
+           String message,
+           long latencyNanos) {
+      this.userEmail = userEmail;
+      this.failureClass = failureClass;
+      this.error = error;
+      this.message = message;
+      this.latencyNanos = latencyNanos;
+    }
+
+    public String getUserEmail() {
+      return userEmail;
+    }
+
+    /** Returns whether the server accepted the token. */
+    public boolean isValid() {
+      return failureClass == FailureClass.NONE;
+    }
+
+    /**
+     * Returns why the probe failed, or NONE if the token was accepted.
+     * AUTHENTICATION means the token itself was rejected.
+     */
+    public FailureClass getFailureClass() {
+      return failureClass;
+    }
+
+    /** Returns the error challenge the server sent, or null. */
+    public XOAuth2Error getError() {
+      return error;
+    }
+
+    /**
+     * Returns the server's final response to the authentication, or a
+     * description of the failure.
+     */
+    public String getMessage() {
+      return message;
+    }
+
+    /**
+     * Returns the time from the start of the connect to the server's answer
+     * to the authentication.
+     */
+    public double getLatencyMillis() {
+      return latencyNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return userEmail + "\t" + failureClass
+          + (error == null ? "" : "\t" + error.getStatus())
+          + String.format("\t%.1fms", getLatencyMillis());
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final String host;
+  private final SSLContext sslContext;
+  private final int maxConcurrent;
+  private final long timeoutNanos;
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  // Only touched by the probe thread. Active probes are kept in start order,
+  // which is also deadline order.
+  private final ArrayDeque<Probe> waiting = new ArrayDeque<Probe>();
+  private final LinkedHashSet<Probe> active = new LinkedHashSet<Probe>();
+  private ByteBuffer netBuffer;
+  private ByteBuffer appBuffer;
+  private ByteBuffer wrapBuffer;
+  private final ByteBuffer[] gather = new ByteBuffer[4];
+
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a probe for {@code host:port} that uses the JVM's default TLS
+   * context, runs up to 1000 probes at once and gives each 30 seconds.
+   */
+  public TokenProbe(String host, int port) throws IOException {
+    this(host, port, defaultContext(), 1000, 30000);
+  }
+
+  /**
+   * @param sslContext Used for TLS; a context from {@code
+   *     OAuth2Authenticator.createSSLContext} lets probes resume sessions.
+   * @param maxConcurrent Maximum number of connections open at once.
+   * @param timeoutMillis Time limit for each probe, from the time it
+   *     starts connecting.
+   */
+  public TokenProbe(String host,
+                    int port,
+                    SSLContext sslContext,
+                    int maxConcurrent,
+                    long timeoutMillis) throws IOException {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("maxConcurrent must be positive");
+    }
+    this.host = host;
+    // Resolved once; every probe goes to the same address.
+    this.address = new InetSocketAddress(host, port);
+    if (address.isUnresolved()) {
+      throw new IOException("Unknown host " + host);
+    }
+    this.sslContext = sslContext;
+    this.maxConcurrent = maxConcurrent;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    // Sized for the largest TLS record, so no probe ever needs more.
+    SSLEngine engine = sslContext.createSSLEngine();
+    netBuffer = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    appBuffer = ByteBuffer.allocate(
+        engine.getSession().getApplicationBufferSize());
+    wrapBuffer = ByteBuffer.allocate(
+        engine.getSession().getPacketBufferSize());
+    selector = Selector.open();
+    thread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "oauth2-token-probe");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Checks {@code oauthToken} for {@code userEmail}. The future completes
+   * with the result, which describes any failure; it only completes
+   * exceptionally if the TokenProbe is closed first.
+   */
+  public CompletableFuture<Result> probe(String userEmail, String oauthToken) {
+    final Probe probe = new Probe(userEmail, oauthToken);
+    if (closed) {
+      probe.future.completeExceptionally(new IOException("TokenProbe closed"));
+      return probe.future;
+    }
+    execute(new Runnable() {
+      public void run() {
+        waiting.add(probe);
+        startWaiting();
+      }
+    });
+    return probe.future;
+  }
+
+  /**
+   * Stops the probe thread. Probes still running or waiting fail.
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  private void loop() {
+    try {
+      while (!closed) {
+        selector.select(SWEEP_MILLIS);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          Probe probe = (Probe) key.attachment();
+          try {
+            if (key.isConnectable()) {
+              probe.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+              probe.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              probe.flush();
+            }
+          } catch (IOException e) {
+            probe.fail(e);
+          } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Probe failed", e);
+            probe.fail(e);
+          }
+        }
+        expireProbes();
+        startWaiting();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Selector failed", e);
+    } finally {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        // Queues probes submitted while closing, so they fail below.
+        task.run();
+      }
+      IOException closedException = new IOException("TokenProbe closed");
+      for (Probe probe : new ArrayList<Probe>(active)) {
+        probe.fail(closedException);
+      }
+      for (Probe probe : waiting) {
+        probe.future.completeExceptionally(closedException);
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private void startWaiting() {
+    while (active.size() < maxConcurrent && !waiting.isEmpty()) {
+      Probe probe = waiting.poll();
+      try {
+        probe.start();
+      } catch (IOException e) {
+        probe.fail(e);
+      }
+    }
+  }
+
+  private void expireProbes() {
+    long now = System.nanoTime();
+    Iterator<Probe> probes = active.iterator();
+    while (probes.hasNext()) {
+      Probe probe = probes.next();
+      if (now - probe.startNanos < timeoutNanos) {
+        break;
+      }
+      probes.remove();
+      probe.fail(new TimeoutException("Probe timed out"));
+    }
+  }
+
+  private enum State { CONNECTING, GREETING, AUTHENTICATING, LOGGING_OUT }
+
+  /**
+   * One connection, from connect to logout. Only touched by the probe
+   * thread.
+   */
+  private final class Probe {
+    final String userEmail;
+    final String oauthToken;
+    final CompletableFuture<Result> future = new CompletableFuture<Result>();
+
+    long startNanos;
+    SocketChannel channel;
+    SelectionKey key;
+    SSLEngine engine;
+    State state = State.CONNECTING;
+    // Decrypted text not yet handled, in write mode, and an incomplete TLS
+    // record, in read mode.
+    ByteBuffer lineBuffer = ByteBuffer.allocate(256);
+    ByteBuffer netLeftover;
+    final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    ByteBuffer pending;
+    boolean responseSent = false;
+    XOAuth2Error error;
+    boolean closed = false;
+
+    Probe(String userEmail, String oauthToken) {
+      this.userEmail = userEmail;
+      this.oauthToken = oauthToken;
+    }
+
+    void start() throws IOException {
+      startNanos = System.nanoTime();
+      active.add(this);
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      engine = sslContext.createSSLEngine(host, address.getPort());
+      engine.setUseClientMode(true);
+      SSLParameters parameters = engine.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      engine.setSSLParameters(parameters);
+      if (channel.connect(address)) {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        connected();
+      } else {
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+      }
+    }
+
+    void onConnectable() throws IOException {
+      channel.finishConnect();
+      key.interestOps(SelectionKey.OP_READ);
+      connected();
+    }
+
+    private void connected() throws IOException {
+      state = State.GREETING;
+      engine.beginHandshake();
+      flush();
+    }
+
+    void onReadable() throws IOException {
+      ByteBuffer net = netBuffer;
+      net.clear();
+      if (netLeftover != null) {
+        net.put(netLeftover);
+        netLeftover = null;
+      }
+      int n = channel.read(net);
+      net.flip();
+      unwrap(net);
+      if (closed) {
+        return;
+      }
+      handleLines();
+      if (n < 0 && !closed) {
+        fail(new EOFException("Connection closed by server"));
+        return;
+      }
+      flush();
+    }
+
+    private void unwrap(ByteBuffer net) throws IOException {
+      ByteBuffer app = appBuffer;
+      while (!closed) {
+        app.clear();
+        SSLEngineResult result = engine.unwrap(net, app);
+        app.flip();
+        ensureLineSpace(app.remaining());
+        lineBuffer.put(app);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED
+            || result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+          break;
+        }
+        boolean progressed =
+            result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == HandshakeStatus.NEED_TASK) {
+          runDelegatedTasks();
+          progressed = true;
+          status = engine.getHandshakeStatus();
+        }
+        if (status == HandshakeStatus.NEED_WRAP) {
+          flush();
+          progressed |= engine.getHandshakeStatus() != status;
+        }
+        if (!progressed || !net.hasRemaining()) {
+          break;
+        }
+      }
+      if (net.hasRemaining() && !closed) {
+        netLeftover = ByteBuffer.allocate(net.remaining());
+        netLeftover.put(net);
+        netLeftover.flip();
+      }
+    }
+
+    private void runDelegatedTasks() {
+      Runnable task;
+      while ((task = engine.getDelegatedTask()) != null) {
+        task.run();
+      }
+    }
+
+    private void ensureLineSpace(int needed) throws IOException {
+      if (lineBuffer.remaining() >= needed) {
+        return;
+      }
+      int capacity = lineBuffer.capacity();
+      while (capacity - lineBuffer.position() < needed) {
+        capacity *= 2;
+      }
+      if (capacity > MAX_LINE_LENGTH) {
+        throw new IOException("Server line too long");
+      }
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      lineBuffer.flip();
+      larger.put(lineBuffer);
+      lineBuffer = larger;
+    }
+
+    private void handleLines() throws IOException {
+      while (!closed) {
+        int end = -1;
+        for (int i = 0; i < lineBuffer.position(); i++) {
+          if (lineBuffer.get(i) == '\n') {
+            end = i;
+            break;
+          }
+        }
+        if (end < 0) {
+          return;
+        }
+        int length = end > 0 && lineBuffer.get(end - 1) == '\r'
+            ? end - 1 : end;
+        String line = new String(lineBuffer.array(), 0, length, ASCII);
+        lineBuffer.flip();
+        lineBuffer.position(end + 1);
+        lineBuffer.compact();
+        handleLine(line);
+      }
+    }
+
+    private void handleLine(String line) throws IOException {
+      switch (state) {
+        case GREETING:
+          if (!line.startsWith("* OK")) {
+            finish(line.startsWith("* BYE")
+                   ? FailureClass.UNAVAILABLE : FailureClass.PROTOCOL,
+                   line);
+            return;
+          }
+          state = State.AUTHENTICATING;
+          if (line.contains("[CAPABILITY") && !line.contains("SASL-IR")) {
+            write("a AUTHENTICATE XOAUTH2");
+          } else {
+            write("a AUTHENTICATE XOAUTH2 " + initialResponse());
+            responseSent = true;
+          }
+          break;
+        case AUTHENTICATING:
+          if (line.startsWith("+")) {
+            String challenge = line.length() > 2 ? line.substring(2) : "";
+            if (!responseSent) {
+              write(initialResponse());
+              responseSent = true;
+            } else {
+              // The error challenge; the tagged NO follows the empty
+              // response.
+              try {
+                error = XOAuth2Error.parse(
+                    Base64.getMimeDecoder().decode(challenge));
+              } catch (IllegalArgumentException e) {
+                logger.log(Level.FINE, "Bad challenge: " + challenge, e);
+              }
+              write("");
+            }
+          } else if (line.startsWith("a OK")) {
+            finish(FailureClass.NONE, line);
+          } else if (line.startsWith("a NO")) {
+            finish(classifyNo(line), line);
+          } else if (line.startsWith("a ")) {
+            finish(FailureClass.PROTOCOL, line);
+          }
+          // Untagged responses are of no interest.
+          break;
+        case LOGGING_OUT:
+          if (line.startsWith("b ")) {
+            close();
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    private FailureClass classifyNo(String line) {
+      if (error != null) {
+        return FailureClass.classifyStatus(error.getStatusCode());
+      }
+      FailureClass fromCode = FailureClass.classifyResponse(line);
+      if (fromCode != null) {
+        return fromCode;
+      }
+      return FailureClass.isThrottled(line)
+          ? FailureClass.THROTTLED : FailureClass.AUTHENTICATION;
+    }
+
+    private String initialResponse() {
+      return new String(
+          XOAuth2ResponseEncoder.encodeBase64(userEmail, oauthToken), ASCII);
+    }
+
+    /** Completes the future and logs out. */
+    private void finish(FailureClass failureClass, String message) {
+      complete(failureClass, message);
+      active.remove(this);
+      state = State.LOGGING_OUT;
+      write("b LOGOUT");
+    }
+
+    private void complete(FailureClass failureClass, String message) {
+      future.complete(new Result(userEmail, failureClass, error, message,
+                                 System.nanoTime() - startNanos));
+    }
+
+    void fail(Throwable failure) {
+      if (!future.isDone()) {
+        logger.log(Level.FINE, "Probe failed for " + userEmail, failure);
+        FailureClass failureClass = FailureClass.classify(failure);
+        if (failureClass == FailureClass.UNKNOWN
+            && failure instanceof IOException) {
+          // E.g. EOF, which classify only blames on the connection when
+          // JavaMail wraps it.
+          failureClass = FailureClass.CONNECTION;
+        }
+        complete(failureClass, failure.toString());
+      }
+      close();
+    }
+
+    private void write(String line) {
+      output.add(ByteBuffer.wrap((line + "\r\n").getBytes(ASCII)));
+    }
+
+    /**
+     * Sends as much queued output as the socket takes, and asks to be told
+     * when it can take more.
+     */
+    void flush() throws IOException {
+      while (!closed) {
+        if (pending != null) {
+          channel.write(pending);
+          if (pending.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+          }
+          pending = null;
+        }
+        ByteBuffer next = nextRecord();
+        if (next == null) {
+          break;
+        }
+        channel.write(next);
+        if (next.hasRemaining()) {
+          pending = ByteBuffer.allocate(next.remaining());
+          pending.put(next);
+          pending.flip();
+        }
+      }
+      if (!closed && key.isValid()
+          && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    /**
+     * Wraps handshake data or the queued output into the shared wrap buffer
+     * and returns it, or returns null if there is nothing to send yet.
+     */
+    private ByteBuffer nextRecord() throws SSLException {
+      HandshakeStatus status = engine.getHandshakeStatus();
+      if (status == HandshakeStatus.NEED_TASK) {
+        runDelegatedTasks();
+        status = engine.getHandshakeStatus();
+      }
+      ByteBuffer[] sources = gather;
+      int count = 0;
+      if (status == HandshakeStatus.NEED_WRAP) {
+        sources[count++] = EMPTY;
+      } else if (status == HandshakeStatus.NOT_HANDSHAKING) {
+        for (ByteBuffer buffer : output) {
+          if (count == sources.length) {
+            break;
+          }
+          sources[count++] = buffer;
+        }
+      }
+      if (count == 0) {
+        return null;
+      }
+      ByteBuffer wrapped = wrapBuffer;
+      wrapped.clear();
+      try {
+        engine.wrap(sources, 0, count, wrapped);
+      } finally {
+        Arrays.fill(sources, 0, count, null);
+      }
+      while (!output.isEmpty() && !output.peek().hasRemaining()) {
+        output.poll();
+      }
+      wrapped.flip();
+      return wrapped.hasRemaining() ? wrapped : null;
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      active.remove(this);
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "close failed", e);
+      }
+    }
+  }
+
+  private static SSLContext defaultContext() throws IOException {
+    try {
+      return SSLContext.getDefault();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("No default SSLContext", e);
+    }
+  }
+
+  /**
+   * Probes the tokens in {@code email<TAB>token} lines read from standard
+   * input, printing one line per account.
+   */
+  public static void main(String args[]) throws Exception {
+    if (args.length < 1 || args.length > 2) {
+      printUsage();
+      return;
+    }
+    String host = args[0];
+    int port = 993;
+    int maxConcurrent = 1000;
+    try {
+      int colon = host.lastIndexOf(':');
+      if (colon >= 0) {
+        port = Integer.parseInt(host.substring(colon + 1));
+        host = host.substring(0, colon);
+      }
+      if (args.length > 1) {
+        maxConcurrent = Integer.parseInt(args[1]);
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+      return;
+    }
+    TokenProbe prober = new TokenProbe(host, port, defaultContext(),
+                                       maxConcurrent, 30000);
+    List<CompletableFuture<Result>> results =
+        new ArrayList<CompletableFuture<Result>>();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] fields = line.split("\t");
+      if (fields.length == 2) {
+        results.add(prober.probe(fields[0], fields[1]));
+      }
+    }
+    for (CompletableFuture<Result> result : results) {
+      System.out.println(result.get());
+    }
+    prober.close();
+  }
+
+  private static void printUsage() {
+    System.err.println(
+        "Usage: TokenProbe <host[:port]> [maxConcurrent] < accounts.tsv");
+  }
+}
@@ -0,0 +1,44 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+
+
+/**
+ * Supplies OAuth2 access tokens for users at authentication time.
+ *
+ * <p>A TokenProvider can be placed in the session properties under {@link
+ * OAuth2SaslClientFactory#OAUTH_TOKEN_PROVIDER_PROP}, in which case the
+ * OAuth2SaslClient asks it for a token when the SASL exchange actually runs
+ * rather than having a token fixed when the session is built.
+ * Implementations must be thread-safe.
+ */
+public interface TokenProvider {
+  /**
+   * Returns a currently valid access token for the user.
+   *
+   * @param userEmail Email address of the user, for example {@code
+   *     oauth@gmail.com}.
+   */
+  String getToken(String userEmail) throws IOException;
+
+  /**
+   * Discards any cached token for the user, for example after the server has
+   * rejected it. The next call to {@code getToken} returns a fresh token.
+   */
+  void invalidate(String userEmail);
+}
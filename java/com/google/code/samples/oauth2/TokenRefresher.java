@@ -0,0 +1,31 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+
+
+/**
+ * Obtains a new access token for a user, typically by exchanging a refresh
+ * token at the OAuth2 token endpoint. Used by CachingTokenProvider.
+ */
+public interface TokenRefresher {
+  /**
+   * Fetches a new access token for the user. Implementations must be
+   * thread-safe.
+   */
+  AccessToken refreshToken(String userEmail) throws IOException;
+}
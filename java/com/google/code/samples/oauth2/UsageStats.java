@@ -0,0 +1,216 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * How recently and how often each account has been used, kept in a small
+ * local file so that the hottest accounts can be warmed up after a restart.
+ *
+ * <p>Each use adds one to an account's score, and scores halve every
+ * {@code halfLifeMillis}, so an account used often a week ago ranks below
+ * one used a few times today. Accounts whose score has decayed to almost
+ * nothing are left out of the file.
+ *
+ * <p>The file has one line per account: the email address, the score and
+ * the time the score was last updated, separated by tabs.
+ */
+public class UsageStats {
+  private static final Logger logger =
+      Logger.getLogger(UsageStats.class.getName());
+
+  // Scores below this are not saved.
+  private static final double MIN_SAVED_SCORE = 0.01;
+
+  private final Path file;
+  private final double halfLifeMillis;
+  private final ConcurrentMap<String, Entry> entries =
+      new ConcurrentHashMap<String, Entry>();
+
+  private static final class Entry {
+    private double score;
+    private long updatedMillis;
+
+    Entry(double score, long updatedMillis) {
+      this.score = score;
+      this.updatedMillis = updatedMillis;
+    }
+
+    synchronized void add(double amount, long nowMillis, double halfLife) {
+      score = decayed(nowMillis, halfLife) + amount;
+      updatedMillis = nowMillis;
+    }
+
+    synchronized double decayed(long nowMillis, double halfLife) {
+      long ageMillis = Math.max(0, nowMillis - updatedMillis);
+      return score * Math.pow(0.5, ageMillis / halfLife);
+    }
+  }
+
+  /**
+   * Creates empty stats that are saved to {@code file}.
+   *
+   * @param halfLifeMillis How long it takes for a use to count half as much.
+   */
+  public UsageStats(Path file, long halfLifeMillis) {
+    if (halfLifeMillis <= 0) {
+      throw new IllegalArgumentException("halfLifeMillis must be positive");
+    }
+    this.file = file;
+    this.halfLifeMillis = halfLifeMillis;
+  }
+
+  /**
+   * Reads stats saved to {@code file}. A missing file gives empty stats, and
+   * lines that cannot be parsed are skipped, so a damaged file never stops
+   * a service from starting.
+   */
+  public static UsageStats load(Path file, long halfLifeMillis)
+      throws IOException {
+    UsageStats stats = new UsageStats(file, halfLifeMillis);
+    BufferedReader reader;
+    try {
+      reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    } catch (NoSuchFileException e) {
+      return stats;
+    }
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length != 3) {
+          continue;
+        }
+        try {
+          Entry entry = new Entry(Double.parseDouble(fields[1]),
+                                  Long.parseLong(fields[2]));
+          stats.entries.put(fields[0], entry);
+        } catch (NumberFormatException e) {
+          logger.log(Level.FINE, "Skipping bad line in " + file, e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return stats;
+  }
+
+  /**
+   * Writes the stats to the file they were created with. The file is
+   * replaced in one step, so a crash while saving leaves the old one.
+   */
+  public void save() throws IOException {
+    long now = System.currentTimeMillis();
+    Path parent = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, file.getFileName().toString(),
+                                     ".tmp");
+    try {
+      BufferedWriter writer =
+          Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+      try {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          double score = entry.getValue().decayed(now, halfLifeMillis);
+          if (score < MIN_SAVED_SCORE) {
+            entries.remove(entry.getKey(), entry.getValue());
+            continue;
+          }
+          writer.write(entry.getKey() + "\t" + score + "\t" + now + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Records a use of {@code userEmail}'s account. */
+  public void recordUse(String userEmail) {
+    String key = userEmail.toLowerCase(Locale.ROOT);
+    long now = System.currentTimeMillis();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      Entry newEntry = new Entry(0, now);
+      entry = entries.putIfAbsent(key, newEntry);
+      if (entry == null) {
+        entry = newEntry;
+      }
+    }
+    entry.add(1, now, halfLifeMillis);
+  }
+
+  /** Returns {@code userEmail}'s current score, 0 if it was never used. */
+  public double getScore(String userEmail) {
+    Entry entry = entries.get(userEmail.toLowerCase(Locale.ROOT));
+    return entry == null
+        ? 0 : entry.decayed(System.currentTimeMillis(), halfLifeMillis);
+  }
+
+  /**
+   * Returns up to {@code count} of {@code userEmails} with the highest
+   * scores, highest first. Accounts that were never used are left out.
+   */
+  public List<String> getHottest(Collection<String> userEmails, int count) {
+    final long now = System.currentTimeMillis();
+    final Map<String, Double> scores = new HashMap<String, Double>();
+    Comparator<String> byScore = new Comparator<String>() {
+      public int compare(String a, String b) {
+        return Double.compare(scores.get(a), scores.get(b));
+      }
+    };
+    // Keeps the top count in a heap whose head is the coolest of them.
+    PriorityQueue<String> hottest =
+        new PriorityQueue<String>(Math.max(1, count), byScore);
+    for (String userEmail : userEmails) {
+      Entry entry = entries.get(userEmail.toLowerCase(Locale.ROOT));
+      if (entry == null || scores.containsKey(userEmail)) {
+        continue;
+      }
+      scores.put(userEmail, entry.decayed(now, halfLifeMillis));
+      hottest.add(userEmail);
+      if (hottest.size() > count) {
+        hottest.poll();
+      }
+    }
+    List<String> result = new ArrayList<String>(hottest);
+    Collections.sort(result, Collections.reverseOrder(byScore));
+    return result;
+  }
+}
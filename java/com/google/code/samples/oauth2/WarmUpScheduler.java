@@ -0,0 +1,190 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+
+/**
+ * Connects the most used accounts' LazyImapStores in the background after
+ * startup, so that their first real use does not wait for a connect.
+ *
+ * <p>Accounts are ranked by UsageStats, usually loaded from the file saved
+ * by the previous run, and connected hottest first with at most {@code
+ * maxConcurrency} connects in flight. {@code warmUp} returns at once, so
+ * startup time does not depend on the number of accounts. An account that
+ * fails to connect is left for its handle to connect on first use.
+ */
+public class WarmUpScheduler {
+  private static final Logger logger =
+      Logger.getLogger(WarmUpScheduler.class.getName());
+
+  private final ThreadPoolExecutor connectExecutor;
+  private final ScheduledExecutorService saveScheduler;
+
+  /**
+   * @param maxConcurrency Maximum number of warm-up connects in flight.
+   */
+  public WarmUpScheduler(int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("maxConcurrency must be positive");
+    }
+    connectExecutor = new ThreadPoolExecutor(
+        maxConcurrency, maxConcurrency, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), daemonThreads("oauth2-warm-up"));
+    // The threads go away once warm-up is done.
+    connectExecutor.allowCoreThreadTimeOut(true);
+    saveScheduler = new ScheduledThreadPoolExecutor(
+        1, daemonThreads("oauth2-usage-save"));
+  }
+
+  /**
+   * Starts connecting the {@code count} stores whose accounts have the
+   * highest scores in {@code usageStats}, and returns a future that
+   * completes with the number connected once every one has been tried.
+   * Accounts that were never used are not warmed up.
+   */
+  public CompletableFuture<Integer> warmUp(Collection<LazyImapStore> stores,
+                                           UsageStats usageStats,
+                                           int count) {
+    Map<String, List<LazyImapStore>> byUser =
+        new LinkedHashMap<String, List<LazyImapStore>>();
+    for (LazyImapStore store : stores) {
+      List<LazyImapStore> userStores = byUser.get(store.getUserEmail());
+      if (userStores == null) {
+        userStores = new ArrayList<LazyImapStore>(1);
+        byUser.put(store.getUserEmail(), userStores);
+      }
+      userStores.add(store);
+    }
+    List<LazyImapStore> hottest = new ArrayList<LazyImapStore>();
+    for (String userEmail : usageStats.getHottest(byUser.keySet(), count)) {
+      hottest.addAll(byUser.get(userEmail));
+    }
+    CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+    if (hottest.isEmpty()) {
+      done.complete(0);
+      return done;
+    }
+    AtomicInteger remaining = new AtomicInteger(hottest.size());
+    AtomicInteger connected = new AtomicInteger();
+    for (LazyImapStore store : hottest) {
+      connectExecutor.execute(
+          new WarmUpTask(store, remaining, connected, done));
+    }
+    return done;
+  }
+
+  /**
+   * Saves {@code usageStats} every {@code periodMillis}, so that the next
+   * run can warm up the accounts used in this one.
+   */
+  public void saveEvery(final UsageStats usageStats, long periodMillis) {
+    saveScheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          usageStats.save();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to save usage stats", e);
+        }
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Abandons warm-up connects that have not started and stops saving.
+   * Stores already connected stay connected, and the futures of abandoned
+   * warm-ups complete with the number connected so far.
+   */
+  public void close() {
+    for (Runnable task : connectExecutor.shutdownNow()) {
+      ((WarmUpTask) task).finish();
+    }
+    saveScheduler.shutdownNow();
+  }
+
+  /**
+   * Connects one store, and completes the warm-up's future if it is the
+   * last one.
+   */
+  private static final class WarmUpTask implements Runnable {
+    private final LazyImapStore store;
+    private final AtomicInteger remaining;
+    private final AtomicInteger connected;
+    private final CompletableFuture<Integer> done;
+
+    WarmUpTask(LazyImapStore store,
+               AtomicInteger remaining,
+               AtomicInteger connected,
+               CompletableFuture<Integer> done) {
+      this.store = store;
+      this.remaining = remaining;
+      this.connected = connected;
+      this.done = done;
+    }
+
+    public void run() {
+      try {
+        store.connect();
+        connected.incrementAndGet();
+      } catch (MessagingException e) {
+        logger.log(Level.FINE, "Warm-up failed for " + store.getUserEmail(),
+                   e);
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Warm-up failed for " + store.getUserEmail(),
+                   e);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING,
+                   "Warm-up failed for " + store.getUserEmail(), e);
+      } finally {
+        finish();
+      }
+    }
+
+    void finish() {
+      if (remaining.decrementAndGet() == 0) {
+        done.complete(connected.get());
+      }
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
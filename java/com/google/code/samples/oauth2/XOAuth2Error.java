@@ -0,0 +1,103 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * The error a server reports in response to a rejected XOAUTH2 initial
+ * response.
+ *
+ * <p>Before failing the exchange, the server sends a challenge holding a
+ * small JSON object, for example {@code {"status":"401","schemes":"bearer",
+ * "scope":"https://mail.google.com/"}}. The status follows HTTP: 400 and 401
+ * mean the token is invalid or expired, 429 that the user is being rate
+ * limited, and 5xx a server-side failure.
+ */
+public final class XOAuth2Error {
+  // The challenge is flat JSON with string values, so a full parser isn't
+  // needed.
+  private static final Pattern FIELD =
+      Pattern.compile("\"(\\w+)\"\\s*:\\s*\"([^\"]*)\"");
+
+  private final String status;
+  private final String schemes;
+  private final String scope;
+
+  XOAuth2Error(String status, String schemes, String scope) {
+    this.status = status;
+    this.schemes = schemes;
+    this.scope = scope;
+  }
+
+  /**
+   * Parses an error challenge, already base64-decoded, or returns null if
+   * it isn't one.
+   */
+  static XOAuth2Error parse(byte[] challenge) {
+    String json = new String(challenge, StandardCharsets.UTF_8);
+    String status = null;
+    String schemes = null;
+    String scope = null;
+    Matcher matcher = FIELD.matcher(json);
+    while (matcher.find()) {
+      String name = matcher.group(1);
+      if (name.equals("status")) {
+        status = matcher.group(2);
+      } else if (name.equals("schemes")) {
+        schemes = matcher.group(2);
+      } else if (name.equals("scope")) {
+        scope = matcher.group(2);
+      }
+    }
+    return status == null ? null : new XOAuth2Error(status, schemes, scope);
+  }
+
+  /** Returns the status, for example "401". */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Returns the status as a number, or -1 if it isn't one.
+   */
+  public int getStatusCode() {
+    try {
+      return Integer.parseInt(status);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Returns the authentication schemes the server accepts, or null. */
+  public String getSchemes() {
+    return schemes;
+  }
+
+  /** Returns the scope the token needs, or null. */
+  public String getScope() {
+    return scope;
+  }
+
+  @Override
+  public String toString() {
+    return "XOAUTH2 status " + status
+        + (scope == null ? "" : " (scope " + scope + ")");
+  }
+}
@@ -0,0 +1,207 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+
+/**
+ * Encodes the XOAUTH2 initial client response,
+ * {@code user=<email>^Aauth=Bearer <token>^A^A}, as UTF-8.
+ *
+ * <p>The constant framing is precomputed and the variable parts are written
+ * straight into the destination array, so encoding allocates at most the
+ * returned array. This class has no internal state apart from a per-thread
+ * scratch buffer used by {@code encodeBase64}, which is not kept for
+ * responses larger than MAX_SCRATCH_LENGTH.
+ */
+final class XOAuth2ResponseEncoder {
+  private static final byte[] USER_PREFIX = ascii("user=");
+  private static final byte[] AUTH_PREFIX = ascii("\1auth=Bearer ");
+  private static final byte[] SUFFIX = ascii("\1\1");
+  private static final int FRAMING_LENGTH =
+      USER_PREFIX.length + AUTH_PREFIX.length + SUFFIX.length;
+
+  // Far more than any Google access token needs, but small enough that
+  // every thread may keep one.
+  static final int MAX_SCRATCH_LENGTH = 8192;
+
+  private static final ThreadLocal<byte[]> scratch =
+      new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+          return new byte[1024];
+        }
+      };
+
+  private XOAuth2ResponseEncoder() {
+  }
+
+  /**
+   * Returns the number of bytes {@code encode} writes for these arguments.
+   *
+   * @throws NullPointerException If either argument is null.
+   * @throws IllegalArgumentException If either argument contains the ^A
+   *     that separates the fields of the response.
+   */
+  static int encodedLength(String userEmail, String oauthToken) {
+    checkField("userEmail", userEmail);
+    checkField("oauthToken", oauthToken);
+    return FRAMING_LENGTH + utf8Length(userEmail) + utf8Length(oauthToken);
+  }
+
+  /**
+   * Returns the XOAUTH2 response in a newly allocated array of exactly the
+   * right size.
+   */
+  static byte[] encode(String userEmail, String oauthToken) {
+    byte[] response = new byte[encodedLength(userEmail, oauthToken)];
+    write(userEmail, oauthToken, response, 0);
+    return response;
+  }
+
+  /**
+   * Writes the XOAUTH2 response into {@code dst} starting at {@code offset}.
+   *
+   * @return The offset just past the last byte written.
+   * @throws IndexOutOfBoundsException If there are fewer than {@code
+   *     encodedLength} bytes of room; nothing is written.
+   */
+  static int encode(String userEmail,
+                    String oauthToken,
+                    byte[] dst,
+                    int offset) {
+    int length = encodedLength(userEmail, oauthToken);
+    if (offset < 0 || dst.length - offset < length) {
+      throw new IndexOutOfBoundsException(
+          "Need " + length + " bytes at offset " + offset + " of "
+          + dst.length);
+    }
+    return write(userEmail, oauthToken, dst, offset);
+  }
+
+  /**
+   * Returns the base64 form of the XOAUTH2 response, as sent on the wire by
+   * IMAP {@code AUTHENTICATE} and SMTP {@code AUTH}. The raw response is
+   * staged in a per-thread buffer, so usually only the returned array is
+   * allocated.
+   */
+  static byte[] encodeBase64(String userEmail, String oauthToken) {
+    int length = encodedLength(userEmail, oauthToken);
+    byte[] raw = scratch.get();
+    if (raw.length < length) {
+      if (length <= MAX_SCRATCH_LENGTH) {
+        raw = new byte[Math.min(Math.max(length, raw.length * 2),
+                                MAX_SCRATCH_LENGTH)];
+        scratch.set(raw);
+      } else {
+        // Too large to keep around for every thread.
+        raw = new byte[length];
+      }
+    }
+    write(userEmail, oauthToken, raw, 0);
+    // The encoder allocates a result array of exactly the encoded length.
+    return Base64.getEncoder().encode(ByteBuffer.wrap(raw, 0, length))
+        .array();
+  }
+
+  private static void checkField(String name, String value) {
+    if (value == null) {
+      throw new NullPointerException(name);
+    }
+    if (value.indexOf('\1') >= 0) {
+      throw new IllegalArgumentException(name + " contains ^A");
+    }
+  }
+
+  private static int write(String userEmail,
+                           String oauthToken,
+                           byte[] dst,
+                           int offset) {
+    System.arraycopy(USER_PREFIX, 0, dst, offset, USER_PREFIX.length);
+    offset += USER_PREFIX.length;
+    offset = writeUtf8(userEmail, dst, offset);
+    System.arraycopy(AUTH_PREFIX, 0, dst, offset, AUTH_PREFIX.length);
+    offset += AUTH_PREFIX.length;
+    offset = writeUtf8(oauthToken, dst, offset);
+    System.arraycopy(SUFFIX, 0, dst, offset, SUFFIX.length);
+    return offset + SUFFIX.length;
+  }
+
+  static int utf8Length(String s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        continue;
+      } else if (c < 0x800) {
+        bytes += 1;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+                 && Character.isLowSurrogate(s.charAt(i + 1))) {
+        // Two chars become four bytes.
+        bytes += 2;
+        i++;
+      } else if (isSurrogate(c)) {
+        // Unpaired surrogate, written as '?'.
+        continue;
+      } else {
+        bytes += 2;
+      }
+    }
+    return bytes;
+  }
+
+  static int writeUtf8(String s, byte[] dst, int offset) {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        dst[offset++] = (byte) c;
+      } else if (c < 0x800) {
+        dst[offset++] = (byte) (0xc0 | (c >> 6));
+        dst[offset++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+                 && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        dst[offset++] = (byte) (0xf0 | (codePoint >> 18));
+        dst[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        dst[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        dst[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (isSurrogate(c)) {
+        dst[offset++] = (byte) '?';
+      } else {
+        dst[offset++] = (byte) (0xe0 | (c >> 12));
+        dst[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        dst[offset++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return offset;
+  }
+
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) s.charAt(i);
+    }
+    return bytes;
+  }
+}
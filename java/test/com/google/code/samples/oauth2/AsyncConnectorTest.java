@@ -0,0 +1,116 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.TIMEOUT_MILLIS;
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static com.google.code.samples.oauth2.TestSupport.await;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Abandons connects to a FakeMailServer that never sends its greeting, and
+ * checks that nothing is left connected.
+ */
+class AsyncConnectorTest {
+  private static final String ALICE = "alice@gmail.com";
+
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  void timeoutClosesSocket() throws Exception {
+    server.setSilent(true);
+    CompletableFuture<IMAPStore> future =
+        OAuth2Authenticator.connectToImapAsync(
+            "localhost", server.getImapPort(), ALICE, "token-alice", false,
+            AsyncConnector.defaultExecutor(), 1000);
+    await("connection", () -> server.getOpenConnectionCount() == 1);
+
+    ExecutionException e = assertThrows(
+        ExecutionException.class,
+        () -> future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertTrue(e.getCause() instanceof TimeoutException);
+    await("socket closed", () -> server.getOpenConnectionCount() == 0);
+  }
+
+  @Test
+  void cancelClosesSocket() throws Exception {
+    server.setSilent(true);
+    CompletableFuture<IMAPStore> future =
+        OAuth2Authenticator.connectToImapAsync(
+            "localhost", server.getImapPort(), ALICE, "token-alice", false,
+            AsyncConnector.defaultExecutor(), 0);
+    await("connection", () -> server.getOpenConnectionCount() == 1);
+
+    assertTrue(future.cancel(true));
+    assertThrows(CancellationException.class, () -> future.get());
+    await("socket closed", () -> server.getOpenConnectionCount() == 0);
+  }
+
+  @Test
+  void storeConnectedAfterTimeoutIsClosed() throws Exception {
+    // Connected without the connect's context, so aborting the connect
+    // does not close it; only AsyncConnector can.
+    final IMAPStore store = OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), ALICE, "token-alice", false);
+    final CountDownLatch timedOut = new CountDownLatch(1);
+    CompletableFuture<IMAPStore> future = AsyncConnector.connect(() -> {
+      timedOut.await();
+      return store;
+    }, AsyncConnector.defaultExecutor(), 100);
+    future.whenComplete((result, failure) -> timedOut.countDown());
+
+    ExecutionException e = assertThrows(
+        ExecutionException.class,
+        () -> future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertTrue(e.getCause() instanceof TimeoutException);
+    await("store closed", () -> server.getOpenConnectionCount() == 0);
+    assertFalse(store.isConnected());
+  }
+}
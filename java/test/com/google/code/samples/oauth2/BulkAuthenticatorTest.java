@@ -0,0 +1,108 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Runs batches of IMAP authentications against a FakeMailServer.
+ */
+class BulkAuthenticatorTest {
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  void reportsEveryMailbox() throws Exception {
+    List<BulkAuthenticator.Credential> credentials =
+        new ArrayList<BulkAuthenticator.Credential>();
+    for (int i = 0; i < 100; i++) {
+      // Every fifth token is rejected.
+      String token = (i % 5 == 0 ? "expired-" : "token-") + i;
+      credentials.add(new BulkAuthenticator.Credential(
+          "user" + i + "@gmail.com", token, "localhost",
+          server.getImapPort()));
+    }
+    final List<BulkAuthenticator.Result> results =
+        new ArrayList<BulkAuthenticator.Result>();
+    BulkAuthenticator authenticator =
+        new BulkAuthenticator(16, 10000, 10000);
+    authenticator.run(credentials.iterator(), result -> results.add(result));
+
+    assertEquals(100, results.size());
+    assertEquals(80, authenticator.getSuccessCount());
+    assertEquals(20,
+                 authenticator.getFailureCount(FailureClass.AUTHENTICATION));
+    Set<String> users = new HashSet<String>();
+    for (BulkAuthenticator.Result result : results) {
+      users.add(result.getUserEmail());
+      int i = Integer.parseInt(result.getUserEmail().substring(
+          4, result.getUserEmail().indexOf('@')));
+      assertEquals(i % 5 != 0, result.isSuccess(), result.getUserEmail());
+    }
+    assertEquals(100, users.size());
+    assertEquals(80, server.getAuthenticatedCount());
+    assertEquals(20, server.getRejectedCount());
+  }
+
+  @Test
+  void limitsConnectRatePerHost() throws Exception {
+    List<BulkAuthenticator.Credential> credentials =
+        new ArrayList<BulkAuthenticator.Credential>();
+    for (int i = 0; i < 10; i++) {
+      // Host names that differ only in case share a limit.
+      credentials.add(new BulkAuthenticator.Credential(
+          "user" + i + "@gmail.com", "token-" + i,
+          i % 2 == 0 ? "localhost" : "LOCALHOST", server.getImapPort()));
+    }
+    BulkAuthenticator authenticator = new BulkAuthenticator(10, 5, 10000);
+    long start = System.nanoTime();
+    authenticator.run(credentials.iterator(), result -> { });
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+    assertEquals(10, authenticator.getSuccessCount());
+    // A burst of five, then five more at 5 per second.
+    assertTrue(elapsedMillis >= 800, "took " + elapsedMillis + " ms");
+  }
+}
@@ -0,0 +1,136 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks refresh collapsing, the expiry margin and background refresh.
+ */
+class CachingTokenProviderTest {
+  private static final String USER = "oauth@gmail.com";
+
+  private CachingTokenProvider provider;
+
+  @AfterEach
+  void tearDown() {
+    if (provider != null) {
+      provider.shutdown();
+    }
+  }
+
+  @Test
+  void concurrentRequestsShareOneRefresh() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    CountingRefresher refresher = new CountingRefresher(3600000) {
+      @Override
+      public AccessToken refreshToken(String userEmail) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return super.refreshToken(userEmail);
+      }
+    };
+    provider = new CachingTokenProvider(refresher, 60000, 0);
+
+    ExecutorService threads = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 16; i++) {
+        results.add(threads.submit(() -> provider.getToken(USER)));
+      }
+      // Let the callers pile up behind the first refresh.
+      Thread.sleep(200);
+      release.countDown();
+      for (Future<String> result : results) {
+        assertEquals("token-1", result.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      threads.shutdownNow();
+    }
+    assertEquals(1, refresher.count.get());
+  }
+
+  @Test
+  void doesNotServeTokenWithinMargin() throws Exception {
+    // Expires 500 ms after it is fetched, inside the 1 s margin.
+    CountingRefresher refresher = new CountingRefresher(500);
+    provider = new CachingTokenProvider(refresher, 1000, 0);
+    // Only on-demand refreshes.
+    provider.shutdown();
+
+    assertEquals("token-1", provider.getToken(USER));
+    assertEquals("token-2", provider.getToken(USER));
+    assertEquals(2, refresher.count.get());
+  }
+
+  @Test
+  void servesCachedTokenOutsideMargin() throws Exception {
+    CountingRefresher refresher = new CountingRefresher(3600000);
+    provider = new CachingTokenProvider(refresher, 60000, 0);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("token-1", provider.getToken(USER));
+    }
+    assertEquals(1, refresher.count.get());
+  }
+
+  @Test
+  void refreshesAccountUsedOncePerLifetime() throws Exception {
+    final CountingRefresher refresher = new CountingRefresher(1000);
+    provider = new CachingTokenProvider(refresher, 500, 0);
+
+    // The only use of the first token is the request that fetched it.
+    assertEquals("token-1", provider.getToken(USER));
+    TestSupport.await("a background refresh",
+                      () -> refresher.count.get() == 2);
+    assertEquals("token-2", provider.getCachedToken(USER).getToken());
+
+    // Nobody has asked for the second token, so it is left to lapse.
+    Thread.sleep(1200);
+    assertEquals(2, refresher.count.get());
+  }
+
+  /** Hands out token-1, token-2, ... each valid for a fixed time. */
+  private static class CountingRefresher implements TokenRefresher {
+    final AtomicInteger count = new AtomicInteger();
+    final long lifetimeMillis;
+
+    CountingRefresher(long lifetimeMillis) {
+      this.lifetimeMillis = lifetimeMillis;
+    }
+
+    public AccessToken refreshToken(String userEmail) throws IOException {
+      return new AccessToken("token-" + count.incrementAndGet(),
+                             System.currentTimeMillis() + lifetimeMillis);
+    }
+  }
+}
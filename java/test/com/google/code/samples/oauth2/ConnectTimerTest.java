@@ -0,0 +1,194 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.code.samples.oauth2.ConnectTimings.Phase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Connects to a FakeMailServer with a recording ConnectMetrics installed and
+ * checks the phases and failure classes reported.
+ */
+class ConnectTimerTest {
+  private static final String ALICE = "alice@gmail.com";
+  private static final long LATENCY_MILLIS = 20;
+
+  /** One call to connectFinished. */
+  private static final class Report {
+    final String protocol;
+    final ConnectTimings timings;
+    final FailureClass failureClass;
+
+    Report(String protocol,
+           ConnectTimings timings,
+           FailureClass failureClass) {
+      this.protocol = protocol;
+      this.timings = timings;
+      this.failureClass = failureClass;
+    }
+  }
+
+  private final List<Report> reports = new ArrayList<Report>();
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+    // Every reply, the greeting included, is held back this long.
+    server.setLatency(LATENCY_MILLIS, LATENCY_MILLIS);
+    OAuth2Authenticator.setConnectMetrics(new ConnectMetrics() {
+      public void connectFinished(String protocol,
+                                  ConnectTimings timings,
+                                  FailureClass failureClass) {
+        synchronized (reports) {
+          reports.add(new Report(protocol, timings, failureClass));
+        }
+      }
+    });
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    OAuth2Authenticator.setConnectMetrics(null);
+    server.close();
+  }
+
+  @Test
+  void timesImapPhases() throws Exception {
+    OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), ALICE, "token-alice", false)
+        .close();
+
+    Report report = onlyReport("imap");
+    assertEquals(FailureClass.NONE, report.failureClass);
+    assertPhasesAddUp(report.timings);
+    // The greeting's delay overlaps the handshake, but the AUTHENTICATE
+    // reply's cannot.
+    assertAtLeastLatency(report.timings, Phase.SASL);
+  }
+
+  @Test
+  void timesSmtpPhases() throws Exception {
+    OAuth2Authenticator.connectToSmtp(
+        "localhost", server.getSmtpPort(), ALICE, "token-alice", false)
+        .close();
+
+    Report report = onlyReport("smtp");
+    assertEquals(FailureClass.NONE, report.failureClass);
+    assertPhasesAddUp(report.timings);
+    // The greeting, both EHLOs and STARTTLS count as capability discovery.
+    assertAtLeastLatency(report.timings, Phase.CAPABILITY);
+    assertAtLeastLatency(report.timings, Phase.SASL);
+  }
+
+  @Test
+  void classifiesRejectedToken() throws Exception {
+    assertThrows(MessagingException.class,
+                 () -> OAuth2Authenticator.connectToImap(
+                     "localhost", server.getImapPort(), ALICE, "expired",
+                     false));
+    assertThrows(MessagingException.class,
+                 () -> OAuth2Authenticator.connectToSmtp(
+                     "localhost", server.getSmtpPort(), ALICE, "expired",
+                     false));
+
+    assertFailed(onlyReport("imap"), FailureClass.AUTHENTICATION);
+    assertFailed(onlyReport("smtp"), FailureClass.AUTHENTICATION);
+  }
+
+  @Test
+  void classifiesThrottling() throws Exception {
+    server.setThrottleRate(1);
+    assertThrows(MessagingException.class,
+                 () -> OAuth2Authenticator.connectToImap(
+                     "localhost", server.getImapPort(), ALICE, "token-alice",
+                     false));
+    assertThrows(MessagingException.class,
+                 () -> OAuth2Authenticator.connectToSmtp(
+                     "localhost", server.getSmtpPort(), ALICE, "token-alice",
+                     false));
+
+    assertFailed(onlyReport("imap"), FailureClass.THROTTLED);
+    assertFailed(onlyReport("smtp"), FailureClass.THROTTLED);
+  }
+
+  private Report onlyReport(String protocol) {
+    List<Report> matching = new ArrayList<Report>();
+    synchronized (reports) {
+      for (Report report : reports) {
+        if (report.protocol.equals(protocol)) {
+          matching.add(report);
+        }
+      }
+    }
+    assertEquals(1, matching.size());
+    return matching.get(0);
+  }
+
+  /**
+   * Checks that every phase was seen and that together they make up the
+   * whole connect.
+   */
+  private static void assertPhasesAddUp(ConnectTimings timings) {
+    long sum = 0;
+    for (Phase phase : new Phase[] {Phase.TCP_CONNECT, Phase.TLS_HANDSHAKE,
+                                    Phase.CAPABILITY, Phase.SASL}) {
+      assertTrue(timings.getNanos(phase) >= 0, phase + " in " + timings);
+      sum += timings.getNanos(phase);
+    }
+    assertEquals(timings.getNanos(Phase.TOTAL), sum, timings.toString());
+  }
+
+  private static void assertAtLeastLatency(ConnectTimings timings,
+                                           Phase phase) {
+    assertTrue(timings.getNanos(phase)
+               >= TimeUnit.MILLISECONDS.toNanos(LATENCY_MILLIS),
+               phase + " in " + timings);
+  }
+
+  /**
+   * Checks a failed connect's class, and that it got as far as
+   * authenticating but no SASL time was reported.
+   */
+  private static void assertFailed(Report report, FailureClass expected) {
+    assertEquals(expected, report.failureClass);
+    assertTrue(report.timings.getNanos(Phase.CAPABILITY) >= 0,
+               report.timings.toString());
+    assertEquals(-1, report.timings.getNanos(Phase.SASL));
+  }
+}
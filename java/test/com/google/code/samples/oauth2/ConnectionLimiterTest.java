@@ -0,0 +1,129 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.mail.AuthenticationFailedException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks per-account and per-host limits, and that closing a connection
+ * gives its slot back.
+ */
+class ConnectionLimiterTest {
+  private static final String ALICE = "alice@gmail.com";
+  private static final String BOB = "bob@gmail.com";
+  private static final String TOKEN = "token-limit";
+
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  void closingStoreReleasesSlotAtOnce() throws Exception {
+    ConnectionLimiter limiter = new ConnectionLimiter(1, 10);
+    IMAPStore store = limiter.connectToImap(
+        "localhost", server.getImapPort(), ALICE, TOKEN, false, 1000);
+    assertEquals(1, limiter.getActiveCount());
+    assertThrows(TimeoutException.class, () -> limiter.connectToImap(
+        "localhost", server.getImapPort(), "ALICE@gmail.com", TOKEN, false,
+        100));
+
+    store.close();
+    // The slot is back before close returns, not after a store event.
+    assertEquals(0, limiter.getActiveCount());
+    store = limiter.connectToImap(
+        "localhost", server.getImapPort(), ALICE, TOKEN, false, 0);
+    store.close();
+    assertEquals(1, limiter.getTimeoutCount());
+  }
+
+  @Test
+  void closingTransportReleasesSlotAtOnce() throws Exception {
+    ConnectionLimiter limiter = new ConnectionLimiter(1, 10);
+    SMTPTransport transport = limiter.connectToSmtp(
+        "localhost", server.getSmtpPort(), ALICE, TOKEN, false, 1000);
+    assertEquals(1, limiter.getActiveCount());
+    assertThrows(TimeoutException.class, () -> limiter.connectToSmtp(
+        "localhost", server.getSmtpPort(), ALICE, TOKEN, false, 100));
+
+    transport.close();
+    assertEquals(0, limiter.getActiveCount());
+    transport.close();
+    assertEquals(0, limiter.getActiveCount());
+  }
+
+  @Test
+  void failedConnectReleasesSlot() throws Exception {
+    ConnectionLimiter limiter = new ConnectionLimiter(1, 10);
+    assertThrows(AuthenticationFailedException.class, () ->
+        limiter.connectToImap(
+            "localhost", server.getImapPort(), ALICE, "bad", false, 1000));
+    assertEquals(0, limiter.getActiveCount());
+  }
+
+  @Test
+  void droppedConnectionReleasesSlot() throws Exception {
+    ConnectionLimiter limiter = new ConnectionLimiter(1, 10);
+    IMAPStore store = limiter.connectToImap(
+        "localhost", server.getImapPort(), ALICE, TOKEN, false, 1000);
+    server.dropConnections();
+    // The store only notices the drop when it next talks to the server.
+    TestSupport.await("the store to notice the drop",
+                      () -> !store.isConnected());
+    assertEquals(0, limiter.getActiveCount());
+  }
+
+  @Test
+  void hostLimitIgnoresCase() throws Exception {
+    ConnectionLimiter limiter = new ConnectionLimiter(5, 1);
+    ConnectionLimiter.Permit permit =
+        limiter.acquire("localhost", ALICE, 1, TimeUnit.SECONDS);
+    assertThrows(TimeoutException.class, () -> limiter.acquire(
+        "LOCALHOST", BOB, 100, TimeUnit.MILLISECONDS));
+    permit.close();
+    limiter.acquire("LOCALHOST", BOB, 0, TimeUnit.MILLISECONDS).close();
+    assertEquals(0, limiter.getActiveCount());
+  }
+}
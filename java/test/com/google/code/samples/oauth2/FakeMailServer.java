@@ -0,0 +1,1426 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+
+/**
+ * An embeddable IMAP and SMTP server that accepts XOAUTH2 and OAUTHBEARER,
+ * for load and latency testing without a real mail server.
+ *
+ * <p>IMAP is served over TLS, as on port 993, and SMTP in plain text with
+ * STARTTLS, as on port 587. Each speaks just enough of its protocol for
+ * {@code OAuth2Authenticator.connectToImap} and {@code connectToSmtp} to
+ * succeed. The IMAP side can also serve a read-only INBOX of identical
+ * synthetic messages, enough for UID FETCH of sizes, (partial) BODY.PEEK[]
+ * fetches by sequence number or UID, and IDLE on it. {@code deliver} adds messages and
+ * tells connections that have the INBOX selected. UID STORE changes flags,
+ * which every connection sees, and UID COPY accepts the INBOX and mailboxes
+ * added with {@code createMailbox} but changes nothing.
+ *
+ * <p>Tokens are checked with a TokenValidator. A rejected token gets the
+ * error challenge and failure reply Gmail sends, so clients see the same
+ * XOAuth2Error. Latency, dropped connections and throttling can be injected
+ * with the setters, which take effect for later commands. So can the SASL
+ * mechanisms the server advertises, and whether its IMAP greeting lists its
+ * capabilities or, like Gmail's, leaves the client to ask for them.
+ *
+ * <p>Connections are multiplexed over a few selector threads using
+ * SSLEngine, and an idle connection holds little more than its SSLEngine,
+ * so one server can hold thousands of connections. TLS uses the given
+ * SSLContext, by default the JVM's, which must then have a key for
+ * localhost in {@code javax.net.ssl.keyStore}.
+ */
+public class FakeMailServer implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(FakeMailServer.class.getName());
+
+  private static final Charset ASCII = StandardCharsets.US_ASCII;
+  private static final String INVALID_TOKEN_CHALLENGE =
+      Base64.getEncoder().encodeToString(
+          ("{\"status\":\"401\",\"schemes\":\"Bearer\","
+           + "\"scope\":\"https://mail.google.com/\"}").getBytes(ASCII));
+  // Lines longer than this, or a TLS record that never completes, close the
+  // connection.
+  private static final int MAX_LINE_LENGTH = 1 << 20;
+  // Queued in place of output to switch the connection to TLS once
+  // everything before it has been sent.
+  private static final ByteBuffer START_TLS = ByteBuffer.allocate(0);
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /**
+   * Decides which tokens the server accepts. Implementations must be
+   * thread-safe.
+   */
+  public interface TokenValidator {
+    boolean isValid(String userEmail, String oauthToken);
+  }
+
+  /** Accepts every token. */
+  public static final TokenValidator ACCEPT_ALL = new TokenValidator() {
+    public boolean isValid(String userEmail, String oauthToken) {
+      return true;
+    }
+  };
+
+  private final SSLContext sslContext;
+  private final TokenValidator validator;
+  private final AtomicInteger messageCount = new AtomicInteger();
+  private final byte[] message;
+  private final ServerSocketChannel imapChannel;
+  private final ServerSocketChannel smtpChannel;
+  private final EventLoop[] loops;
+  private final ScheduledExecutorService scheduler;
+
+  private final ConcurrentMap<String, AtomicInteger> userConnections =
+      new ConcurrentHashMap<String, AtomicInteger>();
+  private final AtomicInteger nextLoop = new AtomicInteger();
+  private final AtomicInteger openCount = new AtomicInteger();
+  private final AtomicInteger idlingCount = new AtomicInteger();
+  private final AtomicLong authenticatedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong throttledCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong capabilityCount = new AtomicLong();
+  private final AtomicLong noopCount = new AtomicLong();
+  private final AtomicLong passwordLoginCount = new AtomicLong();
+  private final AtomicInteger maxPipelineDepth = new AtomicInteger();
+  private final Queue<String> uidCommands = new ConcurrentLinkedQueue<String>();
+  // The flags of each message that has any, by UID.
+  private final ConcurrentMap<Long, Set<String>> flags =
+      new ConcurrentHashMap<Long, Set<String>>();
+  private final Set<String> mailboxes =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private volatile long minLatencyMillis = 0;
+  private volatile long maxLatencyMillis = 0;
+  private volatile double dropRate = 0;
+  private volatile double throttleRate = 0;
+  private volatile int maxConnectionsPerUser = Integer.MAX_VALUE;
+  private volatile String[] mechanisms = {"XOAUTH2"};
+  private volatile boolean capabilitiesInGreeting = true;
+  private volatile long firstUid = 1;
+  private volatile long reportedSize = -1;
+  private volatile boolean silent = false;
+  private volatile boolean closed = false;
+
+  /**
+   * Starts a server on ephemeral loopback ports that uses the JVM's default
+   * SSLContext, accepts every token and has an empty INBOX.
+   */
+  public FakeMailServer() throws IOException {
+    this(defaultContext(), ACCEPT_ALL, 0, 0);
+  }
+
+  /**
+   * Starts a server on ephemeral loopback ports.
+   *
+   * @param sslContext Supplies the server's certificate.
+   * @param validator Decides which tokens are accepted.
+   * @param messageCount Number of messages in the INBOX, with UIDs 1 to
+   *     {@code messageCount} unless changed with {@code setFirstUid}.
+   * @param messageSize Size in bytes of each message.
+   */
+  public FakeMailServer(SSLContext sslContext,
+                        TokenValidator validator,
+                        int messageCount,
+                        int messageSize) throws IOException {
+    this.sslContext = sslContext;
+    this.validator = validator;
+    this.messageCount.set(messageCount);
+    this.message = syntheticMessage(messageSize);
+    InetAddress loopback = InetAddress.getByName("localhost");
+    imapChannel = ServerSocketChannel.open();
+    smtpChannel = ServerSocketChannel.open();
+    try {
+      imapChannel.socket().bind(new InetSocketAddress(loopback, 0), 1024);
+      smtpChannel.socket().bind(new InetSocketAddress(loopback, 0), 1024);
+      imapChannel.configureBlocking(false);
+      smtpChannel.configureBlocking(false);
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+          daemonThreads("fake-mail-scheduler"));
+      int loopCount =
+          Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+      loops = new EventLoop[loopCount];
+      for (int i = 0; i < loopCount; i++) {
+        loops[i] = new EventLoop();
+      }
+      imapChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+      smtpChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      imapChannel.close();
+      smtpChannel.close();
+      throw e;
+    }
+    ThreadFactory loopThreads = daemonThreads("fake-mail-loop");
+    for (EventLoop loop : loops) {
+      loopThreads.newThread(loop).start();
+    }
+  }
+
+  public int getImapPort() {
+    return imapChannel.socket().getLocalPort();
+  }
+
+  public int getSmtpPort() {
+    return smtpChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Delays the reply to every command, and the greeting, by a random time
+   * between {@code minMillis} and {@code maxMillis}.
+   */
+  public void setLatency(long minMillis, long maxMillis) {
+    if (minMillis < 0 || maxMillis < minMillis) {
+      throw new IllegalArgumentException(
+          "Need 0 <= minMillis <= maxMillis");
+    }
+    this.minLatencyMillis = minMillis;
+    this.maxLatencyMillis = maxMillis;
+  }
+
+  /**
+   * Closes connections without a reply, instead of answering the greeting or
+   * a command, with the given probability.
+   */
+  public void setDropRate(double probability) {
+    this.dropRate = probability;
+  }
+
+  /**
+   * Rejects authentications that would otherwise succeed as throttled, with
+   * the given probability.
+   */
+  public void setThrottleRate(double probability) {
+    this.throttleRate = probability;
+  }
+
+  /**
+   * Rejects authentications as throttled once a user has this many
+   * authenticated connections open; Gmail allows 15 for IMAP.
+   */
+  public void setMaxConnectionsPerUser(int maxConnections) {
+    this.maxConnectionsPerUser = maxConnections;
+  }
+
+  /**
+   * Sets the SASL mechanisms advertised, and accepted, over both protocols.
+   * By default only XOAUTH2 is.
+   */
+  public void setMechanisms(String... mechanisms) {
+    this.mechanisms = mechanisms.clone();
+  }
+
+  /**
+   * Sets whether the IMAP greeting lists the server's capabilities, as it
+   * does by default. Without them, clients send a CAPABILITY command before
+   * authenticating.
+   */
+  public void setCapabilitiesInGreeting(boolean capabilitiesInGreeting) {
+    this.capabilitiesInGreeting = capabilitiesInGreeting;
+  }
+
+  /**
+   * Sets the UID of the first message, so that UIDs and sequence numbers
+   * differ. Takes effect for mailboxes selected later.
+   */
+  public void setFirstUid(long firstUid) {
+    this.firstUid = firstUid;
+  }
+
+  /**
+   * Makes UID FETCH report {@code size} as every message's RFC822.SIZE, as
+   * servers that count line endings differently do, or the true size if
+   * {@code size} is negative.
+   */
+  public void setReportedSize(long size) {
+    this.reportedSize = size;
+  }
+
+  /**
+   * Sets whether the server ignores everything clients send and greets no
+   * new connections, as if a NAT or load balancer between had silently
+   * forgotten them. Connections stay open.
+   */
+  public void setSilent(boolean silent) {
+    this.silent = silent;
+  }
+
+  /** Returns the number of connections open. */
+  public int getOpenConnectionCount() {
+    return openCount.get();
+  }
+
+  /** Returns the number of successful authentications. */
+  public long getAuthenticatedCount() {
+    return authenticatedCount.get();
+  }
+
+  /** Returns the number of authentications rejected for a bad token. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /** Returns the number of authentications rejected as throttled. */
+  public long getThrottledCount() {
+    return throttledCount.get();
+  }
+
+  /** Returns the number of connections dropped on purpose. */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Returns the number of IMAP CAPABILITY commands received. */
+  public long getCapabilityCount() {
+    return capabilityCount.get();
+  }
+
+  /** Returns the number of IMAP and SMTP NOOP commands received. */
+  public long getNoopCount() {
+    return noopCount.get();
+  }
+
+  /**
+   * Returns the number of attempts to log in with a password: IMAP LOGIN,
+   * and the PLAIN and LOGIN mechanisms over either protocol. All are
+   * refused.
+   */
+  public long getPasswordLoginCount() {
+    return passwordLoginCount.get();
+  }
+
+  /**
+   * Returns the IMAP UID commands received, without their tags, in the
+   * order they were handled.
+   */
+  public List<String> getUidCommands() {
+    return new ArrayList<String>(uidCommands);
+  }
+
+  /**
+   * Returns the most IMAP commands one connection has had waiting for a
+   * reply at once: 1 unless a client pipelines its commands. Commands only
+   * queue up while the server is slow to answer, so measure with latency
+   * set.
+   */
+  public int getMaxPipelineDepth() {
+    return maxPipelineDepth.get();
+  }
+
+  /**
+   * Returns the flags stored on message {@code uid}, for example {@code
+   * \Seen}.
+   */
+  public Set<String> getFlags(long uid) {
+    Set<String> stored = flags.get(uid);
+    return stored == null
+        ? Collections.<String>emptySet() : new TreeSet<String>(stored);
+  }
+
+  /**
+   * Adds a mailbox that UID COPY accepts as its target.
+   */
+  public void createMailbox(String name) {
+    mailboxes.add(name);
+  }
+
+  /**
+   * Returns the number of IMAP connections in IDLE.
+   */
+  public int getIdlingCount() {
+    return idlingCount.get();
+  }
+
+  /**
+   * Adds {@code count} messages to the INBOX. Connections in IDLE are sent
+   * the new EXISTS straight away, and other connections that have the INBOX
+   * selected with their next reply.
+   */
+  public void deliver(int count) {
+    messageCount.addAndGet(count);
+    for (final EventLoop loop : loops) {
+      loop.execute(new Runnable() {
+        public void run() {
+          for (SelectionKey key : loop.selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Connection) {
+              Connection connection = (Connection) key.attachment();
+              if (connection.idleTag != null) {
+                connection.reportExists();
+                try {
+                  connection.flush();
+                } catch (IOException e) {
+                  logger.log(Level.FINE, "Connection failed", e);
+                  connection.close();
+                }
+              }
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Resets every open connection, as a server restart or a NAT timeout
+   * would. Returns without waiting for them to be closed.
+   */
+  public void dropConnections() {
+    for (final EventLoop loop : loops) {
+      loop.execute(new Runnable() {
+        public void run() {
+          for (SelectionKey key : loop.selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Connection) {
+              ((Connection) key.attachment()).drop();
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Stops the server and closes all its connections.
+   */
+  public void close() throws IOException {
+    closed = true;
+    scheduler.shutdownNow();
+    for (EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+    imapChannel.close();
+    smtpChannel.close();
+  }
+
+  private static SSLContext defaultContext() throws IOException {
+    try {
+      return SSLContext.getDefault();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("No default SSLContext", e);
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread =
+            new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private String imapCapabilities() {
+    StringBuilder capabilities = new StringBuilder("IMAP4rev1");
+    for (String mechanism : mechanisms) {
+      capabilities.append(" AUTH=").append(mechanism);
+    }
+    return capabilities.append(" SASL-IR IDLE").toString();
+  }
+
+  private boolean advertises(String mechanism) {
+    for (String advertised : mechanisms) {
+      if (advertised.equalsIgnoreCase(mechanism)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isPasswordMechanism(String mechanism) {
+    return mechanism.equalsIgnoreCase("PLAIN")
+        || mechanism.equalsIgnoreCase("LOGIN");
+  }
+
+  private boolean chance(double probability) {
+    return probability > 0
+        && ThreadLocalRandom.current().nextDouble() < probability;
+  }
+
+  private long nextLatencyMillis() {
+    long min = minLatencyMillis;
+    long max = maxLatencyMillis;
+    if (max == 0) {
+      return 0;
+    }
+    return max == min
+        ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+  }
+
+  private AtomicInteger getUserConnections(String userEmail) {
+    String key = userEmail.toLowerCase(Locale.ROOT);
+    AtomicInteger count = userConnections.get(key);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = userConnections.putIfAbsent(key, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the content of each message in a server's INBOX.
+   */
+  static byte[] syntheticMessage(int size) {
+    byte[] header = ("From: sender@example.com\r\n"
+                     + "To: oauth@gmail.com\r\n"
+                     + "Subject: Synthetic message\r\n"
+                     + "\r\n").getBytes(ASCII);
+    byte[] message = new byte[size];
+    System.arraycopy(header, 0, message, 0, Math.min(size, header.length));
+    if (size > header.length) {
+      // The body is lines of 76 'x's.
+      Arrays.fill(message, header.length, size, (byte) 'x');
+      for (int i = header.length + 76; i + 1 < size; i += 78) {
+        message[i] = '\r';
+        message[i + 1] = '\n';
+      }
+    }
+    return message;
+  }
+
+  /**
+   * A selector thread and the connections registered with it. Its buffers
+   * are shared by those connections, which only keep their own copies of
+   * data that could not be processed or sent straight away.
+   */
+  private final class EventLoop implements Runnable {
+    final Selector selector;
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    ByteBuffer netBuffer;
+    ByteBuffer appBuffer;
+    ByteBuffer wrapBuffer;
+    final ByteBuffer[] gather = new ByteBuffer[16];
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+      // Sized for the largest TLS record, so no connection ever needs more.
+      SSLEngine engine = sslContext.createSSLEngine();
+      netBuffer = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+      appBuffer = ByteBuffer.allocate(
+          engine.getSession().getApplicationBufferSize());
+      wrapBuffer = ByteBuffer.allocate(
+          engine.getSession().getPacketBufferSize());
+    }
+
+    /** Runs {@code task} on this loop's thread. */
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    public void run() {
+      try {
+        while (!closed) {
+          selector.select();
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            try {
+              task.run();
+            } catch (RuntimeException e) {
+              logger.log(Level.WARNING, "Task failed", e);
+            }
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept((ServerSocketChannel) key.channel());
+              continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                connection.onReadable();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.flush();
+              }
+            } catch (IOException e) {
+              logger.log(Level.FINE, "Connection failed", e);
+              connection.close();
+            } catch (RuntimeException e) {
+              logger.log(Level.WARNING, "Connection failed", e);
+              connection.close();
+            }
+          }
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Selector failed", e);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).close();
+          }
+        }
+        try {
+          selector.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+      final boolean imap = serverChannel == imapChannel;
+      while (true) {
+        final SocketChannel channel;
+        try {
+          channel = serverChannel.accept();
+          if (channel == null) {
+            return;
+          }
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+          if (!closed) {
+            logger.log(Level.WARNING, "accept failed", e);
+          }
+          return;
+        }
+        final EventLoop loop =
+            loops[(nextLoop.getAndIncrement() & 0x7fffffff) % loops.length];
+        loop.execute(new Runnable() {
+          public void run() {
+            loop.register(channel, imap);
+          }
+        });
+      }
+    }
+
+    private void register(SocketChannel channel, boolean imap) {
+      try {
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Connection connection = new Connection(this, channel, key, imap);
+        key.attach(connection);
+        openCount.incrementAndGet();
+        connection.start();
+        connection.flush();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "register failed", e);
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * One client connection, IMAP or SMTP. Only touched by its loop's thread.
+   */
+  private final class Connection {
+    final EventLoop loop;
+    final SocketChannel channel;
+    final SelectionKey key;
+    final boolean imap;
+
+    SSLEngine engine;
+    boolean tlsOutput = false;
+    // Bytes received but not yet handled: decrypted text in write mode, and
+    // an incomplete TLS record in read mode.
+    ByteBuffer lineBuffer = ByteBuffer.allocate(256);
+    ByteBuffer netLeftover;
+    final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    ByteBuffer pending;
+    boolean suspended = false;
+    boolean closeAfterFlush = false;
+    boolean closed = false;
+
+    String user;
+    // Set while waiting for the client's response to a continuation during
+    // AUTHENTICATE or AUTH; authTag is the IMAP tag.
+    boolean awaitingAuth = false;
+    boolean authFailed = false;
+    String authTag;
+    boolean inData = false;
+    // The number of messages the client has been told about, or -1 if it
+    // has no mailbox selected.
+    int exists = -1;
+    // The UID of message 1 in the selected mailbox.
+    long uidBase;
+    // The tag of the IDLE command in progress, or null.
+    String idleTag;
+
+    Connection(EventLoop loop,
+               SocketChannel channel,
+               SelectionKey key,
+               boolean imap) {
+      this.loop = loop;
+      this.channel = channel;
+      this.key = key;
+      this.imap = imap;
+    }
+
+    void start() throws IOException {
+      if (imap) {
+        startTlsEngine();
+        tlsOutput = true;
+      }
+      afterLatency(new Runnable() {
+        public void run() {
+          if (silent) {
+            return;
+          } else if (chance(dropRate)) {
+            drop();
+          } else if (imap && capabilitiesInGreeting) {
+            write("* OK [CAPABILITY " + imapCapabilities() + "] ready");
+          } else if (imap) {
+            write("* OK Gimap ready");
+          } else {
+            write("220 localhost ESMTP ready");
+          }
+        }
+      });
+    }
+
+    private void startTlsEngine() throws SSLException {
+      engine = sslContext.createSSLEngine();
+      engine.setUseClientMode(false);
+      engine.beginHandshake();
+    }
+
+    /**
+     * Runs {@code action} after the injected latency, not handling any more
+     * input in the meantime, and then sends any output.
+     */
+    private void afterLatency(final Runnable action) throws IOException {
+      long delayMillis = nextLatencyMillis();
+      if (delayMillis == 0) {
+        action.run();
+        return;
+      }
+      suspended = true;
+      scheduler.schedule(new Runnable() {
+        public void run() {
+          loop.execute(new Runnable() {
+            public void run() {
+              if (closed) {
+                return;
+              }
+              suspended = false;
+              try {
+                action.run();
+                handleLines();
+                flush();
+              } catch (IOException e) {
+                logger.log(Level.FINE, "Connection failed", e);
+                close();
+              } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Connection failed", e);
+                close();
+              }
+            }
+          });
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onReadable() throws IOException {
+      if (engine == null) {
+        ensureLineSpace(1);
+        if (channel.read(lineBuffer) < 0) {
+          close();
+          return;
+        }
+      } else {
+        ByteBuffer net = loop.netBuffer;
+        net.clear();
+        if (netLeftover != null) {
+          net.put(netLeftover);
+          netLeftover = null;
+        }
+        int n = channel.read(net);
+        net.flip();
+        unwrap(net);
+        if (n < 0) {
+          close();
+          return;
+        }
+      }
+      handleLines();
+      flush();
+    }
+
+    private void unwrap(ByteBuffer net) throws IOException {
+      ByteBuffer app = loop.appBuffer;
+      while (!closed) {
+        app.clear();
+        SSLEngineResult result = engine.unwrap(net, app);
+        app.flip();
+        ensureLineSpace(app.remaining());
+        lineBuffer.put(app);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+          closeAfterFlush = true;
+          break;
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+          break;
+        }
+        boolean progressed =
+            result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == HandshakeStatus.NEED_TASK) {
+          runDelegatedTasks();
+          progressed = true;
+          status = engine.getHandshakeStatus();
+        }
+        if (status == HandshakeStatus.NEED_WRAP) {
+          flush();
+          progressed |= engine.getHandshakeStatus() != status;
+        }
+        if (!progressed || !net.hasRemaining()) {
+          break;
+        }
+      }
+      if (net.hasRemaining()) {
+        netLeftover = ByteBuffer.allocate(net.remaining());
+        netLeftover.put(net);
+        netLeftover.flip();
+      }
+    }
+
+    private void runDelegatedTasks() {
+      Runnable task;
+      while ((task = engine.getDelegatedTask()) != null) {
+        task.run();
+      }
+    }
+
+    private void ensureLineSpace(int needed) throws IOException {
+      if (lineBuffer.remaining() >= needed) {
+        return;
+      }
+      int capacity = lineBuffer.capacity();
+      while (capacity - lineBuffer.position() < needed) {
+        capacity *= 2;
+      }
+      if (capacity > MAX_LINE_LENGTH) {
+        throw new IOException("Line too long");
+      }
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      lineBuffer.flip();
+      larger.put(lineBuffer);
+      lineBuffer = larger;
+    }
+
+    /** Handles each complete line received, unless suspended. */
+    void handleLines() throws IOException {
+      while (!suspended && !closed) {
+        int end = -1;
+        for (int i = 0; i < lineBuffer.position(); i++) {
+          if (lineBuffer.get(i) == '\n') {
+            end = i;
+            break;
+          }
+        }
+        if (end < 0) {
+          return;
+        }
+        int length = end > 0 && lineBuffer.get(end - 1) == '\r'
+            ? end - 1 : end;
+        final String line = new String(lineBuffer.array(), 0, length, ASCII);
+        lineBuffer.flip();
+        lineBuffer.position(end + 1);
+        lineBuffer.compact();
+        if (silent) {
+          continue;
+        }
+        if (inData) {
+          // Message text is swallowed without latency.
+          if (line.equals(".")) {
+            inData = false;
+            write("250 2.0.0 OK");
+          }
+          continue;
+        }
+        afterLatency(new Runnable() {
+          public void run() {
+            if (chance(dropRate)) {
+              drop();
+            } else if (imap) {
+              handleImap(line);
+            } else {
+              handleSmtp(line);
+            }
+          }
+        });
+      }
+    }
+
+    private void handleImap(String line) {
+      if (idleTag != null) {
+        if (line.equalsIgnoreCase("DONE")) {
+          idlingCount.decrementAndGet();
+          write(idleTag + " OK IDLE terminated");
+          idleTag = null;
+        } else {
+          write("* BAD Expected DONE");
+        }
+        return;
+      }
+      if (awaitingAuth) {
+        awaitingAuth = false;
+        if (authFailed) {
+          authFailed = false;
+          write(authTag + " NO [AUTHENTICATIONFAILED] Invalid credentials"
+                + " (Failure)");
+        } else {
+          authenticate(line);
+        }
+        return;
+      }
+      String[] parts = line.split(" ", 4);
+      String tag = parts[0];
+      String command = parts.length > 1 ? parts[1].toUpperCase(Locale.ROOT) : "";
+      maxPipelineDepth.accumulateAndGet(1 + bufferedLines(), Math::max);
+      if (command.equals("UID")) {
+        uidCommands.add(line.substring(tag.length() + 1));
+      }
+      reportExists();
+      if (command.equals("CAPABILITY")) {
+        capabilityCount.incrementAndGet();
+        write("* CAPABILITY " + imapCapabilities());
+        write(tag + " OK CAPABILITY completed");
+      } else if (command.equals("LOGIN")) {
+        passwordLoginCount.incrementAndGet();
+        write(tag + " NO [AUTHENTICATIONFAILED] Invalid credentials"
+              + " (Failure)");
+      } else if (command.equals("AUTHENTICATE")) {
+        if (parts.length >= 3 && isPasswordMechanism(parts[2])) {
+          passwordLoginCount.incrementAndGet();
+          write(tag + " NO [AUTHENTICATIONFAILED] Invalid credentials"
+                + " (Failure)");
+          return;
+        }
+        if (parts.length < 3 || !advertises(parts[2])) {
+          write(tag + " NO Unsupported mechanism");
+          return;
+        }
+        authTag = tag;
+        if (parts.length > 3) {
+          authenticate(parts[3]);
+        } else {
+          awaitingAuth = true;
+          write("+ ");
+        }
+      } else if (command.equals("LOGOUT")) {
+        write("* BYE LOGOUT Requested");
+        write(tag + " OK LOGOUT completed");
+        closeAfterFlush = true;
+      } else if (command.equals("NOOP")) {
+        noopCount.incrementAndGet();
+        write(tag + " OK NOOP completed");
+      } else if (user == null) {
+        write(tag + " BAD Not authenticated");
+      } else if (command.equals("SELECT") || command.equals("EXAMINE")) {
+        exists = messageCount.get();
+        uidBase = firstUid;
+        write("* FLAGS (\\Seen)");
+        write("* " + exists + " EXISTS");
+        write("* 0 RECENT");
+        write("* OK [UIDVALIDITY 1] UIDs valid");
+        write("* OK [UIDNEXT " + (uidBase + exists) + "] next UID");
+        write(tag + " OK [READ-ONLY] " + command + " completed");
+      } else if (command.equals("IDLE") && exists >= 0) {
+        idleTag = tag;
+        idlingCount.incrementAndGet();
+        write("+ idling");
+      } else if (command.equals("UID") && parts.length > 3
+                 && parts[3].contains("BODY")) {
+        int space = parts[3].indexOf(' ');
+        long uid = Long.parseLong(parts[3].substring(0, space));
+        long msgno = uid - uidBase + 1;
+        if (msgno >= 1 && msgno <= exists) {
+          writeBody((int) msgno, true, parts[3].substring(space + 1));
+        }
+        // A UID that does not exist is not an error.
+        write(tag + " OK UID FETCH completed");
+      } else if (command.equals("UID") && parts.length > 3
+                 && parts[2].equalsIgnoreCase("STORE")) {
+        store(tag, parts[3]);
+      } else if (command.equals("UID") && parts.length > 3
+                 && parts[2].equalsIgnoreCase("COPY")) {
+        copy(tag, parts[3]);
+      } else if (command.equals("UID") && parts.length > 3) {
+        fetch(tag, parts[3]);
+      } else if (command.equals("FETCH") && parts.length > 3) {
+        int msgno = Integer.parseInt(parts[2]);
+        if (msgno < 1 || msgno > exists) {
+          write(tag + " BAD No such message");
+        } else {
+          writeBody(msgno, false, parts[3]);
+          write(tag + " OK FETCH completed");
+        }
+      } else if (command.equals("CLOSE") || command.equals("UNSELECT")) {
+        exists = -1;
+        write(tag + " OK " + command + " completed");
+      } else {
+        write(tag + " BAD Unknown command");
+      }
+    }
+
+    /**
+     * Tells a client with the INBOX selected about messages delivered since
+     * it was last told.
+     */
+    void reportExists() {
+      int count = messageCount.get();
+      if (exists >= 0 && exists < count) {
+        exists = count;
+        write("* " + count + " EXISTS");
+      }
+    }
+
+    /** Returns the number of complete lines received but not handled. */
+    private int bufferedLines() {
+      int count = 0;
+      for (int i = 0; i < lineBuffer.position(); i++) {
+        if (lineBuffer.get(i) == '\n') {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Answers "UID FETCH set (items)" with the UID, FLAGS and RFC822.SIZE
+     * items; others are ignored.
+     */
+    private void fetch(String tag, String arguments) {
+      int space = arguments.indexOf(' ');
+      String items = arguments.substring(space + 1).toUpperCase(Locale.ROOT);
+      for (long uid : uids(arguments.substring(0, space))) {
+        StringBuilder reply = new StringBuilder("UID ").append(uid);
+        if (items.contains("FLAGS")) {
+          reply.append(" FLAGS ").append(flagList(uid));
+        }
+        if (items.contains("RFC822.SIZE")) {
+          long size = reportedSize;
+          reply.append(" RFC822.SIZE ")
+              .append(size < 0 ? message.length : size);
+        }
+        write("* " + (uid - uidBase + 1) + " FETCH (" + reply + ")");
+      }
+      write(tag + " OK UID FETCH completed");
+    }
+
+    /**
+     * Answers "UID STORE set [+-]FLAGS[.SILENT] (flags)".
+     */
+    private void store(String tag, String arguments) {
+      String[] words = arguments.split(" ", 3);
+      String item = words[1].toUpperCase(Locale.ROOT);
+      String list = words[2].replaceAll("[()]", "").trim();
+      List<String> given = list.isEmpty()
+          ? Collections.<String>emptyList() : Arrays.asList(list.split(" "));
+      for (long uid : uids(words[0])) {
+        Set<String> stored =
+            flags.computeIfAbsent(uid, key -> ConcurrentHashMap.newKeySet());
+        if (item.startsWith("+")) {
+          stored.addAll(given);
+        } else if (item.startsWith("-")) {
+          stored.removeAll(given);
+        } else {
+          stored.clear();
+          stored.addAll(given);
+        }
+        if (!item.endsWith(".SILENT")) {
+          write("* " + (uid - uidBase + 1) + " FETCH (UID " + uid + " FLAGS "
+                + flagList(uid) + ")");
+        }
+      }
+      write(tag + " OK UID STORE completed");
+    }
+
+    /**
+     * Answers "UID COPY set mailbox", failing as Gmail does if the mailbox
+     * does not exist.
+     */
+    private void copy(String tag, String arguments) {
+      String mailbox = arguments.substring(arguments.indexOf(' ') + 1);
+      if (mailbox.startsWith("\"")) {
+        mailbox = mailbox.substring(1, mailbox.length() - 1);
+      }
+      if (!mailbox.equalsIgnoreCase("INBOX") && !mailboxes.contains(mailbox)) {
+        write(tag + " NO [TRYCREATE] No folder " + mailbox + " (Failure)");
+        return;
+      }
+      write(tag + " OK UID COPY completed");
+    }
+
+    private String flagList(long uid) {
+      return "(" + String.join(" ", getFlags(uid)) + ")";
+    }
+
+    /**
+     * Returns the UIDs in the selected mailbox that {@code set}, for example
+     * "1:3,7" or "5:*", names, in ascending order.
+     */
+    private Set<Long> uids(String set) {
+      long lastUid = uidBase + exists - 1;
+      Set<Long> uids = new TreeSet<Long>();
+      for (String range : set.split(",")) {
+        int colon = range.indexOf(':');
+        long first =
+            Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+        String last = colon < 0 ? range : range.substring(colon + 1);
+        long end = last.equals("*") ? lastUid : Long.parseLong(last);
+        if (last.equals("*") && first > lastUid && exists > 0) {
+          // "n:*" always names the last message.
+          first = lastUid;
+        }
+        for (long uid = Math.max(Math.min(first, end), uidBase);
+             uid <= Math.min(Math.max(first, end), lastUid); uid++) {
+          uids.add(uid);
+        }
+      }
+      return uids;
+    }
+
+    /**
+     * Writes the untagged reply to "BODY.PEEK[]" or "BODY.PEEK[]<start.size>"
+     * for message {@code msgno}, with its UID if {@code withUid}.
+     */
+    private void writeBody(int msgno, boolean withUid, String items) {
+      int start = 0;
+      int length = message.length;
+      String origin = "";
+      int partial = items.indexOf('<');
+      if (partial >= 0) {
+        String[] range =
+            items.substring(partial + 1, items.indexOf('>')).split("\\.");
+        start = (int) Math.min(Long.parseLong(range[0]), message.length);
+        length = (int) Math.min(Long.parseLong(range[1]),
+                                message.length - start);
+        origin = "<" + start + ">";
+      }
+      String uid = withUid ? "UID " + (uidBase + msgno - 1) + " " : "";
+      output.add(ByteBuffer.wrap(("* " + msgno + " FETCH (" + uid + "BODY[]"
+                                  + origin + " {" + length + "}\r\n")
+                                 .getBytes(ASCII)));
+      output.add(ByteBuffer.wrap(message, start, length));
+      write(")");
+    }
+
+    private void handleSmtp(String line) {
+      if (awaitingAuth) {
+        awaitingAuth = false;
+        if (authFailed) {
+          authFailed = false;
+          write("535 5.7.8 Username and Password not accepted.");
+        } else {
+          authenticate(line);
+        }
+        return;
+      }
+      String command = line.length() >= 4
+          ? line.substring(0, 4).toUpperCase(Locale.ROOT)
+          : line.toUpperCase(Locale.ROOT);
+      if (command.equals("EHLO")) {
+        write("250-localhost");
+        write(engine != null
+              ? "250-AUTH " + String.join(" ", mechanisms) : "250-STARTTLS");
+        write("250 8BITMIME");
+      } else if (command.equals("STAR") && engine == null) {
+        write("220 2.0.0 Ready to start TLS");
+        output.add(START_TLS);
+        try {
+          startTlsEngine();
+        } catch (SSLException e) {
+          logger.log(Level.WARNING, "STARTTLS failed", e);
+          close();
+        }
+        // Anything the client sent after STARTTLS was not encrypted.
+        lineBuffer.clear();
+      } else if (command.equals("AUTH")) {
+        String[] parts = line.trim().split(" ");
+        if (engine == null) {
+          write("530 5.7.0 Must issue a STARTTLS command first.");
+        } else if (parts.length >= 2 && isPasswordMechanism(parts[1])) {
+          passwordLoginCount.incrementAndGet();
+          write("535 5.7.8 Username and Password not accepted.");
+        } else if (parts.length < 2 || !advertises(parts[1])) {
+          write("504 5.7.4 Unrecognized authentication type.");
+        } else if (parts.length > 2) {
+          authenticate(parts[2]);
+        } else {
+          awaitingAuth = true;
+          write("334 ");
+        }
+      } else if (command.equals("DATA")) {
+        inData = true;
+        write("354 Go ahead");
+      } else if (command.equals("QUIT")) {
+        write("221 2.0.0 closing connection");
+        closeAfterFlush = true;
+      } else {
+        if (command.equals("NOOP")) {
+          noopCount.incrementAndGet();
+        }
+        // MAIL, RCPT, RSET and NOOP all simply succeed.
+        write("250 2.0.0 OK");
+      }
+    }
+
+    /**
+     * Checks the base64 XOAUTH2 or OAUTHBEARER initial response and replies
+     * as Gmail would.
+     */
+    private void authenticate(String response) {
+      String userEmail = null;
+      String token = null;
+      try {
+        String decoded = new String(
+            Base64.getMimeDecoder().decode(response), StandardCharsets.UTF_8);
+        for (String field : decoded.split("\1")) {
+          if (field.startsWith("user=")) {
+            userEmail = field.substring(5);
+          } else if (field.startsWith("n,a=")) {
+            // The OAUTHBEARER GS2 header, n,a=<saslname>,
+            userEmail = field.substring(4, field.length() - 1)
+                .replace("=2C", ",").replace("=3D", "=");
+          } else if (field.startsWith("auth=Bearer ")) {
+            token = field.substring(12);
+          }
+        }
+      } catch (IllegalArgumentException e) {
+        // Not base64; rejected below.
+      }
+      boolean valid;
+      try {
+        valid = userEmail != null && token != null
+            && validator.isValid(userEmail, token);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Token validator failed", e);
+        valid = false;
+      }
+      if (!valid) {
+        rejectedCount.incrementAndGet();
+        authFailed = true;
+        awaitingAuth = true;
+        write((imap ? "+ " : "334 ") + INVALID_TOKEN_CHALLENGE);
+        return;
+      }
+      if (chance(throttleRate)) {
+        throttled("Too many login attempts, please try again later.");
+        return;
+      }
+      AtomicInteger count = getUserConnections(userEmail);
+      if (count.incrementAndGet() > maxConnectionsPerUser) {
+        count.decrementAndGet();
+        throttled("Too many simultaneous connections.");
+        return;
+      }
+      user = userEmail;
+      authenticatedCount.incrementAndGet();
+      if (imap) {
+        write(authTag + " OK [CAPABILITY " + imapCapabilities() + "] "
+              + userEmail + " authenticated (Success)");
+      } else {
+        write("235 2.7.0 Accepted");
+      }
+    }
+
+    private void throttled(String reason) {
+      throttledCount.incrementAndGet();
+      if (imap) {
+        write(authTag + " NO [LIMIT] " + reason + " (Failure)");
+      } else {
+        write("454 4.7.0 " + reason);
+      }
+    }
+
+    private void write(String line) {
+      output.add(ByteBuffer.wrap((line + "\r\n").getBytes(ASCII)));
+    }
+
+    /**
+     * Sends as much queued output as the socket takes, and asks to be told
+     * when it can take more.
+     */
+    void flush() throws IOException {
+      while (!closed) {
+        if (pending != null) {
+          channel.write(pending);
+          if (pending.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+          }
+          pending = null;
+        }
+        ByteBuffer next = tlsOutput ? nextRecord() : nextPlain();
+        if (next == null) {
+          break;
+        }
+        channel.write(next);
+        if (next.hasRemaining()) {
+          if (next == loop.wrapBuffer) {
+            pending = ByteBuffer.allocate(next.remaining());
+            pending.put(next);
+            pending.flip();
+          } else {
+            pending = next;
+          }
+        }
+      }
+      if (closed) {
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (closeAfterFlush) {
+        close();
+      }
+    }
+
+    private ByteBuffer nextPlain() {
+      ByteBuffer next = output.poll();
+      if (next == START_TLS) {
+        tlsOutput = true;
+        return nextRecord();
+      }
+      return next;
+    }
+
+    /**
+     * Wraps handshake data, or as much queued output as fits in one TLS
+     * record, into the loop's wrap buffer and returns it, or returns null if
+     * there is nothing to send yet.
+     */
+    private ByteBuffer nextRecord() {
+      HandshakeStatus status = engine.getHandshakeStatus();
+      if (status == HandshakeStatus.NEED_TASK) {
+        runDelegatedTasks();
+        status = engine.getHandshakeStatus();
+      }
+      ByteBuffer[] sources = loop.gather;
+      int count = 0;
+      if (status == HandshakeStatus.NEED_WRAP) {
+        sources[count++] = EMPTY;
+      } else if (status == HandshakeStatus.NOT_HANDSHAKING) {
+        // Gather small replies into one record.
+        for (ByteBuffer buffer : output) {
+          if (count == sources.length) {
+            break;
+          }
+          sources[count++] = buffer;
+        }
+      }
+      if (count == 0) {
+        return null;
+      }
+      ByteBuffer wrapped = loop.wrapBuffer;
+      wrapped.clear();
+      SSLEngineResult result;
+      try {
+        result = engine.wrap(sources, 0, count, wrapped);
+      } catch (SSLException e) {
+        logger.log(Level.FINE, "wrap failed", e);
+        closeAfterFlush = true;
+        return null;
+      } finally {
+        Arrays.fill(sources, 0, count, null);
+      }
+      while (!output.isEmpty() && !output.peek().hasRemaining()) {
+        output.poll();
+      }
+      wrapped.flip();
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+        closeAfterFlush = true;
+      }
+      return wrapped.hasRemaining() ? wrapped : null;
+    }
+
+    /** Resets the connection, as a failing network or server would. */
+    void drop() {
+      droppedCount.incrementAndGet();
+      try {
+        channel.socket().setSoLinger(true, 0);
+      } catch (IOException e) {
+        logger.log(Level.FINE, "setSoLinger failed", e);
+      }
+      close();
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      openCount.decrementAndGet();
+      if (idleTag != null) {
+        idlingCount.decrementAndGet();
+      }
+      if (user != null) {
+        getUserConnections(user).decrementAndGet();
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "close failed", e);
+      }
+    }
+  }
+}
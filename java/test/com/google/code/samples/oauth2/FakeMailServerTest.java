@@ -0,0 +1,116 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static com.google.code.samples.oauth2.TestSupport.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class FakeMailServerTest {
+  private static final String USER = "oauth@gmail.com";
+
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  void acceptsValidTokenOverImap() throws Exception {
+    IMAPStore store = OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), USER, "token-1", false);
+    assertTrue(store.isConnected());
+    store.close();
+    assertEquals(1, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void acceptsValidTokenOverSmtpAfterStartTls() throws Exception {
+    SMTPTransport transport = OAuth2Authenticator.connectToSmtp(
+        "localhost", server.getSmtpPort(), USER, "token-1", false);
+    assertTrue(transport.isConnected());
+    transport.close();
+    assertEquals(1, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void rejectsInvalidTokenWithGmailErrorChallenge() throws Exception {
+    OAuth2AuthenticationFailedException e = assertThrows(
+        OAuth2AuthenticationFailedException.class,
+        () -> OAuth2Authenticator.connectToImap(
+            "localhost", server.getImapPort(), USER, "expired", false));
+    assertEquals(401, e.getError().getStatusCode());
+    assertEquals(FailureClass.AUTHENTICATION, FailureClass.classify(e));
+    assertEquals(1, server.getRejectedCount());
+    assertEquals(0, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void throttlesConnectionsOverPerUserLimit() throws Exception {
+    server.setMaxConnectionsPerUser(1);
+    IMAPStore first = OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), USER, "token-1", false);
+    MessagingException e = assertThrows(
+        MessagingException.class,
+        () -> OAuth2Authenticator.connectToImap(
+            "localhost", server.getImapPort(), USER, "token-1", false));
+    assertEquals(FailureClass.THROTTLED, FailureClass.classify(e));
+    assertEquals(1, server.getThrottledCount());
+
+    first.close();
+    await("first connection to close",
+          () -> server.getOpenConnectionCount() == 0);
+    OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), USER, "token-1", false).close();
+  }
+
+  @Test
+  void dropsConnections() throws Exception {
+    server.setDropRate(1);
+    MessagingException e = assertThrows(
+        MessagingException.class,
+        () -> OAuth2Authenticator.connectToImap(
+            "localhost", server.getImapPort(), USER, "token-1", false));
+    assertEquals(FailureClass.CONNECTION, FailureClass.classify(e));
+    assertTrue(server.getDroppedCount() > 0);
+  }
+}
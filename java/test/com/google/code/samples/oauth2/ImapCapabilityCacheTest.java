@@ -0,0 +1,110 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks that IMAP connects reuse the capabilities an earlier connect was
+ * given, and drop them when they may be wrong.
+ */
+class ImapCapabilityCacheTest {
+  private static final String ALICE = "alice@gmail.com";
+  private static final String TOKEN = "token-capability";
+
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    ImapCapabilityCache.clear();
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+    server.setCapabilitiesInGreeting(false);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    ImapCapabilityCache.setMaxAge(1, TimeUnit.HOURS);
+    ImapCapabilityCache.clear();
+    server.close();
+  }
+
+  @Test
+  void secondConnectSkipsCapabilityCommand() throws Exception {
+    connect(TOKEN);
+    assertEquals(1, server.getCapabilityCount());
+    // Host names differ only in case; they share an entry.
+    assertNotNull(ImapCapabilityCache.get("LOCALHOST", server.getImapPort()));
+
+    connect(TOKEN);
+    connect(TOKEN);
+    assertEquals(1, server.getCapabilityCount());
+    assertEquals(3, server.getAuthenticatedCount());
+    assertEquals(1, ImapCapabilityCache.size());
+  }
+
+  @Test
+  void staleEntryIsDroppedAfterFailedConnect() throws Exception {
+    ImapCapabilityCache.put("localhost", server.getImapPort(),
+                            "IMAP4rev1 AUTH=PLAIN");
+    assertThrows(MessagingException.class, () -> connect(TOKEN));
+    assertNull(ImapCapabilityCache.get("localhost", server.getImapPort()));
+
+    connect(TOKEN);
+    assertEquals(1, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void rejectedTokenKeepsEntry() throws Exception {
+    connect(TOKEN);
+    assertThrows(AuthenticationFailedException.class, () -> connect("bad"));
+    assertNotNull(ImapCapabilityCache.get("localhost", server.getImapPort()));
+  }
+
+  @Test
+  void expiredEntryIsNotUsed() throws Exception {
+    connect(TOKEN);
+    ImapCapabilityCache.setMaxAge(0, TimeUnit.MILLISECONDS);
+    Thread.sleep(1);
+    assertNull(ImapCapabilityCache.get("localhost", server.getImapPort()));
+    assertEquals(0, ImapCapabilityCache.size());
+  }
+
+  private void connect(String token) throws MessagingException {
+    OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), ALICE, token, false).close();
+  }
+}
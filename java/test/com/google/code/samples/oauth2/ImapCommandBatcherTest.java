@@ -0,0 +1,210 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.TIMEOUT_MILLIS;
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.FLAGS;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.RFC822SIZE;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Batches operations against a FakeMailServer, with a flush interval long
+ * enough that only {@code flush} sends them.
+ */
+class ImapCommandBatcherTest {
+  private static final int MESSAGE_SIZE = 100;
+  private static final Flags SEEN = new Flags(Flags.Flag.SEEN);
+  private static final Flags FLAGGED = new Flags(Flags.Flag.FLAGGED);
+
+  private FakeMailServer server;
+  private IMAPStore store;
+  private ImapCommandBatcher batcher;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 5,
+                                MESSAGE_SIZE);
+    store = OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), "batch@gmail.com", "token-batch",
+        false);
+    IMAPFolder folder = (IMAPFolder) store.getFolder("INBOX");
+    folder.open(Folder.READ_ONLY);
+    batcher = new ImapCommandBatcher(folder, "FLAGS RFC822.SIZE", 100, 60000);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    batcher.close();
+    store.close();
+    server.close();
+  }
+
+  @Test
+  void coalescesIntoOneUidSet() throws Exception {
+    CompletableFuture<?>[] stores = {
+      batcher.addFlags(5, SEEN),
+      batcher.addFlags(1, SEEN),
+      batcher.addFlags(3, SEEN),
+      batcher.addFlags(2, SEEN),
+    };
+    batcher.flush();
+
+    for (CompletableFuture<?> future : stores) {
+      assertNull(future.get());
+    }
+    assertEquals(Arrays.asList("UID STORE 1:3,5 +FLAGS.SILENT (\\Seen)"),
+                 server.getUidCommands());
+    assertEquals(Collections.singleton("\\Seen"), server.getFlags(5));
+    assertEquals(Collections.emptySet(), server.getFlags(4));
+  }
+
+  @Test
+  void pipelinesIndependentCommands() throws Exception {
+    // Replies are slow enough that commands written together arrive before
+    // the first is answered.
+    server.setLatency(50, 50);
+    CompletableFuture<?>[] stores = {
+      batcher.addFlags(1, SEEN),
+      batcher.addFlags(2, FLAGGED),
+      batcher.removeFlags(3, SEEN),
+    };
+    batcher.flush();
+
+    for (CompletableFuture<?> future : stores) {
+      assertNull(future.get());
+    }
+    assertEquals(3, server.getUidCommands().size());
+    assertEquals(3, server.getMaxPipelineDepth());
+  }
+
+  @Test
+  void keepsOrderOfOperationsOnOneMessage() throws Exception {
+    batcher.addFlags(1, SEEN);
+    batcher.removeFlags(1, SEEN);
+    batcher.addFlags(2, SEEN);
+    CompletableFuture<FetchResponse> first = batcher.fetch(1);
+    CompletableFuture<FetchResponse> second = batcher.fetch(2);
+    batcher.flush();
+
+    // Message 2 joins the first store, but message 1's removal waits for
+    // it, and the fetches wait for both.
+    assertEquals(Arrays.asList("UID STORE 1:2 +FLAGS.SILENT (\\Seen)",
+                               "UID STORE 1 -FLAGS.SILENT (\\Seen)",
+                               "UID FETCH 1:2 (UID FLAGS RFC822.SIZE)"),
+                 server.getUidCommands());
+    assertFalse(first.get().getItem(FLAGS.class).contains(Flags.Flag.SEEN));
+    assertTrue(second.get().getItem(FLAGS.class).contains(Flags.Flag.SEEN));
+  }
+
+  @Test
+  void fetchOfMissingUidYieldsNull() throws Exception {
+    CompletableFuture<FetchResponse> present = batcher.fetch(4);
+    CompletableFuture<FetchResponse> missing = batcher.fetch(99);
+    batcher.flush();
+
+    assertEquals(MESSAGE_SIZE,
+                 present.get().getItem(RFC822SIZE.class).size);
+    assertNull(missing.get());
+  }
+
+  @Test
+  void taggedNoFailsOnlyItsOwnFutures() throws Exception {
+    server.createMailbox("Archive");
+    CompletableFuture<Void> archived = batcher.copy(1, "Archive");
+    CompletableFuture<Void> lost = batcher.copy(2, "Missing");
+    CompletableFuture<Void> alsoLost = batcher.copy(3, "Missing");
+    CompletableFuture<Void> seen = batcher.addFlags(4, SEEN);
+    batcher.flush();
+
+    assertNull(archived.get());
+    for (CompletableFuture<Void> future : Arrays.asList(lost, alsoLost)) {
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> future.get());
+      assertTrue(e.getCause() instanceof MessagingException);
+    }
+    assertNull(seen.get());
+    assertEquals(Collections.singleton("\\Seen"), server.getFlags(4));
+  }
+
+  @Test
+  void flushFromCallbackFailsInsteadOfDeadlocking() throws Exception {
+    CompletableFuture<Void> flushed = batcher.fetch(1).thenAccept(response -> {
+      try {
+        batcher.flush();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    CompletableFuture<Void> closed = batcher.fetch(2).thenAccept(response -> {
+      try {
+        batcher.close();
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    batcher.flush();
+
+    for (CompletableFuture<Void> future : Arrays.asList(flushed, closed)) {
+      ExecutionException e = assertThrows(
+          ExecutionException.class,
+          () -> future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    // The batcher is still usable.
+    CompletableFuture<Void> store = batcher.addFlags(1, SEEN);
+    batcher.flush();
+    assertNull(store.get());
+  }
+
+  @Test
+  void rejectsNullFetchItems() throws Exception {
+    IMAPFolder folder = (IMAPFolder) store.getFolder("INBOX");
+    assertThrows(NullPointerException.class,
+                 () -> new ImapCommandBatcher(folder, null, 10, 10));
+  }
+}
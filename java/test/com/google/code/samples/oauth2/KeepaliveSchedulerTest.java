@@ -0,0 +1,151 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.TOKENS;
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Service;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks NOOPs, touching, unregistering, re-authentication and reconnection
+ * of dead connections against FakeMailServer.
+ */
+class KeepaliveSchedulerTest {
+  private static final String ALICE = "alice@gmail.com";
+
+  private FakeMailServer server;
+  private KeepaliveScheduler scheduler;
+  private final List<Service> services = new ArrayList<Service>();
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (scheduler != null) {
+      scheduler.close();
+    }
+    for (Service service : services) {
+      service.close();
+    }
+    server.close();
+  }
+
+  @Test
+  void idleConnectionsGetNoops() throws Exception {
+    scheduler = new KeepaliveScheduler(300, 2000, 0, 4);
+    for (int i = 0; i < 10; i++) {
+      connectImap("user" + i + "@gmail.com");
+    }
+    SMTPTransport transport = scheduler.connectToSmtp(
+        "localhost", server.getSmtpPort(), ALICE, TOKENS, false);
+    services.add(transport);
+    assertEquals(11, scheduler.getConnectionCount());
+
+    // Every connection, the transport included, is sent at least three.
+    TestSupport.await("NOOPs", () -> scheduler.getNoopCount() >= 33);
+    // The scheduler counts a NOOP before the server sees it.
+    TestSupport.await("the server to see them",
+                      () -> server.getNoopCount() >= 33);
+    assertEquals(0, scheduler.getDeadCount());
+    assertEquals(0, scheduler.getReconnectCount());
+    assertEquals(11, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void touchedConnectionGetsNoNoops() throws Exception {
+    scheduler = new KeepaliveScheduler(500, 2000, 0, 1);
+    IMAPStore store = connectImap(ALICE);
+    for (int i = 0; i < 30; i++) {
+      scheduler.touch(store);
+      Thread.sleep(50);
+    }
+    assertEquals(0, server.getNoopCount());
+
+    TestSupport.await("a NOOP once idle", () -> server.getNoopCount() > 0);
+  }
+
+  @Test
+  void unregisteredConnectionGetsNoMoreNoops() throws Exception {
+    scheduler = new KeepaliveScheduler(200, 2000, 0, 1);
+    IMAPStore store = connectImap(ALICE);
+    TestSupport.await("a NOOP", () -> scheduler.getNoopCount() > 0);
+    scheduler.unregister(store);
+    assertEquals(0, scheduler.getConnectionCount());
+    // A check that had already started may still finish.
+    Thread.sleep(300);
+    long noops = scheduler.getNoopCount();
+
+    Thread.sleep(1000);
+    assertEquals(noops, scheduler.getNoopCount());
+  }
+
+  @Test
+  void reauthenticatesOnSchedule() throws Exception {
+    scheduler = new KeepaliveScheduler(60000, 2000, 500, 1);
+    IMAPStore store = connectImap(ALICE);
+    TestSupport.await("two re-authentications",
+                      () -> scheduler.getReconnectCount() >= 2);
+    assertTrue(server.getAuthenticatedCount() >= 3);
+    assertTrue(store.isConnected());
+  }
+
+  @Test
+  void reconnectsDeadConnectionOnceServerAnswers() throws Exception {
+    scheduler = new KeepaliveScheduler(200, 300, 0, 1);
+    IMAPStore store = connectImap(ALICE);
+    server.setSilent(true);
+    TestSupport.await("the connection to be found dead",
+                      () -> scheduler.getDeadCount() > 0);
+    TestSupport.await("a failed reconnect",
+                      () -> scheduler.getReconnectFailureCount() > 0);
+
+    server.setSilent(false);
+    TestSupport.await("a reconnect", () -> scheduler.getReconnectCount() > 0);
+    assertTrue(store.isConnected());
+    assertEquals(2, server.getAuthenticatedCount());
+  }
+
+  private IMAPStore connectImap(String userEmail) throws Exception {
+    IMAPStore store = scheduler.connectToImap(
+        "localhost", server.getImapPort(), userEmail, TOKENS, false);
+    services.add(store);
+    return store;
+  }
+}
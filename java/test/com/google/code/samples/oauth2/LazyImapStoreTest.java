@@ -0,0 +1,125 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.TOKENS;
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks that handles connect once, without probing the server on each
+ * use, and reconnect after the store closes.
+ */
+class LazyImapStoreTest {
+  private static final String ALICE = "alice@gmail.com";
+
+  private FakeMailServer server;
+  private UsageStats stats;
+  private LazyImapStore handle;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+    stats = new UsageStats(null, 3600000);
+    handle = new LazyImapStore("localhost", server.getImapPort(), ALICE,
+                               TOKENS, stats, false);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    handle.close();
+    server.close();
+  }
+
+  @Test
+  void usesDoNoNetworkIo() throws Exception {
+    assertFalse(handle.isConnected());
+    assertEquals(0, server.getOpenConnectionCount());
+
+    IMAPStore store = handle.getStore();
+    for (int i = 0; i < 10; i++) {
+      assertSame(store, handle.getStore());
+      assertTrue(handle.isConnected());
+      handle.getFolder("INBOX");
+    }
+    assertEquals(1, server.getAuthenticatedCount());
+    assertEquals(0, server.getNoopCount());
+    // Accounts are counted without regard to case.
+    assertEquals(21, stats.getScore("ALICE@gmail.com"), 0.01);
+  }
+
+  @Test
+  void reconnectsAfterStoreCloses() throws Exception {
+    IMAPStore first = handle.getStore();
+    first.close();
+    assertFalse(handle.isConnected());
+
+    IMAPStore second = handle.getStore();
+    assertNotSame(first, second);
+    assertTrue(second.isConnected());
+    assertEquals(2, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void invalidateIgnoresOldStore() throws Exception {
+    IMAPStore first = handle.getStore();
+    handle.invalidate(first);
+    IMAPStore second = handle.getStore();
+    handle.invalidate(first);
+    assertSame(second, handle.getStore());
+    assertTrue(second.isConnected());
+  }
+
+  @Test
+  void reconnectsAfterFailedOperation() throws Exception {
+    IMAPStore first = handle.getStore();
+    server.dropConnections();
+    TestSupport.await("the connection to drop",
+                      () -> server.getOpenConnectionCount() == 0);
+    // The handle does not notice the drop until the store is used.
+    assertTrue(handle.isConnected());
+    assertThrows(MessagingException.class,
+                 () -> first.getFolder("INBOX").exists());
+    handle.invalidate(first);
+    assertFalse(handle.isConnected());
+
+    IMAPFolder folder = handle.getFolder("INBOX");
+    assertNotSame(first, folder.getStore());
+    assertEquals(2, server.getAuthenticatedCount());
+  }
+}
@@ -0,0 +1,303 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Checks persistence, key checking, refresh, removal and compaction of the
+ * memory-mapped token store.
+ */
+class MappedTokenStoreTest {
+  private static final long HOUR_MILLIS = 3600000;
+  // The store's smallest index, and where it starts.
+  private static final int SLOT_BITS = 10;
+  private static final int INDEX_START = 64;
+
+  @TempDir
+  Path directory;
+
+  private Path file;
+  private SecretKey key;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    file = directory.resolve("tokens");
+    key = newKey();
+  }
+
+  @Test
+  void reopenedStoreHasSameTokens() throws Exception {
+    long expires = System.currentTimeMillis() + HOUR_MILLIS;
+    MappedTokenStore store = new MappedTokenStore(file, key, 100, null);
+    // Ten times the expected accounts, so the index has to grow.
+    for (int i = 0; i < 1000; i++) {
+      store.setRefreshToken(email(i), "refresh-" + i);
+      store.putAccessToken(email(i), new AccessToken("access-" + i, expires));
+    }
+    store.close();
+
+    final MappedTokenStore reopened =
+        new MappedTokenStore(file, key, 100, null);
+    try {
+      assertEquals(1000, reopened.size());
+      for (int i = 0; i < 1000; i++) {
+        assertEquals("access-" + i, reopened.getToken(email(i)));
+        assertEquals("refresh-" + i, reopened.getRefreshToken(email(i)));
+      }
+      // Addresses differ only in case; they are the same account.
+      assertEquals("access-7", reopened.getToken("USER7@gmail.com"));
+      assertNull(reopened.getAccessToken("nobody@gmail.com"));
+      assertThrows(IOException.class,
+                   () -> reopened.getToken("nobody@gmail.com"));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  void wrongKeyIsRejected() throws Exception {
+    MappedTokenStore store = new MappedTokenStore(file, key, 10, null);
+    store.setRefreshToken(email(1), "refresh-1");
+    store.close();
+
+    assertThrows(IOException.class,
+                 () -> new MappedTokenStore(file, newKey(), 10, null));
+    byte[] contents = Files.readAllBytes(file);
+    assertFalse(new String(contents, "ISO-8859-1").contains("refresh-1"));
+    assertFalse(new String(contents, "ISO-8859-1").contains("user1"));
+  }
+
+  @Test
+  void refreshesExpiredAndInvalidatedTokens() throws Exception {
+    final AtomicInteger refreshes = new AtomicInteger();
+    TokenRefresher refresher = new TokenRefresher() {
+      public AccessToken refreshToken(String userEmail) {
+        return new AccessToken("fresh-" + refreshes.incrementAndGet(),
+                               System.currentTimeMillis() + HOUR_MILLIS);
+      }
+    };
+    MappedTokenStore store = new MappedTokenStore(file, key, 10, refresher);
+    try {
+      store.setRefreshToken(email(1), "refresh-1");
+      store.putAccessToken(email(1), new AccessToken("stale", 0));
+      assertEquals("fresh-1", store.getToken(email(1)));
+      assertEquals("fresh-1", store.getToken(email(1)));
+      assertEquals(1, refreshes.get());
+
+      store.invalidate(email(1));
+      assertNull(store.getAccessToken(email(1)));
+      assertEquals("refresh-1", store.getRefreshToken(email(1)));
+      assertEquals("fresh-2", store.getToken(email(1)));
+
+      // Without a refresh token there is nothing left to keep.
+      store.putAccessToken(email(2), new AccessToken("access-2", 0));
+      store.invalidate(email(2));
+      assertEquals(1, store.size());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void compactionReclaimsSpace() throws Exception {
+    long expires = System.currentTimeMillis() + HOUR_MILLIS;
+    MappedTokenStore store = new MappedTokenStore(file, key, 2000, null);
+    try {
+      for (int round = 0; round < 5; round++) {
+        for (int i = 0; i < 2000; i++) {
+          store.putAccessToken(
+              email(i), new AccessToken("access-" + round + "-" + i, expires));
+        }
+      }
+      for (int i = 0; i < 2000; i += 2) {
+        assertTrue(store.remove(email(i)));
+      }
+      assertFalse(store.remove(email(0)));
+      store.compact();
+
+      assertEquals(1000, store.size());
+      for (int i = 0; i < 2000; i++) {
+        AccessToken token = store.getAccessToken(email(i));
+        if (i % 2 == 0) {
+          assertNull(token);
+        } else {
+          assertEquals("access-4-" + i, token.getToken());
+        }
+      }
+    } finally {
+      store.close();
+    }
+    MappedTokenStore reopened = new MappedTokenStore(file, key, 2000, null);
+    try {
+      assertEquals(1000, reopened.size());
+      assertEquals("access-4-1", reopened.getToken(email(1)));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  void readersSeeConsistentTokensDuringCompaction() throws Exception {
+    final long expires = System.currentTimeMillis() + HOUR_MILLIS;
+    final MappedTokenStore store = new MappedTokenStore(file, key, 100, null);
+    for (int i = 0; i < 100; i++) {
+      store.putAccessToken(email(i), new AccessToken("access-" + i, expires));
+    }
+    final AtomicBoolean done = new AtomicBoolean();
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < 4; t++) {
+        results.add(readers.submit(() -> {
+          int reads = 0;
+          while (!done.get()) {
+            int i = reads++ % 100;
+            String token = store.getToken(email(i));
+            if (!token.equals("access-" + i)
+                && !token.matches("access-\\d+-" + i)) {
+              throw new AssertionError(token + " for " + email(i));
+            }
+          }
+          return reads;
+        }));
+      }
+      // Rewriting every record again and again forces compactions.
+      for (int round = 0; round < 50; round++) {
+        for (int i = 0; i < 100; i++) {
+          store.putAccessToken(
+              email(i), new AccessToken("access-" + round + "-" + i, expires));
+        }
+        if (round % 10 == 0) {
+          store.compact();
+        }
+      }
+      done.set(true);
+      for (Future<Integer> result : results) {
+        assertTrue(result.get(10, TimeUnit.SECONDS) > 0);
+      }
+    } finally {
+      done.set(true);
+      readers.shutdownNow();
+      store.close();
+    }
+    assertEquals(100, store.size());
+  }
+
+  @Test
+  void fullIndexRefusesNewAccounts() throws Exception {
+    final MappedTokenStore store =
+        new MappedTokenStore(file, key, 10, null, SLOT_BITS);
+    try {
+      Object fileKey = fileKey();
+      for (int i = 0; i < 1 << SLOT_BITS; i++) {
+        store.setRefreshToken(email(i), "refresh-" + i);
+      }
+      // An index that cannot grow is filled without compacting.
+      assertEquals(fileKey, fileKey());
+
+      IOException e = assertThrows(
+          IOException.class,
+          () -> store.setRefreshToken(email(1 << SLOT_BITS), "refresh"));
+      assertTrue(e.getMessage().contains("full"), e.getMessage());
+      store.setRefreshToken(email(7), "refresh-7b");
+      assertEquals("refresh-7b", store.getRefreshToken(email(7)));
+
+      // Removing an account makes room for another.
+      assertTrue(store.remove(email(8)));
+      store.setRefreshToken(email(1 << SLOT_BITS), "refresh");
+      assertEquals(1 << SLOT_BITS, store.size());
+      assertNull(store.getRefreshToken(email(8)));
+      assertEquals("refresh-1023", store.getRefreshToken(email(1023)));
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void slotWithLostRecordIsAMiss() throws Exception {
+    MappedTokenStore store = new MappedTokenStore(file, key, 10, null);
+    store.setRefreshToken(email(1), "refresh-1");
+    store.close();
+    // As after a crash that wrote the index page but not the record's.
+    ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+    long dataEnd = contents.getLong(16);
+    int slot = INDEX_START;
+    while (contents.getLong(slot + 8) == 0) {
+      slot += 16;
+    }
+    contents.putLong(slot + 8, dataEnd + 1000);
+    Files.write(file, contents.array());
+
+    final MappedTokenStore reopened =
+        new MappedTokenStore(file, key, 10, null);
+    try {
+      assertNull(reopened.getRefreshToken(email(1)));
+      assertThrows(IOException.class, () -> reopened.getToken(email(1)));
+      assertFalse(reopened.remove(email(1)));
+
+      // The account can be stored again, in the slot it had.
+      reopened.setRefreshToken(email(1), "refresh-1b");
+      assertEquals("refresh-1b", reopened.getRefreshToken(email(1)));
+      assertEquals(1, reopened.size());
+      reopened.compact();
+      assertEquals(1, reopened.size());
+      assertEquals("refresh-1b", reopened.getRefreshToken(email(1)));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  private Object fileKey() throws IOException {
+    return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+  }
+
+  private static String email(int i) {
+    return "user" + i + "@gmail.com";
+  }
+
+  private static SecretKey newKey() throws Exception {
+    KeyGenerator generator = KeyGenerator.getInstance("AES");
+    generator.init(128);
+    return generator.generateKey();
+  }
+}
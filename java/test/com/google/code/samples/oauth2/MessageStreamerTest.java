@@ -0,0 +1,194 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static com.google.code.samples.oauth2.TestSupport.await;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Streams messages from a FakeMailServer whose UIDs are not their sequence
+ * numbers, in chunks that do not divide the message size.
+ */
+class MessageStreamerTest {
+  private static final int MESSAGE_COUNT = 5;
+  private static final int MESSAGE_SIZE = 10000;
+  private static final long FIRST_UID = 100;
+
+  private FakeMailServer server;
+  private IMAPStore store;
+  private IMAPFolder folder;
+  private final MessageStreamer streamer = new MessageStreamer(4096);
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX,
+                                MESSAGE_COUNT, MESSAGE_SIZE);
+    server.setFirstUid(FIRST_UID);
+    store = OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), "oauth@gmail.com", "token-stream",
+        false);
+    folder = (IMAPFolder) store.getFolder("INBOX");
+    folder.open(Folder.READ_ONLY);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    store.close();
+    server.close();
+  }
+
+  @Test
+  void streamsMessageByUid() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(MESSAGE_SIZE,
+                 streamer.stream(folder, FIRST_UID + 2,
+                                 Channels.newChannel(out)));
+    assertArrayEquals(FakeMailServer.syntheticMessage(MESSAGE_SIZE),
+                      out.toByteArray());
+  }
+
+  @Test
+  void reportsMissingUid() throws Exception {
+    // Sequence number 2 exists, but UID 2 does not.
+    assertEquals(-1, streamer.stream(folder, 2,
+                                     Channels.newChannel(
+                                         new ByteArrayOutputStream())));
+  }
+
+  @Test
+  void streamsRange() throws Exception {
+    final Map<Long, ByteArrayOutputStream> messages =
+        new LinkedHashMap<Long, ByteArrayOutputStream>();
+    final List<Long> sizes = new ArrayList<Long>();
+    int count = streamer.streamRange(folder, FIRST_UID + 2, -1,
+                                     new MessageStreamer.MessageSink() {
+      public WritableByteChannel open(long uid, long size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        messages.put(uid, out);
+        sizes.add(size);
+        return Channels.newChannel(out);
+      }
+    });
+
+    assertEquals(3, count);
+    assertEquals(3, messages.size());
+    long uid = FIRST_UID + 2;
+    for (Map.Entry<Long, ByteArrayOutputStream> message
+             : messages.entrySet()) {
+      assertEquals(uid++, (long) message.getKey());
+      assertArrayEquals(FakeMailServer.syntheticMessage(MESSAGE_SIZE),
+                        message.getValue().toByteArray());
+    }
+    for (long size : sizes) {
+      assertEquals(MESSAGE_SIZE, size);
+    }
+  }
+
+  @Test
+  void streamsPastUnderstatedSize() throws Exception {
+    server.setReportedSize(MESSAGE_SIZE / 2);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(MESSAGE_SIZE,
+                 streamer.stream(folder, FIRST_UID, Channels.newChannel(out)));
+    assertArrayEquals(FakeMailServer.syntheticMessage(MESSAGE_SIZE),
+                      out.toByteArray());
+  }
+
+  @Test
+  void closeFailureDoesNotHideConnectionFailure() throws Exception {
+    final AtomicBoolean closed = new AtomicBoolean();
+    final WritableByteChannel out = new WritableByteChannel() {
+      public int write(ByteBuffer source) throws IOException {
+        // The connection goes while the first message is being streamed.
+        server.dropConnections();
+        try {
+          await("connection dropped",
+                () -> server.getOpenConnectionCount() == 0);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        int written = source.remaining();
+        source.position(source.limit());
+        return written;
+      }
+
+      public boolean isOpen() {
+        return !closed.get();
+      }
+
+      public void close() throws IOException {
+        closed.set(true);
+        throw new IOException("close failed");
+      }
+    };
+
+    assertThrows(MessagingException.class,
+                 () -> streamer.streamRange(folder, FIRST_UID, -1,
+                                            new MessageStreamer.MessageSink() {
+      public WritableByteChannel open(long uid, long size) {
+        return out;
+      }
+    }));
+    assertTrue(closed.get());
+  }
+
+  @Test
+  void streamsToFile(@TempDir Path directory) throws Exception {
+    Path file = directory.resolve("message.eml");
+    Files.write(file, new byte[MESSAGE_SIZE * 2]);
+    assertEquals(MESSAGE_SIZE,
+                 streamer.streamToFile(folder, FIRST_UID, file));
+    assertArrayEquals(FakeMailServer.syntheticMessage(MESSAGE_SIZE),
+                      Files.readAllBytes(file));
+  }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.TIMEOUT_MILLIS;
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks that the token is only ever sent with an OAuth2 mechanism, however
+ * the server is set up and whichever XOAUTH2 implementation is used.
+ */
+class OAuth2AuthenticatorTest {
+  private static final String USER = "oauth@gmail.com";
+  private static final String TOKEN = "token-secret";
+
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    OAuth2Authenticator.setUseSaslProvider(true);
+    server.close();
+  }
+
+  @Test
+  void imapRefusesServerWithoutOAuth2Mechanism() throws Exception {
+    server.setMechanisms("PLAIN", "LOGIN");
+    assertImapRefused();
+  }
+
+  @Test
+  void imapRefusesServerWithoutOAuth2MechanismAfterCapability()
+      throws Exception {
+    server.setMechanisms("PLAIN");
+    server.setCapabilitiesInGreeting(false);
+    assertImapRefused();
+    assertEquals(1, server.getCapabilityCount());
+  }
+
+  @Test
+  void builtInXoauth2RefusesServerWithOnlyOauthBearer() throws Exception {
+    // JavaMail's own XOAUTH2 sends the token as the password, and it has no
+    // OAUTHBEARER to fall back on.
+    OAuth2Authenticator.setUseSaslProvider(false);
+    server.setMechanisms("OAUTHBEARER");
+    assertImapRefused();
+  }
+
+  @Test
+  void builtInXoauth2Authenticates() throws Exception {
+    OAuth2Authenticator.setUseSaslProvider(false);
+    OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), USER, TOKEN, false).close();
+    OAuth2Authenticator.connectToSmtp(
+        "localhost", server.getSmtpPort(), USER, TOKEN, false).close();
+    assertEquals(2, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void saslAuthenticatesWithOnlyOauthBearer() throws Exception {
+    server.setMechanisms("OAUTHBEARER");
+    OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), USER, TOKEN, false).close();
+    OAuth2Authenticator.connectToSmtp(
+        "localhost", server.getSmtpPort(), USER, TOKEN, false).close();
+    assertEquals(2, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void smtpRefusesServerWithoutOAuth2Mechanism() throws Exception {
+    server.setMechanisms("PLAIN", "LOGIN");
+    assertThrows(MessagingException.class,
+                 () -> OAuth2Authenticator.connectToSmtp(
+                     "localhost", server.getSmtpPort(), USER, TOKEN, false));
+    OAuth2Authenticator.setUseSaslProvider(false);
+    assertThrows(MessagingException.class,
+                 () -> OAuth2Authenticator.connectToSmtp(
+                     "localhost", server.getSmtpPort(), USER, TOKEN, false));
+    assertEquals(0, server.getPasswordLoginCount());
+  }
+
+  @Test
+  void concurrentInitializeInstallsOneProvider() throws Exception {
+    String name = OAuth2Authenticator.OAuth2Provider.NAME;
+    // Without the provider, preferred calls all have to install it.
+    Security.removeProvider(name);
+    final int threadCount = 8;
+    final CyclicBarrier start = new CyclicBarrier(threadCount);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Void>> calls = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threadCount; i++) {
+        final boolean preferred = i % 2 == 0;
+        calls.add(executor.submit(() -> {
+          start.await();
+          OAuth2Authenticator.initialize(preferred);
+          return null;
+        }));
+      }
+      for (Future<Void> call : calls) {
+        call.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    int installed = 0;
+    for (Provider provider : Security.getProviders()) {
+      if (name.equals(provider.getName())) {
+        installed++;
+      }
+    }
+    assertEquals(1, installed);
+    assertEquals(name, Security.getProviders()[0].getName());
+    OAuth2Authenticator.connectToImap(
+        "localhost", server.getImapPort(), USER, TOKEN, false).close();
+    assertEquals(1, server.getAuthenticatedCount());
+  }
+
+  private void assertImapRefused() {
+    MessagingException e = assertThrows(
+        MessagingException.class,
+        () -> OAuth2Authenticator.connectToImap(
+            "localhost", server.getImapPort(), USER, TOKEN, false));
+    assertTrue(e.getMessage().contains("neither XOAUTH2 nor OAUTHBEARER"),
+               e.getMessage());
+    assertEquals(0, server.getPasswordLoginCount());
+    assertEquals(0, server.getAuthenticatedCount());
+  }
+}
@@ -0,0 +1,147 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.TOKENS;
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Watches INBOXes on a FakeMailServer and delivers mail to them.
+ */
+class OAuth2IdleMultiplexerTest {
+  private static final String ALICE = "alice@gmail.com";
+  private static final String BOB = "bob@gmail.com";
+
+  private FakeMailServer server;
+  private OAuth2IdleMultiplexer multiplexer;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+    multiplexer = new OAuth2IdleMultiplexer(
+        "localhost", server.getImapPort(), TOKENS, 60000, 4);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    multiplexer.close();
+    server.close();
+  }
+
+  @Test
+  void reportsEveryDelivery() throws Exception {
+    multiplexer.watch(ALICE);
+    multiplexer.watch(BOB);
+    awaitIdling(2);
+
+    server.deliver(3);
+    Map<String, Integer> counts = takeEvents(2);
+    assertEquals(3, (int) counts.get(ALICE));
+    assertEquals(3, (int) counts.get(BOB));
+
+    // IDLE carries on after the first delivery.
+    awaitIdling(2);
+    server.deliver(1);
+    counts = takeEvents(2);
+    assertEquals(1, (int) counts.get(ALICE));
+    assertEquals(1, (int) counts.get(BOB));
+    assertEquals(2, multiplexer.getConnectedCount());
+  }
+
+  @Test
+  void mergesEventsNotYetTaken() throws Exception {
+    multiplexer.watch(ALICE);
+    awaitIdling(1);
+    // Nobody takes the first event before the second delivery arrives.
+    server.deliver(1);
+    Thread.sleep(300);
+    server.deliver(2);
+    Thread.sleep(300);
+
+    OAuth2IdleMultiplexer.NewMailEvent event =
+        multiplexer.poll(10, TimeUnit.SECONDS);
+    assertNotNull(event);
+    assertEquals(ALICE, event.getUserEmail());
+    assertEquals(3, event.getMessageCount());
+    assertNull(multiplexer.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void reconnectsDroppedConnection() throws Exception {
+    multiplexer.watch(ALICE);
+    awaitIdling(1);
+
+    server.dropConnections();
+    TestSupport.await("a reconnect",
+                      () -> multiplexer.getReconnectCount() == 1);
+    awaitIdling(1);
+    assertEquals(2, server.getAuthenticatedCount());
+
+    server.deliver(1);
+    OAuth2IdleMultiplexer.NewMailEvent event =
+        multiplexer.poll(10, TimeUnit.SECONDS);
+    assertNotNull(event);
+    assertEquals(1, event.getMessageCount());
+  }
+
+  @Test
+  void unwatchClosesConnection() throws Exception {
+    multiplexer.watch(ALICE);
+    awaitIdling(1);
+
+    multiplexer.unwatch(ALICE);
+    assertEquals(0, multiplexer.getWatchedCount());
+    TestSupport.await("the connection to close",
+                      () -> server.getOpenConnectionCount() == 0);
+    assertEquals(0, multiplexer.getConnectedCount());
+  }
+
+  private void awaitIdling(final int count) throws InterruptedException {
+    TestSupport.await(count + " connections in IDLE",
+                      () -> server.getIdlingCount() == count);
+  }
+
+  private Map<String, Integer> takeEvents(int count) throws Exception {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (int i = 0; i < count; i++) {
+      OAuth2IdleMultiplexer.NewMailEvent event =
+          multiplexer.poll(10, TimeUnit.SECONDS);
+      assertNotNull(event, "event " + i);
+      counts.put(event.getUserEmail(), event.getMessageCount());
+    }
+    return counts;
+  }
+}
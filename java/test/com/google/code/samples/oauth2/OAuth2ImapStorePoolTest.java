@@ -0,0 +1,143 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks reuse, limits and eviction of pooled IMAP stores.
+ */
+class OAuth2ImapStorePoolTest {
+  private static final String ALICE = "alice@gmail.com";
+  private static final String BOB = "bob@gmail.com";
+  private static final String TOKEN = "token-pool";
+
+  private FakeMailServer server;
+  private OAuth2ImapStorePool pool;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (pool != null) {
+      pool.close();
+    }
+    server.close();
+  }
+
+  @Test
+  void reusesReturnedStore() throws Exception {
+    pool = new OAuth2ImapStorePool(2, 10, 60000, 600000);
+    IMAPStore first = borrow("localhost", ALICE);
+    pool.returnStore(first);
+    // Host names differ only in case; they are the same pool key.
+    IMAPStore second = borrow("LOCALHOST", ALICE);
+    assertSame(first, second);
+    pool.returnStore(second);
+
+    assertEquals(1, pool.getMissCount());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getOpenStoreCount());
+    assertEquals(1, pool.getIdleStoreCount());
+    assertEquals(1, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void invalidatedStoreIsNotReused() throws Exception {
+    pool = new OAuth2ImapStorePool(2, 10, 60000, 600000);
+    IMAPStore first = borrow("localhost", ALICE);
+    pool.invalidateStore(first);
+    assertFalse(first.isConnected());
+
+    IMAPStore second = borrow("localhost", ALICE);
+    assertNotSame(first, second);
+    pool.returnStore(second);
+    assertEquals(2, pool.getMissCount());
+    assertEquals(1, pool.getEvictionCount());
+    assertEquals(1, pool.getOpenStoreCount());
+  }
+
+  @Test
+  void evictsIdleStores() throws Exception {
+    pool = new OAuth2ImapStorePool(2, 10, 50, 600000);
+    IMAPStore store = borrow("localhost", ALICE);
+    pool.returnStore(store);
+    Thread.sleep(100);
+
+    assertEquals(1, pool.evictIdleStores());
+    assertEquals(0, pool.getOpenStoreCount());
+    assertEquals(1, pool.getEvictionCount());
+    TestSupport.await("the evicted connection to close",
+                      () -> server.getOpenConnectionCount() == 0);
+  }
+
+  @Test
+  void waitsAtPerUserLimit() throws Exception {
+    pool = new OAuth2ImapStorePool(1, 10, 60000, 600000);
+    IMAPStore store = borrow("localhost", ALICE);
+    assertThrows(TimeoutException.class,
+                 () -> pool.borrowStore("localhost", server.getImapPort(),
+                                        ALICE, TOKEN, 100));
+    assertEquals(1, pool.getWaitCount());
+
+    // Another user is not held up.
+    pool.returnStore(borrow("localhost", BOB));
+    pool.returnStore(store);
+    assertEquals(2, pool.getOpenStoreCount());
+  }
+
+  @Test
+  void evictsOtherUsersIdleStoreAtGlobalLimit() throws Exception {
+    pool = new OAuth2ImapStorePool(1, 1, 60000, 600000);
+    pool.returnStore(borrow("localhost", ALICE));
+
+    IMAPStore store = borrow("localhost", BOB);
+    assertEquals(1, pool.getOpenStoreCount());
+    assertEquals(1, pool.getEvictionCount());
+    pool.returnStore(store);
+    assertEquals(2, server.getAuthenticatedCount());
+  }
+
+  private IMAPStore borrow(String host, String userEmail) throws Exception {
+    return pool.borrowStore(host, server.getImapPort(), userEmail, TOKEN,
+                            1000);
+  }
+}
@@ -0,0 +1,94 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.sun.mail.imap.IMAPStore;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Connects twice through one shared SSLContext and checks that the second
+ * handshake is counted as resumed, for each TLS version.
+ */
+class OAuth2SSLSocketFactoryTest {
+  private FakeMailServer server;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    OAuth2Authenticator.setSSLContext(null);
+    server.close();
+  }
+
+  @Test
+  void countsResumedTls12Handshake() throws Exception {
+    assertOneFullOneResumed("TLSv1.2");
+  }
+
+  @Test
+  void countsResumedTls13Handshake() throws Exception {
+    assertOneFullOneResumed("TLSv1.3");
+  }
+
+  private void assertOneFullOneResumed(String protocol) throws Exception {
+    // The highest version the context enables; the server has both.
+    SSLContext context = SSLContext.getInstance(protocol);
+    context.init(null, null, null);
+    OAuth2Authenticator.setSSLContext(context);
+    long handshakes = OAuth2Authenticator.getTlsHandshakeCount();
+    long resumed = OAuth2Authenticator.getTlsResumedHandshakeCount();
+
+    for (int i = 0; i < 2; i++) {
+      IMAPStore store = OAuth2Authenticator.connectToImap(
+          "localhost", server.getImapPort(), "tls@gmail.com", "token-tls",
+          false);
+      store.close();
+    }
+
+    SSLSessionContext sessions = context.getClientSessionContext();
+    List<byte[]> ids = Collections.list(sessions.getIds());
+    assertFalse(ids.isEmpty());
+    for (byte[] id : ids) {
+      assertEquals(protocol, sessions.getSession(id).getProtocol());
+    }
+    assertEquals(2, OAuth2Authenticator.getTlsHandshakeCount() - handshakes);
+    assertEquals(1,
+                 OAuth2Authenticator.getTlsResumedHandshakeCount() - resumed);
+  }
+}
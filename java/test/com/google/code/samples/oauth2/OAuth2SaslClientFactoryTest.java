@@ -0,0 +1,233 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+class OAuth2SaslClientFactoryTest {
+  private static final int THREADS = 8;
+  private static final int USERS = 1000;
+  private static final String[] XOAUTH2 = {"XOAUTH2"};
+
+  private static final TokenProvider TOKENS = new TokenProvider() {
+    public String getToken(String userEmail) {
+      return tokenFor(userEmail);
+    }
+
+    public void invalidate(String userEmail) {
+    }
+  };
+
+  private final OAuth2SaslClientFactory factory =
+      OAuth2SaslClientFactory.getInstance();
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  private static String tokenFor(String userEmail) {
+    return "token-for-" + userEmail;
+  }
+
+  private static CallbackHandler nameHandler(final String userEmail) {
+    return new CallbackHandler() {
+      public void handle(Callback[] callbacks) {
+        for (Callback callback : callbacks) {
+          if (callback instanceof NameCallback) {
+            ((NameCallback) callback).setName(userEmail);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs exchanges on many threads at once, each cycling through many users
+   * and taking the token from each of the places a connect can put it, and
+   * checks every response carries its own user's token.
+   */
+  @Test
+  void concurrentExchangesNeverMixUpTokens() throws Exception {
+    runOnThreads(new Task() {
+      public void run(int thread, int iteration) throws Exception {
+        String userEmail = "user" + ((thread * 37 + iteration) % USERS)
+            + "@example.com";
+        Map<String, Object> props = new HashMap<String, Object>();
+        ConnectContext context = new ConnectContext();
+        switch (iteration % 3) {
+          case 0:
+            props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROP,
+                      tokenFor(userEmail));
+            break;
+          case 1:
+            props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROVIDER_PROP,
+                      TOKENS);
+            break;
+          default:
+            context.setOAuthToken(tokenFor(userEmail));
+        }
+        context.attach();
+        try {
+          SaslClient client = factory.createSaslClient(
+              XOAUTH2, null, "imap", "localhost", props,
+              nameHandler(userEmail));
+          assertArrayEquals(
+              XOAuth2ResponseEncoder.encode(userEmail, tokenFor(userEmail)),
+              client.evaluateChallenge(new byte[0]));
+        } finally {
+          context.releaseSaslClient();
+          context.detach();
+        }
+      }
+    }, 2000);
+  }
+
+  /**
+   * Connects to a server that checks every token against the user it was
+   * sent for, from many threads at once.
+   */
+  @Test
+  void concurrentConnectsSendEachUsersToken() throws Exception {
+    final AtomicLong mismatches = new AtomicLong();
+    final FakeMailServer server = new FakeMailServer(
+        SSLContext.getDefault(), new FakeMailServer.TokenValidator() {
+          public boolean isValid(String userEmail, String oauthToken) {
+            if (!tokenFor(userEmail).equals(oauthToken)) {
+              mismatches.incrementAndGet();
+              return false;
+            }
+            return true;
+          }
+        }, 0, 0);
+    try {
+      runOnThreads(new Task() {
+        public void run(int thread, int iteration) throws Exception {
+          String userEmail = "user" + (thread * 100 + iteration)
+              + "@example.com";
+          OAuth2Authenticator.connectToImap(
+              "localhost", server.getImapPort(), userEmail,
+              tokenFor(userEmail), false).close();
+        }
+      }, 50);
+      assertEquals(0, mismatches.get());
+      assertEquals(THREADS * 50, server.getAuthenticatedCount());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  void connectDisposesItsClient() throws Exception {
+    ConnectContext context = new ConnectContext();
+    context.setOAuthToken("secret");
+    context.attach();
+    SaslClient client;
+    try {
+      client = factory.createSaslClient(
+          XOAUTH2, null, "imap", "localhost", null,
+          nameHandler("oauth@gmail.com"));
+      assertSame(client, context.getSaslClient());
+      // A second exchange within the connect is not the connect's to
+      // dispose.
+      SaslClient second = factory.createSaslClient(
+          XOAUTH2, null, "imap", "localhost", null,
+          nameHandler("oauth@gmail.com"));
+      assertSame(client, context.getSaslClient());
+      second.evaluateChallenge(new byte[0]);
+    } finally {
+      context.releaseSaslClient();
+      context.detach();
+    }
+    assertNull(context.getSaslClient());
+    final SaslClient disposed = client;
+    assertThrows(SaslException.class,
+                 () -> disposed.evaluateChallenge(new byte[0]));
+  }
+
+  @Test
+  void matchesMechanismsByValue() {
+    // Not the interned constants the factory holds.
+    String xoauth2 = new String("xoauth2");
+    String oauthBearer = new String("OAUTHBEARER");
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(OAuth2SaslClientFactory.OAUTH_TOKEN_PROP, "token");
+    CallbackHandler handler = nameHandler("oauth@gmail.com");
+
+    assertEquals("XOAUTH2", factory.createSaslClient(
+        new String[] {"PLAIN", xoauth2}, null, "imap", "localhost", props,
+        handler).getMechanismName());
+    assertEquals("OAUTHBEARER", factory.createSaslClient(
+        new String[] {oauthBearer, xoauth2}, null, "imap", "localhost",
+        props, handler).getMechanismName());
+    assertNull(factory.createSaslClient(
+        new String[] {"PLAIN"}, null, "imap", "localhost", props, handler));
+  }
+
+  private interface Task {
+    void run(int thread, int iteration) throws Exception;
+  }
+
+  private static void runOnThreads(final Task task, final int iterations)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < THREADS; i++) {
+        final int thread = i;
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            for (int j = 0; j < iterations; j++) {
+              task.run(thread, j);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslException;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Drives OAuth2SaslClient through successful and rejected exchanges the way
+ * a generic SASL caller and JavaMail do.
+ */
+class OAuth2SaslClientTest {
+  private static final byte[] ERROR_CHALLENGE =
+      "{\"status\":\"401\",\"schemes\":\"Bearer\"}"
+      .getBytes(StandardCharsets.US_ASCII);
+
+  private static final CallbackHandler NAME_HANDLER = new CallbackHandler() {
+    public void handle(Callback[] callbacks) {
+      for (Callback callback : callbacks) {
+        ((NameCallback) callback).setName("sasl@gmail.com");
+      }
+    }
+  };
+
+  @Test
+  void completesOnceResponseIsSent() throws Exception {
+    OAuth2SaslClient client = new OAuth2SaslClient("token", NAME_HANDLER);
+    assertFalse(client.isComplete());
+    assertThrows(IllegalStateException.class,
+                 () -> client.getNegotiatedProperty(Sasl.QOP));
+
+    client.evaluateChallenge(new byte[0]);
+
+    assertTrue(client.isComplete());
+    assertEquals("auth", client.getNegotiatedProperty(Sasl.QOP));
+  }
+
+  @Test
+  void answersErrorChallengeAfterCompleting() throws Exception {
+    OAuth2SaslClient client = new OAuthBearerSaslClient(
+        "token", NAME_HANDLER, "localhost", 993);
+    client.evaluateChallenge(new byte[0]);
+
+    assertArrayEquals(new byte[] {1},
+                      client.evaluateChallenge(ERROR_CHALLENGE));
+    assertTrue(client.isComplete());
+    // Nothing follows the error challenge.
+    assertThrows(SaslException.class,
+                 () -> client.evaluateChallenge(ERROR_CHALLENGE));
+  }
+
+  @Test
+  void heldClientStaysIncompleteUntilErrorChallenge() throws Exception {
+    OAuth2SaslClient client = new OAuth2SaslClient("token", NAME_HANDLER);
+    client.holdCompletion();
+    client.evaluateChallenge(new byte[0]);
+
+    assertFalse(client.isComplete());
+    assertArrayEquals(new byte[0], client.evaluateChallenge(ERROR_CHALLENGE));
+    assertTrue(client.isComplete());
+    assertEquals("auth", client.getNegotiatedProperty(Sasl.QOP));
+  }
+}
@@ -0,0 +1,160 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks reuse, reconnection and reaping of pooled SMTP transports.
+ */
+class OAuth2SmtpTransportPoolTest {
+  private static final String ALICE = "alice@gmail.com";
+  private static final String BOB = "bob@gmail.com";
+  private static final String TOKEN = "token-pool";
+
+  private FakeMailServer server;
+  private OAuth2SmtpTransportPool pool;
+  private Message message;
+  private Address[] recipients;
+
+  @BeforeAll
+  static void initialize() {
+    OAuth2Authenticator.initialize();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+    message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress(ALICE));
+    message.setText("Hello");
+    message.saveChanges();
+    recipients = new Address[] {new InternetAddress("to@example.com")};
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (pool != null) {
+      pool.close();
+    }
+    server.close();
+  }
+
+  @Test
+  void reusesTransport() throws Exception {
+    pool = new OAuth2SmtpTransportPool(2, 60000, 1000);
+    for (int i = 0; i < 3; i++) {
+      send(ALICE);
+    }
+    assertEquals(1, pool.getConnectCount());
+    assertEquals(2, pool.getReuseCount());
+    assertEquals(1, server.getAuthenticatedCount());
+  }
+
+  @Test
+  void reconnectsTransportDroppedWhileIdle() throws Exception {
+    pool = new OAuth2SmtpTransportPool(2, 60000, 1000);
+    send(ALICE);
+    server.dropConnections();
+    TestSupport.await("the connection to drop",
+                      () -> server.getOpenConnectionCount() == 0);
+
+    // The RSET before reuse fails, and the send then reconnects.
+    send(ALICE);
+    assertEquals(1, pool.getReconnectCount());
+    assertEquals(2, pool.getConnectCount());
+    send(ALICE);
+    assertEquals(2, pool.getConnectCount());
+  }
+
+  @Test
+  void evictsIdleTransportsOfAllAccounts() throws Exception {
+    pool = new OAuth2SmtpTransportPool(2, 50, 1000);
+    send(ALICE);
+    send(BOB);
+    assertEquals(2, pool.getAccountCount());
+    Thread.sleep(100);
+
+    assertEquals(2, pool.evictIdleTransports());
+    assertEquals(0, pool.getAccountCount());
+    TestSupport.await("the evicted connections to close",
+                      () -> server.getOpenConnectionCount() == 0);
+  }
+
+  @Test
+  void sendReapsOtherAccounts() throws Exception {
+    pool = new OAuth2SmtpTransportPool(2, 100, 1000);
+    send(ALICE);
+    Thread.sleep(150);
+
+    send(BOB);
+    assertEquals(1, pool.getEvictionCount());
+    assertEquals(1, pool.getAccountCount());
+    TestSupport.await("alice's connection to close",
+                      () -> server.getOpenConnectionCount() == 1);
+  }
+
+  @Test
+  void surplusTransportTimesOut() throws Exception {
+    pool = new OAuth2SmtpTransportPool(2, 400, 5000);
+    // Two slow sends at once need two transports.
+    server.setLatency(100, 100);
+    CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+      try {
+        send(ALICE);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    send(ALICE);
+    other.get();
+    assertEquals(2, pool.getConnectCount());
+    server.setLatency(0, 0);
+
+    // One send at a time keeps reusing the same transport, and the other
+    // one times out; taken in turn, neither would.
+    for (int i = 0; i < 8; i++) {
+      Thread.sleep(100);
+      send(ALICE);
+    }
+    assertEquals(2, pool.getConnectCount());
+    assertEquals(1, pool.getEvictionCount());
+    TestSupport.await("the surplus connection to close",
+                      () -> server.getOpenConnectionCount() == 1);
+  }
+
+  private void send(String userEmail) throws Exception {
+    pool.sendMessage("localhost", server.getSmtpPort(), userEmail, TOKEN,
+                     message, recipients);
+  }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import javax.mail.MessagingException;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks the retry delays, the circuit breaker's half-open state and which
+ * failures count against a host.
+ */
+class RetryPolicyTest {
+  @Test
+  void firstRetryIsJittered() {
+    RetryPolicy policy = new RetryPolicy(5, 100, 10000);
+    Random random = new Random(1);
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    for (int i = 0; i < 1000; i++) {
+      long delay = policy.nextDelayMillis(0, random);
+      min = Math.min(min, delay);
+      max = Math.max(max, delay);
+    }
+    assertTrue(min >= 100, "min " + min);
+    assertTrue(max <= 300, "max " + max);
+    assertTrue(max - min > 100, "spread " + min + ".." + max);
+  }
+
+  @Test
+  void delaysStayWithinCap() {
+    RetryPolicy policy = new RetryPolicy(5, 100, 10000);
+    Random random = new Random(1);
+    long delay = 0;
+    for (int i = 0; i < 100; i++) {
+      delay = policy.nextDelayMillis(delay, random);
+      assertTrue(delay >= 100 && delay <= 10000, "delay " + delay);
+    }
+    // A huge previous delay must not overflow past the cap.
+    delay = policy.nextDelayMillis(Long.MAX_VALUE / 2, random);
+    assertTrue(delay >= 100 && delay <= 10000, "delay " + delay);
+  }
+
+  @Test
+  void neutralTrialLeavesBreakerHalfOpen() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(2, 50);
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allow());
+    Thread.sleep(100);
+
+    assertTrue(breaker.allow());
+    assertFalse(breaker.allow(), "only one trial at a time");
+    breaker.recordNeutral();
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.isRejecting());
+
+    assertTrue(breaker.allow(), "next attempt is a new trial");
+    assertTrue(breaker.isRejecting());
+    breaker.recordFailure();
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allow());
+    Thread.sleep(100);
+
+    assertTrue(breaker.allow());
+    breaker.recordSuccess();
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allow());
+    assertTrue(breaker.allow());
+  }
+
+  @Test
+  void throttlingDoesNotOpenBreaker() throws Exception {
+    ConnectRetrier retrier = new ConnectRetrier(TestSupport.TOKENS, 2, 60000);
+    retrier.setPolicy(FailureClass.THROTTLED, RetryPolicy.NONE);
+    ConnectRetrier.Attempt<Object> throttled =
+        new ConnectRetrier.Attempt<Object>() {
+          public Object connect(String oauthToken)
+              throws MessagingException {
+            throw new MessagingException(
+                "Too many simultaneous connections. (Failure)");
+          }
+        };
+    for (int i = 0; i < 10; i++) {
+      String user = "user" + i + "@gmail.com";
+      MessagingException e = assertThrows(MessagingException.class,
+          () -> retrier.execute("imap.gmail.com", user, throttled));
+      assertEquals(FailureClass.THROTTLED, FailureClass.classify(e));
+    }
+    assertFalse(retrier.isCircuitOpen("imap.gmail.com"));
+    assertEquals(0, retrier.getRejectedCount());
+
+    // Failures of the host itself still open it.
+    ConnectRetrier.Attempt<Object> unavailable =
+        new ConnectRetrier.Attempt<Object>() {
+          public Object connect(String oauthToken)
+              throws MessagingException {
+            throw new MessagingException("[UNAVAILABLE] Try later");
+          }
+        };
+    retrier.setPolicy(FailureClass.UNAVAILABLE, RetryPolicy.NONE);
+    for (int i = 0; i < 2; i++) {
+      assertThrows(MessagingException.class, () -> retrier.execute(
+          "imap.gmail.com", "alice@gmail.com", unavailable));
+    }
+    assertTrue(retrier.isCircuitOpen("imap.gmail.com"));
+  }
+}
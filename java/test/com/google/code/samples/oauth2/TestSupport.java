@@ -0,0 +1,68 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.function.BooleanSupplier;
+
+
+/**
+ * Helpers shared by the tests.
+ */
+final class TestSupport {
+  static final long TIMEOUT_MILLIS = 10000;
+
+  /**
+   * Accepts tokens that start with "token-", like those {@link #TOKENS}
+   * hands out.
+   */
+  static final FakeMailServer.TokenValidator VALID_PREFIX =
+      new FakeMailServer.TokenValidator() {
+        public boolean isValid(String userEmail, String oauthToken) {
+          return oauthToken.startsWith("token-");
+        }
+      };
+
+  /** Hands out "token-" followed by the user's address. */
+  static final TokenProvider TOKENS = new TokenProvider() {
+    public String getToken(String userEmail) {
+      return "token-" + userEmail;
+    }
+
+    public void invalidate(String userEmail) {
+    }
+  };
+
+  private TestSupport() {
+  }
+
+  /**
+   * Waits until {@code condition} holds, failing the test if it does not
+   * within TIMEOUT_MILLIS.
+   */
+  static void await(String what, BooleanSupplier condition)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TIMEOUT_MILLIS * 1000000;
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("Timed out waiting for " + what);
+      }
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static com.google.code.samples.oauth2.TestSupport.VALID_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks bulk probing against FakeMailServer: every probe gets the right
+ * result, and concurrency and time limits hold.
+ */
+class TokenProbeTest {
+  private FakeMailServer server;
+  private TokenProbe prober;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new FakeMailServer(SSLContext.getDefault(), VALID_PREFIX, 0, 0);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (prober != null) {
+      prober.close();
+    }
+    server.close();
+  }
+
+  @Test
+  void probesManyTokens() throws Exception {
+    prober = new TokenProbe("localhost", server.getImapPort(),
+                            SSLContext.getDefault(), 16, 10000);
+    List<CompletableFuture<TokenProbe.Result>> results =
+        new ArrayList<CompletableFuture<TokenProbe.Result>>();
+    for (int i = 0; i < 200; i++) {
+      // One token in four has been revoked.
+      String token = (i % 4 == 0 ? "revoked-" : "token-") + i;
+      results.add(prober.probe("user" + i + "@gmail.com", token));
+    }
+
+    int valid = 0;
+    int rejected = 0;
+    for (int i = 0; i < results.size(); i++) {
+      TokenProbe.Result result = results.get(i).get(10, TimeUnit.SECONDS);
+      assertEquals("user" + i + "@gmail.com", result.getUserEmail());
+      if (i % 4 == 0) {
+        assertEquals(FailureClass.AUTHENTICATION, result.getFailureClass());
+        assertEquals("401", result.getError().getStatus());
+        rejected++;
+      } else {
+        assertTrue(result.isValid(), result.toString());
+        assertNull(result.getError());
+        valid++;
+      }
+    }
+    assertEquals(150, valid);
+    assertEquals(50, rejected);
+    assertEquals(150, server.getAuthenticatedCount());
+    assertEquals(50, server.getRejectedCount());
+    TestSupport.await("the probes to log out",
+                      () -> server.getOpenConnectionCount() == 0);
+  }
+
+  @Test
+  void reportsThrottling() throws Exception {
+    server.setThrottleRate(1);
+    prober = new TokenProbe("localhost", server.getImapPort(),
+                            SSLContext.getDefault(), 4, 10000);
+    TokenProbe.Result result =
+        prober.probe("alice@gmail.com", "token-a").get(10, TimeUnit.SECONDS);
+    assertEquals(FailureClass.THROTTLED, result.getFailureClass());
+  }
+
+  @Test
+  void timesOutSilentServer() throws Exception {
+    server.setSilent(true);
+    prober = new TokenProbe("localhost", server.getImapPort(),
+                            SSLContext.getDefault(), 2, 200);
+    List<CompletableFuture<TokenProbe.Result>> results =
+        new ArrayList<CompletableFuture<TokenProbe.Result>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < 4; i++) {
+      results.add(prober.probe("user" + i + "@gmail.com", "token-" + i));
+    }
+    for (CompletableFuture<TokenProbe.Result> result : results) {
+      assertEquals(FailureClass.TIMEOUT,
+                   result.get(10, TimeUnit.SECONDS).getFailureClass());
+    }
+    // Two at a time, so the second pair only starts after the first.
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+    assertTrue(elapsedMillis >= 400, "took " + elapsedMillis + "ms");
+  }
+
+  @Test
+  void closeFailsPendingProbes() throws Exception {
+    server.setSilent(true);
+    prober = new TokenProbe("localhost", server.getImapPort(),
+                            SSLContext.getDefault(), 1, 10000);
+    CompletableFuture<TokenProbe.Result> running =
+        prober.probe("alice@gmail.com", "token-a");
+    CompletableFuture<TokenProbe.Result> waiting =
+        prober.probe("bob@gmail.com", "token-b");
+    prober.close();
+    assertEquals(FailureClass.CONNECTION,
+                 running.get(10, TimeUnit.SECONDS).getFailureClass());
+    assertThrows(ExecutionException.class,
+                 () -> waiting.get(10, TimeUnit.SECONDS));
+    assertThrows(ExecutionException.class,
+                 () -> prober.probe("carol@gmail.com", "token-c").get());
+  }
+}
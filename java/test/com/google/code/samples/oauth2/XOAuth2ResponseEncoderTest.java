@@ -0,0 +1,86 @@
+/* Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.oauth2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Checks the XOAUTH2 response against a plain String encoding.
+ */
+class XOAuth2ResponseEncoderTest {
+  private static final String USER = "oauth@gmail.com";
+
+  @Test
+  void matchesStringEncoding() {
+    String[] tokens = {"", "y", "ya", "ya2", "ya29.a0Af", "t\u00f6ken\u20ac",
+                       "\ud83d\udce7"};
+    for (String token : tokens) {
+      byte[] expected = expected(USER, token);
+      assertArrayEquals(expected, XOAuth2ResponseEncoder.encode(USER, token));
+      assertEquals(expected.length,
+                   XOAuth2ResponseEncoder.encodedLength(USER, token));
+      assertArrayEquals(Base64.getEncoder().encode(expected),
+                        XOAuth2ResponseEncoder.encodeBase64(USER, token));
+    }
+  }
+
+  @Test
+  void encodesTokensLargerThanScratchBuffer() {
+    char[] chars = new char[XOAuth2ResponseEncoder.MAX_SCRATCH_LENGTH * 2];
+    Arrays.fill(chars, 'x');
+    String token = new String(chars);
+    assertArrayEquals(Base64.getEncoder().encode(expected(USER, token)),
+                      XOAuth2ResponseEncoder.encodeBase64(USER, token));
+    // The next, small, response still comes out right.
+    assertArrayEquals(Base64.getEncoder().encode(expected(USER, "ya29")),
+                      XOAuth2ResponseEncoder.encodeBase64(USER, "ya29"));
+  }
+
+  @Test
+  void writesAtOffset() {
+    byte[] expected = expected(USER, "ya29");
+    byte[] dst = new byte[expected.length + 3];
+    assertEquals(dst.length,
+                 XOAuth2ResponseEncoder.encode(USER, "ya29", dst, 3));
+    assertArrayEquals(expected, Arrays.copyOfRange(dst, 3, dst.length));
+    assertThrows(IndexOutOfBoundsException.class,
+                 () -> XOAuth2ResponseEncoder.encode(USER, "ya29", dst, 4));
+  }
+
+  @Test
+  void rejectsInvalidArguments() {
+    assertThrows(NullPointerException.class,
+                 () -> XOAuth2ResponseEncoder.encode(USER, null));
+    assertThrows(NullPointerException.class,
+                 () -> XOAuth2ResponseEncoder.encodeBase64(null, "ya29"));
+    assertThrows(IllegalArgumentException.class,
+                 () -> XOAuth2ResponseEncoder.encode(USER, "ya\u000129"));
+  }
+
+  private static byte[] expected(String userEmail, String token) {
+    return ("user=" + userEmail + "\1auth=Bearer " + token + "\1\1")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,226 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.code.samples.xoauth;
+
+import net.oauth.OAuthConsumer;
+import net.oauth.signature.OAuthSignatureMethod;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Builds the same XOAUTH SASL client response as XoauthSaslResponseBuilder,
+ * without going through net.oauth for every response.
+ *
+ * <p>Each thread keeps its own HMAC-SHA1 Macs, already initialized with the
+ * signing keys it used most recently, and its own nonce generator, so
+ * threads never wait for each other. The signature base string and the
+ * response are each built in one buffer sized up front.
+ */
+public class XoauthResponseSigner {
+  private static final Charset UTF_8 = StandardCharsets.UTF_8;
+  private static final String HMAC_SHA1 = "HmacSHA1";
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  // Signing keys each thread keeps a Mac for.
+  private static final int MACS_PER_THREAD = 64;
+
+  private static final ThreadLocal<ThreadState> threadState =
+      new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+          return new ThreadState();
+        }
+      };
+
+  /**
+   * A thread's Macs, least recently used first, and its nonce generator.
+   */
+  private static final class ThreadState {
+    final Map<String, Mac> macs =
+        new LinkedHashMap<String, Mac>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Mac> eldest) {
+            return size() > MACS_PER_THREAD;
+          }
+        };
+    final Random random = new Random();
+
+    Mac getMac(String key) throws GeneralSecurityException {
+      Mac mac = macs.get(key);
+      if (mac == null) {
+        mac = Mac.getInstance(HMAC_SHA1);
+        mac.init(new SecretKeySpec(key.getBytes(UTF_8), HMAC_SHA1));
+        macs.put(key, mac);
+      }
+      return mac;
+    }
+  }
+
+  /**
+   * Builds an XOAUTH SASL client response. The arguments are those of
+   * {@link XoauthSaslResponseBuilder#buildResponse}.
+   *
+   * @return The auth string, to be base64-encoded before being sent.
+   */
+  public byte[] buildResponse(String userEmail,
+                              XoauthProtocol protocol,
+                              String oauthToken,
+                              String oauthTokenSecret,
+                              OAuthConsumer consumer)
+      throws GeneralSecurityException {
+    return buildResponse(
+        userEmail, protocol, oauthToken, oauthTokenSecret, consumer,
+        Long.toString(threadState.get().random.nextLong() & Long.MAX_VALUE),
+        Long.toString(System.currentTimeMillis() / 1000));
+  }
+
+  /**
+   * Builds an XOAUTH SASL client response with the given nonce and
+   * timestamp, so that it can be compared with another implementation's.
+   */
+  byte[] buildResponse(String userEmail,
+                       XoauthProtocol protocol,
+                       String oauthToken,
+                       String oauthTokenSecret,
+                       OAuthConsumer consumer,
+                       String nonce,
+                       String timestamp)
+      throws GeneralSecurityException {
+    ThreadState state = threadState.get();
+    String url = "https://mail.google.com/mail/b/" + userEmail + "/"
+        + protocol.getName() + "/";
+    String consumerKey = percentEncode(consumer.consumerKey);
+    String token = percentEncode(oauthToken);
+
+    // The parameters in the sorted order the base string needs.
+    String[] parameters = {
+        "oauth_consumer_key", consumerKey,
+        "oauth_nonce", nonce,
+        "oauth_signature_method", "HMAC-SHA1",
+        "oauth_timestamp", timestamp,
+        "oauth_token", token,
+        "oauth_version", "1.0",
+    };
+    // The same parameters in the order net.oauth lists them in the
+    // response.
+    String[] responseParameters = {
+        "oauth_token", token,
+        "oauth_signature_method", "HMAC-SHA1",
+        "oauth_consumer_key", consumerKey,
+        "oauth_timestamp", timestamp,
+        "oauth_nonce", nonce,
+        "oauth_version", "1.0",
+    };
+    int length = 0;
+    for (String parameter : parameters) {
+      length += parameter.length();
+    }
+
+    // Percent-encoding the normalized parameters triples at most their
+    // special characters; sizing for that avoids any growth.
+    StringBuilder baseString = new StringBuilder(
+        4 + url.length() * 3 + 1 + (length + parameters.length) * 3);
+    baseString.append("GET&");
+    appendPercentEncoded(baseString, url);
+    baseString.append('&');
+    for (int i = 0; i < parameters.length; i += 2) {
+      if (i > 0) {
+        baseString.append("%26");
+      }
+      baseString.append(parameters[i]).append("%3D");
+      appendPercentEncoded(baseString, parameters[i + 1]);
+    }
+
+    String key = percentEncode(consumer.consumerSecret) + "&"
+        + percentEncode(oauthTokenSecret);
+    Mac mac = state.getMac(key);
+    String signature = OAuthSignatureMethod.base64Encode(
+        mac.doFinal(baseString.toString().getBytes(UTF_8)));
+
+    StringBuilder authString = new StringBuilder(
+        4 + url.length() + 1 + length + parameters.length * 2
+        + 20 + signature.length() * 3);
+    authString.append("GET ").append(url).append(' ');
+    for (int i = 0; i < responseParameters.length; i += 2) {
+      authString.append(responseParameters[i]).append("=\"")
+          .append(responseParameters[i + 1]).append("\",");
+    }
+    authString.append("oauth_signature=\"");
+    appendPercentEncoded(authString, signature);
+    authString.append('"');
+    return authString.toString().getBytes(UTF_8);
+  }
+
+  private static String percentEncode(String s) {
+    if (s == null) {
+      return "";
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (!isUnreserved(s.charAt(i))) {
+        StringBuilder sb = new StringBuilder(s.length() * 3);
+        appendPercentEncoded(sb, s);
+        return sb.toString();
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Appends {@code s} percent-encoded as OAuth requires (RFC 3986, with
+   * only the unreserved characters left as they are).
+   */
+  private static void appendPercentEncoded(StringBuilder sb, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (isUnreserved(c)) {
+        sb.append(c);
+      } else if (c < 0x80) {
+        appendEscaped(sb, c);
+      } else {
+        // Rare enough to not be worth encoding in place.
+        int end = i + 1;
+        while (end < s.length() && s.charAt(end) >= 0x80) {
+          end++;
+        }
+        for (byte b : s.substring(i, end).getBytes(UTF_8)) {
+          appendEscaped(sb, b & 0xff);
+        }
+        i = end - 1;
+      }
+    }
+  }
+
+  private static void appendEscaped(StringBuilder sb, int b) {
+    sb.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9')
+        || c == '-' || c == '.' || c == '_' || c == '~';
+  }
+}
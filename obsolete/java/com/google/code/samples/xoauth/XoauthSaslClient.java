@@ -16,10 +16,9 @@
 package com.google.code.samples.xoauth;
 
 import net.oauth.OAuthConsumer;
-import net.oauth.OAuthException;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
 
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -34,6 +33,9 @@ import javax.security.sasl.SaslException;
  * An XOAUTH implementation of SaslClient.
  */
 class XoauthSaslClient implements SaslClient {
+  private static final XoauthResponseSigner signer =
+      new XoauthResponseSigner();
+
   private boolean isComplete = false;
   private final XoauthProtocol protocol;
   private final String oauthToken;
@@ -82,25 +84,18 @@ class XoauthSaslClient implements SaslClient {
     }
     String email = nameCallback.getName();
 
-    XoauthSaslResponseBuilder responseBuilder = new XoauthSaslResponseBuilder();
-    Exception caughtException = null;
     try {
-      byte[] rv = responseBuilder.buildResponse(email,
-                                                protocol,
-                                                oauthToken,
-                                                oauthTokenSecret,
-                                                consumer);
+      byte[] rv = signer.buildResponse(email,
+                                       protocol,
+                                       oauthToken,
+                                       oauthTokenSecret,
+                                       consumer);
       isComplete = true;
       return rv;
-    } catch (IOException e) {
-      caughtException = e;
-    } catch (OAuthException e) {
-      caughtException = e;
-    } catch (URISyntaxException e) {
-      caughtException = e;
+    } catch (GeneralSecurityException e) {
+      throw new SaslException("Threw an exception building XOAUTH string: " +
+                              e);
     }
-    throw new SaslException("Threw an exception building XOAUTH string: " +
-                            caughtException);
   }
 
   public boolean isComplete() {
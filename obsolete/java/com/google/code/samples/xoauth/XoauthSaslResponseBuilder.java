@@ -23,6 +23,7 @@ import net.oauth.OAuthMessage;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -51,6 +52,22 @@ public class XoauthSaslResponseBuilder {
                               String oauthTokenSecret,
                               OAuthConsumer consumer)
       throws IOException, OAuthException, URISyntaxException {
+    return buildResponse(userEmail, protocol, oauthToken, oauthTokenSecret,
+                         consumer, null, null);
+  }
+
+  /**
+   * Builds an XOAUTH SASL client response with the given nonce and
+   * timestamp, or generated ones if both are null.
+   */
+  byte[] buildResponse(String userEmail,
+                       XoauthProtocol protocol,
+                       String oauthToken,
+                       String oauthTokenSecret,
+                       OAuthConsumer consumer,
+                       String nonce,
+                       String timestamp)
+      throws IOException, OAuthException, URISyntaxException {
     OAuthAccessor accessor = new OAuthAccessor(consumer);
     accessor.tokenSecret = oauthTokenSecret;
 
@@ -66,6 +83,12 @@ public class XoauthSaslResponseBuilder {
         "GET",
         url,
         parameters.entrySet());
+    if (nonce != null) {
+      // Where addRequiredParameters would have put them.
+      message.addParameter(OAuth.OAUTH_CONSUMER_KEY, consumer.consumerKey);
+      message.addParameter(OAuth.OAUTH_TIMESTAMP, timestamp);
+      message.addParameter(OAuth.OAUTH_NONCE, nonce);
+    }
     message.addRequiredParameters(accessor);
 
     StringBuilder authString = new StringBuilder();
@@ -82,6 +105,6 @@ public class XoauthSaslResponseBuilder {
       authString.append(OAuth.percentEncode(entry.getValue()));
       authString.append("\"");
     }
-    return authString.toString().getBytes();
+    return authString.toString().getBytes(StandardCharsets.UTF_8);
   }
 }